@@ -0,0 +1,325 @@
+package edu.bu.jgram.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents per-document resource accounting. Measures the bytes allocated and the CPU time consumed by the
+ * processing thread for every document, and summarises them for the whole run. A document processed in steps on
+ * several threads, eg. by the stages of {@link GradingPipeline}, is measured with a {@link Tally} of its steps.
+ *
+ * <p>Note: Measurement relies on com.sun.management.ThreadMXBean. If the running JVM does not support it, figures
+ * are reported as -1 and the allocation budget is not enforced.</p>
+ */
+public class AllocationMonitor {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private final long mBudget;
+    private final com.sun.management.ThreadMXBean mThreadBean;
+    private final List<Usage> mUsageList;
+    private final List<Usage> mOverBudgetList;
+
+    /**
+     * @param pBudget maximum bytes a single document may allocate, 0 or less disables the assertion mode
+     */
+    public AllocationMonitor(long pBudget) {
+        mBudget = pBudget;
+        mThreadBean = lookupThreadBean();
+        mUsageList = Collections.synchronizedList(new ArrayList<>());
+        mOverBudgetList = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * Start measuring a document on the current thread.
+     *
+     * @param pDocumentName name of the document under measurement
+     * @return {@link Sample}
+     */
+    public Sample start(String pDocumentName) {
+        return new Sample(pDocumentName, allocatedBytes(), cpuTime(), System.nanoTime());
+    }
+
+    /**
+     * Stop measuring a document. Must be called on the same thread which started the sample.
+     *
+     * @param pSample sample returned by {@link #start(String)}
+     * @param pCheckpointCount number of checkpoint(s) found in the document
+     * @param pStatus processing status of the document
+     * @return {@link Usage}
+     */
+    public Usage stop(Sample pSample, int pCheckpointCount, String pStatus) {
+        long allocatedBytes = pSample.mAllocatedBytes < 0 ? -1 : allocatedBytes() - pSample.mAllocatedBytes;
+        long cpuTime = pSample.mCpuTime < 0 ? -1 : cpuTime() - pSample.mCpuTime;
+        long wallTime = System.nanoTime() - pSample.mWallTime;
+        return record(new Usage(pSample.mDocumentName, pStatus, pCheckpointCount, allocatedBytes, cpuTime, wallTime));
+    }
+
+    /**
+     * Start measuring a document processed in steps, each step possibly on another thread.
+     *
+     * @param pDocumentName name of the document under measurement
+     * @return {@link Tally}
+     */
+    public Tally startTally(String pDocumentName) {
+        return new Tally(pDocumentName, System.nanoTime());
+    }
+
+    /**
+     * Stop measuring a document processed in steps. Its wall time spans every step, waits between steps included.
+     *
+     * @param pTally tally returned by {@link #startTally(String)}, with no step in progress
+     * @param pCheckpointCount number of checkpoint(s) found in the document
+     * @param pStatus processing status of the document
+     * @return {@link Usage}
+     */
+    public Usage stop(Tally pTally, int pCheckpointCount, String pStatus) {
+        long wallTime = System.nanoTime() - pTally.mWallTime;
+        long allocatedBytes = mThreadBean == null ? -1 : pTally.mAllocatedBytes;
+        long cpuTime = mThreadBean == null ? -1 : pTally.mCpuTime;
+        return record(new Usage(pTally.mDocumentName, pStatus, pCheckpointCount, allocatedBytes, cpuTime, wallTime));
+    }
+
+    private Usage record(Usage pUsage) {
+        mUsageList.add(pUsage);
+        if (mBudget > 0 && pUsage.getAllocatedBytes() > mBudget) {
+            mOverBudgetList.add(pUsage);
+        }
+        return pUsage;
+    }
+
+    /**
+     * Retrieve usage of every measured document, in completion order.
+     *
+     * @return {@link List}
+     */
+    public List<Usage> getUsageList() {
+        synchronized (mUsageList) {
+            return new ArrayList<>(mUsageList);
+        }
+    }
+
+    /**
+     * Print run summary i.e. mean/max allocated bytes per document, bytes per checkpoint and CPU time.
+     */
+    public void printSummary() {
+        List<Usage> usageList = getUsageList();
+        if (usageList.isEmpty() || mThreadBean == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        long maxBytes = 0;
+        long totalCpuTime = 0;
+        long totalCheckpoints = 0;
+        String maxDocument = "";
+
+        for (Usage usage : usageList) {
+            totalBytes += Math.max(usage.getAllocatedBytes(), 0);
+            totalCpuTime += Math.max(usage.getCpuTime(), 0);
+            totalCheckpoints += usage.getCheckpointCount();
+            if (usage.getAllocatedBytes() > maxBytes) {
+                maxBytes = usage.getAllocatedBytes();
+                maxDocument = usage.getDocumentName();
+            }
+        }
+
+        LOGGER.info(String.format("Allocation : %d document(s) | mean %s/doc | max %s/doc [%s] | %s/checkpoint | CPU %.1f ms/doc",
+                usageList.size(),
+                formatBytes(totalBytes / usageList.size()),
+                formatBytes(maxBytes), maxDocument,
+                totalCheckpoints == 0 ? "n/a" : formatBytes(totalBytes / totalCheckpoints),
+                totalCpuTime / 1e6 / usageList.size()));
+    }
+
+    /**
+     * Write per-document usage as CSV.
+     *
+     * @param pFile destination file, overwritten if exists
+     * @throws IOException Throws if the file can't be written
+     */
+    public void writeCsv(File pFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(pFile))) {
+            writer.println("document,status,checkpoints,allocated_bytes,cpu_nanos,wall_nanos");
+            for (Usage usage : getUsageList()) {
+                writer.println(String.format("\"%s\",%s,%d,%d,%d,%d",
+                        usage.getDocumentName().replace("\"", "\"\""), usage.getStatus(), usage.getCheckpointCount(),
+                        usage.getAllocatedBytes(), usage.getCpuTime(), usage.getWallTime()));
+            }
+        }
+    }
+
+    /**
+     * Verify every measured document stayed within the allocation budget. No-op when budget is not set.
+     *
+     * @throws IllegalArgumentException Throws if any document allocated more than the budget set by
+     *                                  {@link Settings#ALLOCATION_BUDGET}
+     */
+    public void assertWithinBudget() throws IllegalArgumentException {
+        synchronized (mOverBudgetList) {
+            if (mOverBudgetList.isEmpty()) {
+                return;
+            }
+
+            StringBuilder message = new StringBuilder(String.format("%d document(s) exceeded allocation budget of %s :",
+                    mOverBudgetList.size(), formatBytes(mBudget)));
+            for (Usage usage : mOverBudgetList) {
+                message.append(String.format(" [%s] %s", usage.getDocumentName(), formatBytes(usage.getAllocatedBytes())));
+            }
+            throw new IllegalArgumentException(message.toString());
+        }
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean == null ? -1 : mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private long cpuTime() {
+        return mThreadBean == null ? -1 : mThreadBean.getCurrentThreadCpuTime();
+    }
+
+    private static com.sun.management.ThreadMXBean lookupThreadBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!sunThreadBean.isThreadAllocatedMemorySupported() || !sunThreadBean.isCurrentThreadCpuTimeSupported()) {
+            return null;
+        }
+
+        sunThreadBean.setThreadAllocatedMemoryEnabled(true);
+        sunThreadBean.setThreadCpuTimeEnabled(true);
+        return sunThreadBean;
+    }
+
+    private static String formatBytes(long pBytes) {
+        if (pBytes < 1024) {
+            return pBytes + " B";
+        }
+        if (pBytes < 1024 * 1024) {
+            return String.format("%.1f KB", pBytes / 1024.0);
+        }
+        return String.format("%.1f MB", pBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Represents the starting point of a document measurement.
+     */
+    public static final class Sample {
+        private final String mDocumentName;
+        private final long mAllocatedBytes;
+        private final long mCpuTime;
+        private final long mWallTime;
+
+        private Sample(String pDocumentName, long pAllocatedBytes, long pCpuTime, long pWallTime) {
+            mDocumentName = pDocumentName;
+            mAllocatedBytes = pAllocatedBytes;
+            mCpuTime = pCpuTime;
+            mWallTime = pWallTime;
+        }
+    }
+
+    /**
+     * Represents the measurement of a document processed in steps. A step is measured on the thread running it,
+     * from {@link #resume()} to {@link #pause()}. Steps run one after the other, so it needs no synchronization
+     * as long as it is handed between threads through a synchronizing queue.
+     */
+    public final class Tally {
+        private final String mDocumentName;
+        private final long mWallTime;
+        private long mAllocatedBytes;
+        private long mCpuTime;
+        // Counters of the current thread when the step in progress started, -1 between steps
+        private long mStepAllocatedBytes = -1;
+        private long mStepCpuTime = -1;
+
+        private Tally(String pDocumentName, long pWallTime) {
+            mDocumentName = pDocumentName;
+            mWallTime = pWallTime;
+        }
+
+        /**
+         * Start a step on the current thread.
+         */
+        public void resume() {
+            mStepAllocatedBytes = allocatedBytes();
+            mStepCpuTime = cpuTime();
+        }
+
+        /**
+         * End the step in progress on the current thread, if any.
+         */
+        public void pause() {
+            if (mStepAllocatedBytes >= 0) {
+                mAllocatedBytes += allocatedBytes() - mStepAllocatedBytes;
+                mCpuTime += cpuTime() - mStepCpuTime;
+            }
+            mStepAllocatedBytes = -1;
+            mStepCpuTime = -1;
+        }
+    }
+
+    /**
+     * Represents the measured resource usage of a single document.
+     */
+    public static final class Usage {
+        private final String mDocumentName;
+        private final String mStatus;
+        private final int mCheckpointCount;
+        private final long mAllocatedBytes;
+        private final long mCpuTime;
+        private final long mWallTime;
+
+        private Usage(String pDocumentName, String pStatus, int pCheckpointCount,
+                      long pAllocatedBytes, long pCpuTime, long pWallTime) {
+            mDocumentName = pDocumentName;
+            mStatus = pStatus;
+            mCheckpointCount = pCheckpointCount;
+            mAllocatedBytes = pAllocatedBytes;
+            mCpuTime = pCpuTime;
+            mWallTime = pWallTime;
+        }
+
+        public String getDocumentName() {
+            return mDocumentName;
+        }
+
+        public String getStatus() {
+            return mStatus;
+        }
+
+        public int getCheckpointCount() {
+            return mCheckpointCount;
+        }
+
+        /**
+         * Retrieve bytes allocated by the processing thread, -1 if not supported by the JVM.
+         *
+         * @return {@link Long}
+         */
+        public long getAllocatedBytes() {
+            return mAllocatedBytes;
+        }
+
+        /**
+         * Retrieve CPU time in nanoseconds, -1 if not supported by the JVM.
+         *
+         * @return {@link Long}
+         */
+        public long getCpuTime() {
+            return mCpuTime;
+        }
+
+        public long getWallTime() {
+            return mWallTime;
+        }
+    }
+}
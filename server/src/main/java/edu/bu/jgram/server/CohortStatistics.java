@@ -0,0 +1,291 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.bu.jgram.server.assessment.Result;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the grade distribution of a cohort: mean, median, p10/p90 and histogram of overall grades, and for
+ * each checkpoint ordinal the mean grade and how many students lost points.
+ *
+ * <p>Overall grades are counted in fixed bins of 0.1 grade, so memory is the same for 50 or 50k submissions and
+ * quantiles are exact to the bin. Statistics of parallel workers or shards are combined with
+ * {@link #merge(CohortStatistics)}, and persisted across processes with {@link #write(File)}/{@link #read(File)}.</p>
+ */
+final class CohortStatistics implements OutcomeListener {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    // Bins per grade point i.e. resolution of 0.1
+    private static final int BIN_SCALE = 10;
+    private static final int HISTOGRAM_BUCKETS = 10;
+    private static final int HISTOGRAM_WIDTH = 40;
+
+    private final int mMaxGrade;
+
+    // Guarded by this
+    private final long[] mBinCounts;
+    private long mCount = 0;
+    private double mSum = 0;
+    private final List<CheckpointAggregate> mCheckpointAggregateList = new ArrayList<>();
+
+    /**
+     * @param pMaxGrade highest grade of a checkpoint, and so of the overall grade
+     */
+    CohortStatistics(int pMaxGrade) {
+        mMaxGrade = pMaxGrade;
+        mBinCounts = new long[pMaxGrade * BIN_SCALE + 1];
+    }
+
+    /**
+     * Add the result of a graded document, other outcomes are ignored.
+     *
+     * @param pSequence discovery sequence (0 based) of the document
+     * @param pOutcome outcome of the document
+     */
+    @Override
+    public void onOutcome(long pSequence, DocumentOutcome pOutcome) {
+        if (pOutcome.getResult() != null) {
+            add(pOutcome.getResult());
+        }
+    }
+
+    /**
+     * Add the result of a graded document.
+     *
+     * @param pResult evaluated result
+     */
+    synchronized void add(Result pResult) {
+        float overallGrade = pResult.getOverallGrade();
+        mBinCounts[toBin(overallGrade)]++;
+        mCount++;
+        mSum += overallGrade;
+
+        for (int ordinal = 1; ordinal <= pResult.getCheckpointCount(); ordinal++) {
+            int grade = pResult.getGrade(ordinal);
+            CheckpointAggregate checkpointAggregate = getCheckpointAggregate(ordinal);
+            checkpointAggregate.mCount++;
+            checkpointAggregate.mGradeSum += grade;
+            if (grade < mMaxGrade) {
+                checkpointAggregate.mLostPointsCount++;
+            }
+        }
+    }
+
+    /**
+     * Combine the statistics of another worker into these statistics.
+     *
+     * @param pOther statistics with the same maximum grade
+     * @throws IllegalArgumentException Throws if the maximum grade differs
+     */
+    void merge(CohortStatistics pOther) throws IllegalArgumentException {
+        if (pOther.mMaxGrade != mMaxGrade) {
+            throw new IllegalArgumentException(String.format("Can't merge statistics of maximum grade %d into %d", pOther.mMaxGrade, mMaxGrade));
+        }
+
+        // Copy first, so two statistics merging into each other never hold both locks
+        long[] binCounts;
+        long count;
+        double sum;
+        List<long[]> checkpointList = new ArrayList<>();
+        synchronized (pOther) {
+            binCounts = pOther.mBinCounts.clone();
+            count = pOther.mCount;
+            sum = pOther.mSum;
+            for (CheckpointAggregate otherAggregate : pOther.mCheckpointAggregateList) {
+                checkpointList.add(new long[]{otherAggregate.mCount, otherAggregate.mGradeSum, otherAggregate.mLostPointsCount});
+            }
+        }
+
+        synchronized (this) {
+            for (int bin = 0; bin < mBinCounts.length; bin++) {
+                mBinCounts[bin] += binCounts[bin];
+            }
+            mCount += count;
+            mSum += sum;
+            for (int ordinal = 1; ordinal <= checkpointList.size(); ordinal++) {
+                long[] otherAggregate = checkpointList.get(ordinal - 1);
+                CheckpointAggregate checkpointAggregate = getCheckpointAggregate(ordinal);
+                checkpointAggregate.mCount += otherAggregate[0];
+                checkpointAggregate.mGradeSum += otherAggregate[1];
+                checkpointAggregate.mLostPointsCount += otherAggregate[2];
+            }
+        }
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Retrieve mean of overall grades.
+     *
+     * @return {@link Double} NaN when no document was graded
+     */
+    synchronized double getMean() {
+        return mCount == 0 ? Double.NaN : mSum / mCount;
+    }
+
+    /**
+     * Retrieve the overall grade below or at which the given fraction of the cohort falls (nearest rank), to
+     * the resolution of a bin.
+     *
+     * @param pFraction between 0 and 1 eg. 0.5 for median
+     * @return {@link Double} NaN when no document was graded
+     */
+    synchronized double getQuantile(double pFraction) {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(pFraction * mCount));
+        long cumulativeCount = 0;
+        for (int bin = 0; bin < mBinCounts.length; bin++) {
+            cumulativeCount += mBinCounts[bin];
+            if (cumulativeCount >= rank) {
+                return (double) bin / BIN_SCALE;
+            }
+        }
+        return mMaxGrade;
+    }
+
+    /**
+     * Retrieve the number of students who lost points on a checkpoint.
+     *
+     * @param pOrdinal checkpoint ordinal (1 based)
+     * @return {@link Long}
+     */
+    synchronized long getLostPointsCount(int pOrdinal) {
+        return pOrdinal > mCheckpointAggregateList.size() ? 0 : mCheckpointAggregateList.get(pOrdinal - 1).mLostPointsCount;
+    }
+
+    /**
+     * Retrieve the mean grade of a checkpoint.
+     *
+     * @param pOrdinal checkpoint ordinal (1 based)
+     * @return {@link Double} NaN when no document had the checkpoint
+     */
+    synchronized double getCheckpointMean(int pOrdinal) {
+        if (pOrdinal > mCheckpointAggregateList.size() || mCheckpointAggregateList.get(pOrdinal - 1).mCount == 0) {
+            return Double.NaN;
+        }
+        CheckpointAggregate checkpointAggregate = mCheckpointAggregateList.get(pOrdinal - 1);
+        return (double) checkpointAggregate.mGradeSum / checkpointAggregate.mCount;
+    }
+
+    /**
+     * Print the cohort report: distribution summary, histogram of overall grades and per-checkpoint aggregates.
+     */
+    synchronized void printReport() {
+        if (mCount == 0) {
+            return;
+        }
+
+        LOGGER.info(String.format("Cohort : %d graded document(s) | mean %.2f | median %.1f | p10 %.1f | p90 %.1f",
+                mCount, getMean(), getQuantile(0.5), getQuantile(0.1), getQuantile(0.9)));
+
+        long[] bucketCounts = new long[HISTOGRAM_BUCKETS];
+        for (int bin = 0; bin < mBinCounts.length; bin++) {
+            // The maximum grade falls in the last bucket
+            bucketCounts[Math.min(HISTOGRAM_BUCKETS - 1, bin * HISTOGRAM_BUCKETS / (mBinCounts.length - 1))] += mBinCounts[bin];
+        }
+        long maxBucketCount = Arrays.stream(bucketCounts).max().orElse(0);
+        for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+            char[] bar = new char[(int) (bucketCounts[bucket] * HISTOGRAM_WIDTH / Math.max(1, maxBucketCount))];
+            Arrays.fill(bar, '#');
+            LOGGER.info(String.format("  %5.1f - %5.1f | %-" + HISTOGRAM_WIDTH + "s %d",
+                    (double) bucket * mMaxGrade / HISTOGRAM_BUCKETS, (double) (bucket + 1) * mMaxGrade / HISTOGRAM_BUCKETS,
+                    new String(bar), bucketCounts[bucket]));
+        }
+
+        for (int ordinal = 1; ordinal <= mCheckpointAggregateList.size(); ordinal++) {
+            CheckpointAggregate checkpointAggregate = mCheckpointAggregateList.get(ordinal - 1);
+            LOGGER.info(String.format("  Checkpoint %d : mean %.2f | %d of %d lost points", ordinal,
+                    getCheckpointMean(ordinal), checkpointAggregate.mLostPointsCount, checkpointAggregate.mCount));
+        }
+    }
+
+    /**
+     * Persist the statistics eg. for a shard coordinator to merge.
+     *
+     * @param pFile statistics file (JSON)
+     * @throws IOException Throws if the file can't be written
+     */
+    synchronized void write(File pFile) throws IOException {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("maxGrade", mMaxGrade);
+        statistics.put("count", mCount);
+        statistics.put("sum", mSum);
+        statistics.put("bins", mBinCounts);
+        List<long[]> checkpoints = new ArrayList<>();
+        for (CheckpointAggregate checkpointAggregate : mCheckpointAggregateList) {
+            checkpoints.add(new long[]{checkpointAggregate.mCount, checkpointAggregate.mGradeSum, checkpointAggregate.mLostPointsCount});
+        }
+        statistics.put("checkpoints", checkpoints);
+        JsonMapperHolder.JSON_MAPPER.writeValue(pFile, statistics);
+    }
+
+    /**
+     * Read statistics persisted by {@link #write(File)}.
+     *
+     * @param pFile statistics file (JSON)
+     * @return {@link CohortStatistics}
+     * @throws IOException Throws if the file can't be read
+     */
+    static CohortStatistics read(File pFile) throws IOException {
+        JsonNode statistics = JsonMapperHolder.JSON_MAPPER.readTree(pFile);
+        CohortStatistics cohortStatistics = new CohortStatistics(statistics.get("maxGrade").asInt());
+        cohortStatistics.mCount = statistics.get("count").asLong();
+        cohortStatistics.mSum = statistics.get("sum").asDouble();
+
+        JsonNode bins = statistics.get("bins");
+        for (int bin = 0; bin < cohortStatistics.mBinCounts.length && bin < bins.size(); bin++) {
+            cohortStatistics.mBinCounts[bin] = bins.get(bin).asLong();
+        }
+
+        JsonNode checkpoints = statistics.get("checkpoints");
+        for (int ordinal = 1; ordinal <= checkpoints.size(); ordinal++) {
+            JsonNode checkpoint = checkpoints.get(ordinal - 1);
+            CheckpointAggregate checkpointAggregate = cohortStatistics.getCheckpointAggregate(ordinal);
+            checkpointAggregate.mCount = checkpoint.get(0).asLong();
+            checkpointAggregate.mGradeSum = checkpoint.get(1).asLong();
+            checkpointAggregate.mLostPointsCount = checkpoint.get(2).asLong();
+        }
+        return cohortStatistics;
+    }
+
+    private int toBin(float pGrade) {
+        return Math.max(0, Math.min(mBinCounts.length - 1, Math.round(pGrade * BIN_SCALE)));
+    }
+
+    private CheckpointAggregate getCheckpointAggregate(int pOrdinal) {
+        while (mCheckpointAggregateList.size() < pOrdinal) {
+            mCheckpointAggregateList.add(new CheckpointAggregate());
+        }
+        return mCheckpointAggregateList.get(pOrdinal - 1);
+    }
+
+    /**
+     * Represents the aggregate of one checkpoint ordinal across the cohort.
+     */
+    private static final class CheckpointAggregate {
+        private long mCount;
+        private long mGradeSum;
+        private long mLostPointsCount;
+    }
+
+    /**
+     * Jackson is only loaded once statistics are persisted, not by every run that collects them.
+     */
+    private static final class JsonMapperHolder {
+        private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    }
+}
@@ -0,0 +1,363 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents a long-running local grading service. The JVM, loaded POI/XmlBeans classes, JIT-compiled code and
+ * caches (signing keys, parsed grade mappings) stay warm across requests, so graders pay the start-up cost once.
+ *
+ * <p>The service only binds to the loopback interface, and only serves local clients which can read its token:
+ * on start a random token is written to a file only the current user can read (see jgram.daemon.tokenFile), and
+ * every request must carry it in the X-JGRAM-Token header. Requests with a non-loopback Host (DNS rebinding) or
+ * with an Origin (sent by browsers, so any web page could otherwise reach the daemon) are refused. Parameters are
+ * read from the query string or a form encoded body, except the secret which is only read from a POST body, so it
+ * never ends up in a URL. Each endpoint responds with JSON:</p>
+ * <ul>
+ *     <li>GET or POST /new-document-test with path=/sample/assignments</li>
+ *     <li>POST /evaluate with path=/sample/assignments&amp;secret=mysecret</li>
+ *     <li>POST /tamper-test with path=/sample/assignments/a.docx&amp;secret=mysecret</li>
+ * </ul>
+ */
+public final class Daemon {
+
+    private static final Logger LOGGER = Logger.getInstance();
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    static final String TOKEN_HEADER = "X-JGRAM-Token";
+
+    private static final String PATH_PARAMETER = "path";
+    private static final String SECRET_PARAMETER = "secret";
+
+    private static final int TOKEN_BYTES = 32;
+
+    private final int mPort;
+    private final int mThreads;
+    private final int mDrainSeconds;
+    private final File mTokenFile;
+
+    // Set once started, compared in constant time
+    private volatile byte[] mToken;
+
+    private final Object mDrainMonitor = new Object();
+    private int mInFlightCount = 0;
+    private boolean mDraining = false;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param pPort localhost port, 0 for any free port
+     * @param pThreads number of requests processed concurrently
+     * @param pDrainSeconds maximum seconds to wait for in-flight requests on shutdown
+     * @param pTokenFile file receiving the token clients must send, readable by the current user only
+     */
+    public Daemon(int pPort, int pThreads, int pDrainSeconds, File pTokenFile) {
+        mPort = pPort;
+        mThreads = pThreads;
+        mDrainSeconds = pDrainSeconds;
+        mTokenFile = pTokenFile;
+    }
+
+    /**
+     * Start the daemon using {@link Settings}, and drain it when the JVM shuts down (eg. Ctrl+C).
+     *
+     * @throws IOException Throws if the port can't be bound
+     */
+    public static void run() throws IOException {
+        int port = Settings.getDaemonPort();
+        Daemon daemon = new Daemon(port, Settings.getDaemonThreads(), Settings.getDaemonDrainSeconds(),
+                Settings.getDaemonTokenFile(port));
+        daemon.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "jgram-daemon-drain"));
+    }
+
+    /**
+     * Write a new token to the token file, and start accepting requests.
+     *
+     * @throws IOException Throws if the token file can't be written or the port can't be bound
+     */
+    public synchronized void start() throws IOException {
+        byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        String encodedToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        writeTokenFile(mTokenFile.toPath(), encodedToken);
+        mToken = encodedToken.getBytes(StandardCharsets.US_ASCII);
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort), 0);
+        mExecutor = Executors.newFixedThreadPool(mThreads);
+        mServer.setExecutor(mExecutor);
+
+        mServer.createContext("/new-document-test", exchange -> handle(exchange, "new-document-test"));
+        mServer.createContext("/evaluate", exchange -> handle(exchange, "evaluate"));
+        mServer.createContext("/tamper-test", exchange -> handle(exchange, "tamper-test"));
+
+        mServer.start();
+        LOGGER.info(String.format("JGRAM daemon listening on http://%s:%d with %d worker(s), token in %s",
+                mServer.getAddress().getHostString(), getPort(), mThreads, mTokenFile.getAbsolutePath()));
+    }
+
+    /**
+     * Stop accepting requests, and wait (at most the configured drain seconds) for in-flight requests to complete.
+     */
+    public synchronized void stop() {
+        if (mServer == null) {
+            return;
+        }
+
+        LOGGER.info(String.format("JGRAM daemon draining, waiting up to %d second(s) for in-flight requests", mDrainSeconds));
+
+        // Note: HttpServer.stop(delay) may wait the whole delay even when idle, so in-flight requests are tracked here
+        // and the server is only stopped once they complete (new requests are refused with 503 meanwhile).
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(mDrainSeconds);
+        synchronized (mDrainMonitor) {
+            mDraining = true;
+            try {
+                while (mInFlightCount > 0 && System.nanoTime() < deadline) {
+                    mDrainMonitor.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (mInFlightCount > 0) {
+                LOGGER.warn(String.format("JGRAM daemon stopping with %d request(s) still in-flight", mInFlightCount));
+            }
+        }
+
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+        mServer = null;
+        if (!mTokenFile.delete()) {
+            LOGGER.warn(String.format("Unable to delete daemon token %s", mTokenFile.getAbsolutePath()));
+        }
+        LOGGER.info("JGRAM daemon stopped");
+    }
+
+    /**
+     * Retrieve the bound port, useful when started with port 0.
+     *
+     * @return {@link Integer}
+     */
+    public synchronized int getPort() {
+        return mServer == null ? mPort : mServer.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange pExchange, String pTask) throws IOException {
+        synchronized (mDrainMonitor) {
+            if (mDraining) {
+                respond(pExchange, 503, error("Daemon is shutting down"));
+                pExchange.close();
+                return;
+            }
+            mInFlightCount++;
+        }
+
+        try {
+            // Checked first, a browser or rebinded host learns nothing about the daemon
+            if (!isLoopbackHost(pExchange.getRequestHeaders().getFirst("Host"))
+                    || pExchange.getRequestHeaders().containsKey("Origin")) {
+                respond(pExchange, 403, error("Only local clients other than browsers are served"));
+                return;
+            }
+            String token = pExchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (token == null || !MessageDigest.isEqual(mToken, token.trim().getBytes(StandardCharsets.US_ASCII))) {
+                respond(pExchange, 401, error(String.format("Missing or invalid %s header, see %s", TOKEN_HEADER, mTokenFile.getAbsolutePath())));
+                return;
+            }
+
+            String method = pExchange.getRequestMethod();
+            if (!method.equals("POST") && (pTask.equals("evaluate") || !method.equals("GET"))) {
+                respond(pExchange, 405, error(pTask.equals("evaluate") ? "Only POST is supported" : "Only GET and POST are supported"));
+                return;
+            }
+
+            Map<String, String> query = new HashMap<>();
+            parseForm(pExchange.getRequestURI().getRawQuery(), query);
+            if (query.containsKey(SECRET_PARAMETER)) {
+                respond(pExchange, 400, error("Parameter secret must be sent in a POST body, never in the URL"));
+                return;
+            }
+            Map<String, String> parameters = parseParameters(pExchange);
+            String documentStorePath = parameters.get(PATH_PARAMETER);
+            String secret = parameters.get(SECRET_PARAMETER);
+            if (documentStorePath == null || documentStorePath.isEmpty()) {
+                respond(pExchange, 400, error("Missing parameter path"));
+                return;
+            }
+            if (!pTask.equals("new-document-test") && (secret == null || secret.isEmpty())) {
+                respond(pExchange, 400, error("Missing parameter secret"));
+                return;
+            }
+
+            long startTime = System.nanoTime();
+            List<DocumentOutcome> outcomeList;
+            switch (pTask) {
+                case "evaluate":
+                    outcomeList = Task.runEvaluation(secret, documentStorePath);
+                    break;
+                case "tamper-test":
+                    outcomeList = Task.runTamperTest(secret, documentStorePath);
+                    break;
+                default:
+                    outcomeList = Task.runNewDocumentTest(documentStorePath);
+            }
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("task", pTask);
+            response.put(PATH_PARAMETER, documentStorePath);
+            response.put("elapsedMillis", (System.nanoTime() - startTime) / 1000000);
+            response.put("documents", toJson(outcomeList));
+            respond(pExchange, 200, response);
+
+        } catch (IllegalArgumentException iae) {
+            respond(pExchange, 400, error(iae.getMessage()));
+        } catch (RuntimeException re) {
+            LOGGER.error(String.format("Request %s failed", pExchange.getRequestURI().getPath()), re);
+            respond(pExchange, 500, error(re.getMessage()));
+        } finally {
+            pExchange.close();
+            synchronized (mDrainMonitor) {
+                mInFlightCount--;
+                mDrainMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Verify the Host header names the loopback interface, eg. 127.0.0.1:8642, localhost or [::1]:8642
+     *
+     * @param pHost Host header, null when missing
+     * @return {@link Boolean}
+     */
+    static boolean isLoopbackHost(String pHost) {
+        if (pHost == null) {
+            return false;
+        }
+
+        String host = pHost.trim().toLowerCase(Locale.ROOT);
+        int portIndex = host.lastIndexOf(':');
+        if (portIndex >= 0 && host.indexOf(']', portIndex) < 0) {
+            host = host.substring(0, portIndex);
+        }
+        return host.equals("localhost") || host.equals("127.0.0.1") || host.equals("[::1]");
+    }
+
+    /**
+     * Write the token to a file only the current user can read and write, replacing the token of a previous daemon.
+     *
+     * @param pFile token file
+     * @param pToken token clients must send
+     * @throws IOException Throws if the file can't be written or restricted to the current user
+     */
+    private static void writeTokenFile(Path pFile, String pToken) throws IOException {
+        Path directory = pFile.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        Files.deleteIfExists(pFile);
+
+        // Restricted before the token is written, so it is never readable by others
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(pFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(pFile);
+            AclFileAttributeView aclView = Files.getFileAttributeView(pFile, AclFileAttributeView.class);
+            if (aclView == null) {
+                Files.delete(pFile);
+                throw new IOException(String.format("Unable to restrict %s to the current user", pFile));
+            }
+            aclView.setAcl(Collections.singletonList(AclEntry.newBuilder().setType(AclEntryType.ALLOW)
+                    .setPrincipal(Files.getOwner(pFile)).setPermissions(EnumSet.allOf(AclEntryPermission.class)).build()));
+        }
+        Files.write(pFile, pToken.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<Map<String, Object>> toJson(List<DocumentOutcome> pOutcomeList) {
+        List<Map<String, Object>> documents = new ArrayList<>();
+        for (DocumentOutcome outcome : pOutcomeList) {
+            Map<String, Object> document = new LinkedHashMap<>();
+            document.put("document", outcome.getDocumentName());
+            document.put("status", outcome.getStatus());
+            document.put("checkpoints", outcome.getCheckpointCount());
+            document.put("overallGrade", outcome.getOverallGrade());
+            document.put("message", outcome.getMessage());
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    private static Map<String, Object> error(String pMessage) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("error", pMessage);
+        return response;
+    }
+
+    private static void respond(HttpExchange pExchange, int pStatusCode, Map<String, Object> pBody) throws IOException {
+        byte[] body = JSON_MAPPER.writeValueAsBytes(pBody);
+        pExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        pExchange.sendResponseHeaders(pStatusCode, body.length);
+        try (OutputStream outputStream = pExchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static Map<String, String> parseParameters(HttpExchange pExchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parseForm(pExchange.getRequestURI().getRawQuery(), parameters);
+
+        if (pExchange.getRequestMethod().equals("POST")) {
+            try (InputStream inputStream = pExchange.getRequestBody()) {
+                parseForm(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8), parameters);
+            }
+        }
+        return parameters;
+    }
+
+    private static void parseForm(String pForm, Map<String, String> pParameters) {
+        if (pForm == null || pForm.isEmpty()) {
+            return;
+        }
+
+        for (String pair : pForm.split("&")) {
+            int separatorIndex = pair.indexOf('=');
+            if (separatorIndex <= 0) {
+                continue;
+            }
+            String key = URLDecoder.decode(pair.substring(0, separatorIndex), StandardCharsets.UTF_8);
+            String value = URLDecoder.decode(pair.substring(separatorIndex + 1), StandardCharsets.UTF_8);
+            pParameters.put(key.trim(), value.trim());
+        }
+    }
+}
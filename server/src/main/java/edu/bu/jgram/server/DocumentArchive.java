@@ -0,0 +1,278 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Document;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Represents a *.zip archive of assignment documents eg. Blackboard bulk download, processed without extracting it.
+ *
+ * <p>Entries are streamed one at a time, so memory is bounded by the largest document rather than the archive.
+ * Grading writes a new archive (original name with -graded suffix) holding the graded documents, and every other
+ * entry (eg. Blackboard *.txt metadata) copied as is. The original archive is never modified.</p>
+ */
+final class DocumentArchive {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private static final String ARCHIVE_EXTENSION = ".zip";
+    private static final String GRADED_ARCHIVE_SUFFIX = "-graded";
+
+    private DocumentArchive() {
+    }
+
+    /**
+     * Verify whether the path is a *.zip archive.
+     *
+     * @param pPath absolute path provided by the user
+     * @return {@link Boolean}
+     */
+    static boolean isArchive(String pPath) {
+        File file = new File(pPath);
+        return file.isFile() && file.getName().toLowerCase().endsWith(ARCHIVE_EXTENSION);
+    }
+
+    /**
+     * Grade each *.docx entry of the archive, and write graded archive next to it.
+     *
+     * @param pSecret secret used to sign the result
+     * @param pArchivePath absolute path to *.zip archive
+     * @param pListenerList stages receiving the outcome of each document, in archive order
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the archive can't be read or contains 0 documents
+     */
+    static List<DocumentOutcome> runEvaluation(String pSecret, String pArchivePath, List<OutcomeListener> pListenerList)
+            throws IllegalArgumentException {
+        File archive = new File(pArchivePath);
+        File gradedArchive = getGradedArchive(archive);
+        File partialArchive = new File(gradedArchive.getPath() + ".part");
+
+        List<DocumentOutcome> outcomeList = new ArrayList<>();
+        AllocationMonitor allocationMonitor = new AllocationMonitor(Settings.getAllocationBudget());
+        long maxBytes = Settings.getPreflightMaxBytes();
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive)));
+             ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partialArchive)))) {
+
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if (!isDocument(entry)) {
+                    // Copy everything else as is e.g. Blackboard metadata
+                    zipOutputStream.putNextEntry(copyOf(entry));
+                    zipInputStream.transferTo(zipOutputStream);
+                    zipOutputStream.closeEntry();
+                    continue;
+                }
+
+                byte[] content = readEntry(zipInputStream, maxBytes);
+                // Graded document is held until it is complete, a document failing midway is copied as is instead
+                ByteArrayOutputStream gradedOutputStream = new ByteArrayOutputStream(content.length + 8192);
+
+                AllocationMonitor.Sample sample = allocationMonitor.start(entry.getName());
+                DocumentOutcome outcome;
+                try {
+                    if (isOverLimit(content, maxBytes)) {
+                        outcome = rejectEntry(entry.getName(), maxBytes);
+                    } else {
+                        Document assignmentDocument = new Document(entry.getName(), content, 1, 10, 1, 100);
+                        outcome = Task.gradeDocument(entry.getName(), assignmentDocument, pSecret, false, gradedOutputStream);
+                    }
+                } catch (RuntimeException re) {
+                    LOGGER.info(String.format("Document [%s] : %s ", entry.getName(), "FAILURE"));
+                    LOGGER.error("Unexpected failure", re);
+                    outcome = new DocumentOutcome(entry.getName(), "FAILURE", 0, null, String.valueOf(re.getMessage()));
+                }
+                allocationMonitor.stop(sample, outcome.getCheckpointCount(), outcome.getStatus());
+                Task.notifyListeners(pListenerList, outcomeList.size(), outcome);
+                outcomeList.add(outcome);
+
+                zipOutputStream.putNextEntry(copyOf(entry));
+                if ("SUCCESS".equals(outcome.getStatus())) {
+                    gradedOutputStream.writeTo(zipOutputStream);
+                } else {
+                    // Not graded, keep the original document in the graded archive, streaming the rest of one over the limit
+                    zipOutputStream.write(content);
+                    zipInputStream.transferTo(zipOutputStream);
+                }
+                zipOutputStream.closeEntry();
+            }
+        } catch (IOException ioe) {
+            partialArchive.delete();
+            throw new IllegalArgumentException(String.format("Unable to process archive %s : %s", pArchivePath, ioe.getMessage()));
+        }
+
+        if (outcomeList.isEmpty()) {
+            partialArchive.delete();
+            throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", pArchivePath));
+        }
+
+        try {
+            Files.move(partialArchive.toPath(), gradedArchive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to write graded archive %s : %s", gradedArchive, ioe.getMessage()));
+        }
+
+        LOGGER.info(String.format("Graded archive : %s", gradedArchive.getAbsolutePath()));
+        Task.reportAllocation(allocationMonitor);
+        return outcomeList;
+    }
+
+    /**
+     * Tamper test each *.docx entry of the archive.
+     *
+     * @param pSecret secret used to sign the result
+     * @param pArchivePath absolute path to *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the archive can't be read or contains 0 documents
+     */
+    static List<DocumentOutcome> runTamperTest(String pSecret, String pArchivePath) throws IllegalArgumentException {
+        return forEachDocument(pArchivePath, (name, document) -> Task.tamperTestDocument(name, document, pSecret));
+    }
+
+    /**
+     * Test each *.docx entry of the archive is not graded yet.
+     *
+     * @param pArchivePath absolute path to *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the archive can't be read or contains 0 documents
+     */
+    static List<DocumentOutcome> runNewDocumentTest(String pArchivePath) throws IllegalArgumentException {
+        return forEachDocument(pArchivePath, Task::newDocumentTest);
+    }
+
+    /**
+     * Preflight check each *.docx entry of the archive.
+     *
+     * @param pArchivePath absolute path to *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the archive can't be read or contains 0 documents
+     */
+    static List<DocumentOutcome> runPreflight(String pArchivePath) throws IllegalArgumentException {
+        return forEachDocument(pArchivePath, Task::preflightDocument);
+    }
+
+    private static List<DocumentOutcome> forEachDocument(String pArchivePath, DocumentAction pAction) {
+        List<DocumentOutcome> outcomeList = new ArrayList<>();
+        AllocationMonitor allocationMonitor = new AllocationMonitor(Settings.getAllocationBudget());
+        long maxBytes = Settings.getPreflightMaxBytes();
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(pArchivePath)))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if (!isDocument(entry)) {
+                    continue;
+                }
+
+                AllocationMonitor.Sample sample = allocationMonitor.start(entry.getName());
+                byte[] content = readEntry(zipInputStream, maxBytes);
+                DocumentOutcome outcome;
+                try {
+                    if (isOverLimit(content, maxBytes)) {
+                        outcome = rejectEntry(entry.getName(), maxBytes);
+                    } else {
+                        outcome = pAction.apply(entry.getName(), new Document(entry.getName(), content, 1, 10, 1, 100));
+                    }
+                } catch (RuntimeException re) {
+                    LOGGER.info(String.format("Document [%s] : %s ", entry.getName(), "FAILURE"));
+                    LOGGER.error("Unexpected failure", re);
+                    outcome = new DocumentOutcome(entry.getName(), "FAILURE", 0, null, String.valueOf(re.getMessage()));
+                }
+                allocationMonitor.stop(sample, outcome.getCheckpointCount(), outcome.getStatus());
+                outcomeList.add(outcome);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to process archive %s : %s", pArchivePath, ioe.getMessage()));
+        }
+
+        if (outcomeList.isEmpty()) {
+            throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", pArchivePath));
+        }
+
+        Task.reportAllocation(allocationMonitor);
+        return outcomeList;
+    }
+
+    /**
+     * Read the current entry, inflating at most one byte over the limit. The size an entry declares can't be trusted,
+     * so a zip bomb inside the archive is stopped while it inflates, see {@link Settings#getPreflightMaxBytes()}.
+     *
+     * @param pMaxBytes limit of the uncompressed size of a document, 0 for no limit
+     * @return {@link Byte} content, the rest of an entry over the limit is left unread
+     * @throws IOException Throws if the entry can't be read
+     */
+    private static byte[] readEntry(ZipInputStream pZipInputStream, long pMaxBytes) throws IOException {
+        if (pMaxBytes == 0) {
+            return pZipInputStream.readAllBytes();
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while (outputStream.size() <= pMaxBytes
+                && (count = pZipInputStream.read(buffer, 0, (int) Math.min(buffer.length, pMaxBytes + 1 - outputStream.size()))) != -1) {
+            outputStream.write(buffer, 0, count);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static boolean isOverLimit(byte[] pContent, long pMaxBytes) {
+        return pMaxBytes != 0 && pContent.length > pMaxBytes;
+    }
+
+    private static DocumentOutcome rejectEntry(String pDocumentName, long pMaxBytes) {
+        String message = String.format("document inflates over %d bytes, the limit", pMaxBytes);
+        LOGGER.warn(String.format("Document [%s] : %s : %s", pDocumentName, "REJECTED", message));
+        return new DocumentOutcome(pDocumentName, "REJECTED", 0, null, message);
+    }
+
+    /**
+     * Retrieve graded archive path i.e. /sample/assignments.zip is graded into /sample/assignments-graded.zip
+     */
+    private static File getGradedArchive(File pArchive) {
+        String name = pArchive.getName();
+        String baseName = name.substring(0, name.length() - ARCHIVE_EXTENSION.length());
+        return new File(pArchive.getAbsoluteFile().getParentFile(), baseName + GRADED_ARCHIVE_SUFFIX + ARCHIVE_EXTENSION);
+    }
+
+    private static boolean isDocument(ZipEntry pEntry) {
+        if (pEntry.isDirectory()) {
+            return false;
+        }
+
+        String name = pEntry.getName();
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        // Skip Word lock files, and resource forks added by macOS archive utility
+        return fileName.endsWith(".docx") && !fileName.startsWith("~$") && !name.startsWith("__MACOSX/");
+    }
+
+    private static ZipEntry copyOf(ZipEntry pEntry) {
+        ZipEntry entry = new ZipEntry(pEntry.getName());
+        if (pEntry.getLastModifiedTime() != null) {
+            entry.setLastModifiedTime(pEntry.getLastModifiedTime());
+        }
+        if (pEntry.getComment() != null) {
+            entry.setComment(pEntry.getComment());
+        }
+        return entry;
+    }
+
+    /**
+     * Represents a task on a single archived document.
+     */
+    private interface DocumentAction {
+        DocumentOutcome apply(String pDocumentName, Document pDocument);
+    }
+}
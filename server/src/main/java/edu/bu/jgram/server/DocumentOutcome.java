@@ -0,0 +1,84 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Result;
+
+/**
+ * Represents the outcome of a task on a single document.
+ */
+public final class DocumentOutcome {
+
+    private final String mDocumentName;
+    private final String mStatus;
+    private final int mCheckpointCount;
+    private final Float mOverallGrade;
+    private final String mMessage;
+    private final Result mResult;
+
+    public DocumentOutcome(String pDocumentName, String pStatus, int pCheckpointCount) {
+        this(pDocumentName, pStatus, pCheckpointCount, null, null);
+    }
+
+    public DocumentOutcome(String pDocumentName, String pStatus, int pCheckpointCount, Float pOverallGrade, String pMessage) {
+        this(pDocumentName, pStatus, pCheckpointCount, pOverallGrade, pMessage, null);
+    }
+
+    public DocumentOutcome(String pDocumentName, String pStatus, int pCheckpointCount, Float pOverallGrade, String pMessage,
+                           Result pResult) {
+        mDocumentName = pDocumentName;
+        mStatus = pStatus;
+        mCheckpointCount = pCheckpointCount;
+        mOverallGrade = pOverallGrade;
+        mMessage = pMessage;
+        mResult = pResult;
+    }
+
+    public String getDocumentName() {
+        return mDocumentName;
+    }
+
+    /**
+     * Retrieve status of the document i.e. SUCCESS, FAILURE, SKIPPED, VALID, IN-VALID, TAMPERED, MIS-KEYED or
+     * UNDETERMINED.
+     *
+     * @return {@link String}
+     */
+    public String getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Retrieve number of checkpoint(s) found in the document, 0 if the document couldn't be indexed.
+     *
+     * @return {@link Integer}
+     */
+    public int getCheckpointCount() {
+        return mCheckpointCount;
+    }
+
+    /**
+     * Retrieve overall grade of the document, null if the document wasn't (or couldn't be) evaluated.
+     *
+     * @return {@link Float}
+     */
+    public Float getOverallGrade() {
+        return mOverallGrade;
+    }
+
+    /**
+     * Retrieve failure detail, null if the task succeeded on the document.
+     *
+     * @return {@link String}
+     */
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Retrieve evaluated result of the document, null if the document wasn't (or couldn't be) evaluated.
+     *
+     * @return {@link Result}
+     */
+    public Result getResult() {
+        return mResult;
+    }
+}
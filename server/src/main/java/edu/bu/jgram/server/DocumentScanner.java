@@ -0,0 +1,170 @@
+package edu.bu.jgram.server;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Represents a streaming directory scanner. Document(s) are handed over as soon as they are discovered, so
+ * processing starts before the scan finishes, and the directory listing is never materialized in memory.
+ *
+ * <p>Include and exclude patterns are globs. A pattern without '/' is matched against the file name
+ * (eg. *.docx), otherwise against the path relative to the scanned directory (eg. drafts/**). Excluded
+ * directories are not descended into. Word lock files (~$*.docx) are always skipped.</p>
+ */
+final class DocumentScanner {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private static final String LOCK_FILE_PREFIX = "~$";
+
+    private final int mMaxDepth;
+    private final List<String> mIncludeList;
+    private final List<String> mExcludeList;
+    private final boolean mFollowLinks;
+
+    /**
+     * @param pMaxDepth maximum directory levels to descend, 1 means only document(s) directly in the directory
+     * @param pIncludeList glob patterns a document must match (at least one)
+     * @param pExcludeList glob patterns excluding documents or whole directories
+     * @param pFollowLinks when true symbolic links are followed, otherwise they are skipped
+     */
+    DocumentScanner(int pMaxDepth, List<String> pIncludeList, List<String> pExcludeList, boolean pFollowLinks) {
+        mMaxDepth = pMaxDepth;
+        mIncludeList = pIncludeList;
+        mExcludeList = pExcludeList;
+        mFollowLinks = pFollowLinks;
+    }
+
+    /**
+     * Constructs the scanner configured by {@link Settings}.
+     *
+     * @return {@link DocumentScanner}
+     */
+    static DocumentScanner fromSettings() {
+        return new DocumentScanner(Settings.getScanMaxDepth(), Settings.getScanIncludeList(),
+                Settings.getScanExcludeList(), Settings.isScanFollowLinks());
+    }
+
+    /**
+     * Walk the directory, handing each matching document to the consumer as soon as it is discovered.
+     *
+     * @param pRoot directory to scan
+     * @param pConsumer receives each document, on the calling thread
+     * @return {@link Long} number of document(s) found
+     * @throws IOException Throws if the directory itself can't be read
+     */
+    long scan(Path pRoot, Consumer<Path> pConsumer) throws IOException {
+        FileSystem fileSystem = pRoot.getFileSystem();
+        Matcher includeMatcher = new Matcher(fileSystem, mIncludeList);
+        Matcher excludeMatcher = new Matcher(fileSystem, mExcludeList);
+        long[] documentCount = {0};
+
+        Set<FileVisitOption> options = mFollowLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : Collections.emptySet();
+        Files.walkFileTree(pRoot, options, mMaxDepth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path pDirectory, BasicFileAttributes pAttributes) {
+                if (!pDirectory.equals(pRoot) && excludeMatcher.matches(pRoot.relativize(pDirectory))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttributes) {
+                // Without FOLLOW_LINKS, links are reported with their own attributes i.e. neither file nor directory
+                if (!pAttributes.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                Path relativePath = pRoot.relativize(pFile);
+                if (isLockFile(pFile) || !includeMatcher.matches(relativePath) || excludeMatcher.matches(relativePath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                documentCount[0]++;
+                pConsumer.accept(pFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path pFile, IOException pException) throws IOException {
+                if (pFile.equals(pRoot)) {
+                    throw pException;
+                }
+                if (pException instanceof FileSystemLoopException) {
+                    LOGGER.warn(String.format("Skipping %s : symbolic link loop", pFile));
+                } else {
+                    LOGGER.warn(String.format("Skipping %s : %s", pFile, pException.getMessage()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return documentCount[0];
+    }
+
+    /**
+     * Verify whether a single file would be picked up by the scanner.
+     *
+     * @param pFile file to verify
+     * @return {@link Boolean}
+     */
+    boolean isDocument(Path pFile) {
+        LinkOption[] linkOptions = mFollowLinks ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+        return Files.isRegularFile(pFile, linkOptions) && !isLockFile(pFile)
+                && new Matcher(pFile.getFileSystem(), mIncludeList).matches(pFile.getFileName());
+    }
+
+    private static boolean isLockFile(Path pFile) {
+        return pFile.getFileName().toString().startsWith(LOCK_FILE_PREFIX);
+    }
+
+    /**
+     * Represents a set of glob patterns, matched against file name or relative path.
+     */
+    private static final class Matcher {
+        private final List<PathMatcher> mNameMatcherList = new ArrayList<>();
+        private final List<PathMatcher> mPathMatcherList = new ArrayList<>();
+
+        private Matcher(FileSystem pFileSystem, List<String> pPatternList) {
+            for (String pattern : pPatternList) {
+                PathMatcher pathMatcher = pFileSystem.getPathMatcher("glob:" + pattern);
+                if (pattern.contains("/")) {
+                    mPathMatcherList.add(pathMatcher);
+                } else {
+                    mNameMatcherList.add(pathMatcher);
+                }
+            }
+        }
+
+        private boolean matches(Path pRelativePath) {
+            Path fileName = pRelativePath.getFileName();
+            for (PathMatcher pathMatcher : mNameMatcherList) {
+                if (fileName != null && pathMatcher.matches(fileName)) {
+                    return true;
+                }
+            }
+            for (PathMatcher pathMatcher : mPathMatcherList) {
+                if (pathMatcher.matches(pRelativePath)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package edu.bu.jgram.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Represents the watch-folder mode. Grades *.docx documents incrementally as graders drop them into a directory,
+ * instead of re-running {@link Task#evaluationTask(String, String)} over the whole directory.
+ *
+ * <p>A document is graded only once its size and modification time stayed unchanged for the stable period,
+ * so partially written (or still syncing) files are not picked up. Documents already graded in their current
+ * state, including the ones JGRAM itself just wrote, are skipped.</p>
+ */
+public final class FolderWatcher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private final Path mRoot;
+    private final Function<File, DocumentOutcome> mAction;
+    private final boolean mRecursive;
+    private final long mStableMillis;
+    private final int mTrackedLimit;
+
+    private final WatchService mWatchService;
+    private final ThreadPoolExecutor mWorkerPool;
+    private final ScheduledExecutorService mScheduler;
+
+    // Guarded by this. Documents changed recently, waiting to become stable.
+    private final Map<Path, FileState> mPendingMap = new HashMap<>();
+    // Guarded by this. Documents submitted to the worker pool.
+    private final Set<Path> mInProgressSet = new HashSet<>();
+    // Guarded by this. Least recently graded documents are forgotten first, to keep memory bounded.
+    private final Map<Path, FileState> mCompletedMap;
+
+    public FolderWatcher(Path pRoot, String pSecret, boolean pRecursive, int pThreads, long pStableMillis, int pTrackedLimit)
+            throws IOException {
+        this(pRoot, document -> Task.gradeDocument(document, pSecret, true), pRecursive, pThreads, pStableMillis, pTrackedLimit);
+    }
+
+    /**
+     * @param pAction flow of activities on a single stable document
+     */
+    FolderWatcher(Path pRoot, Function<File, DocumentOutcome> pAction, boolean pRecursive, int pThreads, long pStableMillis,
+                  int pTrackedLimit) throws IOException {
+        if (!Files.isDirectory(pRoot)) {
+            throw new IllegalArgumentException(String.format("%s is not a directory. Must provide a absolute path to directory", pRoot));
+        }
+
+        mRoot = pRoot;
+        mAction = pAction;
+        mRecursive = pRecursive;
+        mStableMillis = pStableMillis;
+        mTrackedLimit = pTrackedLimit;
+
+        mCompletedMap = new LinkedHashMap<Path, FileState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileState> pEldest) {
+                return size() > mTrackedLimit;
+            }
+        };
+
+        mWatchService = pRoot.getFileSystem().newWatchService();
+        // The queue is bounded, documents which don't fit stay pending until a worker frees up
+        mWorkerPool = new ThreadPoolExecutor(pThreads, pThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(pThreads * 2));
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Watch the directory using {@link Settings}, until the JVM shuts down (eg. Ctrl+C).
+     *
+     * @param pSecret secret used to sign the result
+     * @param pDocumentStorePath absolute path to directory to watch
+     * @throws IOException Throws if the directory can't be watched
+     */
+    public static void run(String pSecret, String pDocumentStorePath) throws IOException {
+        FolderWatcher folderWatcher = new FolderWatcher(Path.of(pDocumentStorePath).toAbsolutePath(), pSecret,
+                Settings.isWatchRecursive(), Settings.getWatchThreads(), Settings.getWatchStableMillis(),
+                Settings.getWatchTrackedLimit());
+        Runtime.getRuntime().addShutdownHook(new Thread(folderWatcher::close, "jgram-watch-close"));
+        folderWatcher.watch();
+    }
+
+    /**
+     * Register the directory (and sub-directories when recursive), pick up document(s) already present, then
+     * process file system events until closed.
+     *
+     * @throws IOException Throws if the directory can't be watched
+     */
+    public void watch() throws IOException {
+        register(mRoot);
+
+        long period = Math.max(50, mStableMillis / 2);
+        mScheduler.scheduleWithFixedDelay(this::submitStableDocuments, period, period, TimeUnit.MILLISECONDS);
+        LOGGER.info(String.format("Watching %s%s for *.docx document(s)", mRoot, mRecursive ? " (recursive)" : ""));
+
+        try {
+            while (true) {
+                WatchKey watchKey = mWatchService.take();
+                Path directory = (Path) watchKey.watchable();
+
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, rescan what we are watching
+                        LOGGER.warn(String.format("Too many changes in %s, rescanning", directory));
+                        register(directory);
+                        continue;
+                    }
+
+                    Path path = directory.resolve((Path) event.context());
+                    if (Files.isDirectory(path)) {
+                        if (mRecursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            register(path);
+                        }
+                    } else if (isDocument(path)) {
+                        markChanged(path);
+                    }
+                }
+
+                watchKey.reset();
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            // closed, stop watching
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop watching. Documents already being graded are completed, pending ones are dropped.
+     */
+    @Override
+    public void close() {
+        try {
+            mWatchService.close();
+        } catch (IOException ioe) {
+            LOGGER.error("Unable to close watch service", ioe);
+        }
+
+        mScheduler.shutdownNow();
+        mWorkerPool.shutdown();
+        try {
+            mWorkerPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start watching a directory, and mark the document(s) it already contains as changed.
+     */
+    private void register(Path pDirectory) throws IOException {
+        if (!mRecursive) {
+            pDirectory.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(pDirectory)) {
+                for (Path path : directoryStream) {
+                    if (isDocument(path)) {
+                        markChanged(path);
+                    }
+                }
+            }
+            return;
+        }
+
+        Files.walkFileTree(pDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path pPath, BasicFileAttributes pAttributes) throws IOException {
+                pPath.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path pPath, BasicFileAttributes pAttributes) {
+                if (isDocument(pPath)) {
+                    markChanged(pPath);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private synchronized void markChanged(Path pPath) {
+        FileState fileState = FileState.read(pPath);
+        if (fileState != null) {
+            mPendingMap.put(pPath, fileState);
+        }
+    }
+
+    /**
+     * Submit pending document(s) whose size and modification time didn't change during the stable period.
+     */
+    private synchronized void submitStableDocuments() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, FileState>> iterator = mPendingMap.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Path, FileState> entry = iterator.next();
+            Path path = entry.getKey();
+            FileState currentState = FileState.read(path);
+
+            if (currentState == null) {
+                // Deleted (or renamed) before it became stable
+                iterator.remove();
+                continue;
+            }
+
+            if (!currentState.isSameContent(entry.getValue())) {
+                // Still being written, restart the stable period
+                entry.setValue(currentState);
+                continue;
+            }
+
+            if (now - entry.getValue().mSeenAt < TimeUnit.MILLISECONDS.toNanos(mStableMillis)
+                    || mInProgressSet.contains(path)) {
+                continue;
+            }
+
+            FileState completedState = mCompletedMap.get(path);
+            if (completedState != null && completedState.isSameContent(currentState)) {
+                // Result is already current e.g. the modification JGRAM made while appending result
+                iterator.remove();
+                continue;
+            }
+
+            if (mWorkerPool.getQueue().remainingCapacity() == 0) {
+                // Workers are busy, try again on the next round
+                return;
+            }
+
+            iterator.remove();
+            mInProgressSet.add(path);
+            mWorkerPool.execute(() -> grade(path));
+        }
+    }
+
+    private void grade(Path pPath) {
+        try {
+            mAction.apply(pPath.toFile());
+        } catch (RuntimeException re) {
+            LOGGER.error(String.format("Document [%s] : unexpected failure", pPath.getFileName()), re);
+        } finally {
+            synchronized (this) {
+                mInProgressSet.remove(pPath);
+                FileState fileState = FileState.read(pPath);
+                if (fileState != null) {
+                    mCompletedMap.put(pPath, fileState);
+                }
+            }
+        }
+    }
+
+    private static boolean isDocument(Path pPath) {
+        String fileName = pPath.getFileName().toString();
+        // Word keeps ~$name.docx lock files next to opened documents, they are not documents
+        return fileName.endsWith(".docx") && !fileName.startsWith("~$") && Files.isRegularFile(pPath);
+    }
+
+    /**
+     * Represents the observed size and modification time of a document.
+     */
+    private static final class FileState {
+        private final long mSize;
+        private final long mModifiedTime;
+        private final long mSeenAt;
+
+        private FileState(long pSize, long pModifiedTime) {
+            mSize = pSize;
+            mModifiedTime = pModifiedTime;
+            mSeenAt = System.nanoTime();
+        }
+
+        private static FileState read(Path pPath) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(pPath, BasicFileAttributes.class);
+                return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+
+        private boolean isSameContent(FileState pOther) {
+            return mSize == pOther.mSize && mModifiedTime == pOther.mModifiedTime;
+        }
+    }
+}
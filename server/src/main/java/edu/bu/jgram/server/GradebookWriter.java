@@ -0,0 +1,322 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.bu.jgram.server.assessment.Result;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Represents the gradebook of a batch, one row per document with status, overall grade and the weight and grade
+ * of each checkpoint. Written as CSV, or as JSON when the file name ends with .json
+ *
+ * <p>Rows are streamed as document(s) complete, so memory doesn't grow with the batch. Document(s) processed in
+ * parallel complete out of order, so each row carries the sequence its document was discovered in, and rows are
+ * held back only until their predecessors are written. Row order is therefore the same on every run.</p>
+ */
+final class GradebookWriter implements OutcomeListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private static final String JSON_EXTENSION = ".json";
+    private static final String CSV_HEADER = "document,status,overallGrade,checkpointCount,checkpoints,message";
+
+    private final File mFile;
+    private final BufferedWriter mCsvWriter;
+    private final JsonGenerator mJsonGenerator;
+
+    // Guarded by this. Rows completed ahead of their predecessors, null marks a skipped sequence.
+    private final Map<Long, DocumentOutcome> mPendingMap = new TreeMap<>();
+    private long mNextSequence = 0;
+    private long mRowCount = 0;
+
+    private GradebookWriter(File pFile, BufferedWriter pCsvWriter, JsonGenerator pJsonGenerator) {
+        mFile = pFile;
+        mCsvWriter = pCsvWriter;
+        mJsonGenerator = pJsonGenerator;
+    }
+
+    /**
+     * Create the gradebook file, overwriting any previous one.
+     *
+     * @param pFile gradebook file, *.json for JSON otherwise CSV
+     * @return {@link GradebookWriter}
+     * @throws IOException Throws if the file can't be written
+     */
+    static GradebookWriter open(File pFile) throws IOException {
+        if (pFile.getName().toLowerCase().endsWith(JSON_EXTENSION)) {
+            JsonGenerator jsonGenerator = new JsonFactory().createGenerator(pFile, JsonEncoding.UTF8);
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeArrayFieldStart("documents");
+            return new GradebookWriter(pFile, null, jsonGenerator);
+        }
+
+        BufferedWriter csvWriter = Files.newBufferedWriter(pFile.toPath(), StandardCharsets.UTF_8);
+        csvWriter.write(CSV_HEADER);
+        csvWriter.newLine();
+        return new GradebookWriter(pFile, csvWriter, null);
+    }
+
+    /**
+     * Merge the gradebooks of shard workers into one, overwriting any previous one. Rows are ordered by document, as
+     * workers discover documents in their own order. The last row of a worker killed mid-write is skipped.
+     *
+     * @param pGradebookList gradebook of each worker, in the format of the merged gradebook
+     * @param pFile merged gradebook file, *.json for JSON otherwise CSV
+     * @throws IOException Throws if a gradebook can't be read or the merged one can't be written
+     */
+    static void merge(List<File> pGradebookList, File pFile) throws IOException {
+        int rowCount;
+        if (pFile.getName().toLowerCase().endsWith(JSON_EXTENSION)) {
+            ObjectMapper jsonMapper = new ObjectMapper();
+            List<JsonNode> rowList = new ArrayList<>();
+            for (File gradebook : pGradebookList) {
+                readJsonRows(jsonMapper, gradebook, rowList);
+            }
+            rowList.sort(Comparator.comparing(row -> row.path("document").asText()));
+
+            try (JsonGenerator jsonGenerator = new JsonFactory(jsonMapper).createGenerator(pFile, JsonEncoding.UTF8)) {
+                jsonGenerator.writeStartObject();
+                jsonGenerator.writeArrayFieldStart("documents");
+                for (JsonNode row : rowList) {
+                    jsonGenerator.writeTree(row);
+                }
+                jsonGenerator.writeEndArray();
+                jsonGenerator.writeEndObject();
+            }
+            rowCount = rowList.size();
+        } else {
+            List<String[]> rowList = new ArrayList<>();
+            for (File gradebook : pGradebookList) {
+                readCsvRows(gradebook, rowList);
+            }
+            rowList.sort(Comparator.comparing(row -> row[0]));
+
+            try (BufferedWriter csvWriter = Files.newBufferedWriter(pFile.toPath(), StandardCharsets.UTF_8)) {
+                csvWriter.write(CSV_HEADER);
+                csvWriter.newLine();
+                for (String[] row : rowList) {
+                    csvWriter.write(row[1]);
+                    csvWriter.newLine();
+                }
+            }
+            rowCount = rowList.size();
+        }
+        LOGGER.info(String.format("Gradebook with %d document(s) : %s", rowCount, pFile.getAbsolutePath()));
+    }
+
+    /**
+     * Read the rows of a JSON gradebook, up to the last complete row.
+     */
+    private static void readJsonRows(ObjectMapper pJsonMapper, File pGradebook, List<JsonNode> pRowList) throws IOException {
+        try (JsonParser jsonParser = pJsonMapper.getFactory().createParser(pGradebook)) {
+            if (jsonParser.nextToken() != JsonToken.START_OBJECT || jsonParser.nextToken() != JsonToken.FIELD_NAME
+                    || jsonParser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException(String.format("%s is not a gradebook", pGradebook));
+            }
+            try {
+                while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                    pRowList.add(jsonParser.readValueAsTree());
+                }
+            } catch (IOException ioe) {
+                LOGGER.warn(String.format("Skipping incomplete row in %s", pGradebook.getName()));
+            }
+        }
+    }
+
+    /**
+     * Read the rows of a CSV gradebook as (document, raw row) pairs. A quoted value may span lines.
+     */
+    private static void readCsvRows(File pGradebook, List<String[]> pRowList) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(pGradebook.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!CSV_HEADER.equals(header)) {
+                throw new IOException(String.format("%s is not a gradebook", pGradebook));
+            }
+
+            StringBuilder row = new StringBuilder();
+            boolean quoted = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (row.length() > 0) {
+                    row.append('\n');
+                }
+                row.append(line);
+                for (int i = 0; i < line.length(); i++) {
+                    if (line.charAt(i) == '"') {
+                        quoted = !quoted;
+                    }
+                }
+                if (!quoted && row.length() > 0) {
+                    pRowList.add(new String[]{readFirstValue(row), row.toString()});
+                    row.setLength(0);
+                }
+            }
+            if (row.length() > 0) {
+                LOGGER.warn(String.format("Skipping incomplete row in %s", pGradebook.getName()));
+            }
+        }
+    }
+
+    private static String readFirstValue(CharSequence pRow) {
+        if (pRow.length() == 0 || pRow.charAt(0) != '"') {
+            String row = pRow.toString();
+            int separatorIndex = row.indexOf(',');
+            return separatorIndex < 0 ? row : row.substring(0, separatorIndex);
+        }
+
+        StringBuilder value = new StringBuilder();
+        for (int i = 1; i < pRow.length(); i++) {
+            char c = pRow.charAt(i);
+            if (c == '"') {
+                if (i + 1 < pRow.length() && pRow.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    break;
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Write the row of a document, once the rows of all document(s) discovered before it are written.
+     *
+     * @param pSequence discovery sequence (0 based) of the document
+     * @param pOutcome outcome of the document
+     * @throws IOException Throws if the file can't be written
+     */
+    @Override
+    public synchronized void onOutcome(long pSequence, DocumentOutcome pOutcome) throws IOException {
+        mPendingMap.put(pSequence, pOutcome);
+        drain();
+    }
+
+    /**
+     * Release a sequence which has no row eg. document processed by another shard worker.
+     *
+     * @param pSequence discovery sequence (0 based) of the document
+     * @throws IOException Throws if the file can't be written
+     */
+    @Override
+    public synchronized void onSkipped(long pSequence) throws IOException {
+        mPendingMap.put(pSequence, null);
+        drain();
+    }
+
+    /**
+     * Write remaining rows (in sequence order, even if a predecessor never completed) and close the file.
+     *
+     * @throws IOException Throws if the file can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (DocumentOutcome outcome : mPendingMap.values()) {
+            if (outcome != null) {
+                writeRow(outcome);
+            }
+        }
+        mPendingMap.clear();
+
+        if (mJsonGenerator != null) {
+            mJsonGenerator.writeEndArray();
+            mJsonGenerator.writeEndObject();
+            mJsonGenerator.close();
+        } else {
+            mCsvWriter.close();
+        }
+        LOGGER.info(String.format("Gradebook with %d document(s) : %s", mRowCount, mFile.getAbsolutePath()));
+    }
+
+    private void drain() throws IOException {
+        boolean written = false;
+        while (mPendingMap.containsKey(mNextSequence)) {
+            DocumentOutcome outcome = mPendingMap.remove(mNextSequence);
+            if (outcome != null) {
+                writeRow(outcome);
+                written = true;
+            }
+            mNextSequence++;
+        }
+
+        // Flush, so the gradebook is usable while the batch is still running
+        if (written && mJsonGenerator != null) {
+            mJsonGenerator.flush();
+        } else if (written) {
+            mCsvWriter.flush();
+        }
+    }
+
+    private void writeRow(DocumentOutcome pOutcome) throws IOException {
+        Result result = pOutcome.getResult();
+        if (mJsonGenerator != null) {
+            mJsonGenerator.writeStartObject();
+            mJsonGenerator.writeStringField("document", pOutcome.getDocumentName());
+            mJsonGenerator.writeStringField("status", pOutcome.getStatus());
+            if (pOutcome.getOverallGrade() == null) {
+                mJsonGenerator.writeNullField("overallGrade");
+            } else {
+                mJsonGenerator.writeNumberField("overallGrade", pOutcome.getOverallGrade());
+            }
+            mJsonGenerator.writeNumberField("checkpointCount", pOutcome.getCheckpointCount());
+            mJsonGenerator.writeArrayFieldStart("checkpoints");
+            if (result != null) {
+                for (int ordinal = 1; ordinal <= result.getCheckpointCount(); ordinal++) {
+                    mJsonGenerator.writeStartObject();
+                    mJsonGenerator.writeNumberField("ordinal", ordinal);
+                    mJsonGenerator.writeNumberField("weight", result.getWeight(ordinal));
+                    mJsonGenerator.writeNumberField("grade", result.getGrade(ordinal));
+                    mJsonGenerator.writeEndObject();
+                }
+            }
+            mJsonGenerator.writeEndArray();
+            mJsonGenerator.writeStringField("message", pOutcome.getMessage());
+            mJsonGenerator.writeEndObject();
+        } else {
+            // Checkpoints are weight:grade pairs in ordinal order eg. 10:90;5:100
+            StringBuilder checkpoints = new StringBuilder();
+            if (result != null) {
+                for (int ordinal = 1; ordinal <= result.getCheckpointCount(); ordinal++) {
+                    if (ordinal > 1) {
+                        checkpoints.append(';');
+                    }
+                    checkpoints.append(result.getWeight(ordinal)).append(':').append(result.getGrade(ordinal));
+                }
+            }
+            mCsvWriter.write(String.join(",", escape(pOutcome.getDocumentName()), pOutcome.getStatus(),
+                    pOutcome.getOverallGrade() == null ? "" : String.valueOf(pOutcome.getOverallGrade()),
+                    String.valueOf(pOutcome.getCheckpointCount()), checkpoints, escape(pOutcome.getMessage())));
+            mCsvWriter.newLine();
+        }
+        mRowCount++;
+    }
+
+    private static String escape(String pValue) {
+        if (pValue == null) {
+            return "";
+        }
+        if (pValue.contains(",") || pValue.contains("\"") || pValue.contains("\n")) {
+            return "\"" + pValue.replace("\"", "\"\"") + "\"";
+        }
+        return pValue;
+    }
+}
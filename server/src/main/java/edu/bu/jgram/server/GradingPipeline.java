@@ -0,0 +1,568 @@
+package edu.bu.jgram.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.bu.jgram.server.assessment.Document;
+import edu.bu.jgram.server.assessment.InvalidGrammarException;
+import edu.bu.jgram.server.assessment.InvalidValueException;
+import edu.bu.jgram.server.assessment.Result;
+
+/**
+ * Represents the grading of a directory as a staged pipeline, so disk and CPU work overlap instead of alternating
+ * within each document.
+ *
+ * <ol>
+ *     <li>read: a few I/O threads prefetch upcoming documents into pooled buffers</li>
+ *     <li>grade: one thread per core extracts the checkpoints and evaluates them</li>
+ *     <li>sign: signs the result, and renders the graded document into a pooled buffer</li>
+ *     <li>write: a few I/O threads write the graded documents</li>
+ * </ol>
+ *
+ * <p>Stages are connected by bounded queues: a stage blocks when the next one falls behind, so read-ahead never
+ * exceeds the queue capacity. Each stage measures the time its threads are busy, starved (waiting for input) and
+ * blocked (waiting for the next stage), and the busiest stage is reported as the bottleneck when the run ends.</p>
+ *
+ * <p>The bytes allocated and CPU time of each document are the sum of its stages, each measured on the thread running
+ * it, and reported by {@link AllocationMonitor} as for the worker pool.</p>
+ *
+ * <p>A failure which can't be reported as the outcome of a document (eg. an {@link Error} thrown by POI on a hostile
+ * document) aborts the whole pipeline, and is thrown to the caller once every stage has stopped.</p>
+ */
+final class GradingPipeline {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    // Marks the end of the documents in a stage queue
+    private static final Item END_OF_STREAM = new Item(-1, null);
+    // Buffers of larger documents are not kept for reuse
+    private static final int POOLED_BUFFER_LIMIT = 16 * 1024 * 1024;
+    // Interval at which a blocked hand-off checks whether the pipeline was aborted
+    private static final long ABORT_CHECK_MILLIS = 100;
+
+    private final String mSecret;
+    private final VerificationIndex mIndex;
+    private final List<OutcomeListener> mListenerList;
+    private final List<DocumentOutcome> mOutcomeList = Collections.synchronizedList(new ArrayList<>());
+    private final Queue<byte[]> mReadBufferPool = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteArrayOutputStream> mWriteBufferPool = new ConcurrentLinkedQueue<>();
+    private final List<Stage> mStageList = new ArrayList<>();
+    private final List<ExecutorService> mPoolList = new ArrayList<>();
+    // First failure a stage could not report as the outcome of a document, which aborts the run
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private final int mQueueCapacity;
+    private ProgressReporter mProgressReporter;
+    private AllocationMonitor mAllocationMonitor;
+
+    /**
+     * @param pSecret secret used to sign the results
+     * @param pIndex verification index recording graded documents, null when disabled
+     * @param pListenerList stages receiving the outcome of each document, as it is produced
+     */
+    GradingPipeline(String pSecret, VerificationIndex pIndex, List<OutcomeListener> pListenerList) {
+        mSecret = pSecret;
+        mIndex = pIndex;
+        mListenerList = pListenerList;
+        mQueueCapacity = Settings.getPipelineQueueCapacity();
+        mStageList.add(new Stage("read", Settings.PIPELINE_READ_THREADS, Settings.getPipelineReadThreads(), guard(this::read)));
+        mStageList.add(new Stage("grade", Settings.THREADS, Settings.getThreads(), guard(this::grade)));
+        mStageList.add(new Stage("sign", Settings.PIPELINE_SIGN_THREADS, Settings.getPipelineSignThreads(), guard(this::sign)));
+        mStageList.add(new Stage("write", Settings.PIPELINE_WRITE_THREADS, Settings.getPipelineWriteThreads(), guard(this::write)));
+    }
+
+    /**
+     * Verify whether an evaluation of a path is run as a pipeline: a directory, outside shard mode, with the
+     * pipeline enabled. Other evaluations use the worker pool.
+     *
+     * @param pDocumentStorePath path provided to the evaluation
+     * @return {@link Boolean}
+     */
+    static boolean isApplicable(String pDocumentStorePath) {
+        return Settings.isPipeline() && !Shard.isEnabled() && Files.isDirectory(Paths.get(pDocumentStorePath));
+    }
+
+    /**
+     * Grade every *.docx document of a directory.
+     *
+     * @param pDocumentStorePath absolute path to a directory
+     * @return {@link List} outcome of each document, in completion order
+     * @throws IllegalArgumentException Throws if the directory can't be scanned, or contains 0 documents
+     * @throws IllegalStateException Throws if a stage failed other than on a document, and the pipeline was aborted
+     */
+    List<DocumentOutcome> run(String pDocumentStorePath) throws IllegalArgumentException {
+        DocumentScanner documentScanner = DocumentScanner.fromSettings();
+        mProgressReporter = ProgressReporter.fromSettings();
+        mAllocationMonitor = new AllocationMonitor(Settings.getAllocationBudget());
+        long startNanos = System.nanoTime();
+
+        // Stage i takes from queue i and hands to queue i + 1; the write stage hands nothing
+        List<BlockingQueue<Item>> queueList = new ArrayList<>();
+        for (int i = 0; i <= mStageList.size(); i++) {
+            queueList.add(new ArrayBlockingQueue<>(mQueueCapacity));
+        }
+        for (int i = 0; i < mStageList.size(); i++) {
+            ExecutorService pool = mStageList.get(i).start(queueList.get(i), queueList.get(i + 1), this::abort);
+            synchronized (mPoolList) {
+                mPoolList.add(pool);
+                if (mFailure.get() != null) {
+                    // An earlier stage already failed
+                    pool.shutdownNow();
+                }
+            }
+        }
+
+        long[] sequence = {0};
+        long documentCount;
+        try {
+            documentCount = documentScanner.scan(Paths.get(pDocumentStorePath), document -> {
+                if (mProgressReporter != null) {
+                    mProgressReporter.discovered();
+                }
+                try {
+                    if (!handOff(queueList.get(0), new Item(sequence[0]++, document))) {
+                        throw new IllegalStateException("Pipeline aborted while scanning " + pDocumentStorePath);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while scanning " + pDocumentStorePath);
+                }
+            });
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to scan %s : %s", pDocumentStorePath, ioe.getMessage()));
+        } finally {
+            if (mProgressReporter != null) {
+                mProgressReporter.scanComplete();
+            }
+            try {
+                handOff(queueList.get(0), END_OF_STREAM);
+            } catch (InterruptedException ie) {
+                for (ExecutorService pool : mPoolList) {
+                    pool.shutdownNow();
+                }
+                Thread.currentThread().interrupt();
+            }
+            // Each stage ends once its input ends, in order
+            for (ExecutorService pool : mPoolList) {
+                pool.shutdown();
+                awaitTermination(pool);
+            }
+            if (mProgressReporter != null) {
+                mProgressReporter.close();
+            }
+            throwFailure();
+        }
+
+        if (documentCount == 0) {
+            throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", pDocumentStorePath));
+        }
+
+        report(System.nanoTime() - startNanos);
+        Task.reportAllocation(mAllocationMonitor);
+        return mOutcomeList;
+    }
+
+    /**
+     * Put an item on a stage queue, waiting while it is full unless the pipeline is aborted.
+     *
+     * @return {@link Boolean} false if the pipeline was aborted, and the item dropped
+     */
+    private boolean handOff(BlockingQueue<Item> pQueue, Item pItem) throws InterruptedException {
+        while (!pQueue.offer(pItem, ABORT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (mFailure.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Abort the pipeline on the first failure of a stage: every stage is interrupted, and the scan stops.
+     */
+    private void abort(Stage pStage, Throwable pFailure) {
+        LOGGER.fatal(String.format("Pipeline %s stage failed, aborting : %s", pStage.getName(), pFailure));
+        synchronized (mPoolList) {
+            if (mFailure.compareAndSet(null, pFailure)) {
+                for (ExecutorService pool : mPoolList) {
+                    pool.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private void throwFailure() {
+        Throwable failure = mFailure.get();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Pipeline aborted : " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Retrieve the stages, in pipeline order.
+     *
+     * @return {@link List}
+     */
+    List<Stage> getStageList() {
+        return mStageList;
+    }
+
+    /**
+     * Report unexpected failures as outcome, so one bad document doesn't stop a stage, and measure the stage.
+     */
+    private StageAction guard(StageAction pAction) {
+        return item -> {
+            if (item.mTally == null) {
+                item.mTally = mAllocationMonitor.startTally(item.mPath.toFile().getName());
+            }
+            item.mTally.resume();
+            try {
+                return pAction.apply(item);
+            } catch (RuntimeException re) {
+                return fail(item, re, "Unexpected failure");
+            } finally {
+                // Already paused if the document completed in this stage
+                item.mTally.pause();
+            }
+        };
+    }
+
+    /**
+     * Read stage: prefetch the document into a pooled buffer.
+     */
+    private Item read(Item pItem) {
+        File file = pItem.mPath.toFile();
+        if (mProgressReporter != null) {
+            mProgressReporter.started(file.length());
+        }
+
+        try (InputStream inputStream = Files.newInputStream(pItem.mPath)) {
+            long size = Files.size(pItem.mPath);
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException(String.format("Document %s is too large", file.getName()));
+            }
+
+            byte[] buffer = acquireReadBuffer((int) size);
+            int length = 0;
+            int count;
+            while ((count = inputStream.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+                if (length == buffer.length) {
+                    // Grew since its size was read
+                    byte[] largerBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, largerBuffer, 0, length);
+                    buffer = largerBuffer;
+                }
+            }
+            pItem.mReadBuffer = buffer;
+            pItem.mDocument = new Document(file.getName(), buffer, length, 1, 10, 1, 100);
+            return pItem;
+        } catch (IOException ioe) {
+            return fail(pItem, ioe, "Exception occur");
+        }
+    }
+
+    /**
+     * Grade stage: extract and validate the checkpoint(s), and evaluate the overall grade.
+     */
+    private Item grade(Item pItem) {
+        try {
+            pItem.mCheckpointCount = pItem.mDocument.getCheckpoint().size();
+            // Evaluate the final grades, as the document's rubric prescribes if any
+            pItem.mResult = pItem.mDocument.createEvaluator().evaluate();
+            return pItem;
+        } catch (IOException ioe) {
+            return fail(pItem, ioe, "Exception occur");
+        } catch (InvalidGrammarException ige) {
+            return fail(pItem, ige, "Fix the grammar and try again.");
+        } catch (InvalidValueException ive) {
+            return fail(pItem, ive, "Fix the value and try again.");
+        }
+    }
+
+    /**
+     * Sign stage: sign the result, and render the graded document. The read buffer is released once rendered.
+     */
+    private Item sign(Item pItem) {
+        ByteArrayOutputStream writeBuffer = mWriteBufferPool.poll();
+        if (writeBuffer == null) {
+            writeBuffer = new ByteArrayOutputStream(pItem.mReadBuffer.length + 16 * 1024);
+        }
+        pItem.mWriteBuffer = writeBuffer;
+
+        try {
+            String token = Document.createToken(pItem.mResult, mSecret);
+            pItem.mDocument.appendSignedResult(pItem.mResult, token, writeBuffer);
+            releaseReadBuffer(pItem);
+            return pItem;
+        } catch (IOException ioe) {
+            return fail(pItem, ioe, "Exception occur");
+        }
+    }
+
+    /**
+     * Write stage: replace the document with the graded document, and record it in the verification index. The graded
+     * document is written aside, then moved over the original, so a failed write never loses the submission.
+     */
+    private Item write(Item pItem) {
+        File file = pItem.mPath.toFile();
+        File partialDocument = new File(file.getPath() + ".part");
+        try {
+            try (OutputStream outputStream = new FileOutputStream(partialDocument)) {
+                pItem.mWriteBuffer.writeTo(outputStream);
+            }
+            Files.move(partialDocument.toPath(), pItem.mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            partialDocument.delete();
+            return fail(pItem, ioe, "Exception occur");
+        }
+
+        LOGGER.info(String.format("Document [%s] : %s ", file.getName(), "SUCCESS"));
+        DocumentOutcome outcome = new DocumentOutcome(file.getName(), "SUCCESS", pItem.mCheckpointCount,
+                pItem.mResult.getOverallGrade(), null, pItem.mResult);
+        complete(pItem, Task.indexDocument(file, outcome, mSecret, mIndex), pItem.mWriteBuffer.size());
+        return null;
+    }
+
+    /**
+     * Complete a document which could not be graded, with the same messages as the worker pool.
+     */
+    private Item fail(Item pItem, Exception pException, String pHint) {
+        String documentName = pItem.mPath.toFile().getName();
+        LOGGER.info(String.format("Document [%s] : %s ", documentName, "FAILURE"));
+        LOGGER.fatal(pHint, pException);
+        complete(pItem, new DocumentOutcome(documentName, "FAILURE", pItem.mCheckpointCount, null, pException.getMessage()), 0);
+        return null;
+    }
+
+    private void complete(Item pItem, DocumentOutcome pOutcome, long pBytesWritten) {
+        releaseReadBuffer(pItem);
+        if (pItem.mWriteBuffer != null) {
+            if (pItem.mWriteBuffer.size() <= POOLED_BUFFER_LIMIT) {
+                pItem.mWriteBuffer.reset();
+                mWriteBufferPool.offer(pItem.mWriteBuffer);
+            }
+            pItem.mWriteBuffer = null;
+        }
+        pItem.mDocument = null;
+        pItem.mTally.pause();
+        mAllocationMonitor.stop(pItem.mTally, pOutcome.getCheckpointCount(), pOutcome.getStatus());
+
+        mOutcomeList.add(pOutcome);
+        Task.notifyListeners(mListenerList, pItem.mSequence, pOutcome);
+        if (mProgressReporter != null) {
+            mProgressReporter.finished("FAILURE".equals(pOutcome.getStatus()), pBytesWritten);
+        }
+    }
+
+    /**
+     * Take a buffer of at least the requested size from the pool, or allocate one.
+     */
+    private byte[] acquireReadBuffer(int pSize) {
+        // Room for one more byte, so the end of the document is seen without growing
+        int size = pSize + 1;
+        byte[] buffer = mReadBufferPool.poll();
+        if (buffer == null || buffer.length < size) {
+            return new byte[Math.max(size, 64 * 1024)];
+        }
+        return buffer;
+    }
+
+    private void releaseReadBuffer(Item pItem) {
+        if (pItem.mReadBuffer != null) {
+            if (pItem.mReadBuffer.length <= POOLED_BUFFER_LIMIT) {
+                mReadBufferPool.offer(pItem.mReadBuffer);
+            }
+            pItem.mReadBuffer = null;
+        }
+    }
+
+    /**
+     * Log the utilization of every stage, and the bottleneck.
+     */
+    private void report(long pElapsedNanos) {
+        Stage bottleneck = null;
+        for (Stage stage : mStageList) {
+            LOGGER.info(String.format("Pipeline %-5s : %d thread(s) | %d document(s) | busy %.1f%% | starved %.1f%% | blocked %.1f%%",
+                    stage.getName(), stage.getThreads(), stage.getProcessedCount(), stage.getBusyPercent(pElapsedNanos),
+                    stage.getStarvedPercent(pElapsedNanos), stage.getBlockedPercent(pElapsedNanos)));
+            if (bottleneck == null || stage.getBusyPercent(pElapsedNanos) > bottleneck.getBusyPercent(pElapsedNanos)) {
+                bottleneck = stage;
+            }
+        }
+        LOGGER.info(String.format("Pipeline bottleneck : %s stage, add threads with %s",
+                bottleneck.getName(), bottleneck.getThreadsProperty()));
+    }
+
+    private static void awaitTermination(ExecutorService pExecutorService) {
+        try {
+            while (!pExecutorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting, documents are still being processed
+            }
+        } catch (InterruptedException ie) {
+            pExecutorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Represents the work of a stage on one document.
+     */
+    private interface StageAction {
+        /**
+         * @return {@link Item} the document for the next stage, null when its outcome is complete
+         */
+        Item apply(Item pItem);
+    }
+
+    /**
+     * Represents the handling of a failure which stopped a thread of a stage.
+     */
+    private interface FailureHandler {
+        void failed(Stage pStage, Throwable pFailure);
+    }
+
+    /**
+     * Represents a stage: its threads, and the time they spend busy, starved and blocked.
+     */
+    static final class Stage {
+        private final String mName;
+        private final String mThreadsProperty;
+        private final int mThreads;
+        private final StageAction mAction;
+        private final LongAdder mProcessed = new LongAdder();
+        private final LongAdder mBusyNanos = new LongAdder();
+        private final LongAdder mStarvedNanos = new LongAdder();
+        private final LongAdder mBlockedNanos = new LongAdder();
+
+        private Stage(String pName, String pThreadsProperty, int pThreads, StageAction pAction) {
+            mName = pName;
+            mThreadsProperty = pThreadsProperty;
+            mThreads = Math.max(1, pThreads);
+            mAction = pAction;
+        }
+
+        /**
+         * Start the threads of the stage. The last thread to stop ends the output, even if it stopped on a failure,
+         * which is handed to the failure handler so the pipeline doesn't wait on this stage forever.
+         */
+        private ExecutorService start(BlockingQueue<Item> pInput, BlockingQueue<Item> pOutput, FailureHandler pFailureHandler) {
+            AtomicInteger running = new AtomicInteger(mThreads);
+            ExecutorService pool = Executors.newFixedThreadPool(mThreads, runnable -> new Thread(runnable, "jgram-pipeline-" + mName));
+            for (int i = 0; i < mThreads; i++) {
+                pool.execute(() -> {
+                    try {
+                        while (true) {
+                            long waitStart = System.nanoTime();
+                            Item item = pInput.take();
+                            long busyStart = System.nanoTime();
+                            mStarvedNanos.add(busyStart - waitStart);
+                            if (item == END_OF_STREAM) {
+                                // Let the other threads of the stage know as well
+                                pInput.put(END_OF_STREAM);
+                                break;
+                            }
+
+                            Item next = mAction.apply(item);
+                            long blockStart = System.nanoTime();
+                            mBusyNanos.add(blockStart - busyStart);
+                            mProcessed.increment();
+                            if (next != null) {
+                                pOutput.put(next);
+                                mBlockedNanos.add(System.nanoTime() - blockStart);
+                            }
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException | Error e) {
+                        pFailureHandler.failed(this, e);
+                    } finally {
+                        if (running.decrementAndGet() == 0) {
+                            // The next stage is interrupted as well if the pipeline was aborted
+                            try {
+                                pOutput.put(END_OF_STREAM);
+                            } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+            }
+            return pool;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        String getThreadsProperty() {
+            return mThreadsProperty;
+        }
+
+        int getThreads() {
+            return mThreads;
+        }
+
+        long getProcessedCount() {
+            return mProcessed.sum();
+        }
+
+        double getBusyPercent(long pElapsedNanos) {
+            return percent(mBusyNanos.sum(), pElapsedNanos);
+        }
+
+        double getStarvedPercent(long pElapsedNanos) {
+            return percent(mStarvedNanos.sum(), pElapsedNanos);
+        }
+
+        double getBlockedPercent(long pElapsedNanos) {
+            return percent(mBlockedNanos.sum(), pElapsedNanos);
+        }
+
+        private double percent(long pNanos, long pElapsedNanos) {
+            return pElapsedNanos <= 0 ? 0 : 100.0 * pNanos / ((double) pElapsedNanos * mThreads);
+        }
+    }
+
+    /**
+     * Represents a document moving through the stages. Handed from stage to stage through the queues, so it is
+     * only used by one thread at a time.
+     */
+    private static final class Item {
+        private final long mSequence;
+        private final Path mPath;
+        private byte[] mReadBuffer;
+        private ByteArrayOutputStream mWriteBuffer;
+        private Document mDocument;
+        private int mCheckpointCount;
+        private Result mResult;
+        private AllocationMonitor.Tally mTally;
+
+        private Item(long pSequence, Path pPath) {
+            mSequence = pSequence;
+            mPath = pPath;
+        }
+    }
+}
@@ -15,10 +15,37 @@ import java.util.Scanner;
 public class Launcher {
 
     private static final Logger LOGGER = Logger.getInstance();
+    // Shared by every prompt, a scanner per prompt would buffer away the answers to the next ones when input is piped
+    private static final Scanner INPUT = new Scanner(System.in);
 
     public static void main(String... pArgs) {
         //PostCondition 1: Accept User input for action
         //PostCondition 2: Execute task based on selection
+        if (pArgs.length > 0 && pArgs[0].equals("daemon")) {
+            startDaemon();
+            return;
+        }
+        if (pArgs.length > 0 && pArgs[0].equals("watch")) {
+            startWatch();
+            return;
+        }
+        if (pArgs.length > 0 && pArgs[0].equals("shard")) {
+            startShard();
+            return;
+        }
+        if (pArgs.length > 0 && pArgs[0].equals("embed")) {
+            startEmbed();
+            return;
+        }
+        if (pArgs.length > 0 && pArgs[0].equals("resign")) {
+            startResign();
+            return;
+        }
+        if (pArgs.length > 0 && pArgs[0].equals("preflight")) {
+            startPreflight();
+            return;
+        }
+
         try {
             LOGGER.info("Welcome to Application JGRAM");
             System.out.println("\n---------------------------------[ INPUT ]-------------------------------------\n");
@@ -30,7 +57,7 @@ public class Launcher {
             String secret = prompt("Enter secret (Example mysecret): ");
             LOGGER.info("Save this secret somewhere safe, you will require it during tamper test");
 
-            String documentStorePath = prompt("Enter absolute path to directory containing assignment document(s) (Example /sample/assignments): ");
+            String documentStorePath = prompt("Enter absolute path to directory (or *.zip archive) containing assignment document(s) (Example /sample/assignments): ");
             System.out.println("\n-------------------------------------------------------------------------------\n");
 
             switch (action) {
@@ -55,15 +82,127 @@ public class Launcher {
         }
     }
 
+    /**
+     * Starts the long-running local grading daemon, see {@link Daemon} for available endpoints.
+     */
+    private static void startDaemon() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (daemon mode)");
+            Daemon.run();
+        } catch (IOException ioe) {
+            LOGGER.fatal("Unable to start daemon", ioe);
+        }
+    }
+
+    /**
+     * Watches a directory and grades document(s) as they arrive, see {@link FolderWatcher}.
+     */
+    private static void startWatch() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (watch mode)");
+            String secret = prompt("Enter secret (Example mysecret): ");
+            LOGGER.info("Save this secret somewhere safe, you will require it during tamper test");
+            String documentStorePath = prompt("Enter absolute path to directory to watch for assignment document(s) (Example /sample/assignments): ");
+
+            FolderWatcher.run(secret, documentStorePath);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.fatal("Unable to watch directory", e);
+        }
+    }
+
+    /**
+     * Runs a task with several worker processes sharing a directory, see {@link ShardCoordinator}.
+     */
+    private static void startShard() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (shard mode)");
+            String action = prompt("Select Task : " +
+                                                            "\n\t 1 : New Document Test " +
+                                                            "\n\t 2 : Generate Grade" +
+                                                            "\n\t 3 : Tamper Test" +
+                                                            "\n\t\t (Example 1): ");
+            String secret = prompt("Enter secret (Example mysecret): ");
+            String documentStorePath = prompt("Enter absolute path to directory containing assignment document(s) (Example /sample/assignments): ");
+
+            switch (action) {
+                case "1":
+                    ShardCoordinator.run("new-document-test", secret, documentStorePath);
+                    break;
+                case "2":
+                    ShardCoordinator.run("evaluate", secret, documentStorePath);
+                    break;
+                case "3":
+                    ShardCoordinator.run("tamper-test", secret, documentStorePath);
+                    break;
+                default:
+                    LOGGER.warn("Invalid task selection");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.fatal("Unable to run shard workers", e);
+        } finally {
+            LOGGER.info("Goodbye...");
+        }
+    }
+
+    /**
+     * Writes the result table of each document recorded in a results ledger into the document, see {@link ResultLedger}.
+     */
+    private static void startEmbed() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (embed mode)");
+            String secret = prompt("Enter secret the results were graded with (Example mysecret): ");
+            String ledgerPath = prompt("Enter absolute path to the results ledger (Example /sample/jgram-ledger.jsonl): ");
+
+            ResultLedger.embed(new File(ledgerPath), secret);
+        } catch (IOException ioe) {
+            LOGGER.fatal("Unable to embed results", ioe);
+        } finally {
+            LOGGER.info("Goodbye...");
+        }
+    }
+
+    /**
+     * Signs the result of every graded document with a new secret, without grading them again, see {@link Task#resignTask}.
+     */
+    private static void startResign() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (resign mode)");
+            String oldSecret = prompt("Enter secret the documents were graded with (Example mysecret): ");
+            String newSecret = prompt("Enter new secret (Example mynewsecret): ");
+            LOGGER.info("Save the new secret somewhere safe, you will require it during tamper test");
+            String documentStorePath = prompt("Enter absolute path to directory containing graded document(s) (Example /sample/assignments): ");
+
+            Task.resignTask(oldSecret, newSecret, documentStorePath);
+        } catch (IllegalArgumentException iae) {
+            LOGGER.fatal("Unable to re-sign documents", iae);
+        } finally {
+            LOGGER.info("Goodbye...");
+        }
+    }
+
+    /**
+     * Preflight check the document(s) of a directory, without parsing or grading them.
+     */
+    private static void startPreflight() {
+        try {
+            LOGGER.info("Welcome to Application JGRAM (preflight mode)");
+            String documentStorePath = prompt("Enter absolute path to directory (or *.zip archive) containing assignment document(s) (Example /sample/assignments): ");
+            Task.preflightTask(documentStorePath);
+        } catch (IllegalArgumentException iae) {
+            LOGGER.fatal("Unable to preflight documents", iae);
+        } finally {
+            LOGGER.info("Goodbye...");
+        }
+    }
+
     /**
      * Prompts user for input, and retrieves user provided value as string.
      *
      * @param pMessage message to be printed while prompting user for input
      */
     private static String prompt(String pMessage) {
-        Scanner scanner = new Scanner(System.in);
         System.out.print(pMessage);
-        String value = scanner.next();
+        String value = INPUT.next();
         return value;
     }
 }
\ No newline at end of file
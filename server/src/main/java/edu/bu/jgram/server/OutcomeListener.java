@@ -0,0 +1,30 @@
+package edu.bu.jgram.server;
+
+import java.io.IOException;
+
+/**
+ * Represents a stage fed by the outcome of each document of a batch, as the outcome is produced.
+ *
+ * <p>Document(s) may be processed in parallel, so implementations must be thread safe. The sequence is the
+ * order a document was discovered in, for stages whose output order matters.</p>
+ */
+interface OutcomeListener {
+
+    /**
+     * Receive the outcome of a processed document.
+     *
+     * @param pSequence discovery sequence (0 based) of the document
+     * @param pOutcome outcome of the document
+     * @throws IOException Throws if the stage can't record the outcome
+     */
+    void onOutcome(long pSequence, DocumentOutcome pOutcome) throws IOException;
+
+    /**
+     * Receive a sequence which has no outcome eg. document processed by another shard worker.
+     *
+     * @param pSequence discovery sequence (0 based) of the document
+     * @throws IOException Throws if the stage can't record the skip
+     */
+    default void onSkipped(long pSequence) throws IOException {
+    }
+}
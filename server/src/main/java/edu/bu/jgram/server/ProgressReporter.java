@@ -0,0 +1,200 @@
+package edu.bu.jgram.server;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents the live progress of a batch run: done, failed and in-flight document counts, throughput and ETA.
+ *
+ * <p>Workers only bump {@link LongAdder} counters, they never wait on the reporter. A single daemon thread samples
+ * the counters at a fixed interval and renders them: redrawn in place on a terminal, or as a periodic log line when
+ * stdout is redirected to a file or pipe.</p>
+ */
+public class ProgressReporter
+        implements Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    // Time constant of the smoothed rate, so a few slow documents don't swing the ETA
+    private static final double EWMA_WINDOW_SECONDS = 10.0;
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    private final LongAdder mDiscovered = new LongAdder();
+    private final LongAdder mStarted = new LongAdder();
+    private final LongAdder mDone = new LongAdder();
+    private final LongAdder mFailed = new LongAdder();
+    private final LongAdder mBytesRead = new LongAdder();
+    private final LongAdder mBytesWritten = new LongAdder();
+    private volatile boolean mScanComplete;
+
+    private final PrintStream mTerminal;
+    private final long mStartNanos;
+    private final ScheduledExecutorService mScheduler;
+
+    // Only touched by the rendering thread, then by close() once it stopped
+    private long mLastNanos;
+    private long mLastDone;
+    private double mRate = -1;
+
+    /**
+     * @param pIntervalMillis rendering interval, 0 or less to only report on close
+     * @param pTerminal terminal to redraw the progress line on, null to log progress lines instead
+     */
+    ProgressReporter(long pIntervalMillis, PrintStream pTerminal) {
+        mTerminal = pTerminal;
+        mStartNanos = System.nanoTime();
+        mLastNanos = mStartNanos;
+
+        if (pIntervalMillis > 0) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "jgram-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mScheduler.scheduleAtFixedRate(this::report, pIntervalMillis, pIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            mScheduler = null;
+        }
+    }
+
+    /**
+     * Constructs the progress reporter configured by {@link Settings}, drawing on the console when there is one.
+     *
+     * @return {@link ProgressReporter} null when progress reporting is off
+     */
+    static ProgressReporter fromSettings() {
+        long intervalMillis = Settings.getProgressIntervalMillis();
+        if (intervalMillis <= 0) {
+            return null;
+        }
+        return new ProgressReporter(intervalMillis, System.console() == null ? null : System.err);
+    }
+
+    /**
+     * A document was discovered and queued.
+     */
+    void discovered() {
+        mDiscovered.increment();
+    }
+
+    /**
+     * Every document was discovered, so the ETA can be estimated.
+     */
+    void scanComplete() {
+        mScanComplete = true;
+    }
+
+    /**
+     * A worker started processing a document.
+     *
+     * @param pBytesRead size of the document
+     */
+    void started(long pBytesRead) {
+        mStarted.increment();
+        mBytesRead.add(pBytesRead);
+    }
+
+    /**
+     * A worker finished processing a document.
+     *
+     * @param pFailed whether the document could not be processed
+     * @param pBytesWritten bytes written for the document, 0 when left unchanged
+     */
+    void finished(boolean pFailed, long pBytesWritten) {
+        if (pFailed) {
+            mFailed.increment();
+        }
+        mBytesWritten.add(pBytesWritten);
+        mDone.increment();
+    }
+
+    /**
+     * Stop rendering, and log the progress of the whole run.
+     */
+    @Override
+    public void close() {
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            try {
+                mScheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mTerminal != null) {
+            // Leave the last progress line on screen
+            mTerminal.print("\n");
+            mTerminal.flush();
+        }
+
+        double seconds = Math.max(1e-9, (System.nanoTime() - mStartNanos) / 1e9);
+        long done = mDone.sum();
+        LOGGER.info(String.format("Progress : %d done | %d failed | %.1f docs/s | %.1f MB read | %.1f MB written | %.1f s",
+                done, mFailed.sum(), done / seconds, mBytesRead.sum() / MEGABYTE, mBytesWritten.sum() / MEGABYTE, seconds));
+    }
+
+    /**
+     * Sample the counters and render them. Runs on the rendering thread only.
+     */
+    private void report() {
+        String line = render(System.nanoTime());
+        if (mTerminal == null) {
+            LOGGER.info(line);
+        } else {
+            // Clear the line, draw, and return to its start so the next log line overwrites it
+            mTerminal.print("\u001B[K" + line + "\r");
+            mTerminal.flush();
+        }
+    }
+
+    /**
+     * Render the progress line at a point in time, and advance the throughput sample.
+     *
+     * @param pNowNanos current {@link System#nanoTime()}
+     * @return {@link String}
+     */
+    String render(long pNowNanos) {
+        // Done before started, so in-flight is never negative
+        long done = mDone.sum();
+        long started = mStarted.sum();
+        long failed = mFailed.sum();
+
+        double interval = Math.max(1e-9, (pNowNanos - mLastNanos) / 1e9);
+        double elapsed = Math.max(1e-9, (pNowNanos - mStartNanos) / 1e9);
+        double rate = (done - mLastDone) / interval;
+        if (mRate < 0) {
+            // Seeded by the first documents done, not by the warm up before them
+            mRate = done > 0 ? rate : -1;
+        } else {
+            double alpha = 1 - Math.exp(-interval / EWMA_WINDOW_SECONDS);
+            mRate += alpha * (rate - mRate);
+        }
+        mLastNanos = pNowNanos;
+        mLastDone = done;
+
+        String eta;
+        if (!mScanComplete) {
+            eta = "scanning";
+        } else if (mRate <= 0) {
+            eta = "--";
+        } else {
+            eta = formatSeconds(Math.max(0, mDiscovered.sum() - done) / mRate);
+        }
+
+        return String.format("Progress : %d/%d%s done | %d failed | %d in-flight | %.1f docs/s (avg %.1f) | %.1f MB/s read | %.1f MB/s written | ETA %s",
+                done, mDiscovered.sum(), mScanComplete ? "" : "+", failed, Math.max(0, started - done), rate, Math.max(0, mRate),
+                mBytesRead.sum() / MEGABYTE / elapsed, mBytesWritten.sum() / MEGABYTE / elapsed, eta);
+    }
+
+    private static String formatSeconds(double pSeconds) {
+        long seconds = Math.round(pSeconds);
+        if (seconds >= 3600) {
+            return String.format("%dh%02dm", seconds / 3600, seconds % 3600 / 60);
+        }
+        return String.format("%dm%02ds", seconds / 60, seconds % 60);
+    }
+}
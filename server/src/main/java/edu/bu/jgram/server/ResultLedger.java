@@ -0,0 +1,322 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.bu.jgram.server.assessment.Document;
+import edu.bu.jgram.server.assessment.Result;
+import edu.bu.jgram.server.security.JWT;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Represents an append-only file of signed results, written instead of appending the result table to each document
+ * eg. for interim or practice grading. Tables are written into the documents later, in bulk, by
+ * {@link #embed(File, String)}.
+ *
+ * <p>Each record is one line: CRC32 (hex) of the JSON record, a space, then the JSON record holding the document
+ * path, the SHA-256 digest of the graded content and the signed result token. Records are written through a buffer,
+ * sequentially. A crash can leave a torn last record: it is detected by its missing line end or CRC, and truncated
+ * when the ledger is opened again.</p>
+ */
+final class ResultLedger implements Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final File mFile;
+    private final FileOutputStream mFileOutputStream;
+    private final OutputStream mOutputStream;
+
+    // Document path -> digest of its latest record, to skip document(s) unchanged since they were recorded
+    private final Map<String, String> mDigestMap;
+
+    private ResultLedger(File pFile, Map<String, String> pDigestMap) throws IOException {
+        mFile = pFile;
+        mDigestMap = new ConcurrentHashMap<>(pDigestMap);
+        mFileOutputStream = new FileOutputStream(pFile, true);
+        mOutputStream = new BufferedOutputStream(mFileOutputStream, BUFFER_BYTES);
+    }
+
+    /**
+     * Open a ledger for appending, creating it if needed. A torn last record is truncated.
+     *
+     * @param pFile ledger file
+     * @return {@link ResultLedger}
+     * @throws IOException Throws if the ledger can't be read or written, or a record other than the last is corrupt
+     */
+    static ResultLedger open(File pFile) throws IOException {
+        Map<String, String> digestMap = new ConcurrentHashMap<>();
+        if (pFile.exists()) {
+            long validLength = scan(pFile, record -> digestMap.put(record.mDocument, record.mDigest));
+            if (validLength < pFile.length()) {
+                LOGGER.warn(String.format("Ledger %s : truncating torn record at byte %d", pFile, validLength));
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(pFile, "rw")) {
+                    randomAccessFile.setLength(validLength);
+                }
+            }
+        } else if (pFile.getAbsoluteFile().getParentFile() != null) {
+            Files.createDirectories(pFile.getAbsoluteFile().getParentFile().toPath());
+        }
+        return new ResultLedger(pFile, digestMap);
+    }
+
+    /**
+     * Verify whether the document was already recorded with the same content.
+     *
+     * @param pDocumentPath absolute path of the document
+     * @param pDigest digest of the document content, see {@link #digest(byte[])}
+     * @return {@link Boolean}
+     */
+    boolean isRecorded(String pDocumentPath, String pDigest) {
+        return pDigest.equals(mDigestMap.get(pDocumentPath));
+    }
+
+    /**
+     * Append the signed result of a document.
+     *
+     * @param pDocumentPath absolute path of the document
+     * @param pDigest digest of the graded content, see {@link #digest(byte[])}
+     * @param pResult evaluated result
+     * @param pSecret secret used to sign the result
+     * @throws IOException Throws if the record can't be written
+     */
+    void append(String pDocumentPath, String pDigest, Result pResult, String pSecret) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("document", pDocumentPath);
+        record.put("digest", pDigest);
+        record.put("gradedAt", System.currentTimeMillis());
+        record.put("overallGrade", pResult.getOverallGrade());
+        record.put("checkpointCount", pResult.getCheckpointCount());
+        record.put("token", Document.createToken(pResult, pSecret));
+        byte[] json = JSON_MAPPER.writeValueAsBytes(record);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(json);
+        byte[] checksum = String.format("%08x ", crc32.getValue()).getBytes(StandardCharsets.US_ASCII);
+
+        // The whole line under the lock, so records of parallel workers never interleave
+        synchronized (this) {
+            mOutputStream.write(checksum);
+            mOutputStream.write(json);
+            mOutputStream.write('\n');
+        }
+        mDigestMap.put(pDocumentPath, pDigest);
+    }
+
+    /**
+     * Flush buffered record(s) and sync the ledger to disk.
+     *
+     * @throws IOException Throws if the ledger can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            mOutputStream.flush();
+            mFileOutputStream.getFD().sync();
+        } finally {
+            mOutputStream.close();
+        }
+        LOGGER.info(String.format("Ledger %s : %d document(s) recorded", mFile, mDigestMap.size()));
+    }
+
+    /**
+     * Digest document content, to detect a document changed after its result was recorded.
+     *
+     * @param pContent document content
+     * @return {@link String} SHA-256 in hex
+     */
+    static String digest(byte[] pContent) {
+        try {
+            byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(pContent);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                hex.append(String.format("%02x", value));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", nsae);
+        }
+    }
+
+    /**
+     * Write the result table of each recorded document into the document, for the latest record of each document.
+     * A document changed since it was recorded is reported STALE and left as is. Each document is written aside, then
+     * moved over the original, and recorded in the verification index when one is set, see
+     * {@link Settings#getVerificationIndex()}.
+     *
+     * @param pFile ledger file
+     * @param pSecret secret the results were signed with
+     * @return {@link List} outcome of each document
+     * @throws IOException Throws if the ledger can't be read
+     */
+    static List<DocumentOutcome> embed(File pFile, String pSecret) throws IOException {
+        Map<String, Record> recordMap = new LinkedHashMap<>();
+        scan(pFile, record -> {
+            recordMap.remove(record.mDocument);
+            recordMap.put(record.mDocument, record);
+        });
+
+        File indexFile = Settings.getVerificationIndex();
+        VerificationIndex index = indexFile == null ? null : VerificationIndex.open(indexFile);
+        try {
+            JWT jwt = JWT.getInstance(pSecret);
+            List<DocumentOutcome> outcomeList = new ArrayList<>();
+            for (Record record : recordMap.values()) {
+                File document = new File(record.mDocument);
+                DocumentOutcome outcome;
+                try {
+                    outcome = embedDocument(document, record, jwt, pSecret);
+                } catch (RuntimeException re) {
+                    LOGGER.info(String.format("Document [%s] : %s ", document.getName(), "FAILURE"));
+                    LOGGER.error("Unexpected failure", re);
+                    outcome = new DocumentOutcome(document.getName(), "FAILURE", 0, null, String.valueOf(re.getMessage()));
+                }
+                outcomeList.add(Task.indexDocument(document, outcome, pSecret, index));
+            }
+            return outcomeList;
+        } finally {
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Write the result table of one recorded document into the document.
+     *
+     * @return {@link DocumentOutcome}
+     */
+    private static DocumentOutcome embedDocument(File pDocument, Record pRecord, JWT pJWT, String pSecret) {
+        String status = "FAILURE";
+        String message = null;
+        Result result = null;
+        try {
+            if (!pRecord.mDigest.equals(digest(Files.readAllBytes(pDocument.toPath())))) {
+                status = "STALE";
+                message = "Document changed since its result was recorded, grade it again";
+            } else {
+                result = pJWT.decodeJWT(pRecord.mToken);
+                Document assignmentDocument = new Document(pDocument.getAbsolutePath(), 1, 10, 1, 100);
+                File partialDocument = new File(pDocument.getPath() + ".part");
+                try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(partialDocument))) {
+                    assignmentDocument.appendResult(result, pSecret, outputStream);
+                } catch (IOException ioe) {
+                    partialDocument.delete();
+                    throw ioe;
+                }
+                Files.move(partialDocument.toPath(), pDocument.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                status = "SUCCESS";
+            }
+        } catch (IOException | SecurityException e) {
+            message = e.getMessage();
+        }
+        LOGGER.info(String.format("Document [%s] : %s %s", pDocument.getName(), status, message == null ? "" : message));
+        return new DocumentOutcome(pDocument.getName(), status, result == null ? 0 : result.getCheckpointCount(),
+                result == null ? null : result.getOverallGrade(), message, result);
+    }
+
+    /**
+     * Read every complete, valid record.
+     *
+     * @return {@link Long} length of the valid part of the ledger
+     * @throws IOException Throws if the ledger can't be read, or a record other than the last is corrupt
+     */
+    private static long scan(File pFile, Consumer<Record> pConsumer) throws IOException {
+        long validLength = 0;
+        long offset = 0;
+        Record tornRecord = null;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(pFile.toPath()), BUFFER_BYTES)) {
+            int value;
+            while ((value = inputStream.read()) != -1) {
+                offset++;
+                if (value != '\n') {
+                    line.write(value);
+                    continue;
+                }
+
+                if (tornRecord != null) {
+                    throw new IOException(String.format("Ledger %s is corrupt at byte %d", pFile, validLength));
+                }
+                Record record = Record.parse(line.toByteArray());
+                line.reset();
+                if (record == null) {
+                    // Only the last record may be torn, anything after it means the ledger is damaged
+                    tornRecord = Record.TORN;
+                    continue;
+                }
+                pConsumer.accept(record);
+                validLength = offset;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Represents a record read back from the ledger.
+     */
+    private static final class Record {
+        private static final Record TORN = new Record(null, null, null);
+
+        private final String mDocument;
+        private final String mDigest;
+        private final String mToken;
+
+        private Record(String pDocument, String pDigest, String pToken) {
+            mDocument = pDocument;
+            mDigest = pDigest;
+            mToken = pToken;
+        }
+
+        /**
+         * Parse a record line, without its line end.
+         *
+         * @return {@link Record} null when the checksum doesn't match or the record is incomplete
+         */
+        private static Record parse(byte[] pLine) {
+            if (pLine.length < 10 || pLine[8] != ' ') {
+                return null;
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(pLine, 9, pLine.length - 9);
+            try {
+                if (Long.parseLong(new String(pLine, 0, 8, StandardCharsets.US_ASCII), 16) != crc32.getValue()) {
+                    return null;
+                }
+                JsonNode record = JSON_MAPPER.readTree(new String(pLine, 9, pLine.length - 9, StandardCharsets.UTF_8));
+                if (!record.hasNonNull("document") || !record.hasNonNull("digest") || !record.hasNonNull("token")) {
+                    return null;
+                }
+                return new Record(record.get("document").asText(), record.get("digest").asText(), record.get("token").asText());
+            } catch (NumberFormatException | IOException e) {
+                return null;
+            }
+        }
+    }
+}
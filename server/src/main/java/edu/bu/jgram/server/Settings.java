@@ -0,0 +1,512 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.ReplyPolicy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the runtime settings of JGRAM application. Settings are read from JVM system properties
+ * (eg. -Djgram.allocation.budget=33554432), so that the interactive {@link Launcher} flow stays unchanged.
+ */
+public final class Settings {
+
+    public static final String THREADS = "jgram.threads";
+    public static final String SCAN_MAX_DEPTH = "jgram.scan.maxDepth";
+    public static final String SCAN_INCLUDE = "jgram.scan.include";
+    public static final String SCAN_EXCLUDE = "jgram.scan.exclude";
+    public static final String SCAN_FOLLOW_LINKS = "jgram.scan.followLinks";
+    public static final String INDEX_PARALLEL_THRESHOLD = "jgram.index.parallelThreshold";
+    public static final String REPLY_POLICY = "jgram.reply.policy";
+    public static final String TOKEN_FORMAT = "jgram.token.format";
+    public static final String RUBRIC = "jgram.rubric";
+    public static final String KEY_RING = "jgram.keyring";
+    public static final String SHARD_INDEX = "jgram.shard.index";
+    public static final String SHARD_COUNT = "jgram.shard.count";
+    public static final String SHARD_CLAIM = "jgram.shard.claim";
+    public static final String SHARD_LEASE_SECONDS = "jgram.shard.leaseSeconds";
+    public static final String SHARD_WORKER_OPTIONS = "jgram.shard.workerOptions";
+    public static final String ALLOCATION_BUDGET = "jgram.allocation.budget";
+    public static final String ALLOCATION_CSV = "jgram.allocation.csv";
+    public static final String GRADEBOOK = "jgram.gradebook";
+    public static final String LEDGER = "jgram.ledger";
+    public static final String VERIFY_INDEX = "jgram.verify.index";
+    public static final String DAEMON_PORT = "jgram.daemon.port";
+    public static final String DAEMON_THREADS = "jgram.daemon.threads";
+    public static final String DAEMON_DRAIN_SECONDS = "jgram.daemon.drainSeconds";
+    public static final String DAEMON_TOKEN_FILE = "jgram.daemon.tokenFile";
+    public static final String WATCH_RECURSIVE = "jgram.watch.recursive";
+    public static final String WATCH_THREADS = "jgram.watch.threads";
+    public static final String WATCH_STABLE_MILLIS = "jgram.watch.stableMillis";
+    public static final String WATCH_TRACKED_LIMIT = "jgram.watch.trackedLimit";
+    public static final String PROGRESS_INTERVAL_MILLIS = "jgram.progress.intervalMillis";
+    public static final String PIPELINE = "jgram.pipeline";
+    public static final String PIPELINE_READ_THREADS = "jgram.pipeline.readThreads";
+    public static final String PIPELINE_SIGN_THREADS = "jgram.pipeline.signThreads";
+    public static final String PIPELINE_WRITE_THREADS = "jgram.pipeline.writeThreads";
+    public static final String PIPELINE_QUEUE_CAPACITY = "jgram.pipeline.queueCapacity";
+    public static final String PREFLIGHT = "jgram.preflight";
+    public static final String PREFLIGHT_MAX_BYTES = "jgram.preflight.maxBytes";
+    public static final String PREFLIGHT_MAX_RATIO = "jgram.preflight.maxRatio";
+
+    private static final String DISABLED = "none";
+
+    private Settings() {
+    }
+
+    /**
+     * Retrieve the number of documents a task processes concurrently. Defaults to number of processors.
+     *
+     * @return {@link Integer}
+     */
+    public static int getThreads() {
+        return (int) Math.max(1, getLong(THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Retrieve how many directory levels a task descends into. Defaults to 1 i.e. only the document(s) directly
+     * in the provided directory.
+     *
+     * @return {@link Integer}
+     */
+    public static int getScanMaxDepth() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, getLong(SCAN_MAX_DEPTH, 1)));
+    }
+
+    /**
+     * Retrieve comma separated glob patterns a document must match. Defaults to *.docx
+     *
+     * @return {@link List}
+     */
+    public static List<String> getScanIncludeList() {
+        return getList(SCAN_INCLUDE, "*.docx");
+    }
+
+    /**
+     * Retrieve comma separated glob patterns of documents or directories to skip. Defaults to none.
+     *
+     * @return {@link List}
+     */
+    public static List<String> getScanExcludeList() {
+        return getList(SCAN_EXCLUDE, "");
+    }
+
+    /**
+     * Verify whether symbolic links are followed while scanning. Defaults to true.
+     *
+     * @return {@link Boolean}
+     */
+    public static boolean isScanFollowLinks() {
+        return Boolean.parseBoolean(System.getProperty(SCAN_FOLLOW_LINKS, "true"));
+    }
+
+    /**
+     * Retrieve the number of comments from which a document's checkpoints are extracted in parallel, on the common
+     * fork-join pool. Defaults to 1000. Any value less than or equal to 0 means always sequential.
+     *
+     * @return {@link Integer}
+     */
+    public static int getIndexParallelThreshold() {
+        return (int) Math.min(Integer.MAX_VALUE, getLong(INDEX_PARALLEL_THRESHOLD, 1000));
+    }
+
+    /**
+     * Retrieve whether a checkpoint posted as a reply supplements or overrides the checkpoint of its comment thread.
+     * Defaults to supplement.
+     *
+     * @return {@link ReplyPolicy}
+     * @throws IllegalArgumentException Throws if the property is not a reply policy
+     */
+    public static ReplyPolicy getReplyPolicy() throws IllegalArgumentException {
+        String value = System.getProperty(REPLY_POLICY, ReplyPolicy.SUPPLEMENT.name()).trim();
+        try {
+            return ReplyPolicy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(String.format("Setting %s must be supplement or override, found %s", REPLY_POLICY, value));
+        }
+    }
+
+    /**
+     * Verify whether result tokens are written in the compact format (jgram.token.format=compact), otherwise as JWT.
+     * Both formats are always accepted, but JGRAM versions before the compact format only accept JWT, so it is opt-in.
+     * Defaults to jwt.
+     *
+     * @return {@link Boolean}
+     * @throws IllegalArgumentException Throws if the property is neither compact nor jwt
+     */
+    public static boolean isCompactToken() throws IllegalArgumentException {
+        String value = System.getProperty(TOKEN_FORMAT, "jwt").trim();
+        if (value.equalsIgnoreCase("compact")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("jwt")) {
+            return false;
+        }
+        throw new IllegalArgumentException(String.format("Setting %s must be compact or jwt, found %s", TOKEN_FORMAT, value));
+    }
+
+    /**
+     * Retrieve the file containing the rubric of documents without a rubric comment eg. RUBRIC( DROP=1 ). Defaults
+     * to none i.e. the weighted mean of every checkpoint.
+     *
+     * @return {@link File} null when not set or set to none
+     */
+    public static File getRubric() {
+        String value = System.getProperty(RUBRIC);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the key ring file, kid=secret lines naming the secret of each course/section. Tokens signed with a
+     * secret of the ring carry its kid, and are verified with the key they name. Defaults to none.
+     *
+     * @return {@link File} null when disabled
+     */
+    public static File getKeyRing() {
+        String value = System.getProperty(KEY_RING);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the index (0 based) of this worker process among the shard workers. Defaults to 0.
+     *
+     * @return {@link Integer}
+     */
+    public static int getShardIndex() {
+        return (int) Math.max(0, getLong(SHARD_INDEX, 0));
+    }
+
+    /**
+     * Retrieve the number of worker processes sharing a directory. Defaults to 1 i.e. shard mode is off.
+     *
+     * @return {@link Integer}
+     */
+    public static int getShardCount() {
+        return (int) Math.max(1, getLong(SHARD_COUNT, 1));
+    }
+
+    /**
+     * Verify whether shard workers claim document(s) dynamically through claim files, instead of partitioning them
+     * by path hash. Defaults to false.
+     *
+     * @return {@link Boolean}
+     */
+    public static boolean isShardClaim() {
+        return Boolean.getBoolean(SHARD_CLAIM);
+    }
+
+    /**
+     * Retrieve how long (seconds) a claim stays valid without heartbeat, before other workers reclaim the document
+     * eg. because its worker crashed. Defaults to 300.
+     *
+     * @return {@link Integer}
+     */
+    public static int getShardLeaseSeconds() {
+        return (int) Math.max(1, getLong(SHARD_LEASE_SECONDS, 300));
+    }
+
+    /**
+     * Retrieve white space separated JVM options of each shard worker launched by {@link ShardCoordinator}
+     * eg. -Xmx512m. Defaults to none.
+     *
+     * @return {@link List}
+     */
+    public static List<String> getShardWorkerOptionList() {
+        List<String> optionList = new ArrayList<>();
+        for (String option : System.getProperty(SHARD_WORKER_OPTIONS, "").trim().split("\\s+")) {
+            if (option.length() > 0) {
+                optionList.add(option);
+            }
+        }
+        return optionList;
+    }
+
+    /**
+     * Retrieve the maximum bytes a single document may allocate. Any value less than or equal to 0 means
+     * allocation budget is not enforced.
+     *
+     * @return {@link Long}
+     */
+    public static long getAllocationBudget() {
+        return getLong(ALLOCATION_BUDGET, 0);
+    }
+
+    /**
+     * Retrieve the per-document allocation report file. Defaults to none i.e. the allocation summary is only logged.
+     *
+     * @return {@link File} null when not set or set to none
+     */
+    public static File getAllocationCsv() {
+        String value = System.getProperty(ALLOCATION_CSV);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the gradebook file written by evaluation, *.json for JSON otherwise CSV. Defaults to none i.e. no
+     * gradebook, so nothing but the graded documents is written to the document store unless asked for.
+     *
+     * @return {@link File} null when not set or set to none
+     */
+    public static File getGradebook() {
+        String value = System.getProperty(GRADEBOOK);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the verification index evaluation records graded documents in, and tamper test verifies untouched
+     * documents against. Defaults to none i.e. every document is verified by parsing it, and no index is written to
+     * the document store unless asked for.
+     *
+     * @return {@link File} null when not set or set to none
+     */
+    public static File getVerificationIndex() {
+        String value = System.getProperty(VERIFY_INDEX);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the results ledger evaluation appends signed results to, instead of writing the result table into
+     * each document. Defaults to none i.e. documents are updated.
+     *
+     * @return {@link File} null when not set or set to none
+     */
+    public static File getLedger() {
+        String value = System.getProperty(LEDGER);
+        if (value == null || value.trim().length() == 0 || value.trim().equalsIgnoreCase(DISABLED)) {
+            return null;
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Retrieve the localhost port the grading daemon listens on. Defaults to 8642.
+     *
+     * @return {@link Integer}
+     */
+    public static int getDaemonPort() {
+        return (int) getLong(DAEMON_PORT, 8642);
+    }
+
+    /**
+     * Retrieve the number of requests the grading daemon processes concurrently. Defaults to number of processors.
+     *
+     * @return {@link Integer}
+     */
+    public static int getDaemonThreads() {
+        return (int) Math.max(1, getLong(DAEMON_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Retrieve the maximum seconds the grading daemon waits for in-flight requests on shutdown. Defaults to 30.
+     *
+     * @return {@link Integer}
+     */
+    public static int getDaemonDrainSeconds() {
+        return (int) Math.max(0, getLong(DAEMON_DRAIN_SECONDS, 30));
+    }
+
+    /**
+     * Retrieve the file the grading daemon writes the token clients must send to. Defaults to
+     * .jgram/daemon-PORT.token in the user's home directory.
+     *
+     * @param pPort port the daemon listens on
+     * @return {@link File}
+     */
+    public static File getDaemonTokenFile(int pPort) {
+        String value = System.getProperty(DAEMON_TOKEN_FILE);
+        if (value == null || value.trim().length() == 0) {
+            return new File(new File(System.getProperty("user.home"), ".jgram"), "daemon-" + pPort + ".token");
+        }
+        return new File(value.trim());
+    }
+
+    /**
+     * Verify whether watch mode also watches sub-directories (including ones created later). Defaults to false.
+     *
+     * @return {@link Boolean}
+     */
+    public static boolean isWatchRecursive() {
+        return Boolean.getBoolean(WATCH_RECURSIVE);
+    }
+
+    /**
+     * Retrieve the number of documents watch mode grades concurrently. Defaults to number of processors.
+     *
+     * @return {@link Integer}
+     */
+    public static int getWatchThreads() {
+        return (int) Math.max(1, getLong(WATCH_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Retrieve how long (milliseconds) a document's size and modification time must stay unchanged before watch mode
+     * considers it completely written. Defaults to 2000.
+     *
+     * @return {@link Long}
+     */
+    public static long getWatchStableMillis() {
+        return Math.max(100, getLong(WATCH_STABLE_MILLIS, 2000));
+    }
+
+    /**
+     * Retrieve the maximum number of graded documents watch mode remembers, to skip documents already current.
+     * Defaults to 10000.
+     *
+     * @return {@link Integer}
+     */
+    public static int getWatchTrackedLimit() {
+        return (int) Math.max(1, getLong(WATCH_TRACKED_LIMIT, 10000));
+    }
+
+    /**
+     * Retrieve how often (milliseconds) a batch run reports its progress. Defaults to 2000.
+     *
+     * @return {@link Long} 0 when set to 0 or none i.e. progress is only reported once the run ends
+     */
+    public static long getProgressIntervalMillis() {
+        String value = System.getProperty(PROGRESS_INTERVAL_MILLIS);
+        if (value != null && value.trim().equalsIgnoreCase(DISABLED)) {
+            return 0;
+        }
+        return Math.max(0, getLong(PROGRESS_INTERVAL_MILLIS, 2000));
+    }
+
+    /**
+     * Verify whether evaluation of a directory runs as a staged read/grade/sign/write pipeline, otherwise each worker
+     * grades a document from start to end. Defaults to true.
+     *
+     * @return {@link Boolean}
+     */
+    public static boolean isPipeline() {
+        return Boolean.parseBoolean(System.getProperty(PIPELINE, "true"));
+    }
+
+    /**
+     * Retrieve the number of pipeline threads reading documents ahead. Defaults to 2.
+     *
+     * @return {@link Integer}
+     */
+    public static int getPipelineReadThreads() {
+        return (int) Math.max(1, getLong(PIPELINE_READ_THREADS, 2));
+    }
+
+    /**
+     * Retrieve the number of pipeline threads signing results and rendering graded documents. Defaults to half the
+     * number of processors.
+     *
+     * @return {@link Integer}
+     */
+    public static int getPipelineSignThreads() {
+        return (int) Math.max(1, getLong(PIPELINE_SIGN_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Retrieve the number of pipeline threads writing graded documents. Defaults to 2.
+     *
+     * @return {@link Integer}
+     */
+    public static int getPipelineWriteThreads() {
+        return (int) Math.max(1, getLong(PIPELINE_WRITE_THREADS, 2));
+    }
+
+    /**
+     * Retrieve the number of documents waiting between two pipeline stages, which bounds read-ahead. Defaults to 8.
+     *
+     * @return {@link Integer}
+     */
+    public static int getPipelineQueueCapacity() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, getLong(PIPELINE_QUEUE_CAPACITY, 8)));
+    }
+
+    /**
+     * Verify whether each document is preflight checked from its zip central directory and content types before any
+     * part is parsed. Defaults to true.
+     *
+     * @return {@link Boolean}
+     */
+    public static boolean isPreflight() {
+        return Boolean.parseBoolean(System.getProperty(PREFLIGHT, "true"));
+    }
+
+    /**
+     * Retrieve the limit of the uncompressed size of a document, as its zip central directory declares it. Defaults
+     * to 536870912 (512 MB).
+     *
+     * @return {@link Long} 0 when set to 0 or none i.e. no limit
+     */
+    public static long getPreflightMaxBytes() {
+        return getLimit(PREFLIGHT_MAX_BYTES, 512L * 1024 * 1024);
+    }
+
+    /**
+     * Retrieve the limit of the uncompressed to compressed size ratio of a part of a document. Defaults to 100, as
+     * POI does.
+     *
+     * @return {@link Long} 0 when set to 0 or none i.e. no limit
+     */
+    public static long getPreflightMaxRatio() {
+        return getLimit(PREFLIGHT_MAX_RATIO, 100);
+    }
+
+    private static long getLimit(String pKey, long pDefault) {
+        String value = System.getProperty(pKey);
+        if (value != null && value.trim().equalsIgnoreCase(DISABLED)) {
+            return 0;
+        }
+        return Math.max(0, getLong(pKey, pDefault));
+    }
+
+    /**
+     * Retrieve a comma separated setting.
+     *
+     * @param pKey system property name
+     * @param pDefault value to use when the property is missing
+     * @return {@link List} trimmed non-empty values
+     */
+    static List<String> getList(String pKey, String pDefault) {
+        List<String> valueList = new ArrayList<>();
+        for (String value : System.getProperty(pKey, pDefault).split(",")) {
+            if (value.trim().length() > 0) {
+                valueList.add(value.trim());
+            }
+        }
+        return valueList;
+    }
+
+    /**
+     * Retrieve a numeric setting.
+     *
+     * @param pKey system property name
+     * @param pDefault value to use when the property is missing
+     * @return {@link Long}
+     * @throws IllegalArgumentException Throws if the property is not numeric
+     */
+    static long getLong(String pKey, long pDefault) throws IllegalArgumentException {
+        String value = System.getProperty(pKey);
+        if (value == null || value.trim().length() == 0) {
+            return pDefault;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(String.format("Setting %s must be numeric, found %s", pKey, value));
+        }
+    }
+}
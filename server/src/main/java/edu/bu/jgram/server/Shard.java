@@ -0,0 +1,381 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Represents the share of a directory processed by this worker process, when several JGRAM processes work on the
+ * same directory (see {@link ShardCoordinator}).
+ *
+ * <p>By default document(s) are partitioned by a hash of their path relative to the directory, so every worker
+ * deterministically picks its own document(s) without any coordination. In claim mode any worker may take any
+ * document, by atomically creating its claim file under .jgram-shard/claims. Claims are refreshed by a heartbeat;
+ * a claim not refreshed for the lease period (eg. its worker crashed) is taken over by another worker.</p>
+ *
+ * <p>Each worker appends the outcome of its document(s) to .jgram-shard/results/worker-&lt;index&gt;.jsonl, as they
+ * complete, so outcomes of a crashed worker are not lost.</p>
+ */
+final class Shard implements Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    static final String SHARD_DIRECTORY = ".jgram-shard";
+    static final String RESULTS_DIRECTORY = "results";
+    static final String RESULTS_EXTENSION = ".jsonl";
+    static final String STATISTICS_PREFIX = "statistics-worker-";
+
+    private static final String CLAIMS_DIRECTORY = "claims";
+    private static final String CLAIM_EXTENSION = ".claim";
+    private static final String DONE_EXTENSION = ".done";
+    private static final String TAKEOVER_EXTENSION = ".takeover";
+
+    private final Path mRoot;
+    private final int mIndex;
+    private final int mCount;
+    private final boolean mClaim;
+    private final long mLeaseMillis;
+
+    private final Path mClaimsDirectory;
+    private final BufferedWriter mResultWriter;
+    private final ScheduledExecutorService mHeartbeat;
+
+    // Claim files held by this worker, refreshed by the heartbeat
+    private final Set<Path> mHeldClaimSet = ConcurrentHashMap.newKeySet();
+    // Documents claimed by other workers and not done yet, revisited once the scan completes
+    private final Set<Path> mForeignClaimSet = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param pRoot directory shared by the workers
+     * @param pIndex index (0 based) of this worker
+     * @param pCount number of workers, used by hash partitioning
+     * @param pClaim when true document(s) are claimed dynamically, otherwise partitioned by hash
+     * @param pLeaseMillis how long a claim stays valid without heartbeat
+     * @throws IOException Throws if the shard directory can't be written
+     */
+    Shard(Path pRoot, int pIndex, int pCount, boolean pClaim, long pLeaseMillis) throws IOException {
+        if (!pClaim && pIndex >= pCount) {
+            throw new IllegalArgumentException(String.format("Shard index %d must be less than shard count %d", pIndex, pCount));
+        }
+
+        mRoot = pRoot.toAbsolutePath();
+        mIndex = pIndex;
+        mCount = pCount;
+        mClaim = pClaim;
+        mLeaseMillis = pLeaseMillis;
+
+        Path shardDirectory = mRoot.resolve(SHARD_DIRECTORY);
+        mClaimsDirectory = Files.createDirectories(shardDirectory.resolve(CLAIMS_DIRECTORY));
+        Path resultsDirectory = Files.createDirectories(shardDirectory.resolve(RESULTS_DIRECTORY));
+        mResultWriter = Files.newBufferedWriter(resultsDirectory.resolve("worker-" + pIndex + RESULTS_EXTENSION),
+                StandardCharsets.UTF_8);
+
+        if (mClaim) {
+            mHeartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "jgram-shard-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, mLeaseMillis / 3);
+            mHeartbeat.scheduleWithFixedDelay(this::refreshClaims, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            mHeartbeat = null;
+        }
+    }
+
+    /**
+     * Verify whether this process is a shard worker: a static shard of several, or claiming documents.
+     *
+     * @return {@link Boolean}
+     */
+    static boolean isEnabled() {
+        return Settings.getShardCount() > 1 || Settings.isShardClaim();
+    }
+
+    /**
+     * Constructs the shard of this worker configured by {@link Settings}.
+     *
+     * @param pRoot directory shared by the workers
+     * @return {@link Shard} null when shard mode is off
+     * @throws IOException Throws if the shard directory can't be written
+     */
+    static Shard fromSettings(Path pRoot) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        return new Shard(pRoot, Settings.getShardIndex(), Settings.getShardCount(), Settings.isShardClaim(),
+                TimeUnit.SECONDS.toMillis(Settings.getShardLeaseSeconds()));
+    }
+
+    /**
+     * Persist the cohort statistics of this worker for {@link ShardCoordinator} to merge. Does nothing when shard
+     * mode is off.
+     *
+     * @param pDocumentStorePath directory shared by the workers
+     * @param pCohortStatistics statistics of the document(s) graded by this worker
+     */
+    static void writeStatistics(String pDocumentStorePath, CohortStatistics pCohortStatistics) {
+        Path shardDirectory = Paths.get(pDocumentStorePath).toAbsolutePath().resolve(SHARD_DIRECTORY);
+        if (!isEnabled() || !Files.isDirectory(shardDirectory)) {
+            return;
+        }
+
+        try {
+            pCohortStatistics.write(shardDirectory.resolve(STATISTICS_PREFIX + Settings.getShardIndex() + ".json").toFile());
+        } catch (IOException ioe) {
+            LOGGER.error("Unable to write cohort statistics", ioe);
+        }
+    }
+
+    /**
+     * Retrieve the worker a document belongs to, by hash of its relative path. The same path always maps to
+     * the same worker, on any machine.
+     *
+     * @param pRelativePath path relative to the shared directory, '/' separated
+     * @param pCount number of workers
+     * @return {@link Integer} worker index
+     */
+    static int partition(String pRelativePath, int pCount) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(pRelativePath.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc32.getValue() % pCount);
+    }
+
+    /**
+     * Verify whether a discovered document may be processed by this worker. In claim mode every document
+     * may be, subject to {@link #claim(Path)}.
+     *
+     * @param pDocument discovered document
+     * @return {@link Boolean}
+     */
+    boolean isAssigned(Path pDocument) {
+        return mClaim || partition(relativize(pDocument), mCount) == mIndex;
+    }
+
+    /**
+     * Claim a document before processing it. Always succeeds when partitioned by hash.
+     *
+     * @param pDocument document about to be processed
+     * @return {@link Boolean} false when the document is done, or claimed by another (live) worker
+     */
+    boolean claim(Path pDocument) {
+        if (!mClaim) {
+            return true;
+        }
+
+        Path claimFile = getClaimFile(pDocument, CLAIM_EXTENSION);
+        Path doneFile = getClaimFile(pDocument, DONE_EXTENSION);
+        try {
+            if (Files.exists(doneFile)) {
+                return false;
+            }
+
+            try {
+                Files.createFile(claimFile);
+            } catch (FileAlreadyExistsException faee) {
+                if (!takeOver(pDocument, claimFile)) {
+                    mForeignClaimSet.add(pDocument);
+                    return false;
+                }
+            }
+
+            // The previous holder may have completed the document between the done check and the claim
+            if (Files.exists(doneFile)) {
+                Files.deleteIfExists(claimFile);
+                return false;
+            }
+
+            mHeldClaimSet.add(claimFile);
+            mForeignClaimSet.remove(pDocument);
+            return true;
+        } catch (IOException ioe) {
+            LOGGER.warn(String.format("Unable to claim %s : %s", relativize(pDocument), ioe.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Record the outcome of a processed document, and release its claim.
+     *
+     * @param pDocument processed document
+     * @param pOutcome outcome of the task on the document
+     */
+    void complete(Path pDocument, DocumentOutcome pOutcome) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("document", relativize(pDocument));
+        record.put("worker", mIndex);
+        record.put("status", pOutcome.getStatus());
+        record.put("checkpoints", pOutcome.getCheckpointCount());
+        record.put("overallGrade", pOutcome.getOverallGrade());
+        record.put("message", pOutcome.getMessage());
+
+        try {
+            String line = JSON_MAPPER.writeValueAsString(record);
+            synchronized (mResultWriter) {
+                mResultWriter.write(line);
+                mResultWriter.newLine();
+                mResultWriter.flush();
+            }
+
+            if (mClaim) {
+                // Done marker first, so the document is never seen unclaimed and not done
+                Path claimFile = getClaimFile(pDocument, CLAIM_EXTENSION);
+                try {
+                    Files.createFile(getClaimFile(pDocument, DONE_EXTENSION));
+                } catch (FileAlreadyExistsException faee) {
+                    // completed by a worker which took over an expired claim
+                }
+                mHeldClaimSet.remove(claimFile);
+                Files.deleteIfExists(claimFile);
+            }
+        } catch (IOException ioe) {
+            LOGGER.error(String.format("Unable to record outcome of %s", relativize(pDocument)), ioe);
+        }
+    }
+
+    /**
+     * Wait for document(s) claimed by other workers, handing over the ones whose claim expired (eg. their
+     * worker crashed) to be processed by this worker. Returns once every document seen is done.
+     *
+     * @param pConsumer processes an abandoned document, on the calling thread
+     */
+    void awaitAbandoned(Consumer<Path> pConsumer) {
+        if (!mForeignClaimSet.isEmpty()) {
+            LOGGER.info(String.format("Waiting for %d document(s) claimed by other worker(s)", mForeignClaimSet.size()));
+        }
+
+        while (!mForeignClaimSet.isEmpty()) {
+            Iterator<Path> iterator = mForeignClaimSet.iterator();
+            while (iterator.hasNext()) {
+                Path document = iterator.next();
+                Path claimFile = getClaimFile(document, CLAIM_EXTENSION);
+                if (Files.exists(getClaimFile(document, DONE_EXTENSION)) || !Files.exists(document)) {
+                    iterator.remove();
+                } else if (!Files.exists(claimFile) || isExpired(claimFile)) {
+                    iterator.remove();
+                    LOGGER.warn(String.format("Reclaiming abandoned document %s", relativize(document)));
+                    pConsumer.accept(document);
+                }
+            }
+
+            if (!mForeignClaimSet.isEmpty()) {
+                try {
+                    Thread.sleep(Math.min(1000, Math.max(10, mLeaseMillis / 4)));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mHeartbeat != null) {
+            mHeartbeat.shutdownNow();
+        }
+        synchronized (mResultWriter) {
+            mResultWriter.close();
+        }
+    }
+
+    /**
+     * Take over the claim of a document whose worker stopped refreshing it. Only one worker wins the takeover
+     * marker, and it re-verifies expiry once it holds the marker.
+     */
+    private boolean takeOver(Path pDocument, Path pClaimFile) throws IOException {
+        if (!isExpired(pClaimFile)) {
+            return false;
+        }
+
+        Path takeoverFile = getClaimFile(pDocument, TAKEOVER_EXTENSION);
+        try {
+            Files.createFile(takeoverFile);
+        } catch (FileAlreadyExistsException faee) {
+            if (isExpired(takeoverFile)) {
+                // Worker crashed in the middle of a takeover
+                Files.deleteIfExists(takeoverFile);
+            }
+            return false;
+        }
+
+        try {
+            if (Files.exists(pClaimFile) && !isExpired(pClaimFile)) {
+                return false;
+            }
+            LOGGER.warn(String.format("Claim of %s expired, taking over", relativize(pDocument)));
+            Files.deleteIfExists(pClaimFile);
+            try {
+                Files.createFile(pClaimFile);
+                return true;
+            } catch (FileAlreadyExistsException faee) {
+                return false;
+            }
+        } finally {
+            Files.deleteIfExists(takeoverFile);
+        }
+    }
+
+    private boolean isExpired(Path pFile) {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(pFile).toMillis() > mLeaseMillis;
+        } catch (IOException ioe) {
+            // released meanwhile
+            return false;
+        }
+    }
+
+    private void refreshClaims() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path claimFile : mHeldClaimSet) {
+            try {
+                Files.setLastModifiedTime(claimFile, now);
+            } catch (IOException ioe) {
+                // released meanwhile
+            }
+        }
+    }
+
+    /**
+     * Retrieve the claim file of a document, named by digest of its relative path so nested document(s) with
+     * the same name don't collide.
+     */
+    private Path getClaimFile(Path pDocument, String pExtension) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(relativize(pDocument).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte value : digest) {
+                name.append(String.format("%02x", value));
+            }
+            return mClaimsDirectory.resolve(name.append(pExtension).toString());
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-1 is not available", nsae);
+        }
+    }
+
+    private String relativize(Path pDocument) {
+        return mRoot.relativize(pDocument.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+    }
+}
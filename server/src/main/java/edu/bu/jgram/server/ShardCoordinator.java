@@ -0,0 +1,419 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Represents the coordinator of sharded grading. Launches several local worker JVMs (each with a modest heap, see
+ * jgram.shard.workerOptions) on the same directory, waits for them, and merges their outcomes into one summary.
+ *
+ * <p>Workers may also be started by hand (eg. on other machines sharing the directory) by running this class with
+ * -Djgram.shard.index and -Djgram.shard.count, then merged with {@link #merge(Path)}. The secret is passed to
+ * workers through the JGRAM_SECRET environment variable, so it doesn't show up in the process list.</p>
+ */
+public final class ShardCoordinator {
+
+    private static final Logger LOGGER = Logger.getInstance();
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    static final String SECRET_ENVIRONMENT = "JGRAM_SECRET";
+
+    private static final String SUMMARY_FILE = "summary.csv";
+    private static final String GRADEBOOK_PREFIX = "gradebook-worker-";
+
+    private final int mWorkers;
+    private final boolean mClaim;
+    private final int mLeaseSeconds;
+    private final List<String> mWorkerOptionList;
+
+    /**
+     * @param pWorkers number of worker JVMs to launch
+     * @param pClaim when true document(s) are claimed dynamically, otherwise partitioned by hash
+     * @param pLeaseSeconds how long a claim stays valid without heartbeat
+     * @param pWorkerOptionList extra JVM options of each worker eg. -Xmx512m
+     */
+    public ShardCoordinator(int pWorkers, boolean pClaim, int pLeaseSeconds, List<String> pWorkerOptionList) {
+        mWorkers = pWorkers;
+        mClaim = pClaim;
+        mLeaseSeconds = pLeaseSeconds;
+        mWorkerOptionList = pWorkerOptionList;
+    }
+
+    /**
+     * Run a task over the directory with worker JVMs configured by {@link Settings}.
+     *
+     * @param pTask evaluate, tamper-test or new-document-test
+     * @param pSecret secret used to sign the result
+     * @param pDocumentStorePath absolute path to directory containing assignment document(s)
+     * @return {@link List} merged outcome of each document
+     * @throws IOException Throws if workers can't be launched or their outcomes can't be read
+     */
+    public static List<DocumentOutcome> run(String pTask, String pSecret, String pDocumentStorePath) throws IOException {
+        ShardCoordinator shardCoordinator = new ShardCoordinator(Settings.getShardCount(), Settings.isShardClaim(),
+                Settings.getShardLeaseSeconds(), Settings.getShardWorkerOptionList());
+        return shardCoordinator.execute(pTask, pSecret, pDocumentStorePath);
+    }
+
+    /**
+     * Launch the worker JVMs, wait for all of them, and merge their outcomes. Outcomes of a previous run on the
+     * directory are discarded first.
+     *
+     * @param pTask evaluate, tamper-test or new-document-test
+     * @param pSecret secret used to sign the result
+     * @param pDocumentStorePath absolute path to directory containing assignment document(s)
+     * @return {@link List} merged outcome of each document
+     * @throws IOException Throws if workers can't be launched or their outcomes can't be read
+     */
+    public List<DocumentOutcome> execute(String pTask, String pSecret, String pDocumentStorePath) throws IOException {
+        Path root = Paths.get(pDocumentStorePath).toAbsolutePath();
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException(String.format("%s is not a directory. Must provide a absolute path to directory", pDocumentStorePath));
+        }
+
+        reset(root);
+        await(start(pTask, pSecret, root));
+        if ("evaluate".equals(pTask)) {
+            mergeVerificationIndex(root);
+        }
+        return merge(root);
+    }
+
+    /**
+     * Merge the verification index of each worker into the configured one.
+     *
+     * @param pRoot directory shared by the workers
+     * @throws IOException Throws if an index can't be read or written
+     */
+    private void mergeVerificationIndex(Path pRoot) throws IOException {
+        File index = Settings.getVerificationIndex();
+        if (index == null) {
+            return;
+        }
+
+        try (VerificationIndex verificationIndex = VerificationIndex.open(index)) {
+            for (int workerIndex = 0; workerIndex < mWorkers; workerIndex++) {
+                try (VerificationIndex workerVerificationIndex = VerificationIndex.openReadOnly(getWorkerIndex(pRoot, workerIndex))) {
+                    if (workerVerificationIndex != null) {
+                        verificationIndex.addAll(workerVerificationIndex);
+                    }
+                }
+            }
+        }
+    }
+
+    private static File getWorkerIndex(Path pRoot, int pIndex) {
+        return pRoot.resolve(Shard.SHARD_DIRECTORY).resolve("verify-worker-" + pIndex + ".idx").toFile();
+    }
+
+    /**
+     * Discard claims and outcomes of a previous run on the directory.
+     *
+     * @param pRoot directory shared by the workers
+     * @throws IOException Throws if the shard directory can't be deleted
+     */
+    static void reset(Path pRoot) throws IOException {
+        Path shardDirectory = pRoot.resolve(Shard.SHARD_DIRECTORY);
+        delete(shardDirectory);
+        Files.createDirectories(shardDirectory);
+    }
+
+    /**
+     * Launch the worker JVMs.
+     *
+     * @param pTask evaluate, tamper-test or new-document-test
+     * @param pSecret secret used to sign the result
+     * @param pRoot directory shared by the workers
+     * @return {@link List} worker processes, by index
+     * @throws IOException Throws if a worker can't be launched
+     */
+    List<Process> start(String pTask, String pSecret, Path pRoot) throws IOException {
+        List<Process> processList = new ArrayList<>();
+        try {
+            for (int index = 0; index < mWorkers; index++) {
+                processList.add(createWorker(pTask, pSecret, pRoot, index).start());
+            }
+        } catch (IOException ioe) {
+            processList.forEach(Process::destroy);
+            throw ioe;
+        }
+        LOGGER.info(String.format("Started %d %s worker(s) on %s", mWorkers, mClaim ? "claiming" : "partitioned", pRoot));
+        return processList;
+    }
+
+    /**
+     * Wait for every worker to exit.
+     *
+     * @param pProcessList worker processes, by index
+     * @throws IOException Throws if interrupted while waiting, remaining workers are destroyed
+     */
+    void await(List<Process> pProcessList) throws IOException {
+        try {
+            for (int index = 0; index < pProcessList.size(); index++) {
+                int exitCode = pProcessList.get(index).waitFor();
+                if (exitCode != 0) {
+                    LOGGER.warn(String.format("Worker %d exited with %d%s", index, exitCode,
+                            mClaim ? "" : ", its document(s) may be missing from the summary"));
+                }
+            }
+        } catch (InterruptedException ie) {
+            pProcessList.forEach(Process::destroy);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", ie);
+        }
+    }
+
+    /**
+     * Merge the outcomes written by each worker into one summary, logged and written to .jgram-shard/summary.csv
+     *
+     * @param pRoot directory shared by the workers
+     * @return {@link List} outcome of each document, ordered by relative path
+     * @throws IOException Throws if outcomes can't be read or the summary can't be written
+     */
+    public static List<DocumentOutcome> merge(Path pRoot) throws IOException {
+        Path shardDirectory = pRoot.toAbsolutePath().resolve(Shard.SHARD_DIRECTORY);
+        Map<String, DocumentOutcome> outcomeMap = new TreeMap<>();
+
+        // Each worker creates the results directory as it starts, it is missing when every worker failed to start
+        Path resultsDirectory = shardDirectory.resolve(Shard.RESULTS_DIRECTORY);
+        if (!Files.isDirectory(resultsDirectory)) {
+            LOGGER.warn(String.format("No worker recorded an outcome in %s, the worker(s) failed before grading a document",
+                    shardDirectory));
+        } else {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(resultsDirectory, "*" + Shard.RESULTS_EXTENSION)) {
+                for (Path resultFile : directoryStream) {
+                    try (BufferedReader reader = Files.newBufferedReader(resultFile, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.isEmpty()) {
+                                continue;
+                            }
+                            // A worker killed mid-write leaves a partial last line, its document was reclaimed
+                            JsonNode record;
+                            try {
+                                record = JSON_MAPPER.readTree(line);
+                            } catch (IOException ioe) {
+                                LOGGER.warn(String.format("Skipping incomplete record in %s", resultFile.getFileName()));
+                                continue;
+                            }
+                            DocumentOutcome outcome = new DocumentOutcome(record.get("document").asText(),
+                                    record.get("status").asText(), record.get("checkpoints").asInt(),
+                                    record.get("overallGrade").isNull() ? null : (float) record.get("overallGrade").asDouble(),
+                                    record.get("message").isNull() ? null : record.get("message").asText());
+                            outcomeMap.put(outcome.getDocumentName(), outcome);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<DocumentOutcome> outcomeList = new ArrayList<>(outcomeMap.values());
+        Map<String, Integer> statusCountMap = new TreeMap<>();
+        for (DocumentOutcome outcome : outcomeList) {
+            statusCountMap.merge(outcome.getStatus(), 1, Integer::sum);
+        }
+
+        Path summaryFile = shardDirectory.resolve(SUMMARY_FILE);
+        try (BufferedWriter writer = Files.newBufferedWriter(summaryFile, StandardCharsets.UTF_8)) {
+            writer.write("document,status,checkpoints,overallGrade,message");
+            writer.newLine();
+            for (DocumentOutcome outcome : outcomeList) {
+                writer.write(String.join(",", escape(outcome.getDocumentName()), outcome.getStatus(),
+                        String.valueOf(outcome.getCheckpointCount()),
+                        outcome.getOverallGrade() == null ? "" : String.valueOf(outcome.getOverallGrade()),
+                        escape(outcome.getMessage())));
+                writer.newLine();
+            }
+        }
+
+        LOGGER.info(String.format("Merged %d document(s) %s : %s", outcomeList.size(), statusCountMap, summaryFile));
+
+        // Cohort statistics of graded document(s), written by evaluating workers
+        CohortStatistics cohortStatistics = null;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(shardDirectory, Shard.STATISTICS_PREFIX + "*.json")) {
+            for (Path statisticsFile : directoryStream) {
+                CohortStatistics workerStatistics = CohortStatistics.read(statisticsFile.toFile());
+                if (cohortStatistics == null) {
+                    cohortStatistics = workerStatistics;
+                } else {
+                    cohortStatistics.merge(workerStatistics);
+                }
+            }
+        }
+        if (cohortStatistics != null) {
+            cohortStatistics.printReport();
+        }
+
+        mergeGradebook(pRoot.toAbsolutePath());
+        return outcomeList;
+    }
+
+    /**
+     * Merge the gradebook of each evaluating worker into the configured one.
+     *
+     * @param pRoot directory shared by the workers
+     * @throws IOException Throws if a gradebook can't be read or written
+     */
+    private static void mergeGradebook(Path pRoot) throws IOException {
+        File gradebook = Settings.getGradebook();
+        if (gradebook == null) {
+            return;
+        }
+
+        String extension = gradebook.getName().substring(Math.max(0, gradebook.getName().lastIndexOf('.')));
+        List<File> workerGradebookList = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(pRoot.resolve(Shard.SHARD_DIRECTORY),
+                GRADEBOOK_PREFIX + "*" + extension)) {
+            for (Path workerGradebook : directoryStream) {
+                workerGradebookList.add(workerGradebook.toFile());
+            }
+        }
+        // Only evaluating workers write a gradebook
+        if (!workerGradebookList.isEmpty()) {
+            GradebookWriter.merge(workerGradebookList, gradebook);
+        }
+    }
+
+    /**
+     * Worker entry point, runs a task on this worker's shard of the directory.
+     *
+     * @param pArgs task (evaluate, tamper-test or new-document-test) and absolute path to directory
+     */
+    public static void main(String... pArgs) {
+        if (pArgs.length != 2) {
+            LOGGER.warn("Usage : ShardCoordinator <evaluate|tamper-test|new-document-test> <directory>");
+            System.exit(2);
+        }
+
+        String secret = System.getenv(SECRET_ENVIRONMENT);
+        try {
+            switch (pArgs[0]) {
+                case "evaluate":
+                    Task.runEvaluation(secret, pArgs[1]);
+                    break;
+                case "tamper-test":
+                    Task.runTamperTest(secret, pArgs[1]);
+                    break;
+                case "new-document-test":
+                    Task.runNewDocumentTest(pArgs[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown task " + pArgs[0]);
+            }
+        } catch (IllegalArgumentException iae) {
+            LOGGER.fatal("Exception occur", iae);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private ProcessBuilder createWorker(String pTask, String pSecret, Path pRoot, int pIndex) {
+        List<String> commandList = new ArrayList<>();
+        commandList.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        commandList.addAll(mWorkerOptionList);
+
+        // Forward JGRAM settings, except the ones describing this worker
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("jgram.") && !name.startsWith("jgram.shard.") && !name.equals(Settings.ALLOCATION_CSV)
+                    && !name.equals(Settings.GRADEBOOK) && !name.equals(Settings.LEDGER) && !name.equals(Settings.VERIFY_INDEX)) {
+                commandList.add(String.format("-D%s=%s", name, System.getProperty(name)));
+            }
+        }
+        commandList.add(String.format("-D%s=%d", Settings.SHARD_INDEX, pIndex));
+        commandList.add(String.format("-D%s=%d", Settings.SHARD_COUNT, mWorkers));
+        commandList.add(String.format("-D%s=%b", Settings.SHARD_CLAIM, mClaim));
+        commandList.add(String.format("-D%s=%d", Settings.SHARD_LEASE_SECONDS, mLeaseSeconds));
+        // Each worker reports its own allocation if enabled, instead of overwriting a shared report
+        if (Settings.getAllocationCsv() != null) {
+            File allocationCsv = pRoot.resolve(Shard.SHARD_DIRECTORY).resolve("allocation-worker-" + pIndex + ".csv").toFile();
+            commandList.add(String.format("-D%s=%s", Settings.ALLOCATION_CSV, allocationCsv));
+        }
+        // Likewise each worker writes its own gradebook, in the configured format
+        File gradebook = Settings.getGradebook();
+        if (gradebook == null) {
+            commandList.add(String.format("-D%s=none", Settings.GRADEBOOK));
+        } else {
+            String extension = gradebook.getName().substring(Math.max(0, gradebook.getName().lastIndexOf('.')));
+            File workerGradebook = pRoot.resolve(Shard.SHARD_DIRECTORY).resolve(GRADEBOOK_PREFIX + pIndex + extension).toFile();
+            commandList.add(String.format("-D%s=%s", Settings.GRADEBOOK, workerGradebook));
+        }
+
+        // An append-only ledger has a single writer, so each worker appends to its own next to the configured one.
+        // Unlike the shard directory, ledgers are kept across runs until embedded.
+        File ledger = Settings.getLedger();
+        if (ledger != null) {
+            String name = ledger.getName();
+            int extensionIndex = name.lastIndexOf('.') > 0 ? name.lastIndexOf('.') : name.length();
+            File workerLedger = new File(ledger.getAbsoluteFile().getParentFile(),
+                    name.substring(0, extensionIndex) + "-worker-" + pIndex + name.substring(extensionIndex));
+            commandList.add(String.format("-D%s=%s", Settings.LEDGER, workerLedger));
+        }
+
+        // Evaluating workers record their documents in their own index, merged into the configured one afterwards
+        File index = Settings.getVerificationIndex();
+        if (index == null) {
+            commandList.add(String.format("-D%s=none", Settings.VERIFY_INDEX));
+        } else if ("evaluate".equals(pTask)) {
+            commandList.add(String.format("-D%s=%s", Settings.VERIFY_INDEX, getWorkerIndex(pRoot, pIndex)));
+        } else {
+            commandList.add(String.format("-D%s=%s", Settings.VERIFY_INDEX, index.getAbsolutePath()));
+        }
+
+        commandList.add("-cp");
+        commandList.add(System.getProperty("java.class.path"));
+        commandList.add(ShardCoordinator.class.getName());
+        commandList.add(pTask);
+        commandList.add(pRoot.toString());
+
+        ProcessBuilder processBuilder = new ProcessBuilder(commandList).inheritIO();
+        if (pSecret != null) {
+            processBuilder.environment().put(SECRET_ENVIRONMENT, pSecret);
+        }
+        return processBuilder;
+    }
+
+    private static String escape(String pValue) {
+        if (pValue == null) {
+            return "";
+        }
+        if (pValue.contains(",") || pValue.contains("\"") || pValue.contains("\n")) {
+            return "\"" + pValue.replace("\"", "\"\"") + "\"";
+        }
+        return pValue;
+    }
+
+    private static void delete(Path pDirectory) throws IOException {
+        if (!Files.exists(pDirectory)) {
+            return;
+        }
+        Files.walkFileTree(pDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttributes) throws IOException {
+                Files.delete(pFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path pPath, IOException pException) throws IOException {
+                Files.delete(pPath);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -1,12 +1,30 @@
 package edu.bu.jgram.server;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import edu.bu.jgram.server.assessment.*;
 import edu.bu.jgram.server.security.JWT;
+import edu.bu.jgram.server.security.MisKeyedTokenException;
+import edu.bu.jgram.server.security.TamperedTokenException;
 
 public final class Task {
 
@@ -16,92 +34,533 @@ public final class Task {
     private static final String INVALID_STATUS = "IN-VALID";
     private static final String UNDERMINED_STATUS = "UNDETERMINED";
     private static final String TAMPERED_STATUS = "TAMPERED";
+    private static final String MIS_KEYED_STATUS = "MIS-KEYED";
+    private static final String RUBRIC_CHANGED_STATUS = "RUBRIC-CHANGED";
+    private static final String SKIPPED_STATUS = "SKIPPED";
+    private static final String REJECTED_STATUS = "REJECTED";
+
+    // Maximum grade of a checkpoint in assignment documents
+    private static final int MAX_GRADE = 100;
+
+    // Marks the end of the scan in the document queue
+    private static final ScannedDocument END_OF_SCAN = new ScannedDocument(-1, null);
 
     public static void evaluationTask(String secret, String documentStorePath) throws IllegalArgumentException {
+        runEvaluation(secret, documentStorePath);
+        File ledger = Settings.getLedger();
+        if (ledger == null) {
+            LOGGER.info("Document with SUCCESS status are appended with graded result ");
+        } else {
+            LOGGER.info(String.format("Document with SUCCESS status are recorded in ledger %s, embed them with the embed task ", ledger));
+        }
+    }
+
+    public static void tamperTestTask(String secret, String documentStorePath) {
+        runTamperTest(secret, documentStorePath);
+    }
+
+    public static void newDocumentTestTask(String documentStorePath) {
+        runNewDocumentTest(documentStorePath);
+    }
+
+    public static void resignTask(String pOldSecret, String pNewSecret, String documentStorePath) {
+        runResign(pOldSecret, pNewSecret, documentStorePath);
+    }
+
+    public static void preflightTask(String documentStorePath) {
+        runPreflight(documentStorePath);
+    }
+
+    /**
+     * Grade each *.docx document of the provided directory (or the provided document or archive itself).
+     *
+     * @param secret secret used to sign the result
+     * @param documentStorePath absolute path to a directory, a *.docx document or a *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    static List<DocumentOutcome> runEvaluation(String secret, String documentStorePath) throws IllegalArgumentException {
         //PreCondition 1: Read all the *.docx file from the provided directory.
         //PreCondition 2: Grade each document.
+        GradebookWriter gradebookWriter = openGradebook();
+        CohortStatistics cohortStatistics = new CohortStatistics(MAX_GRADE);
+        List<OutcomeListener> listenerList = new ArrayList<>();
+        listenerList.add(cohortStatistics);
+        if (gradebookWriter != null) {
+            listenerList.add(gradebookWriter);
+        }
 
-        File folder = new File(documentStorePath);
-        if(!folder.isDirectory()) {
-            throw new IllegalArgumentException(String.format("%s is not a directory. Must provide a absolute path to directory", documentStorePath));
+        List<DocumentOutcome> outcomeList = null;
+        IllegalArgumentException failure = null;
+        ResultLedger ledger = null;
+        VerificationIndex index = null;
+        // Feedback is shared within this run only
+        FeedbackInterner feedbackInterner = FeedbackInterner.getInstance();
+        feedbackInterner.startRun();
+        String feedbackSummary;
+        try {
+            if (DocumentArchive.isArchive(documentStorePath)) {
+                if (Settings.getLedger() != null) {
+                    LOGGER.warn("Ledger mode doesn't apply to archives, writing graded archive instead");
+                }
+                outcomeList = DocumentArchive.runEvaluation(secret, documentStorePath, listenerList);
+            } else if (Settings.getLedger() == null && GradingPipeline.isApplicable(documentStorePath)) {
+                // Disk and CPU work of the documents overlap, in stages
+                index = openVerificationIndex();
+                outcomeList = new GradingPipeline(secret, index, listenerList).run(documentStorePath);
+            } else {
+                ledger = openLedger();
+                // Documents are left unchanged in ledger mode, there is nothing to index yet
+                index = ledger == null ? openVerificationIndex() : null;
+                ResultLedger resultLedger = ledger;
+                VerificationIndex verificationIndex = index;
+                outcomeList = processDocuments(documentStorePath, document -> resultLedger == null
+                        ? indexDocument(document, gradeDocument(document, secret), secret, verificationIndex)
+                        : recordDocument(document, secret, resultLedger), listenerList);
+            }
+        } catch (IllegalArgumentException iae) {
+            // eg. allocation budget exceeded once every document is graded, which is still reported
+            failure = iae;
+        } finally {
+            feedbackSummary = feedbackInterner.finishRun();
+            closeGradebook(gradebookWriter);
+            closeLedger(ledger);
+            closeVerificationIndex(index);
+        }
+
+        cohortStatistics.printReport();
+        LOGGER.info(feedbackSummary);
+        Shard.writeStatistics(documentStorePath, cohortStatistics);
+        if (failure != null) {
+            throw failure;
+        }
+        return outcomeList;
+    }
+
+    /**
+     * Tamper test each *.docx document of the provided directory (or the provided document or archive itself).
+     *
+     * @param secret secret used to sign the result
+     * @param documentStorePath absolute path to a directory, a *.docx document or a *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    static List<DocumentOutcome> runTamperTest(String secret, String documentStorePath) throws IllegalArgumentException {
+        if (DocumentArchive.isArchive(documentStorePath)) {
+            return DocumentArchive.runTamperTest(secret, documentStorePath);
         }
 
-        FileFilter docxFilter = pathname -> {
-            // We only want to process *.docx files, everything else can be skipped.
-            if (pathname.isFile() && pathname.getName().matches(".*\\.docx")) {
-                return true;
+        VerificationIndex index = openVerificationIndexForLookup();
+        try {
+            List<DocumentOutcome> outcomeList = processDocuments(documentStorePath,
+                    document -> tamperTestDocument(document, secret, index), Collections.emptyList());
+            if (index != null) {
+                LOGGER.info(String.format("Verification index %s : %d of %d document(s) verified without parsing",
+                        index.getFile(), index.getVerifiedCount(), outcomeList.size()));
             }
+            return outcomeList;
+        } finally {
+            closeVerificationIndex(index);
+        }
+    }
 
-            return false;
-        };
+    /**
+     * Re-sign the result of each graded *.docx document of the provided directory (or the provided document) with a
+     * new secret, without evaluating it again. A document is only re-signed once its token verifies with the old
+     * secret (or the key ring), the others are reported and left unchanged.
+     *
+     * @param pOldSecret secret the documents were graded with
+     * @param pNewSecret secret replacing it
+     * @param documentStorePath absolute path to a directory or a *.docx document
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    static List<DocumentOutcome> runResign(String pOldSecret, String pNewSecret, String documentStorePath) throws IllegalArgumentException {
+        if (DocumentArchive.isArchive(documentStorePath)) {
+            throw new IllegalArgumentException(String.format("%s is an archive, extract it to re-sign its documents", documentStorePath));
+        }
 
-        File[] documentList = folder.listFiles(docxFilter);
-        if(documentList.length == 0) {
-            throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", documentStorePath));
+        VerificationIndex index = openVerificationIndex();
+        List<DocumentOutcome> outcomeList;
+        try {
+            outcomeList = processDocuments(documentStorePath,
+                    document -> indexDocument(document, resignDocument(document, pOldSecret, pNewSecret), pNewSecret, index),
+                    Collections.emptyList());
+        } finally {
+            closeVerificationIndex(index);
         }
 
-        for (File document : documentList)
-        {
-            gradeDocument(document, secret);
+        List<String> unverifiedList = new ArrayList<>();
+        for (DocumentOutcome outcome : outcomeList) {
+            String status = outcome.getStatus();
+            if (UNDERMINED_STATUS.equals(status) || TAMPERED_STATUS.equals(status) || MIS_KEYED_STATUS.equals(status)) {
+                unverifiedList.add(String.format("%s (%s)", outcome.getDocumentName(), status));
+            }
         }
+        if (unverifiedList.isEmpty()) {
+            LOGGER.info("Every graded document with a verified token is re-signed");
+        } else {
+            LOGGER.warn(String.format("%d document(s) left unchanged, their token failed verification : %s",
+                    unverifiedList.size(), String.join(", ", unverifiedList)));
+        }
+        return outcomeList;
+    }
 
-        LOGGER.info("Document with SUCCESS status are appended with graded result ");
+    /**
+     * Test each *.docx document of the provided directory (or the provided document or archive itself) is not graded yet.
+     *
+     * @param documentStorePath absolute path to a directory, a *.docx document or a *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    static List<DocumentOutcome> runNewDocumentTest(String documentStorePath) throws IllegalArgumentException {
+        //PreCondition 1: Read all the *.docx file from the provided directory.
+        //PreCondition 2: Test each document.
+        if (DocumentArchive.isArchive(documentStorePath)) {
+            return DocumentArchive.runNewDocumentTest(documentStorePath);
+        }
+
+        return processDocuments(documentStorePath, document -> newDocumentTest(document), Collections.emptyList());
     }
 
-    public static void tamperTestTask(String secret, String documentStorePath) {
-        File folder = new File(documentStorePath);
-        if(!folder.isDirectory()) {
+    /**
+     * Preflight check each *.docx document of the provided directory (or the provided document or archive itself),
+     * from its zip central directory and content types alone. No document is parsed or written.
+     *
+     * @param documentStorePath absolute path to a directory, a *.docx document or a *.zip archive
+     * @return {@link List} outcome of each document
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    static List<DocumentOutcome> runPreflight(String documentStorePath) throws IllegalArgumentException {
+        List<DocumentOutcome> outcomeList = DocumentArchive.isArchive(documentStorePath)
+                ? DocumentArchive.runPreflight(documentStorePath)
+                : processDocuments(documentStorePath, document -> preflightDocument(document), Collections.emptyList());
+
+        long rejectedCount = outcomeList.stream().filter(outcome -> REJECTED_STATUS.equals(outcome.getStatus())).count();
+        if (rejectedCount == 0) {
+            LOGGER.info(String.format("Every document passed preflight (%d document(s))", outcomeList.size()));
+        } else {
+            LOGGER.warn(String.format("%d of %d document(s) rejected by preflight", rejectedCount, outcomeList.size()));
+        }
+        return outcomeList;
+    }
+
+    /**
+     * Process the *.docx document(s) of a directory, or a single *.docx document. Document(s) are scanned by
+     * {@link DocumentScanner} and handed to worker threads as soon as they are discovered. In shard mode only the
+     * document(s) of this worker process's {@link Shard} are processed.
+     *
+     * @param documentStorePath absolute path to a directory or a *.docx document
+     * @param pAction flow of activities on a single document
+     * @param pListenerList stages receiving the outcome of each document, as it is produced
+     * @return {@link List} outcome of each document, in completion order
+     * @throws IllegalArgumentException Throws if the path is neither a directory nor a document, or contains 0 documents
+     */
+    private static List<DocumentOutcome> processDocuments(String documentStorePath, Function<File, DocumentOutcome> pAction,
+                                                          List<OutcomeListener> pListenerList) throws IllegalArgumentException {
+        DocumentScanner documentScanner = DocumentScanner.fromSettings();
+        Path documentStore = Paths.get(documentStorePath);
+        AllocationMonitor allocationMonitor = new AllocationMonitor(Settings.getAllocationBudget());
+        List<DocumentOutcome> outcomeList = Collections.synchronizedList(new ArrayList<>());
+
+        if (documentScanner.isDocument(documentStore)) {
+            DocumentOutcome outcome = processDocument(documentStore.toFile(), pAction, allocationMonitor, null);
+            outcomeList.add(outcome);
+            notifyListeners(pListenerList, 0, outcome);
+            reportAllocation(allocationMonitor);
+            return outcomeList;
+        }
+
+        if (!Files.isDirectory(documentStore)) {
             throw new IllegalArgumentException(String.format("%s is not a directory. Must provide a absolute path to directory", documentStorePath));
         }
 
-        FileFilter docxFilter = pathname -> {
-            // We only want to process *.docx files, everything else can be skipped.
-            if (pathname.isFile() && pathname.getName().matches(".*\\.docx")) {
-                return true;
-            }
+        Shard shard;
+        try {
+            shard = Shard.fromSettings(documentStore);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to prepare shard of %s : %s", documentStorePath, ioe.getMessage()));
+        }
+
+        // Workers only bump its counters, progress is rendered on its own thread
+        ProgressReporter progressReporter = ProgressReporter.fromSettings();
 
-            return false;
+        Consumer<ScannedDocument> documentHandler = document -> {
+            if (shard == null || shard.claim(document.mPath)) {
+                DocumentOutcome outcome = processDocument(document.mPath.toFile(), pAction, allocationMonitor, progressReporter);
+                outcomeList.add(outcome);
+                if (shard != null) {
+                    shard.complete(document.mPath, outcome);
+                }
+                notifyListeners(pListenerList, document.mSequence, outcome);
+            } else {
+                notifyListeners(pListenerList, document.mSequence, null);
+            }
         };
 
-        File[] documentList = folder.listFiles(docxFilter);
-        if(documentList.length == 0) {
+        // Bounded queue, so a fast scan of a huge directory waits for workers instead of filling memory
+        int threads = Settings.getThreads();
+        BlockingQueue<ScannedDocument> documentQueue = new ArrayBlockingQueue<>(threads * 4);
+        ExecutorService workerPool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workerPool.execute(() -> {
+                try {
+                    ScannedDocument document;
+                    while ((document = documentQueue.take()) != END_OF_SCAN) {
+                        documentHandler.accept(document);
+                    }
+                    // Let the other workers know as well
+                    documentQueue.put(END_OF_SCAN);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        // Sequence of each queued document in discovery order, so output is ordered the same on every run
+        long[] sequence = {0};
+        long documentCount;
+        try {
+            documentCount = documentScanner.scan(documentStore, document -> {
+                if (shard != null && !shard.isAssigned(document)) {
+                    return;
+                }
+                if (progressReporter != null) {
+                    progressReporter.discovered();
+                }
+                try {
+                    documentQueue.put(new ScannedDocument(sequence[0]++, document));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while scanning " + documentStorePath);
+                }
+            });
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to scan %s : %s", documentStorePath, ioe.getMessage()));
+        } finally {
+            if (progressReporter != null) {
+                progressReporter.scanComplete();
+            }
+            try {
+                // Blocks while the queue is full, workers are still draining it
+                documentQueue.put(END_OF_SCAN);
+            } catch (InterruptedException ie) {
+                workerPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            workerPool.shutdown();
+            awaitTermination(workerPool);
+            if (shard != null) {
+                closeShard(shard, document -> documentHandler.accept(new ScannedDocument(sequence[0]++, document)));
+            }
+            if (progressReporter != null) {
+                progressReporter.close();
+            }
+        }
+
+        if (documentCount == 0) {
             throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", documentStorePath));
         }
 
-        for (File document : documentList)
-        {
-            tamperTestDocument(document, secret);
+        reportAllocation(allocationMonitor);
+        return outcomeList;
+    }
+
+    /**
+     * Process a single document with allocation accounting and progress reporting. Unexpected failures are reported
+     * as outcome, so one bad document doesn't stop a worker.
+     *
+     * @param pProgressReporter progress of the run, null when off
+     */
+    private static DocumentOutcome processDocument(File pDocument, Function<File, DocumentOutcome> pAction,
+                                                   AllocationMonitor pAllocationMonitor, ProgressReporter pProgressReporter) {
+        // A document rewritten with its result changes size and modification time
+        long length = pDocument.length();
+        long lastModified = pDocument.lastModified();
+        if (pProgressReporter != null) {
+            pProgressReporter.started(length);
         }
 
+        AllocationMonitor.Sample sample = pAllocationMonitor.start(pDocument.getName());
+        DocumentOutcome outcome;
+        try {
+            outcome = pAction.apply(pDocument);
+        } catch (RuntimeException re) {
+            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "FAILURE"));
+            LOGGER.error("Unexpected failure", re);
+            outcome = new DocumentOutcome(pDocument.getName(), "FAILURE", 0, null, String.valueOf(re.getMessage()));
+        }
+        pAllocationMonitor.stop(sample, outcome.getCheckpointCount(), outcome.getStatus());
+
+        if (pProgressReporter != null) {
+            boolean written = pDocument.lastModified() != lastModified || pDocument.length() != length;
+            pProgressReporter.finished("FAILURE".equals(outcome.getStatus()) || UNDERMINED_STATUS.equals(outcome.getStatus())
+                            || MIS_KEYED_STATUS.equals(outcome.getStatus()) || REJECTED_STATUS.equals(outcome.getStatus()),
+                    written ? pDocument.length() : 0);
+        }
+        return outcome;
     }
 
-    public static void newDocumentTestTask(String documentStorePath) {
-        //PreCondition 1: Read all the *.docx file from the provided directory.
-        //PreCondition 2: Test each document.
-        File folder = new File(documentStorePath);
-        if(!folder.isDirectory()) {
-            throw new IllegalArgumentException(String.format("%s is not a directory. Must provide a absolute path to directory", documentStorePath));
+    /**
+     * Process document(s) abandoned by crashed shard workers, then release the shard.
+     */
+    private static void closeShard(Shard pShard, Consumer<Path> pDocumentHandler) {
+        try {
+            pShard.awaitAbandoned(pDocumentHandler);
+        } finally {
+            try {
+                pShard.close();
+            } catch (IOException ioe) {
+                LOGGER.error("Unable to close shard", ioe);
+            }
+        }
+    }
+
+    /**
+     * Open the gradebook of an evaluation, see {@link Settings#getGradebook()}.
+     *
+     * @return {@link GradebookWriter} null when disabled or the file can't be created
+     */
+    private static GradebookWriter openGradebook() {
+        File gradebook = Settings.getGradebook();
+        if (gradebook == null) {
+            return null;
         }
 
-        FileFilter docxFilter = pathname -> {
-            // We only want to process *.docx files, everything else can be skipped.
-            if (pathname.isFile() && pathname.getName().matches(".*\\.docx")) {
-                return true;
+        try {
+            return GradebookWriter.open(gradebook);
+        } catch (IOException ioe) {
+            LOGGER.error(String.format("Unable to create gradebook %s", gradebook), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Feed the outcome of a document to each stage. A stage failure doesn't fail the document, grades are
+     * still appended to the document itself.
+     *
+     * @param pListenerList stages receiving the outcome
+     * @param pSequence discovery sequence of the document
+     * @param pOutcome outcome of the document, null when the document was not processed by this worker
+     */
+    static void notifyListeners(List<OutcomeListener> pListenerList, long pSequence, DocumentOutcome pOutcome) {
+        for (OutcomeListener listener : pListenerList) {
+            try {
+                if (pOutcome == null) {
+                    listener.onSkipped(pSequence);
+                } else {
+                    listener.onOutcome(pSequence, pOutcome);
+                }
+            } catch (IOException ioe) {
+                LOGGER.error(String.format("Unable to record outcome in %s", listener.getClass().getSimpleName()), ioe);
             }
+        }
+    }
 
-            return false;
-        };
+    /**
+     * Open the results ledger of an evaluation, see {@link Settings#getLedger()}.
+     *
+     * @return {@link ResultLedger} null when documents are updated instead
+     * @throws IllegalArgumentException Throws if the ledger can't be opened, rather than updating documents unasked
+     */
+    private static ResultLedger openLedger() throws IllegalArgumentException {
+        File ledger = Settings.getLedger();
+        if (ledger == null) {
+            return null;
+        }
 
-        File[] documentList = folder.listFiles(docxFilter);
-        if(documentList.length == 0) {
-            throw new IllegalArgumentException(String.format("%s contains 0 documents to process.", documentStorePath));
+        try {
+            return ResultLedger.open(ledger);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(String.format("Unable to open ledger %s : %s", ledger, ioe.getMessage()));
+        }
+    }
+
+    private static void closeLedger(ResultLedger pLedger) {
+        if (pLedger == null) {
+            return;
+        }
+
+        try {
+            pLedger.close();
+        } catch (IOException ioe) {
+            LOGGER.error("Unable to close ledger", ioe);
+        }
+    }
+
+    /**
+     * Open the verification index an evaluation records graded documents in, see
+     * {@link Settings#getVerificationIndex()}.
+     *
+     * @return {@link VerificationIndex} null when disabled or the index can't be opened
+     */
+    private static VerificationIndex openVerificationIndex() {
+        File index = Settings.getVerificationIndex();
+        if (index == null) {
+            return null;
+        }
+
+        try {
+            return VerificationIndex.open(index);
+        } catch (IOException ioe) {
+            LOGGER.error(String.format("Unable to open verification index %s", index), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Open the verification index a tamper test verifies untouched documents against.
+     *
+     * @return {@link VerificationIndex} null when disabled, missing or unreadable i.e. every document is parsed
+     */
+    private static VerificationIndex openVerificationIndexForLookup() {
+        File index = Settings.getVerificationIndex();
+        if (index == null) {
+            return null;
+        }
+
+        try {
+            return VerificationIndex.openReadOnly(index);
+        } catch (IOException ioe) {
+            LOGGER.warn(String.format("Unable to read verification index %s, verifying every document by parsing it : %s",
+                    index, ioe.getMessage()));
+            return null;
+        }
+    }
+
+    private static void closeVerificationIndex(VerificationIndex pIndex) {
+        if (pIndex == null) {
+            return;
         }
 
-        for (File document : documentList)
-        {
-            newDocumentTest(document);
+        try {
+            pIndex.close();
+        } catch (IOException ioe) {
+            LOGGER.error("Unable to close verification index", ioe);
         }
+    }
 
+    private static void closeGradebook(GradebookWriter pGradebookWriter) {
+        if (pGradebookWriter == null) {
+            return;
+        }
+
+        try {
+            pGradebookWriter.close();
+        } catch (IOException ioe) {
+            LOGGER.error("Unable to close gradebook", ioe);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService pExecutorService) {
+        try {
+            while (!pExecutorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting, documents are still being processed
+            }
+        } catch (InterruptedException ie) {
+            pExecutorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -110,90 +569,266 @@ public final class Task {
      * and appending the final grade.
      *
      * @param pDocument document for grading
+     * @return {@link DocumentOutcome}
+     */
+    private static DocumentOutcome gradeDocument(File pDocument, String secret) {
+        return gradeDocument(pDocument, secret, false);
+    }
+
+    /**
+     * Main flow of activities on a document for grading.
+     *
+     * @param pDocument document for grading
+     * @param pSkipGraded when true, a document which already contains the overall grade table is reported as
+     *                    SKIPPED instead of FAILURE
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome gradeDocument(File pDocument, String secret, boolean pSkipGraded) {
+        Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
+                1, 10, 1, 100);
+        return gradeDocument(pDocument.getName(), assignmentDocument, secret, pSkipGraded, null);
+    }
+
+    /**
+     * Main flow of activities on a document for grading.
+     *
+     * @param pDocumentName name of the document, used in messages
+     * @param assignmentDocument document for grading
+     * @param pSkipGraded when true, a document which already contains the overall grade table is reported as
+     *                    SKIPPED instead of FAILURE
+     * @param pOutputStream stream receiving the graded document, null to overwrite the document file
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome gradeDocument(String pDocumentName, Document assignmentDocument, String secret,
+                                         boolean pSkipGraded, OutputStream pOutputStream) {
+        return gradeDocument(pDocumentName, assignmentDocument, pSkipGraded, result -> {
+            if (pOutputStream == null) {
+                assignmentDocument.appendResult(result, secret);
+            } else {
+                assignmentDocument.appendResult(result, secret, pOutputStream);
+            }
+        });
+    }
+
+    /**
+     * Record a successfully graded document in the verification index. A document which can't be recorded is still
+     * graded, a later tamper test parses it.
+     *
+     * @param pDocument graded document
+     * @param pOutcome outcome of grading the document
+     * @param pIndex verification index, null when disabled
+     * @return {@link DocumentOutcome} the outcome, unchanged
+     */
+    static DocumentOutcome indexDocument(File pDocument, DocumentOutcome pOutcome, String secret, VerificationIndex pIndex) {
+        if (pIndex != null && pOutcome.getResult() != null && "SUCCESS".equals(pOutcome.getStatus())) {
+            try {
+                pIndex.add(pDocument, pOutcome.getResult(), secret);
+            } catch (IOException ioe) {
+                LOGGER.warn(String.format("Document [%s] : not recorded in verification index : %s", pDocument.getName(), ioe.getMessage()));
+            }
+        }
+        return pOutcome;
+    }
+
+    /**
+     * Main flow of activities on a document for grading in ledger mode. The signed result is appended to the ledger,
+     * and the document is left unchanged. A document already recorded with the same content is SKIPPED.
+     *
+     * @param pDocument document for grading
+     * @param pLedger ledger receiving the result
+     * @return {@link DocumentOutcome}
      */
-    private static void gradeDocument(File pDocument, String secret) {
+    private static DocumentOutcome recordDocument(File pDocument, String secret, ResultLedger pLedger) {
+        byte[] content;
         try {
-            Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
-                    1, 10, 1, 100);
+            content = Files.readAllBytes(pDocument.toPath());
+        } catch (IOException ioe) {
+            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "FAILURE"));
+            LOGGER.fatal("Exception occur", ioe);
+            return new DocumentOutcome(pDocument.getName(), "FAILURE", 0, null, ioe.getMessage());
+        }
 
-            // Index contents of assignment document
-            assignmentDocument.index();
+        String documentPath = pDocument.getAbsolutePath();
+        String digest = ResultLedger.digest(content);
+        if (pLedger.isRecorded(documentPath, digest)) {
+            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), SKIPPED_STATUS));
+            return new DocumentOutcome(pDocument.getName(), SKIPPED_STATUS, 0);
+        }
+
+        // Graded from the content already read, so the recorded digest is the digest of what was graded
+        Document assignmentDocument = new Document(pDocument.getName(), content, 1, 10, 1, 100);
+        return gradeDocument(pDocument.getName(), assignmentDocument, false,
+                result -> pLedger.append(documentPath, digest, result, secret));
+    }
+
+    /**
+     * Main flow of activities on a document for grading.
+     *
+     * @param pDocumentName name of the document, used in messages
+     * @param assignmentDocument document for grading
+     * @param pSkipGraded when true, a document which already contains the overall grade table is reported as
+     *                    SKIPPED instead of FAILURE
+     * @param pResultWriter destination of the evaluated result
+     * @return {@link DocumentOutcome}
+     */
+    private static DocumentOutcome gradeDocument(String pDocumentName, Document assignmentDocument, boolean pSkipGraded,
+                                                 ResultWriter pResultWriter) {
+        String status = "FAILURE";
+        int checkpointCount = 0;
+        Float overallGrade = null;
+        String message = null;
+        Result result = null;
+        try {
+            // A graded document is skipped from its result table alone, its checkpoint(s) are only counted
+            if (pSkipGraded && assignmentDocument.hasResult()) {
+                checkpointCount = assignmentDocument.getCheckpointCount();
+                LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, SKIPPED_STATUS));
+                return new DocumentOutcome(pDocumentName, SKIPPED_STATUS, checkpointCount);
+            }
 
             // Search and get all checkpoints
             List<Checkpoint> checkpointList = assignmentDocument.getCheckpoint();
+            checkpointCount = checkpointList.size();
 
-            // Evaluate the final grades
-            Evaluator assignmentEvaluator = new JustInTimeEvaluator(checkpointList);
-            Result result = assignmentEvaluator.evaluate();
-            assignmentDocument.appendResult(result, secret);
-            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "SUCCESS"));
+            // Evaluate the final grades, as the document's rubric prescribes if any
+            Evaluator assignmentEvaluator = assignmentDocument.createEvaluator();
+            result = assignmentEvaluator.evaluate();
+            pResultWriter.write(result);
+            status = "SUCCESS";
+            overallGrade = result.getOverallGrade();
+            LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, "SUCCESS"));
 
         } catch (IOException ioe) {
-            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "FAILURE"));
+            message = ioe.getMessage();
+            LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, "FAILURE"));
             LOGGER.fatal("Exception occur", ioe);
         } catch (InvalidGrammarException ige) {
-            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "FAILURE"));
+            message = ige.getMessage();
+            LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, "FAILURE"));
             LOGGER.fatal("Fix the grammar and try again.", ige);
         } catch (InvalidValueException ive) {
-            LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), "FAILURE"));
+            message = ive.getMessage();
+            LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, "FAILURE"));
             LOGGER.fatal("Fix the value and try again.", ive);
         }
         System.out.print("\n");
+        return new DocumentOutcome(pDocumentName, status, checkpointCount, overallGrade, message, result);
     }
 
     /**
-     * Main flow of activities on a document for tamper test.
+     * Main flow of activities on a document for tamper test. A document found unchanged in the verification index
+     * is VALID without parsing it.
      *
      * @param pDocument document for tamper test
+     * @param pIndex verification index, null to parse every document
+     * @return {@link DocumentOutcome}
      */
-    private static void tamperTestDocument(File pDocument, String pSecret) {
-
-        String checkpointsTamperedStatus = VALID_STATUS;
-        String resultTableTamperedStatus = VALID_STATUS;
+    private static DocumentOutcome tamperTestDocument(File pDocument, String pSecret, VerificationIndex pIndex) {
+        // Untouched since graded, no need to parse the document
+        DocumentOutcome indexedOutcome = pIndex == null ? null : pIndex.verify(pDocument, pSecret);
+        if (indexedOutcome != null) {
+            LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s  (verification index)",
+                    pDocument.getName(), VALID_STATUS, VALID_STATUS, VALID_STATUS));
+            return indexedOutcome;
+        }
 
         Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
                 1, 10, 1, 100);
+        return tamperTestDocument(pDocument.getName(), assignmentDocument, pSecret);
+    }
+
+    /**
+     * Main flow of activities on a document for tamper test.
+     *
+     * @param pDocumentName name of the document, used in messages
+     * @param assignmentDocument document for tamper test
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome tamperTestDocument(String pDocumentName, Document assignmentDocument, String pSecret) {
+
+        String checkpointsTamperedStatus = VALID_STATUS;
+        String resultTableTamperedStatus = VALID_STATUS;
 
         Result calculatedResult = null;
         Result signedResult = null;
+        String message = null;
 
         try {
             // Calculate Result based on checkpoint(s)
-            assignmentDocument.index();
-            List<Checkpoint> checkpointList = assignmentDocument.getCheckpoint();
-            Evaluator assignmentEvaluator = new JustInTimeEvaluator(checkpointList);
+            Evaluator assignmentEvaluator = assignmentDocument.createEvaluator();
             calculatedResult = assignmentEvaluator.evaluate();
 
         } catch (IOException ioe) {
             checkpointsTamperedStatus = UNDERMINED_STATUS;
+            message = ioe.getMessage();
             //LOGGER.fatal("Exception occur", ioe);
         } catch (InvalidGrammarException ige) {
             checkpointsTamperedStatus = TAMPERED_STATUS;
+            message = ige.getMessage();
             //LOGGER.fatal("Tampered the checkpoint.", ige);
         } catch (InvalidValueException ive) {
             checkpointsTamperedStatus = TAMPERED_STATUS;
+            message = ive.getMessage();
             //LOGGER.fatal("Tampered the checkpoint.", ive);
         }
 
 
         try {
-            // TODO: Retrieve previously Printed Result
-
             // Retrieve Hashed Result
             String hashedToken = assignmentDocument.getHashString();
-            JWT jwt = new JWT(pSecret);
+            if (hashedToken == null) {
+                throw new SecurityException("Document has no JGRAM Overall Grade table");
+            }
+            JWT jwt = JWT.getInstance(pSecret);
             signedResult = jwt.decodeJWT(hashedToken);
 
-            // Verify if the checkpoint(s) are Tampered
-            if (!signedResult.equals(calculatedResult)) {
+            // Verify if the checkpoint(s) are Tampered. Signed checkpoint(s) evaluated with another rubric are not.
+            if (signedResult.hasSameCheckpoints(calculatedResult)
+                    && !Objects.equals(signedResult.getRubricDigest(), calculatedResult.getRubricDigest())) {
+                checkpointsTamperedStatus = RUBRIC_CHANGED_STATUS;
+                if (message == null) {
+                    message = "Rubric changed since the document was graded";
+                }
+            } else if (!signedResult.equals(calculatedResult)) {
                 checkpointsTamperedStatus = TAMPERED_STATUS;
             }
+
+            // Verify if the printed Result Table is Tampered, from the same read as the token
+            List<String> resultTableDiffList = assignmentDocument.getResultTableDiff(signedResult);
+            if (!resultTableDiffList.isEmpty()) {
+                resultTableTamperedStatus = TAMPERED_STATUS;
+                if (message == null) {
+                    message = "Result table edited : " + String.join(" ; ", resultTableDiffList);
+                }
+            }
+            LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s",
+                    pDocumentName, checkpointsTamperedStatus, resultTableTamperedStatus, VALID_STATUS));
+            for (String resultTableDiff : resultTableDiffList) {
+                LOGGER.warn(String.format("Document [%s] : Result Table : %s", pDocumentName, resultTableDiff));
+            }
+        } catch (MisKeyedTokenException mkte) {
+            checkpointsTamperedStatus = MIS_KEYED_STATUS;
+            message = mkte.getMessage();
             LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s",
-                    pDocument.getName(), checkpointsTamperedStatus, resultTableTamperedStatus, VALID_STATUS));
+                    pDocumentName, UNDERMINED_STATUS, UNDERMINED_STATUS, MIS_KEYED_STATUS));
+            LOGGER.error("Hash Token was signed with a key missing from the key ring", mkte);
+        } catch (TamperedTokenException tte) {
+            checkpointsTamperedStatus = TAMPERED_STATUS;
+            message = tte.getMessage();
+            LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s",
+                    pDocumentName, UNDERMINED_STATUS, UNDERMINED_STATUS, TAMPERED_STATUS));
+            LOGGER.error("Hash Token was tampered", tte);
         } catch (SecurityException se) {
+            checkpointsTamperedStatus = UNDERMINED_STATUS;
+            message = se.getMessage();
             LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s",
-                    pDocument.getName(), UNDERMINED_STATUS, UNDERMINED_STATUS, UNDERMINED_STATUS));
+                    pDocumentName, UNDERMINED_STATUS, UNDERMINED_STATUS, UNDERMINED_STATUS));
             LOGGER.error("Hash Token was tampered or you have input incorrect secret", se);
+        } catch (IOException ioe) {
+            checkpointsTamperedStatus = UNDERMINED_STATUS;
+            message = ioe.getMessage();
+            LOGGER.info(String.format("Document [%s] : Checkpoint(s) : %s  |  Result Table : %s  |  Hashed Token : %s",
+                    pDocumentName, UNDERMINED_STATUS, UNDERMINED_STATUS, UNDERMINED_STATUS));
         }
 
         if(signedResult != null) {
@@ -203,31 +838,170 @@ public final class Task {
         }
 
         System.out.print("\n");
+        int checkpointCount = calculatedResult == null ? 0 : calculatedResult.getCheckpointCount();
+        Float overallGrade = signedResult == null ? null : signedResult.getOverallGrade();
+        // Valid checkpoint(s) under an edited table still make a tampered document
+        String status = checkpointsTamperedStatus.equals(VALID_STATUS) ? resultTableTamperedStatus : checkpointsTamperedStatus;
+        return new DocumentOutcome(pDocumentName, status, checkpointCount, overallGrade, message);
     }
 
-    private static void newDocumentTest(File pDocument) {
+    /**
+     * Main flow of activities on a document for re-sign: verify its token with the old secret, sign the same result
+     * with the new secret, and replace the token. The document is written aside, then moved over the original.
+     *
+     * @param pDocument graded document
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome resignDocument(File pDocument, String pOldSecret, String pNewSecret) {
+        String documentName = pDocument.getName();
+        Document assignmentDocument = new Document(pDocument.getAbsolutePath(), 1, 10, 1, 100);
+        String status = UNDERMINED_STATUS;
+        String message = null;
+        Result result = null;
+
         try {
-            Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
-                    1, 10, 1, 100);
+            String token = assignmentDocument.getHashString();
+            if (token == null) {
+                LOGGER.info(String.format("Document [%s] : %s ", documentName, SKIPPED_STATUS));
+                return new DocumentOutcome(documentName, SKIPPED_STATUS, 0);
+            }
+            result = JWT.getInstance(pOldSecret).decodeJWT(token);
+
+            File partialDocument = new File(pDocument.getPath() + ".part");
+            try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(partialDocument))) {
+                assignmentDocument.replaceToken(Document.createToken(result, pNewSecret), outputStream);
+            } catch (IOException ioe) {
+                partialDocument.delete();
+                throw ioe;
+            }
+            Files.move(partialDocument.toPath(), pDocument.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            status = "SUCCESS";
+            LOGGER.info(String.format("Document [%s] : %s ", documentName, "SUCCESS"));
+        } catch (MisKeyedTokenException mkte) {
+            status = MIS_KEYED_STATUS;
+            message = mkte.getMessage();
+            LOGGER.warn(String.format("Document [%s] : %s ", documentName, MIS_KEYED_STATUS));
+            LOGGER.error("Hash Token was signed with a key missing from the key ring", mkte);
+        } catch (TamperedTokenException tte) {
+            status = TAMPERED_STATUS;
+            message = tte.getMessage();
+            LOGGER.warn(String.format("Document [%s] : %s ", documentName, TAMPERED_STATUS));
+            LOGGER.error("Hash Token was tampered", tte);
+        } catch (SecurityException se) {
+            message = se.getMessage();
+            LOGGER.warn(String.format("Document [%s] : %s ", documentName, UNDERMINED_STATUS));
+            LOGGER.error("Hash Token was tampered or you have input incorrect secret", se);
+        } catch (IOException ioe) {
+            status = "FAILURE";
+            message = ioe.getMessage();
+            LOGGER.info(String.format("Document [%s] : %s ", documentName, "FAILURE"));
+            LOGGER.fatal("Exception occur", ioe);
+        }
+        int checkpointCount = result == null ? 0 : result.getCheckpointCount();
+        Float overallGrade = result == null ? null : result.getOverallGrade();
+        return new DocumentOutcome(documentName, status, checkpointCount, overallGrade, message, result);
+    }
 
-            // Index contents of assignment document
-            assignmentDocument.index();
+    private static DocumentOutcome newDocumentTest(File pDocument) {
+        Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
+                1, 10, 1, 100);
+        return newDocumentTest(pDocument.getName(), assignmentDocument);
+    }
 
-            // Search and get all checkpoints
-            List<Checkpoint> checkpointList = assignmentDocument.getCheckpoint();
+    /**
+     * Main flow of activities on a document for new document test i.e. document must not contain checkpoint(s).
+     *
+     * @param pDocumentName name of the document, used in messages
+     * @param assignmentDocument document for new document test
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome newDocumentTest(String pDocumentName, Document assignmentDocument) {
+        String status = UNDERMINED_STATUS;
+        int checkpointCount = 0;
+        String message = null;
+        try {
+
+            // Count checkpoint comments, a new document needs no extraction or validation
+            checkpointCount = assignmentDocument.getCheckpointCount();
 
-            if (!checkpointList.isEmpty()) {
-                LOGGER.warn(String.format("Document [%s] : %s ", pDocument.getName(), INVALID_STATUS));
-                LOGGER.warn(String.format("Document contains %d checkpoint(s). make sure they are NOT graded", checkpointList.size()));
+            if (checkpointCount > 0) {
+                status = INVALID_STATUS;
+                LOGGER.warn(String.format("Document [%s] : %s ", pDocumentName, INVALID_STATUS));
+                LOGGER.warn(String.format("Document contains %d checkpoint(s). make sure they are NOT graded", checkpointCount));
             } else {
-                LOGGER.info(String.format("Document [%s] : %s ", pDocument.getName(), VALID_STATUS));
+                status = VALID_STATUS;
+                LOGGER.info(String.format("Document [%s] : %s ", pDocumentName, VALID_STATUS));
             }
 
         } catch (Exception ioe) {
-            LOGGER.warn(String.format("Document [%s] : %s ", pDocument.getName(), UNDERMINED_STATUS));
+            message = ioe.getMessage();
+            LOGGER.warn(String.format("Document [%s] : %s ", pDocumentName, UNDERMINED_STATUS));
             LOGGER.fatal("Exception occur.", ioe);
         }
         System.out.print("\n");
+        return new DocumentOutcome(pDocumentName, status, checkpointCount, null, message);
+    }
+
+    private static DocumentOutcome preflightDocument(File pDocument) {
+        Document assignmentDocument = new Document(pDocument.getAbsolutePath(),
+                1, 10, 1, 100);
+        return preflightDocument(pDocument.getName(), assignmentDocument);
+    }
+
+    /**
+     * Main flow of activities on a document for preflight check i.e. document must be a readable Word package within
+     * the size limits.
+     *
+     * @param pDocumentName name of the document, used in messages
+     * @param assignmentDocument document for preflight check
+     * @return {@link DocumentOutcome}
+     */
+    static DocumentOutcome preflightDocument(String pDocumentName, Document assignmentDocument) {
+        String status = UNDERMINED_STATUS;
+        String message = null;
+        try {
+            long start = System.nanoTime();
+            Preflight preflight = assignmentDocument.preflight();
+            long micros = (System.nanoTime() - start) / 1000;
+
+            if (preflight.isRejected()) {
+                status = REJECTED_STATUS;
+                message = preflight.getReason();
+                LOGGER.warn(String.format("Document [%s] : %s : %s (%d us)", pDocumentName, REJECTED_STATUS, message, micros));
+            } else {
+                status = VALID_STATUS;
+                LOGGER.info(String.format("Document [%s] : %s : %d part(s), %.1f MB uncompressed%s (%d us)", pDocumentName,
+                        VALID_STATUS, preflight.getEntryCount(), preflight.getTotalSize() / (1024.0 * 1024.0),
+                        preflight.hasComments() ? "" : ", no comments i.e. no checkpoint(s)", micros));
+            }
+        } catch (IOException ioe) {
+            message = ioe.getMessage();
+            LOGGER.warn(String.format("Document [%s] : %s ", pDocumentName, UNDERMINED_STATUS));
+            LOGGER.fatal("Exception occur.", ioe);
+        }
+        return new DocumentOutcome(pDocumentName, status, 0, null, message);
+    }
+
+    /**
+     * Print allocation summary of the run, write per-document allocation CSV if set and enforce allocation budget if set.
+     * The budget is enforced last, once the summary and CSV are written.
+     *
+     * @param pAllocationMonitor monitor used during the run
+     * @throws IllegalArgumentException Throws if any document allocated more than the budget
+     */
+    static void reportAllocation(AllocationMonitor pAllocationMonitor) {
+        pAllocationMonitor.printSummary();
+
+        File allocationCsv = Settings.getAllocationCsv();
+        if (allocationCsv != null) {
+            try {
+                pAllocationMonitor.writeCsv(allocationCsv);
+            } catch (IOException ioe) {
+                LOGGER.error(String.format("Unable to write allocation report %s", allocationCsv.getAbsolutePath()), ioe);
+            }
+        }
+
+        pAllocationMonitor.assertWithinBudget();
     }
 
     private static void printResult(Result pResult) {
@@ -235,15 +1009,33 @@ public final class Task {
         System.out.println("--------------------------------------------------------------");
         System.out.format("|%3s|%7s|%7s|%40s|\n", "C#", "Weight", "grade", "Feedback");
         System.out.println("--------------------------------------------------------------");
-        for (int checkpointID : pResult.getCheckpointMap().keySet()) {
-            Checkpoint checkpoint = pResult.getCheckpointMap().get(checkpointID);
-            System.out.format("|%3d|%7d|%7d|%40s|\n", checkpointID, checkpoint.getWeight(), checkpoint.getGrade(), checkpoint.getFeedback());
+        for (int checkpointID = 1; checkpointID <= pResult.getCheckpointCount(); checkpointID++) {
+            System.out.format("|%3d|%7d|%7d|%40s|\n", checkpointID, pResult.getWeight(checkpointID),
+                    pResult.getGrade(checkpointID), pResult.getFeedback(checkpointID));
         }
         System.out.println("--------------------------------------------------------------");
         System.out.format("|%3s|%7s|%7s|%40s|\n", "", "Σ", String.format("%.2f",pResult.getOverallGrade()), "");
         System.out.println("--------------------------------------------------------------");
     }
 
-}
 
+    /**
+     * Represents the destination of a document's evaluated result eg. the document itself or the ledger.
+     */
+    private interface ResultWriter {
+        void write(Result pResult) throws IOException;
+    }
 
+    /**
+     * Represents a document queued for processing, with the sequence it was discovered in.
+     */
+    private static final class ScannedDocument {
+        private final long mSequence;
+        private final Path mPath;
+
+        private ScannedDocument(long pSequence, Path pPath) {
+            mSequence = pSequence;
+            mPath = pPath;
+        }
+    }
+}
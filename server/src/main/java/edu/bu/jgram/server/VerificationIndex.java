@@ -0,0 +1,519 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.InvalidGrammarException;
+import edu.bu.jgram.server.assessment.InvalidValueException;
+import edu.bu.jgram.server.assessment.Result;
+import edu.bu.jgram.server.assessment.RubricPlan;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Represents the verification index of graded documents, so a tamper test can verify a document untouched since it
+ * was graded without parsing it.
+ *
+ * <p>The index file is a header (magic, version, number of sorted records) followed by fixed size records: SHA-256 of
+ * the comment parts (word/comments.xml, word/commentsExtended.xml), SHA-256 of word/document.xml (holding the result
+ * table and token), checkpoint count, overall grade, then HMAC-SHA256 of all of it with the secret, and the digest of
+ * the rubric file if one is set: once the rubric file changes, documents are verified by parsing them again. The
+ * sorted records are followed by the records appended since the index was last compacted.</p>
+ *
+ * <p>The file is memory-mapped: a lookup is a binary search over the sorted records and a scan of the few appended
+ * ones, directly in the mapping, so it needs no heap proportional to the number of records. Records appended while
+ * the index is open are merged into the sorted records when it is closed.</p>
+ *
+ * <p>Windows refuses to replace a file while it is open or mapped, so the index is closed and unmapped before the
+ * compacted file is moved over it. If the move still fails, the index is left as it was: the appended records are
+ * found by the scan until a later close compacts them.</p>
+ */
+final class VerificationIndex implements Closeable {
+
+    private static final Logger LOGGER = Logger.getInstance();
+
+    private static final int MAGIC = 0x4A475649; // JGVI
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int DIGEST_BYTES = 32;
+    private static final int KEY_BYTES = 2 * DIGEST_BYTES;
+    private static final int SIGNED_BYTES = KEY_BYTES + 8;
+    static final int RECORD_BYTES = SIGNED_BYTES + DIGEST_BYTES;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String[] COMMENT_PARTS = {"word/comments.xml", "word/commentsExtended.xml"};
+    private static final String DOCUMENT_PART = "word/document.xml";
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final File mFile;
+    private final FileChannel mFileChannel;
+    private final boolean mWritable;
+    // Dropped once the index is closed, so the file can be replaced
+    private MappedByteBuffer mBuffer;
+    private final long mSortedCount;
+    private final long mRecordCount;
+    private final byte[] mRubricDigest;
+
+    // Records appended since the index was opened, not visible to lookups until the index is compacted
+    private long mAppendedCount;
+    private long mVerifiedCount;
+
+    private VerificationIndex(File pFile, FileChannel pFileChannel, boolean pWritable, long pSortedCount,
+                              long pRecordCount) throws IOException {
+        mFile = pFile;
+        mFileChannel = pFileChannel;
+        mWritable = pWritable;
+        mSortedCount = pSortedCount;
+        mRecordCount = pRecordCount;
+        mRubricDigest = readRubricDigest();
+        mBuffer = pFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + pRecordCount * RECORD_BYTES);
+    }
+
+    /**
+     * Open an index for lookups and appending, creating it if needed. A torn last record is truncated.
+     *
+     * @param pFile index file
+     * @return {@link VerificationIndex}
+     * @throws IOException Throws if the index can't be read or written, or is not a verification index
+     */
+    static VerificationIndex open(File pFile) throws IOException {
+        if (!pFile.exists()) {
+            if (pFile.getAbsoluteFile().getParentFile() != null) {
+                Files.createDirectories(pFile.getAbsoluteFile().getParentFile().toPath());
+            }
+            writeHeader(pFile, 0);
+        }
+        return open(pFile, true);
+    }
+
+    /**
+     * Open an existing index for lookups only.
+     *
+     * @param pFile index file
+     * @return {@link VerificationIndex} null when the index doesn't exist
+     * @throws IOException Throws if the index can't be read or is not a verification index
+     */
+    static VerificationIndex openReadOnly(File pFile) throws IOException {
+        return pFile.isFile() ? open(pFile, false) : null;
+    }
+
+    private static VerificationIndex open(File pFile, boolean pWritable) throws IOException {
+        FileChannel fileChannel = pWritable
+                ? FileChannel.open(pFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(pFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && fileChannel.read(header, header.position()) > 0) {
+                // Read the whole header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(String.format("%s is not a verification index", pFile));
+            }
+            long sortedCount = header.getLong();
+            long recordBytes = fileChannel.size() - HEADER_BYTES;
+            if (fileChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Verification index %s exceeds 2 GB", pFile));
+            }
+            if (sortedCount < 0 || sortedCount * RECORD_BYTES > recordBytes) {
+                throw new IOException(String.format("Verification index %s is corrupt", pFile));
+            }
+
+            if (recordBytes % RECORD_BYTES != 0 && pWritable) {
+                LOGGER.warn(String.format("Verification index %s : truncating torn record", pFile));
+                fileChannel.truncate(HEADER_BYTES + recordBytes / RECORD_BYTES * RECORD_BYTES);
+            }
+            return new VerificationIndex(pFile, fileChannel, pWritable, sortedCount, recordBytes / RECORD_BYTES);
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append the record of a graded document. It becomes visible to lookups once the index is closed and opened
+     * again.
+     *
+     * @param pDocument graded document, as written
+     * @param pResult result signed into the document
+     * @param pSecret secret the result was signed with
+     * @throws IOException Throws if the document or the index can't be read or written
+     */
+    void add(File pDocument, Result pResult, String pSecret) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        record.put(digestParts(pDocument));
+        record.putInt(pResult.getCheckpointCount());
+        record.putFloat(pResult.getOverallGrade());
+        record.put(sign(pSecret, mRubricDigest, record.array()));
+        record.flip();
+        append(record);
+    }
+
+    /**
+     * Append every record of another index eg. the index of a shard worker.
+     *
+     * @param pIndex index to copy from
+     * @throws IOException Throws if the index can't be written
+     */
+    void addAll(VerificationIndex pIndex) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        for (long recordIndex = 0; recordIndex < pIndex.mRecordCount; recordIndex++) {
+            pIndex.read(recordIndex, record.array());
+            record.clear();
+            append(record);
+        }
+    }
+
+    private synchronized void append(ByteBuffer pRecord) throws IOException {
+        if (!mWritable) {
+            throw new IllegalStateException("Verification index is open for lookups only");
+        }
+        long position = HEADER_BYTES + (mRecordCount + mAppendedCount) * RECORD_BYTES;
+        while (pRecord.hasRemaining()) {
+            position += mFileChannel.write(pRecord, position);
+        }
+        mAppendedCount++;
+    }
+
+    /**
+     * Verify a document against the index: its comment parts and document part must be byte for byte the ones
+     * recorded when it was graded, and the record must be signed with the secret.
+     *
+     * @param pDocument document for tamper test
+     * @param pSecret secret used to sign the result
+     * @return {@link DocumentOutcome} VALID outcome, null when the document must be verified by parsing it
+     */
+    DocumentOutcome verify(File pDocument, String pSecret) {
+        byte[] key;
+        try {
+            key = digestParts(pDocument);
+        } catch (IOException ioe) {
+            return null;
+        }
+
+        long recordIndex = find(key);
+        if (recordIndex < 0) {
+            return null;
+        }
+        byte[] record = new byte[RECORD_BYTES];
+        read(recordIndex, record);
+        if (!MessageDigest.isEqual(sign(pSecret, mRubricDigest, record), Arrays.copyOfRange(record, SIGNED_BYTES, RECORD_BYTES))) {
+            return null;
+        }
+
+        synchronized (this) {
+            mVerifiedCount++;
+        }
+        ByteBuffer value = ByteBuffer.wrap(record, KEY_BYTES, 8);
+        return new DocumentOutcome(pDocument.getName(), "VALID", value.getInt(), value.getFloat(), null);
+    }
+
+    /**
+     * Retrieve the number of documents verified by {@link #verify(File, String)}.
+     *
+     * @return {@link Long}
+     */
+    synchronized long getVerifiedCount() {
+        return mVerifiedCount;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Merge the appended records into the sorted records and close the index.
+     *
+     * @throws IOException Throws if the index can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        File temporaryFile = null;
+        long sortedCount = 0;
+        try {
+            if (mWritable && (mAppendedCount > 0 || mRecordCount > mSortedCount)) {
+                temporaryFile = new File(mFile.getAbsoluteFile().getParentFile(), mFile.getName() + ".tmp");
+                sortedCount = compact(temporaryFile);
+            }
+        } finally {
+            mFileChannel.close();
+        }
+        if (temporaryFile == null) {
+            return;
+        }
+
+        // Only lookups read the mapping, and an index open for appending serves none
+        unmap(mBuffer);
+        mBuffer = null;
+
+        try {
+            Files.move(temporaryFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            Files.deleteIfExists(temporaryFile.toPath());
+            LOGGER.warn(String.format("Verification index %s : not compacted, %s", mFile, ioe));
+            return;
+        }
+        LOGGER.info(String.format("Verification index %s : %d document(s)", mFile, sortedCount));
+    }
+
+    /**
+     * Binary search the sorted records, then scan the appended ones, directly in the mapping.
+     *
+     * @return {@link Long} record index, -1 when not found
+     */
+    private long find(byte[] pKey) {
+        long low = 0;
+        long high = mSortedCount - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int comparison = compare(mBuffer, offset(middle), pKey);
+            if (comparison == 0) {
+                return middle;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        // Latest appended record first
+        for (long recordIndex = mRecordCount - 1; recordIndex >= mSortedCount; recordIndex--) {
+            if (compare(mBuffer, offset(recordIndex), pKey) == 0) {
+                return recordIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write every record sorted to a temporary file, to be moved over the index once it is closed. Only the appended
+     * records are held in memory, the sorted ones are streamed from the mapping.
+     *
+     * @return {@link Long} number of records written
+     */
+    private long compact(File pTemporaryFile) throws IOException {
+        List<byte[]> appendedList = new ArrayList<>();
+        for (long recordIndex = mSortedCount; recordIndex < mRecordCount; recordIndex++) {
+            byte[] record = new byte[RECORD_BYTES];
+            read(recordIndex, record);
+            appendedList.add(record);
+        }
+        // Appended since the index was opened, so past the end of the mapping
+        for (long recordIndex = mRecordCount; recordIndex < mRecordCount + mAppendedCount; recordIndex++) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+            long position = offset(recordIndex);
+            while (record.hasRemaining()) {
+                int length = mFileChannel.read(record, position);
+                if (length < 0) {
+                    throw new IOException(String.format("Verification index %s : record %d is missing", mFile, recordIndex));
+                }
+                position += length;
+            }
+            appendedList.add(record.array());
+        }
+        // Stable, so the latest of records with the same key stays last
+        appendedList.sort((first, second) -> compare(ByteBuffer.wrap(first), 0, second));
+
+        long sortedCount = 0;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(pTemporaryFile);
+             OutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_BYTES)) {
+            outputStream.write(new byte[HEADER_BYTES]);
+            byte[] record = new byte[RECORD_BYTES];
+            long recordIndex = 0;
+            int appendedIndex = 0;
+            while (recordIndex < mSortedCount || appendedIndex < appendedList.size()) {
+                if (appendedIndex == appendedList.size()) {
+                    read(recordIndex++, record);
+                    outputStream.write(record);
+                } else {
+                    byte[] appended = appendedList.get(appendedIndex);
+                    if (appendedIndex + 1 < appendedList.size()
+                            && compare(ByteBuffer.wrap(appendedList.get(appendedIndex + 1)), 0, appended) == 0) {
+                        // Superseded by a later record of the same document
+                        appendedIndex++;
+                        continue;
+                    }
+                    int comparison = recordIndex < mSortedCount
+                            ? compare(mBuffer, offset(recordIndex), appended) : 1;
+                    if (comparison < 0) {
+                        read(recordIndex++, record);
+                        outputStream.write(record);
+                    } else {
+                        if (comparison == 0) {
+                            recordIndex++;
+                        }
+                        outputStream.write(appended);
+                        appendedIndex++;
+                    }
+                }
+                sortedCount++;
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+        writeHeader(pTemporaryFile, sortedCount);
+        return sortedCount;
+    }
+
+    /**
+     * Release a mapping now rather than when it is garbage collected. The JDK has no public API for it, so the
+     * cleaner is invoked through sun.misc.Unsafe where available; elsewhere the mapping is left to the collector.
+     */
+    private static void unmap(MappedByteBuffer pBuffer) {
+        if (pBuffer == null) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(unsafeField.get(null), pBuffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.info(String.format("Verification index mapping not released : %s", e));
+        }
+    }
+
+    private static void writeHeader(File pFile, long pSortedCount) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(pFile, "rw")) {
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeInt(VERSION);
+            randomAccessFile.writeLong(pSortedCount);
+            randomAccessFile.getFD().sync();
+        }
+    }
+
+    private void read(long pRecordIndex, byte[] pRecord) {
+        read(mBuffer, pRecordIndex, pRecord);
+    }
+
+    private static void read(ByteBuffer pBuffer, long pRecordIndex, byte[] pRecord) {
+        ByteBuffer record = pBuffer.duplicate();
+        record.position((int) offset(pRecordIndex));
+        record.get(pRecord);
+    }
+
+    private static long offset(long pRecordIndex) {
+        return HEADER_BYTES + pRecordIndex * RECORD_BYTES;
+    }
+
+    /**
+     * Compare the key of the record at the offset with a key (or the key of a record), as unsigned bytes.
+     */
+    private static int compare(ByteBuffer pBuffer, long pOffset, byte[] pKey) {
+        for (int index = 0; index < KEY_BYTES; index++) {
+            int comparison = Integer.compare(pBuffer.get((int) pOffset + index) & 0xFF, pKey[index] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Digest the comment parts, then the document part, straight from the zip entries.
+     *
+     * @return {@link Byte} key of the document's record
+     * @throws IOException Throws if the document is not a readable *.docx
+     */
+    static byte[] digestParts(File pDocument) throws IOException {
+        try (ZipFile zipFile = new ZipFile(pDocument)) {
+            MessageDigest commentsDigest = createDigest();
+            for (String commentPart : COMMENT_PARTS) {
+                ZipEntry entry = zipFile.getEntry(commentPart);
+                // Mark which parts are present, so content can't move from one part to the other unnoticed
+                commentsDigest.update(entry == null ? (byte) 0 : (byte) 1);
+                if (entry != null) {
+                    update(commentsDigest, zipFile, entry);
+                }
+            }
+
+            ZipEntry documentEntry = zipFile.getEntry(DOCUMENT_PART);
+            if (documentEntry == null) {
+                throw new IOException(String.format("%s has no %s", pDocument.getName(), DOCUMENT_PART));
+            }
+            MessageDigest documentDigest = createDigest();
+            update(documentDigest, zipFile, documentEntry);
+
+            byte[] key = new byte[KEY_BYTES];
+            System.arraycopy(commentsDigest.digest(), 0, key, 0, DIGEST_BYTES);
+            System.arraycopy(documentDigest.digest(), 0, key, DIGEST_BYTES, DIGEST_BYTES);
+            return key;
+        }
+    }
+
+    private static void update(MessageDigest pDigest, ZipFile pZipFile, ZipEntry pEntry) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream inputStream = pZipFile.getInputStream(pEntry)) {
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                pDigest.update(buffer, 0, length);
+            }
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", nsae);
+        }
+    }
+
+    /**
+     * Digest of the rubric file documents without a rubric comment are evaluated with. A document with its own rubric
+     * comment has it in its comment parts already.
+     *
+     * @return {@link Byte} empty without a rubric file
+     */
+    private static byte[] readRubricDigest() {
+        File rubricFile = Settings.getRubric();
+        if (rubricFile == null) {
+            return new byte[0];
+        }
+        try {
+            return RubricPlan.compile(rubricFile).getDigest().getBytes(StandardCharsets.US_ASCII);
+        } catch (IOException | InvalidGrammarException | InvalidValueException e) {
+            // Only documents with their own rubric comment can be graded, and they are recorded under the same digest
+            return "-".getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * HMAC-SHA256 of the signed part of a record, followed by the rubric digest.
+     */
+    private static byte[] sign(String pSecret, byte[] pRubricDigest, byte[] pRecord) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(pSecret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+            mac.update(pRecord, 0, SIGNED_BYTES);
+            mac.update(pRubricDigest);
+            return mac.doFinal();
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", gse);
+        }
+    }
+}
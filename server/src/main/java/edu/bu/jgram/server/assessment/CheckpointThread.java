@@ -0,0 +1,63 @@
+package edu.bu.jgram.server.assessment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents a checkpoint together with the checkpoint(s) posted as replies in its comment thread, directly or
+ * below non-checkpoint replies.
+ */
+public final class CheckpointThread {
+
+    private final Checkpoint mCheckpoint;
+    private final List<Checkpoint> mReplyList = new ArrayList<>();
+
+    CheckpointThread(Checkpoint pCheckpoint) {
+        mCheckpoint = pCheckpoint;
+    }
+
+    void addReply(Checkpoint pReply) {
+        mReplyList.add(pReply);
+    }
+
+    /**
+     * Retrieve the checkpoint opening the thread.
+     *
+     * @return {@link Checkpoint}
+     */
+    public Checkpoint getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * Retrieve the reply checkpoint(s), in document order.
+     *
+     * @return {@link List} unmodifiable
+     */
+    public List<Checkpoint> getReplyList() {
+        return Collections.unmodifiableList(mReplyList);
+    }
+
+    /**
+     * Retrieve the checkpoint(s) of the thread to evaluate.
+     *
+     * @param pPolicy reply policy
+     * @return {@link List} all checkpoints when supplementing, otherwise the latest one
+     */
+    public List<Checkpoint> getCheckpoint(ReplyPolicy pPolicy) {
+        if (pPolicy == ReplyPolicy.OVERRIDE) {
+            return Collections.singletonList(mReplyList.isEmpty() ? mCheckpoint : mReplyList.get(mReplyList.size() - 1));
+        }
+
+        List<Checkpoint> checkpointList = new ArrayList<>(mReplyList.size() + 1);
+        checkpointList.add(mCheckpoint);
+        checkpointList.addAll(mReplyList);
+        return checkpointList;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s <- %s", mCheckpoint, mReplyList);
+    }
+}
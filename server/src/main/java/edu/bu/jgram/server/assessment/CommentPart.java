@@ -0,0 +1,138 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Represents the comments of a document, streamed once from word/comments.xml.
+ *
+ * <p>The text of a comment is the text of its paragraphs, separated by a line end once some text was read, each
+ * paragraph's text being its text runs, with tabs and line breaks, like POI's XWPFComment. The paraId of every comment
+ * paragraph is kept too, to link replies to their parent comment.</p>
+ */
+final class CommentPart {
+
+    static final CommentPart EMPTY = new CommentPart(Collections.emptyList(), Collections.emptyList(), Collections.emptyMap());
+
+    private static final String WORD_NAMESPACE = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String WORD_2010_NAMESPACE = "http://schemas.microsoft.com/office/word/2010/wordml";
+
+    private final List<String> mIdList;
+    private final List<String> mTextList;
+    // Comment paragraph paraId -> comment id
+    private final Map<String, String> mCommentIdMap;
+
+    private CommentPart(List<String> pIdList, List<String> pTextList, Map<String, String> pCommentIdMap) {
+        mIdList = pIdList;
+        mTextList = pTextList;
+        mCommentIdMap = pCommentIdMap;
+    }
+
+    int size() {
+        return mIdList.size();
+    }
+
+    String getId(int pIndex) {
+        return mIdList.get(pIndex);
+    }
+
+    String getText(int pIndex) {
+        return mTextList.get(pIndex);
+    }
+
+    Map<String, String> getCommentIdMap() {
+        return mCommentIdMap;
+    }
+
+    /**
+     * Stream word/comments.xml.
+     *
+     * @param pInputStream content of the comments part
+     * @return {@link CommentPart}
+     * @throws XMLStreamException Throws if the part is not well formed
+     */
+    static CommentPart read(InputStream pInputStream) throws XMLStreamException {
+        List<String> idList = new ArrayList<>();
+        List<String> textList = new ArrayList<>();
+        Map<String, String> commentIdMap = new HashMap<>();
+
+        XMLStreamReader reader = DocumentPackage.XML_INPUT_FACTORY.createXMLStreamReader(pInputStream);
+        try {
+            String commentId = null;
+            StringBuilder text = new StringBuilder(64);
+            // Element depth inside the current comment, and whether the current paragraph is one of its own
+            int depth = 0;
+            boolean inParagraph = false;
+            boolean inText = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    boolean word = WORD_NAMESPACE.equals(reader.getNamespaceURI());
+                    String name = reader.getLocalName();
+                    if (commentId == null) {
+                        if (word && "comment".equals(name)) {
+                            commentId = reader.getAttributeValue(WORD_NAMESPACE, "id");
+                            text.setLength(0);
+                            depth = 0;
+                        }
+                        continue;
+                    }
+
+                    depth++;
+                    if (!word) {
+                        continue;
+                    }
+                    if ("p".equals(name) && depth == 1) {
+                        // Like POI, empty leading paragraphs add no line end
+                        if (text.length() > 0) {
+                            text.append('\n');
+                        }
+                        inParagraph = true;
+                        String paraId = reader.getAttributeValue(WORD_2010_NAMESPACE, "paraId");
+                        if (paraId != null) {
+                            commentIdMap.put(paraId, commentId);
+                        }
+                    } else if ("p".equals(name)) {
+                        // eg. a text box, not part of the comment text
+                        inParagraph = false;
+                    } else if (inParagraph && "t".equals(name)) {
+                        inText = true;
+                    } else if (inParagraph && ("tab".equals(name) || "ptab".equals(name))) {
+                        text.append('\t');
+                    } else if (inParagraph && ("br".equals(name) || "cr".equals(name))) {
+                        text.append('\n');
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (inText) {
+                        text.append(reader.getText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && commentId != null) {
+                    if (depth == 0) {
+                        idList.add(commentId);
+                        textList.add(text.toString());
+                        commentId = null;
+                        continue;
+                    }
+                    if ("t".equals(reader.getLocalName())) {
+                        inText = false;
+                    } else if ("p".equals(reader.getLocalName())) {
+                        // Back in the comment's own paragraph after a nested one
+                        inParagraph = depth > 1;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new CommentPart(idList, textList, commentIdMap);
+    }
+}
@@ -0,0 +1,93 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Represents the reply links between the comments of a document.
+ *
+ * <p>Word records replies in word/commentsExtended.xml, linking the paraId of a reply's last paragraph to the paraId
+ * of its parent's. The reply links are streamed once and resolved with the paraId to comment id map read along with
+ * the comments, so resolving every link is linear in the number of comments.</p>
+ */
+final class CommentThreadIndex {
+
+    private static final String WORD_2012_NAMESPACE = "http://schemas.microsoft.com/office/word/2012/wordml";
+
+    // Comment id -> parent comment id
+    private final Map<String, String> mParentIdMap;
+
+    private CommentThreadIndex(Map<String, String> pParentIdMap) {
+        mParentIdMap = pParentIdMap;
+    }
+
+    /**
+     * Read the reply links of a document.
+     *
+     * @param pDocumentPackage package of the document
+     * @param pCommentPart comments of the document
+     * @return {@link CommentThreadIndex}
+     * @throws IOException Throws if the comments extended part can't be read
+     */
+    static CommentThreadIndex read(DocumentPackage pDocumentPackage, CommentPart pCommentPart) throws IOException {
+        String commentsExtendedPartName = pDocumentPackage.getRelatedPartName(DocumentPackage.COMMENTS_EXTENDED_RELATION);
+        if (commentsExtendedPartName == null || pCommentPart.size() == 0) {
+            return new CommentThreadIndex(new HashMap<>());
+        }
+
+        List<String[]> replyList = pDocumentPackage.readPart(commentsExtendedPartName, CommentThreadIndex::readReplies);
+        Map<String, String> commentIdMap = pCommentPart.getCommentIdMap();
+        Map<String, String> parentIdMap = new HashMap<>();
+        for (String[] reply : replyList == null ? new ArrayList<String[]>() : replyList) {
+            String commentId = commentIdMap.get(reply[0]);
+            String parentId = commentIdMap.get(reply[1]);
+            if (commentId != null && parentId != null && !commentId.equals(parentId)) {
+                parentIdMap.put(commentId, parentId);
+            }
+        }
+        return new CommentThreadIndex(parentIdMap);
+    }
+
+    /**
+     * Retrieve the comment a comment replies to.
+     *
+     * @param pCommentId comment id
+     * @return {@link String} parent comment id, null when the comment is not a reply
+     */
+    String getParentId(String pCommentId) {
+        return mParentIdMap.get(pCommentId);
+    }
+
+    boolean isEmpty() {
+        return mParentIdMap.isEmpty();
+    }
+
+    /**
+     * Stream word/commentsExtended.xml for (paraId, parent paraId) pairs.
+     */
+    private static List<String[]> readReplies(InputStream pInputStream) throws XMLStreamException {
+        List<String[]> replyList = new ArrayList<>();
+        XMLStreamReader reader = DocumentPackage.XML_INPUT_FACTORY.createXMLStreamReader(pInputStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "commentEx".equals(reader.getLocalName())) {
+                    String paraId = reader.getAttributeValue(WORD_2012_NAMESPACE, "paraId");
+                    String parentParaId = reader.getAttributeValue(WORD_2012_NAMESPACE, "paraIdParent");
+                    if (paraId != null && parentParaId != null) {
+                        replyList.add(new String[]{paraId, parentParaId});
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return replyList;
+    }
+}
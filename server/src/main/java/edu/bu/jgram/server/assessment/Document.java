@@ -1,12 +1,23 @@
 package edu.bu.jgram.server.assessment;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+import edu.bu.jgram.server.Settings;
 import edu.bu.jgram.server.security.JWT;
 import org.apache.poi.xwpf.usermodel.*;
+import org.apache.xmlbeans.XmlCursor;
 
 
 /**
@@ -21,18 +32,58 @@ public class Document {
     private static final String GRADE_MAPPING_GRAMMAR_START = "GRADEMAPPING(";
     private static final String OVERALL_GRADE_TITLE = "JGRAM Overall Grade";
 
+    // Documents of an assignment share the same grade mapping comment, so parsed mappings are kept for reuse.
+    // Mappings are never modified once parsed, which makes sharing them across threads safe.
+    private static final int GRADE_MAPPING_CACHE_LIMIT = 256;
+    private static final String DEFAULT_GRADE_MAPPING_KEY = "";
+    private static final Map<String, GradeMapping> GRADE_MAPPING_CACHE = new ConcurrentHashMap<>();
+
     private final String mDocumentPath;
     private final int mMinWeight;
     private final int mMaxWeight;
     private final int mMinGrade;
     private final int mMaxGrade;
 
+    // Every piece of the document is read on first access, from the package parts it needs only
+    private byte[] mContent;
+    private int mContentLength;
+    private DocumentPackage mDocumentPackage;
+    private CommentPart mCommentPart;
+    private ResultTablePart mResultTablePart;
     private List<Checkpoint> mCheckpointList;
+    private List<CheckpointThread> mCheckpointThreadList;
     private GradeMapping mGradeMapping;
-    private XWPFTable mOverallGradeTable;
+    private RubricPlan mRubricPlan;
+    private boolean mRubricPlanRead;
 
     public Document(String pDocumentPath, int pMinWeight, int pMaxWeight, int pMinGrade, int pMaxGrade) {
-        mDocumentPath = pDocumentPath;
+        this(pDocumentPath, null, pMinWeight, pMaxWeight, pMinGrade, pMaxGrade);
+    }
+
+    /**
+     * Constructs an in-memory document eg. a document read from an archive entry.
+     *
+     * @param pDocumentName name of the document, used in messages only
+     * @param pContent content of the *.docx document
+     */
+    public Document(String pDocumentName, byte[] pContent, int pMinWeight, int pMaxWeight, int pMinGrade, int pMaxGrade) {
+        this(pDocumentName, pContent, pContent == null ? 0 : pContent.length, pMinWeight, pMaxWeight, pMinGrade, pMaxGrade);
+    }
+
+    /**
+     * Constructs an in-memory document held in the first bytes of a buffer eg. a pooled read buffer. The buffer must
+     * not change while the document is in use.
+     *
+     * @param pDocumentName name of the document, used in messages only
+     * @param pContent buffer starting with the content of the *.docx document
+     * @param pContentLength length of the content
+     */
+    public Document(String pDocumentName, byte[] pContent, int pContentLength, int pMinWeight, int pMaxWeight,
+                    int pMinGrade, int pMaxGrade) {
+        mDocumentPath = pDocumentName;
+        mContent = pContent;
+        mContentLength = pContentLength;
+        mDocumentPackage = new DocumentPackage(pDocumentName, pContent, pContentLength);
         mMinWeight = pMinWeight;
         mMaxWeight = pMaxWeight;
         mMinGrade = pMinGrade;
@@ -40,105 +91,469 @@ public class Document {
     }
 
     /**
-     * Retrieve all available checkpoint(s).
+     * Retrieve all available checkpoint(s), extracting and validating them on first access.
      *
-     * <p>Note: If the are no checkpoint in the document, it will return an empty list;
-     * however null means document hasn't been indexed.</p>
+     * <p>Note: If the are no checkpoint in the document, it will return an empty list. Reads the comments and the
+     * comment replies of the document only.</p>
      *
      * @return {@link List}
+     * @throws IOException Throws if file not found or issue reading document
+     * @throws InvalidGrammarException Throws if JGRAM (aka Checkpoint), grade mapping or rubric grammar is invalid
+     * @throws InvalidValueException Throws if JGRAM (aka Checkpoint) attribute value is invalid
      */
-    public List<Checkpoint> getCheckpoint() throws IllegalStateException {
+    public List<Checkpoint> getCheckpoint() throws IOException, InvalidGrammarException, InvalidValueException {
+        if (mCheckpointList == null) {
+            indexCheckpoints();
+        }
         return mCheckpointList;
     }
 
     /**
-     * Read the content of the word document,and stores the entire content in-memory.
+     * Retrieve all available checkpoint(s) grouped by comment thread, in document order. A checkpoint posted as a
+     * reply belongs to the thread of the top most checkpoint it replies to, directly or through other replies.
      *
-     * <p>TODO: In future we can index just the required content from the document</p>
+     * @return {@link List}
+     * @throws IOException Throws if file not found or issue reading document
+     * @throws InvalidGrammarException Throws if JGRAM (aka Checkpoint), grade mapping or rubric grammar is invalid
+     * @throws InvalidValueException Throws if JGRAM (aka Checkpoint) attribute value is invalid
+     */
+    public List<CheckpointThread> getCheckpointThread() throws IOException, InvalidGrammarException, InvalidValueException {
+        if (mCheckpointThreadList == null) {
+            indexCheckpoints();
+        }
+        return mCheckpointThreadList;
+    }
+
+    /**
+     * Count the checkpoint comments of the document, without extracting or validating them.
+     *
+     * @return {@link Integer}
+     * @throws IOException Throws if file not found or issue reading document
+     */
+    public int getCheckpointCount() throws IOException {
+        CommentPart commentPart = getCommentPart();
+        int checkpointCount = 0;
+        for (int index = 0; index < commentPart.size(); index++) {
+            if (isCheckpoint(commentPart.getText(index))) {
+                checkpointCount++;
+            }
+        }
+        return checkpointCount;
+    }
+
+    /**
+     * Retrieve the rubric of the document: its rubric comment, else the rubric file set by jgram.rubric.
+     *
+     * @return {@link RubricPlan} null when there is no rubric
+     * @throws IOException Throws if the document or the rubric file can't be read
+     * @throws InvalidGrammarException Throws if the rubric grammar is invalid
+     * @throws InvalidValueException Throws if a rubric value is invalid
+     */
+    public RubricPlan getRubricPlan() throws IOException, InvalidGrammarException, InvalidValueException {
+        if (!mRubricPlanRead) {
+            // The last rubric comment overrides the rubric file, if any
+            CommentPart commentPart = getCommentPart();
+            String rubricComment = null;
+            for (int index = 0; index < commentPart.size(); index++) {
+                if (RubricPlan.isRubric(commentPart.getText(index))) {
+                    rubricComment = commentPart.getText(index);
+                }
+            }
+
+            File rubricFile = Settings.getRubric();
+            if (rubricComment != null) {
+                mRubricPlan = RubricPlan.compile(rubricComment);
+            } else {
+                mRubricPlan = rubricFile == null ? null : RubricPlan.compile(rubricFile);
+            }
+            mRubricPlanRead = true;
+        }
+        return mRubricPlan;
+    }
+
+    /**
+     * Create the evaluator of the document checkpoint(s): a {@link RubricEvaluator} when the document has a rubric,
+     * else a {@link JustInTimeEvaluator}.
+     *
+     * @return {@link Evaluator}
+     * @throws IOException Throws if file not found or issue reading document
+     * @throws InvalidGrammarException Throws if JGRAM (aka Checkpoint), grade mapping or rubric grammar is invalid
+     * @throws InvalidValueException Throws if JGRAM (aka Checkpoint) attribute value is invalid
+     */
+    public Evaluator createEvaluator() throws IOException, InvalidGrammarException, InvalidValueException {
+        List<Checkpoint> checkpointList = getCheckpoint();
+        RubricPlan rubricPlan = getRubricPlan();
+        return rubricPlan == null ? new JustInTimeEvaluator(checkpointList) : new RubricEvaluator(rubricPlan, checkpointList);
+    }
+
+    /**
+     * Read every piece of the word document: checkpoint(s), grade mapping, rubric and overall grade table.
+     *
+     * <p>Each piece is otherwise read on first access, eg. {@link #hasResult()} alone reads the main document part
+     * only, and {@link #getCheckpoint()} alone the comments.</p>
      *
      * @throws IOException Throws if file not found or issue reading document
      * @throws InvalidGrammarException Throws if JGRAM (aka Checkpoint) or grade mapping grammar is invalid. eg CHECKPOINT( GRADE=95, FEEDBACK=[]) is missing WEIGHT
      * @throws InvalidValueException Throws if JGRAM (aka Checkpoint) attribute value is invalid. eg CHECKPOINT( WEIGHT=A, GRADE=95, FEEDBACK=[]) has invalid WEIGHT value
      */
     public void index() throws IOException, InvalidGrammarException, InvalidValueException {
+        getCheckpoint();
+        readGradeMapping();
+        getRubricPlan();
+        getResultTablePart();
+    }
+
+    /**
+     * Read the content of the word document from a stream, and stores the entire content in-memory. The stream is
+     * read to the end but not closed, eg. it can be an archive entry stream.
+     *
+     * @param pInputStream stream of the *.docx document content
+     * @throws IOException Throws if issue reading document
+     * @throws InvalidGrammarException Throws if JGRAM (aka Checkpoint) or grade mapping grammar is invalid.
+     * @throws InvalidValueException Throws if JGRAM (aka Checkpoint) attribute value is invalid.
+     */
+    public void index(InputStream pInputStream) throws IOException, InvalidGrammarException, InvalidValueException {
+        mContent = pInputStream.readAllBytes();
+        mContentLength = mContent.length;
+        mDocumentPackage = new DocumentPackage(mDocumentPath, mContent, mContentLength);
+        mCommentPart = null;
+        mResultTablePart = null;
+        mCheckpointList = null;
+        mCheckpointThreadList = null;
+        mGradeMapping = null;
+        mRubricPlan = null;
+        mRubricPlanRead = false;
+        index();
+    }
 
-        //GOAL1: Read a MS word document.
-        //GOAL2: Extract all the comments.
-        //GOAL3: Filter out the comments not containing checkpoint or grade mapping
-        //GOAL4: Notify user with details of non-compliant checkpoints
-        //GOAL4: Persist the (1) extracted checkpoint and (2) grade mapping for easy access
+    /**
+     * Retrieve the name of every package part read so far, in order.
+     *
+     * @return {@link List}
+     */
+    List<String> getReadPartList() {
+        return mDocumentPackage.getReadPartList();
+    }
 
-        // Read the word document
-        File file = new File(mDocumentPath);
-        if (!file.exists()) {
-            throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
+    /**
+     * Retrieve the comments of the document, reading word/comments.xml on first access.
+     *
+     * @return {@link CommentPart}
+     */
+    CommentPart getCommentPart() throws IOException {
+        if (mCommentPart == null) {
+            // Without a comments part, preflight already answers: no checkpoint(s)
+            String commentsPartName = mDocumentPackage.mayHaveComments()
+                    ? mDocumentPackage.getRelatedPartName(DocumentPackage.COMMENTS_RELATION) : null;
+            CommentPart commentPart = commentsPartName == null ? null : mDocumentPackage.readPart(commentsPartName, CommentPart::read);
+            mCommentPart = commentPart == null ? CommentPart.EMPTY : commentPart;
         }
+        return mCommentPart;
+    }
 
-        FileInputStream fileInputStream = new FileInputStream(file.getAbsolutePath());
-        XWPFDocument documentContent = null;
+    /**
+     * Retrieve the overall grade table of the document, reading the main document part on first access.
+     */
+    private ResultTablePart getResultTablePart() throws IOException {
+        if (mResultTablePart == null) {
+            ResultTablePart resultTablePart = mDocumentPackage.readPart(mDocumentPackage.getDocumentPartName(), ResultTablePart::read);
+            if (resultTablePart == null) {
+                throw new IOException(String.format("Document %s has no main document part", mDocumentPath));
+            }
+            mResultTablePart = resultTablePart;
+        }
+        return mResultTablePart;
+    }
 
-        try {
-            //How1 : Read the MS Word document using Apache POI library
-            documentContent = new XWPFDocument(fileInputStream);
+    /**
+     * Extract and validate the checkpoint(s) of the document, and group them by comment thread.
+     *
+     * <p>Grade mapping and rubric comments are parsed in document order along the way, so the first invalid comment
+     * of any kind fails the extraction, and each checkpoint resolves grade letters with the mapping above it.</p>
+     */
+    private void indexCheckpoints() throws IOException, InvalidGrammarException, InvalidValueException {
 
-            mOverallGradeTable = getOverallResultTable(documentContent);
+        //GOAL1: Read the comments of the MS word document.
+        //GOAL2: Filter out the comments not containing checkpoint or grade mapping
+        //GOAL3: Notify user with details of non-compliant checkpoints
+        //GOAL4: Persist the extracted checkpoint for easy access
 
-            //How2 : Extract all the comments from already read document content
-            List<XWPFComment> commentList = Arrays.asList(documentContent.getComments());
+        CommentPart commentPart = getCommentPart();
 
-            // Set the default grade mapping, this will be overridden if the document contains custom grade mapping.
-            mGradeMapping = defaultGradeMapping();
+        // Set the default grade mapping, this will be overridden if the document contains custom grade mapping.
+        GradeMapping gradeMapping = lookupGradeMapping(DEFAULT_GRADE_MAPPING_KEY);
+        List<Checkpoint> checkpointList;
+        List<String> checkpointCommentIdList = new ArrayList<>();
 
-            mCheckpointList = new ArrayList<>();
+        // Very large documents eg. generated rubric templates are processed in parallel, with the same outcome
+        int parallelThreshold = Settings.getIndexParallelThreshold();
+        if (parallelThreshold > 0 && commentPart.size() >= parallelThreshold) {
+            checkpointList = indexParallel(commentPart, gradeMapping, checkpointCommentIdList);
+        } else {
+            checkpointList = new ArrayList<>();
 
             // GOAL: What will happen if a checkpoint had bad grammar? Is there a way to convey user which checkpoint had issues?
             // How: Keep a counter of checkpoints (since we always traverse the document from top to bottom), we can get the exact
             //      checkpoint order number, which can be tagged logged with error message.
             int commentCounter = 0;
 
-            //How3 : Iterate through all the comments and filter out NOT (checkpoint or grade mapping).
+            //How1 : Iterate through all the comments and filter out NOT (checkpoint or grade mapping).
             //       We define non checkpoint, based on grammar i.e. any comment not starting with CHECKPOINT( will be ignored
             //       We define non grade mapping based on grammar i.e. any comment not starting with GRADEMAPPING( will be ignored
-
-            for (final XWPFComment comment : commentList) {
-                String commentText = comment.getText();
+            for (int index = 0; index < commentPart.size(); index++) {
+                String commentText = commentPart.getText(index);
 
                 if (isCheckpoint(commentText)) {
                     // If the comment is of type checkpoint, go on with further checkpoint scrutiny.
 
                     commentCounter++;
 
-                    //How3 : Comment considered for checkpoint will go through further validation to comply
+                    //How2 : Comment considered for checkpoint will go through further validation to comply
                     //       with checkpoint grammar. Not compliant checkpoint will throw exceptions.
-                    Checkpoint checkpoint = extractCheckpoint(commentText, commentCounter);
+                    Checkpoint checkpoint = extractCheckpoint(commentText, commentCounter, gradeMapping);
 
-                    //How4 : Non-compliant checkpoint values wil throw exception. Non-compliant checkpoint values are
+                    //How3 : Non-compliant checkpoint values wil throw exception. Non-compliant checkpoint values are
                     //       (1) grade < minGrade or grade > maxGrade eg. 0-100
                     //       (2) weight < minWeight or weight > maxWeight eg. 1-10
                     validateCheckpoint(checkpoint, commentCounter);
 
                     //how4: At this point, it has gone through all the scrutiny and passed with flying colors.
                     //      It's safe to persist the checkpoint for further evaluation.
-                    mCheckpointList.add(checkpoint);
-
+                    checkpointList.add(checkpoint);
+                    checkpointCommentIdList.add(commentPart.getId(index));
 
                 } else if (isGradeMapping(commentText)) {
                     // If the comment is of type grade mapping, go on with further grade mapping scrutiny.
 
                     commentCounter++;
 
-                    //How3 : Comment considered for grade mapping will go through further validation to comply
+                    //How2 : Comment considered for grade mapping will go through further validation to comply
                     //       with grade mapping grammar. Not compliant checkpoint will throw exceptions.
-                    mGradeMapping = extractGradeMapping(commentText);
+                    gradeMapping = lookupGradeMapping(commentText);
 
+                } else if (RubricPlan.isRubric(commentText)) {
+                    commentCounter++;
+                    RubricPlan.compile(commentText);
                 }
             }
-        } finally {
-            // Defer section, for clean exit
-            if (documentContent != null)
-                documentContent.close();
+        }
+
+        // Replies are linked to their parent comment, to group checkpoints by thread
+        CommentThreadIndex commentThreadIndex = CommentThreadIndex.read(mDocumentPackage, commentPart);
+        resolveCheckpointThreads(checkpointList, checkpointCommentIdList, commentThreadIndex, Settings.getReplyPolicy());
+    }
+
+    /**
+     * Extract and validate the checkpoints of a large document on the common fork-join pool.
+     *
+     * <p>Comments are read and grade mappings resolved in document order first, so each checkpoint keeps its order
+     * number and the grade mapping in effect at its position. Checkpoints are then extracted in chunks, and the
+     * first failure in document order is thrown, exactly like the sequential loop.</p>
+     */
+    private List<Checkpoint> indexParallel(CommentPart pCommentPart, GradeMapping pGradeMapping, List<String> pCheckpointCommentIdList)
+            throws InvalidGrammarException, InvalidValueException {
+        List<String> commentTextList = new ArrayList<>();
+        List<Integer> commentOrderList = new ArrayList<>();
+        List<GradeMapping> gradeMappingList = new ArrayList<>();
+        GradeMapping gradeMapping = pGradeMapping;
+        Exception commentException = null;
+        int commentCounter = 0;
+
+        for (int index = 0; index < pCommentPart.size(); index++) {
+            String commentText = pCommentPart.getText(index);
+
+            if (isCheckpoint(commentText)) {
+                commentCounter++;
+                commentTextList.add(commentText);
+                commentOrderList.add(commentCounter);
+                pCheckpointCommentIdList.add(pCommentPart.getId(index));
+                gradeMappingList.add(gradeMapping);
+            } else if (isGradeMapping(commentText) || RubricPlan.isRubric(commentText)) {
+                commentCounter++;
+                try {
+                    if (isGradeMapping(commentText)) {
+                        gradeMapping = lookupGradeMapping(commentText);
+                    } else {
+                        RubricPlan.compile(commentText);
+                    }
+                } catch (InvalidGrammarException | InvalidValueException | RuntimeException e) {
+                    // Comments after an invalid grade mapping or rubric are never reached
+                    commentException = e;
+                    break;
+                }
+            }
+        }
+
+        int checkpointCount = commentTextList.size();
+        Checkpoint[] checkpoints = new Checkpoint[checkpointCount];
+        Exception[] exceptions = new Exception[checkpointCount];
+        int chunkSize = Math.max(1, checkpointCount / (ForkJoinPool.getCommonPoolParallelism() * 4));
+        ForkJoinPool.commonPool().invoke(new CheckpointAction(0, checkpointCount, chunkSize, commentTextList,
+                commentOrderList, gradeMappingList, checkpoints, exceptions));
+
+        List<Checkpoint> checkpointList = new ArrayList<>(checkpointCount);
+        for (int index = 0; index < checkpointCount; index++) {
+            if (exceptions[index] != null) {
+                // Same failure as the sequential loop
+                throwIndexException(exceptions[index]);
+            }
+            checkpointList.add(checkpoints[index]);
+        }
+
+        if (commentException != null) {
+            throwIndexException(commentException);
+        }
+        return checkpointList;
+    }
 
-            fileInputStream.close();
+    /**
+     * Group the indexed checkpoints by comment thread, and apply the reply policy to the checkpoint(s) evaluated.
+     *
+     * <p>Every reply link is followed once: the thread of each comment visited is remembered, so later walks stop
+     * at the first known comment.</p>
+     *
+     * @param pCheckpointList indexed checkpoint(s), in document order
+     * @param pCommentIdList comment id of each indexed checkpoint, in document order
+     */
+    private void resolveCheckpointThreads(List<Checkpoint> pCheckpointList, List<String> pCommentIdList,
+                                          CommentThreadIndex pCommentThreadIndex, ReplyPolicy pReplyPolicy) {
+        List<CheckpointThread> checkpointThreadList = new ArrayList<>(pCheckpointList.size());
+        if (pCommentThreadIndex.isEmpty()) {
+            for (Checkpoint checkpoint : pCheckpointList) {
+                checkpointThreadList.add(new CheckpointThread(checkpoint));
+            }
+            mCheckpointThreadList = checkpointThreadList;
+            mCheckpointList = pCheckpointList;
+            return;
+        }
+
+        Map<String, Integer> checkpointIndexMap = new HashMap<>();
+        for (int index = 0; index < pCommentIdList.size(); index++) {
+            checkpointIndexMap.put(pCommentIdList.get(index), index);
+        }
+
+        // A reply may precede its parent in the comments part, so threads are opened before replies are added
+        Map<String, String> threadIdMap = new HashMap<>();
+        String[] threadIds = new String[pCommentIdList.size()];
+        Map<String, CheckpointThread> checkpointThreadMap = new HashMap<>();
+        for (int index = 0; index < pCommentIdList.size(); index++) {
+            threadIds[index] = findThreadId(pCommentIdList.get(index), pCommentThreadIndex, checkpointIndexMap, threadIdMap);
+            if (threadIds[index].equals(pCommentIdList.get(index))) {
+                CheckpointThread checkpointThread = new CheckpointThread(pCheckpointList.get(index));
+                checkpointThreadMap.put(threadIds[index], checkpointThread);
+                checkpointThreadList.add(checkpointThread);
+            }
+        }
+        for (int index = 0; index < pCommentIdList.size(); index++) {
+            if (!threadIds[index].equals(pCommentIdList.get(index))) {
+                checkpointThreadMap.get(threadIds[index]).addReply(pCheckpointList.get(index));
+            }
+        }
+
+        // Supplementing replies keeps every checkpoint in document order, as indexed
+        List<Checkpoint> checkpointList = pCheckpointList;
+        if (pReplyPolicy == ReplyPolicy.OVERRIDE) {
+            checkpointList = new ArrayList<>(checkpointThreadList.size());
+            for (CheckpointThread checkpointThread : checkpointThreadList) {
+                checkpointList.addAll(checkpointThread.getCheckpoint(pReplyPolicy));
+            }
+        }
+        mCheckpointThreadList = checkpointThreadList;
+        mCheckpointList = checkpointList;
+    }
+
+    /**
+     * Find the comment id of the top most checkpoint above a checkpoint comment, itself included : the reply chain is
+     * walked to its root, so a reply to a reply checkpoint belongs to the thread of the checkpoint both descend from.
+     */
+    private static String findThreadId(String pCommentId, CommentThreadIndex pCommentThreadIndex,
+                                       Map<String, Integer> pCheckpointIndexMap, Map<String, String> pThreadIdMap) {
+        List<String> pathList = new ArrayList<>();
+        Set<String> visitedSet = new HashSet<>();
+        String threadId = null;
+        String commentId = pCommentId;
+
+        // Walk up until the thread is known or the top is reached. The visited set guards against malformed cycles.
+        while (commentId != null && visitedSet.add(commentId)) {
+            if (pThreadIdMap.containsKey(commentId)) {
+                threadId = pThreadIdMap.get(commentId);
+                break;
+            }
+            pathList.add(commentId);
+            commentId = pCommentThreadIndex.getParentId(commentId);
+        }
+
+        // From the top down, the first checkpoint opens the thread; comments above it belong to no thread
+        for (int index = pathList.size() - 1; index >= 0; index--) {
+            String pathCommentId = pathList.get(index);
+            if (threadId == null && pCheckpointIndexMap.containsKey(pathCommentId)) {
+                threadId = pathCommentId;
+            }
+            pThreadIdMap.put(pathCommentId, threadId);
+        }
+        return threadId;
+    }
+
+    private static void throwIndexException(Exception pException) throws InvalidGrammarException, InvalidValueException {
+        if (pException instanceof InvalidGrammarException) {
+            throw (InvalidGrammarException) pException;
+        }
+        if (pException instanceof InvalidValueException) {
+            throw (InvalidValueException) pException;
+        }
+        throw (RuntimeException) pException;
+    }
+
+    /**
+     * Represents the extraction of a range of checkpoint comments. Each checkpoint is stored at its index, with either
+     * its value or its failure, so results don't depend on which thread processed which chunk.
+     */
+    private final class CheckpointAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+        private final int mChunkSize;
+        private final List<String> mCommentTextList;
+        private final List<Integer> mCommentOrderList;
+        private final List<GradeMapping> mGradeMappingList;
+        private final Checkpoint[] mCheckpoints;
+        private final Exception[] mExceptions;
+
+        CheckpointAction(int pStart, int pEnd, int pChunkSize, List<String> pCommentTextList, List<Integer> pCommentOrderList,
+                         List<GradeMapping> pGradeMappingList, Checkpoint[] pCheckpoints, Exception[] pExceptions) {
+            mStart = pStart;
+            mEnd = pEnd;
+            mChunkSize = pChunkSize;
+            mCommentTextList = pCommentTextList;
+            mCommentOrderList = pCommentOrderList;
+            mGradeMappingList = pGradeMappingList;
+            mCheckpoints = pCheckpoints;
+            mExceptions = pExceptions;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > mChunkSize) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new CheckpointAction(mStart, middle, mChunkSize, mCommentTextList, mCommentOrderList,
+                                mGradeMappingList, mCheckpoints, mExceptions),
+                        new CheckpointAction(middle, mEnd, mChunkSize, mCommentTextList, mCommentOrderList,
+                                mGradeMappingList, mCheckpoints, mExceptions));
+                return;
+            }
+
+            for (int index = mStart; index < mEnd; index++) {
+                int commentOrderNumber = mCommentOrderList.get(index);
+                try {
+                    Checkpoint checkpoint = extractCheckpoint(mCommentTextList.get(index), commentOrderNumber,
+                            mGradeMappingList.get(index));
+                    validateCheckpoint(checkpoint, commentOrderNumber);
+                    mCheckpoints[index] = checkpoint;
+                } catch (InvalidGrammarException | InvalidValueException | RuntimeException e) {
+                    mExceptions[index] = e;
+                }
+            }
         }
     }
 
@@ -150,63 +565,219 @@ public class Document {
      * @param pResult final evaluated result
      */
     public void appendResult(Result pResult, String secret) throws IOException {
+        if (mContent != null) {
+            throw new IllegalStateException("In-memory document result must be appended to an output stream");
+        }
 
-        // Read the word document
-        File file = new File(mDocumentPath);
-        if (!file.exists()) {
-            throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
+        XWPFDocument documentContent = createResultContent(pResult, () -> createToken(pResult, secret));
+        try (FileOutputStream fileOutputStream = new FileOutputStream(mDocumentPath)) {
+            documentContent.write(fileOutputStream);
+        } finally {
+            // Defer section
+            documentContent.close();
         }
+    }
 
-        FileInputStream fileInputStream = new FileInputStream(file.getAbsolutePath());
-        XWPFDocument documentContent = null;
+    /**
+     * Appends final evaluated result at the end of the document, and writes the resulting document to a stream
+     * instead of overwriting the source. The stream is not closed.
+     *
+     * @param pResult final evaluated result
+     * @param pOutputStream stream receiving the graded *.docx document
+     */
+    public void appendResult(Result pResult, String secret, OutputStream pOutputStream) throws IOException {
+        writeResultContent(createResultContent(pResult, () -> createToken(pResult, secret)), pOutputStream);
+    }
 
-        try {
-            documentContent = new XWPFDocument(fileInputStream);
+    /**
+     * Appends final evaluated result at the end of the document, with a token already signed eg. by a signing stage,
+     * and writes the resulting document to a stream. The stream is not closed.
+     *
+     * @param pResult final evaluated result
+     * @param pToken signed token of the result, see {@link #createToken(Result, String)}
+     * @param pOutputStream stream receiving the graded *.docx document
+     */
+    public void appendSignedResult(Result pResult, String pToken, OutputStream pOutputStream) throws IOException {
+        writeResultContent(createResultContent(pResult, () -> pToken), pOutputStream);
+    }
+
+    /**
+     * Replaces the token of the overall result table, eg. to sign the same result with another secret, and writes
+     * the resulting document to a stream. Only the main document part is rewritten, every other part is copied
+     * raw. The stream is not closed.
+     *
+     * @param pToken signed token replacing the current one, see {@link #createToken(Result, String)}
+     * @param pOutputStream stream receiving the *.docx document
+     * @throws IOException Throws if the document has no overall result table, or its token cell was edited
+     */
+    public void replaceToken(String pToken, OutputStream pOutputStream) throws IOException {
+        String currentToken = getHashString();
+        if (currentToken == null) {
+            throw new IOException("Document has no JGRAM Overall Grade table");
+        }
 
-            // Create JGRAM overall grade paragraph
-            if (!isParagraphExists(documentContent, OVERALL_GRADE_TITLE)) {
-                // create paragraph
-                createParagraph(documentContent, OVERALL_GRADE_TITLE);
+        // Tokens are ASCII without XML special characters, so they appear verbatim in the part
+        byte[] currentTokenBytes = currentToken.getBytes(StandardCharsets.US_ASCII);
+        mDocumentPackage.rewritePart(mDocumentPackage.getDocumentPartName(), content -> {
+            int tokenIndex = indexOf(content, currentTokenBytes, 0);
+            if (tokenIndex < 0 || indexOf(content, currentTokenBytes, tokenIndex + 1) >= 0) {
+                throw new IOException("Token of the JGRAM Overall Grade table was edited, grade the document again");
             }
+            byte[] tokenBytes = pToken.getBytes(StandardCharsets.US_ASCII);
+            byte[] rewrittenContent = new byte[content.length - currentTokenBytes.length + tokenBytes.length];
+            System.arraycopy(content, 0, rewrittenContent, 0, tokenIndex);
+            System.arraycopy(tokenBytes, 0, rewrittenContent, tokenIndex, tokenBytes.length);
+            System.arraycopy(content, tokenIndex + currentTokenBytes.length, rewrittenContent, tokenIndex + tokenBytes.length,
+                    content.length - tokenIndex - currentTokenBytes.length);
+            return rewrittenContent;
+        }, pOutputStream);
+    }
+
+    private static int indexOf(byte[] pContent, byte[] pValue, int pFromIndex) {
+        for (int index = pFromIndex; index <= pContent.length - pValue.length; index++) {
+            int matched = 0;
+            while (matched < pValue.length && pContent[index + matched] == pValue[matched]) {
+                matched++;
+            }
+            if (matched == pValue.length) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeResultContent(XWPFDocument pDocumentContent, OutputStream pOutputStream) throws IOException {
+        try {
+            pDocumentContent.write(new UnclosableOutputStream(pOutputStream));
+        } finally {
+            // Defer section
+            pDocumentContent.close();
+        }
+    }
+
+    /**
+     * Read the word document, and append the overall grade paragraph and table. A document graded before has its
+     * overall grade table replaced where it is instead. Caller must close returned content.
+     *
+     * @param pToken signed token of the result, only created once the document content is read
+     */
+    private XWPFDocument createResultContent(Result pResult, Supplier<String> pToken) throws IOException {
+        mDocumentPackage.checkPreflight();
+        XWPFDocument documentContent;
+        try (InputStream inputStream = openContent()) {
+            documentContent = new XWPFDocument(inputStream);
+        }
+
+        try {
+            XWPFTable overallResultTable = getOverallResultTable(documentContent);
+            if (overallResultTable == null) {
+                // Create JGRAM overall grade paragraph
+                if (!isParagraphExists(documentContent, OVERALL_GRADE_TITLE)) {
+                    // create paragraph
+                    createParagraph(documentContent, OVERALL_GRADE_TITLE);
+                }
 
-            // if overall grade table already exists, then delete table.
-            if (mOverallGradeTable == null) {
                 //create table
-                createOverallResultTable(documentContent, pResult, secret);
+                createOverallResultTable(documentContent.createTable(), pResult, pToken.get());
             } else {
-                //TODO: There is a bug in POI library, restricting us from automatically deleting or updating the existing table.
-                // For now we will let user know to manually cleanup
-                throw new IOException("Must not contain old results. Please manually delete JGRAM Overall Grade section first(including table)");
+                // Regrade, only the old table is replaced: its heading and anything around it are left as they are
+                createOverallResultTable(replaceTable(documentContent, overallResultTable), pResult, pToken.get());
             }
+        } catch (RuntimeException e) {
+            documentContent.close();
+            throw e;
+        }
 
-            FileOutputStream fileOutputStream = new FileOutputStream(mDocumentPath);
-            documentContent.write(fileOutputStream);
+        return documentContent;
+    }
 
-        } finally {
-            // Defer section
-            if (documentContent != null)
-                documentContent.close();
+    /**
+     * Open the content of the word document, either the in-memory content or the file.
+     */
+    private InputStream openContent() throws FileNotFoundException {
+        if (mContent != null) {
+            return new ByteArrayInputStream(mContent, 0, mContentLength);
+        }
 
-            fileInputStream.close();
+        // Read the word document
+        File file = new File(mDocumentPath);
+        if (!file.exists()) {
+            throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
         }
+
+        return new FileInputStream(file.getAbsolutePath());
+    }
+
+    /**
+     * Check the document package from its zip central directory and content types part alone, eg. to reject a bad
+     * upload before parsing it. Grading and tamper test do it anyway, unless turned off with {@link Settings#PREFLIGHT}.
+     *
+     * @return {@link Preflight}
+     * @throws IOException Throws if file not found or issue reading document
+     */
+    public Preflight preflight() throws IOException {
+        return mDocumentPackage.getPreflight();
     }
 
-    public String getHashString() {
-        int lastRowIndex = mOverallGradeTable.getRows().size() -1;
-        String hashString = mOverallGradeTable.getRow(lastRowIndex).getCell(3).getText();
+    /**
+     * Verify whether the document already contains the JGRAM overall grade table. Reads the main document part only.
+     *
+     * @return {@link Boolean}
+     * @throws IOException Throws if file not found or issue reading document
+     */
+    public boolean hasResult() throws IOException {
+        return getResultTablePart().exists();
+    }
 
-        return hashString;
+    /**
+     * Retrieve the signed result token of the JGRAM overall grade table. Reads the main document part only.
+     *
+     * @return {@link String} null when the document has no overall grade table
+     * @throws IOException Throws if file not found or issue reading document
+     */
+    public String getHashString() throws IOException {
+        return getResultTablePart().getToken();
     }
 
     /**
-     * Retrieve grade mapping.
+     * Compare the printed JGRAM overall grade table, cell by cell, with a result eg. decoded from its token. Reads
+     * the main document part only, once shared with {@link #getHashString()}.
      *
-     * <p>Note: If the are no grade mapping in the document, it will return an empty list;
-     * however null means document hasn't been indexed.</p>
+     * @param pResult result the table must show
+     * @return {@link List} one line per differing cell or row, empty when the table matches the result
+     * @throws IOException Throws if file not found, issue reading document, or the document has no overall grade table
+     */
+    public List<String> getResultTableDiff(Result pResult) throws IOException {
+        ResultTablePart resultTablePart = getResultTablePart();
+        if (!resultTablePart.exists()) {
+            throw new IOException("Document has no JGRAM Overall Grade table");
+        }
+        return resultTablePart.diff(pResult);
+    }
+
+    /**
+     * Retrieve grade mapping: the last grade mapping comment of the document, else the default grade mapping.
      *
-     * @return {@link GradeMapping}
+     * @return {@link GradeMapping} a copy, the grade mapping itself is shared by every document with the same comment
+     * @throws IOException Throws if file not found or issue reading document
+     * @throws InvalidGrammarException Throws if the grade mapping grammar is invalid
+     * @throws InvalidValueException Throws if a grade mapping value is invalid
      */
-    private GradeMapping getGradeMapping() {
+    public GradeMapping getGradeMapping() throws IOException, InvalidGrammarException, InvalidValueException {
+        return new GradeMapping(readGradeMapping());
+    }
+
+    private GradeMapping readGradeMapping() throws IOException, InvalidGrammarException, InvalidValueException {
+        if (mGradeMapping == null) {
+            CommentPart commentPart = getCommentPart();
+            String gradeMappingComment = DEFAULT_GRADE_MAPPING_KEY;
+            for (int index = 0; index < commentPart.size(); index++) {
+                if (isGradeMapping(commentPart.getText(index))) {
+                    gradeMappingComment = commentPart.getText(index);
+                }
+            }
+            mGradeMapping = lookupGradeMapping(gradeMappingComment);
+        }
         return mGradeMapping;
     }
 
@@ -230,10 +801,11 @@ public class Document {
      *
      * @param pComment String with potential checkpoint meta data
      * @param pCommentOrderNumber value denotes checkpoint order in the document.
+     * @param pGradeMapping grade mapping in effect at the checkpoint, to resolve grade letters
      * @return {@link Boolean}
      *
      */
-    private Checkpoint extractCheckpoint(String pComment, int pCommentOrderNumber) throws InvalidGrammarException, InvalidValueException {
+    private Checkpoint extractCheckpoint(String pComment, int pCommentOrderNumber, GradeMapping pGradeMapping) throws InvalidGrammarException, InvalidValueException {
         //GOAL1: Extract meta data i.e. weight, grade, feedback from given string.
         //GOAL2: Notify user with details of non-compliant checkpoints grammar or value
         //GOAL3: Construct a Checkpoint object with extracted meta data.
@@ -301,7 +873,7 @@ public class Document {
                 case GRADE_GRAMMAR_KEY:
                     if (value.length() > 0) {
                         // Professor can specify grade letter or grade value. This will handle both scenario
-                        grade = isNumeric(value) ? Integer.parseInt(value) : mGradeMapping.getGrade(value.toUpperCase());
+                        grade = isNumeric(value) ? Integer.parseInt(value) : pGradeMapping.getGrade(value.toUpperCase());
                     }
                     gradeSpecified = true;
                     break;
@@ -324,8 +896,8 @@ public class Document {
             throw new InvalidGrammarException(String.format("Checkpoint %d - Invalid checkpoint grammar. Missing feedback", pCommentOrderNumber));
         }
 
-        //how4: assemble the processed value to construct checkpoint object.
-        Checkpoint checkpoint = new Checkpoint(weight, grade, feedback);
+        //how4: assemble the processed value to construct checkpoint object. Feedback is shared across the batch.
+        Checkpoint checkpoint = new Checkpoint(weight, grade, FeedbackInterner.getInstance().intern(feedback));
         return checkpoint;
     }
 
@@ -348,6 +920,25 @@ public class Document {
         }
     }
 
+    /**
+     * Retrieve the grade mapping for a grade mapping comment, parsing it only the first time it is seen.
+     *
+     * @param pComment grade mapping comment, or empty string for the default grade mapping
+     * @return {@link GradeMapping}
+     */
+    private GradeMapping lookupGradeMapping(String pComment) throws InvalidGrammarException, InvalidValueException {
+        GradeMapping gradeMapping = GRADE_MAPPING_CACHE.get(pComment);
+        if (gradeMapping != null) {
+            return gradeMapping;
+        }
+
+        gradeMapping = pComment.equals(DEFAULT_GRADE_MAPPING_KEY) ? defaultGradeMapping() : extractGradeMapping(pComment);
+        if (GRADE_MAPPING_CACHE.size() < GRADE_MAPPING_CACHE_LIMIT) {
+            GRADE_MAPPING_CACHE.putIfAbsent(pComment, gradeMapping);
+        }
+        return gradeMapping;
+    }
+
     /**
      * Constructs a default hardcoded grade mapping.
      *
@@ -485,23 +1076,32 @@ public class Document {
     }
 
     /**
-     * Append overall result table to the specified MS Word document.
+     * Create the signed token of a result, as written in the overall result table.
      *
-     * @param pDocumentContent Document where the content will be appended
+     * @param pResult evaluated result
+     * @param secret secret used to sign the result
+     * @return {@link String}
+     */
+    public static String createToken(Result pResult, String secret) {
+        JWT jwt = JWT.getInstance(secret);
+        return jwt.create("1","BU-MET","JGram", pResult);
+    }
+
+    /**
+     * Fill an empty table of the specified MS Word document with the overall result.
+     *
+     * @param pTable empty table of the document, with its default row
      * @param pResult result to be appended
+     * @param pToken signed token of the result
      *
      */
-    private void createOverallResultTable(XWPFDocument pDocumentContent, Result pResult, String secret) {
-
-        // Create hash token for tamper-proof
-        JWT jwt = new JWT(secret);
-        String hashString = jwt.create("1","BU-MET","JGram", pResult);
+    private void createOverallResultTable(XWPFTable pTable, Result pResult, String pToken) {
 
-        //create table
-        XWPFTable table = pDocumentContent.createTable();
+        // Hash token for tamper-proof
+        String hashString = pToken;
 
         //create first row
-        XWPFTableRow tableHeaderRow = table.getRow(0);
+        XWPFTableRow tableHeaderRow = pTable.getRow(0);
         tableHeaderRow.getCell(0).setText("C#");
         tableHeaderRow.addNewTableCell().setText("Weight");
         tableHeaderRow.addNewTableCell().setText("Grade");
@@ -513,21 +1113,19 @@ public class Document {
         tableHeaderRow.getCell(2).setColor("c0c0c0");
         tableHeaderRow.getCell(3).setColor("c0c0c0");
 
-        for (int checkpointID : pResult.getCheckpointMap().keySet())
+        for (int checkpointID = 1; checkpointID <= pResult.getCheckpointCount(); checkpointID++)
         {
-            Checkpoint checkpoint = pResult.getCheckpointMap().get(checkpointID);
-
             //create checkpoint row
-            XWPFTableRow tableCheckpointRow = table.createRow();
+            XWPFTableRow tableCheckpointRow = pTable.createRow();
             tableCheckpointRow.getCell(0).setText("" + checkpointID);
-            tableCheckpointRow.getCell(1).setText("" + checkpoint.getWeight());
-            tableCheckpointRow.getCell(2).setText("" + checkpoint.getGrade());
-            tableCheckpointRow.getCell(3).setText("" + checkpoint.getFeedback());
+            tableCheckpointRow.getCell(1).setText("" + pResult.getWeight(checkpointID));
+            tableCheckpointRow.getCell(2).setText("" + pResult.getGrade(checkpointID));
+            tableCheckpointRow.getCell(3).setText("" + pResult.getFeedback(checkpointID));
 
         }
 
         //create overall result row
-        XWPFTableRow tableOverallRow = table.createRow();
+        XWPFTableRow tableOverallRow = pTable.createRow();
         tableOverallRow.getCell(0).setText("");
         tableOverallRow.getCell(1).setText("Σ");
         tableOverallRow.getCell(2).setText(String.format("%.2f",pResult.getOverallGrade()));
@@ -564,4 +1162,43 @@ public class Document {
 
         return lastTable;
     }
-}
\ No newline at end of file
+
+    /**
+     * Insert an empty table in place of a table of the specified MS Word document, at the body XML level, and remove
+     * the old one.
+     *
+     * @param pDocumentContent Document where the table will be replaced
+     * @param pTable table to be replaced
+     * @return {@link XWPFTable}
+     */
+    private XWPFTable replaceTable(XWPFDocument pDocumentContent, XWPFTable pTable) {
+        XmlCursor cursor = pTable.getCTTbl().newCursor();
+        try {
+            XWPFTable table = pDocumentContent.insertNewTbl(cursor);
+            pDocumentContent.removeBodyElement(pDocumentContent.getPosOfTable(pTable));
+            return table;
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    /**
+     * Shields a stream we don't own from being closed by POI, eg. an archive entry stream.
+     */
+    static final class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream pOutputStream) {
+            super(pOutputStream);
+        }
+
+        @Override
+        public void write(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+            out.write(pBuffer, pOffset, pLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Only flush, owner of the stream closes it
+            flush();
+        }
+    }
+}
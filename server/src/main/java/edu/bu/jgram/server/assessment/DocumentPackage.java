@@ -0,0 +1,358 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import edu.bu.jgram.server.Settings;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+/**
+ * Represents the package (zip) of a *.docx document, read one part at a time.
+ *
+ * <p>Unlike opening the whole document with POI, only the parts a query needs are read: the relationship parts
+ * locating them, then eg. word/comments.xml alone. Every part read is recorded, in order.</p>
+ *
+ * <p>Unless turned off with {@link Settings#PREFLIGHT}, the package passes its {@link Preflight} check before the
+ * first part is read.</p>
+ */
+final class DocumentPackage {
+
+    static final String COMMENTS_RELATION = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/comments";
+    static final String COMMENTS_EXTENDED_RELATION = "http://schemas.microsoft.com/office/2011/relationships/commentsExtended";
+    static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static final String OFFICE_DOCUMENT_RELATION = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument";
+    private static final String PACKAGE_RELATIONSHIPS_PART = "_rels/.rels";
+    private static final String DEFAULT_DOCUMENT_PART = "word/document.xml";
+
+    private final String mDocumentPath;
+    private final byte[] mContent;
+    private final int mContentLength;
+    private final List<String> mReadPartList = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile Preflight mPreflight;
+    private String mDocumentPartName;
+    // Relation type -> part name, of the parts related to the main document part
+    private Map<String, String> mRelatedPartNameMap;
+
+    /**
+     * @param pDocumentPath path of the *.docx file, used when pContent is null
+     * @param pContent buffer starting with the in-memory content of the *.docx document
+     * @param pContentLength length of the in-memory content
+     */
+    DocumentPackage(String pDocumentPath, byte[] pContent, int pContentLength) {
+        mDocumentPath = pDocumentPath;
+        mContent = pContent;
+        mContentLength = pContentLength;
+    }
+
+    /**
+     * Represents reading a part.
+     */
+    interface PartReader<T> {
+        T read(InputStream pInputStream) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Represents rewriting the content of a part.
+     */
+    interface PartRewriter {
+        byte[] rewrite(byte[] pContent) throws IOException;
+    }
+
+    /**
+     * Retrieve the name of the main document part eg. word/document.xml.
+     *
+     * @return {@link String}
+     * @throws IOException Throws if the package can't be read
+     */
+    String getDocumentPartName() throws IOException {
+        if (mDocumentPartName == null) {
+            List<String[]> relationshipList = readPart(PACKAGE_RELATIONSHIPS_PART, DocumentPackage::readRelationships);
+            String documentPartName = DEFAULT_DOCUMENT_PART;
+            for (String[] relationship : relationshipList == null ? Collections.<String[]>emptyList() : relationshipList) {
+                if (OFFICE_DOCUMENT_RELATION.equals(relationship[0])) {
+                    documentPartName = resolve("", relationship[1]);
+                }
+            }
+            mDocumentPartName = documentPartName;
+        }
+        return mDocumentPartName;
+    }
+
+    /**
+     * Retrieve the name of the part related to the main document part by a relation type.
+     *
+     * @param pRelationType relation type eg. {@link #COMMENTS_RELATION}
+     * @return {@link String} null when the document has no such part
+     * @throws IOException Throws if the package can't be read
+     */
+    String getRelatedPartName(String pRelationType) throws IOException {
+        if (mRelatedPartNameMap == null) {
+            String documentPartName = getDocumentPartName();
+            int directoryEnd = documentPartName.lastIndexOf('/') + 1;
+            String directory = documentPartName.substring(0, directoryEnd);
+            List<String[]> relationshipList = readPart(directory + "_rels/" + documentPartName.substring(directoryEnd) + ".rels",
+                    DocumentPackage::readRelationships);
+
+            Map<String, String> relatedPartNameMap = new HashMap<>();
+            for (String[] relationship : relationshipList == null ? Collections.<String[]>emptyList() : relationshipList) {
+                relatedPartNameMap.putIfAbsent(relationship[0], resolve(directory, relationship[1]));
+            }
+            mRelatedPartNameMap = relatedPartNameMap;
+        }
+        return mRelatedPartNameMap.get(pRelationType);
+    }
+
+    /**
+     * Check the package from its zip central directory and content types part, on first access.
+     *
+     * @return {@link Preflight}
+     * @throws IOException Throws if the package can't be read
+     */
+    Preflight getPreflight() throws IOException {
+        Preflight preflight = mPreflight;
+        if (preflight == null) {
+            try (SeekableByteChannel channel = openChannel()) {
+                preflight = Preflight.check(channel, Settings.getPreflightMaxBytes(), Settings.getPreflightMaxRatio(), mReadPartList);
+            }
+            mPreflight = preflight;
+        }
+        return preflight;
+    }
+
+    /**
+     * Verify whether the package may have a comments part. Without preflight, it is only known once read.
+     *
+     * @return {@link Boolean}
+     * @throws IOException Throws if the package can't be read or is rejected by preflight
+     */
+    boolean mayHaveComments() throws IOException {
+        return !Settings.isPreflight() || checkPreflight().hasComments();
+    }
+
+    /**
+     * Fail fast, before any part is parsed, when the package is rejected by preflight.
+     *
+     * @return {@link Preflight} null when preflight is turned off
+     * @throws IOException Throws if the package can't be read or is rejected by preflight
+     */
+    Preflight checkPreflight() throws IOException {
+        if (!Settings.isPreflight()) {
+            return null;
+        }
+        Preflight preflight = getPreflight();
+        if (preflight.isRejected()) {
+            throw new IOException(String.format("Document %s rejected by preflight : %s", mDocumentPath, preflight.getReason()));
+        }
+        return preflight;
+    }
+
+    /**
+     * Read a part.
+     *
+     * @param pPartName part name, without leading /, in any case
+     * @param pReader reads the part content
+     * @return {@link Object} what the reader returns, null when the part doesn't exist
+     * @throws IOException Throws if the package or the part can't be read
+     */
+    <T> T readPart(String pPartName, PartReader<T> pReader) throws IOException {
+        checkPreflight();
+        try {
+            if (mContent != null) {
+                try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(mContent, 0, mContentLength))) {
+                    ZipEntry entry;
+                    while ((entry = zipInputStream.getNextEntry()) != null) {
+                        if (entry.getName().equalsIgnoreCase(pPartName)) {
+                            mReadPartList.add(pPartName);
+                            return pReader.read(zipInputStream);
+                        }
+                    }
+                }
+                return null;
+            }
+
+            File file = new File(mDocumentPath);
+            if (!file.exists()) {
+                throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
+            }
+            try (ZipFile zipFile = new ZipFile(file)) {
+                ZipEntry entry = getEntry(zipFile, pPartName);
+                if (entry == null) {
+                    return null;
+                }
+                mReadPartList.add(pPartName);
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    return pReader.read(inputStream);
+                }
+            }
+        } catch (XMLStreamException xse) {
+            throw new IOException(String.format("Invalid part %s. %s", pPartName, xse.getMessage()), xse);
+        }
+    }
+
+    /**
+     * Write the package with one part rewritten. Every other entry is copied raw, i.e. still compressed, in order.
+     *
+     * @param pPartName part name, without leading /
+     * @param pRewriter rewrites the part content
+     * @param pOutputStream stream receiving the package, not closed
+     * @throws IOException Throws if the package can't be read or written, or has no such part
+     */
+    void rewritePart(String pPartName, PartRewriter pRewriter, OutputStream pOutputStream) throws IOException {
+        checkPreflight();
+        boolean rewritten = false;
+        try (org.apache.commons.compress.archivers.zip.ZipFile zipFile = openZipFile();
+             ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(new Document.UnclosableOutputStream(pOutputStream))) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (!entry.getName().equalsIgnoreCase(pPartName)) {
+                    try (InputStream rawInputStream = zipFile.getRawInputStream(entry)) {
+                        zipOutputStream.addRawArchiveEntry(entry, rawInputStream);
+                    }
+                    continue;
+                }
+
+                byte[] content;
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    mReadPartList.add(pPartName);
+                    content = pRewriter.rewrite(inputStream.readAllBytes());
+                }
+                ZipArchiveEntry rewrittenEntry = new ZipArchiveEntry(entry.getName());
+                rewrittenEntry.setMethod(ZipArchiveEntry.DEFLATED);
+                rewrittenEntry.setTime(entry.getTime());
+                zipOutputStream.putArchiveEntry(rewrittenEntry);
+                zipOutputStream.write(content);
+                zipOutputStream.closeArchiveEntry();
+                rewritten = true;
+            }
+            zipOutputStream.finish();
+        }
+        if (!rewritten) {
+            throw new IOException(String.format("Document %s has no part %s", mDocumentPath, pPartName));
+        }
+    }
+
+    /**
+     * Retrieve the entry of a part. Part names are case-insensitive, the entry may differ in case from its name.
+     */
+    private static ZipEntry getEntry(ZipFile pZipFile, String pPartName) {
+        ZipEntry entry = pZipFile.getEntry(pPartName);
+        Enumeration<? extends ZipEntry> entries = pZipFile.entries();
+        while (entry == null && entries.hasMoreElements()) {
+            ZipEntry candidate = entries.nextElement();
+            if (candidate.getName().equalsIgnoreCase(pPartName)) {
+                entry = candidate;
+            }
+        }
+        return entry;
+    }
+
+    private SeekableByteChannel openChannel() throws IOException {
+        if (mContent != null) {
+            // Bounded to the content length, without copying the buffer
+            return new SeekableInMemoryByteChannel(mContent).truncate(mContentLength);
+        }
+
+        File file = new File(mDocumentPath);
+        if (!file.exists()) {
+            throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
+        }
+        return Files.newByteChannel(file.toPath());
+    }
+
+    private org.apache.commons.compress.archivers.zip.ZipFile openZipFile() throws IOException {
+        if (mContent != null) {
+            byte[] content = mContentLength == mContent.length ? mContent : Arrays.copyOf(mContent, mContentLength);
+            return new org.apache.commons.compress.archivers.zip.ZipFile(new SeekableInMemoryByteChannel(content));
+        }
+
+        File file = new File(mDocumentPath);
+        if (!file.exists()) {
+            throw new FileNotFoundException(String.format("File %s not found", mDocumentPath));
+        }
+        return new org.apache.commons.compress.archivers.zip.ZipFile(file);
+    }
+
+    /**
+     * Retrieve the name of every part read so far, in order, once per read.
+     *
+     * @return {@link List}
+     */
+    List<String> getReadPartList() {
+        synchronized (mReadPartList) {
+            return new ArrayList<>(mReadPartList);
+        }
+    }
+
+    /**
+     * Stream a relationship part for (type, target) pairs, external targets excluded.
+     */
+    private static List<String[]> readRelationships(InputStream pInputStream) throws XMLStreamException {
+        List<String[]> relationshipList = new ArrayList<>();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(pInputStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())
+                        && !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+                    String type = reader.getAttributeValue(null, "Type");
+                    String target = reader.getAttributeValue(null, "Target");
+                    if (type != null && target != null) {
+                        relationshipList.add(new String[]{type, target});
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return relationshipList;
+    }
+
+    /**
+     * Resolve a relationship target against the directory of its source part.
+     */
+    private static String resolve(String pDirectory, String pTarget) {
+        List<String> segmentList = new ArrayList<>();
+        String path = pTarget.startsWith("/") ? pTarget.substring(1) : pDirectory + pTarget;
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                if (!segmentList.isEmpty()) {
+                    segmentList.remove(segmentList.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segmentList.add(segment);
+            }
+        }
+        return String.join("/", segmentList);
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return xmlInputFactory;
+    }
+}
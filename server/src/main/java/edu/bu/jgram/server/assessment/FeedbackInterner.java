@@ -0,0 +1,151 @@
+package edu.bu.jgram.server.assessment;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents a batch wide pool of checkpoint feedback strings. Graders paste the same feedback into many
+ * submissions, so every extracted feedback is replaced by the first equal string seen, and results of a whole
+ * batch share one copy.
+ *
+ * <p>The pool is bounded: once it holds its limit of distinct feedback(s), new feedback is returned as is. It is
+ * safe to use from parallel workers. A run (eg. an evaluation request of the daemon) is bracketed by
+ * {@link #startRun()} and {@link #finishRun()}: the pool and its counters start empty when no other run is in
+ * progress, so a long-running JVM doesn't keep the feedback of its first batch forever.</p>
+ */
+public final class FeedbackInterner {
+
+    private static final int DEFAULT_LIMIT = 4096;
+    private static final FeedbackInterner INSTANCE = new FeedbackInterner(DEFAULT_LIMIT);
+
+    // Approximate heap footprint of a String (header, hash, coder, value reference) and of its byte array header
+    private static final int STRING_OVERHEAD_BYTES = 24;
+    private static final int ARRAY_OVERHEAD_BYTES = 16;
+
+    private final int mLimit;
+    private final Map<String, String> mPoolMap = new ConcurrentHashMap<>();
+    private final LongAdder mRequestCount = new LongAdder();
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mSavedBytes = new LongAdder();
+
+    // Guarded by this. Runs in progress, which share the pool.
+    private int mRunCount = 0;
+
+    FeedbackInterner(int pLimit) {
+        mLimit = pLimit;
+    }
+
+    /**
+     * Retrieve the interner shared by the checkpoint extractor.
+     *
+     * @return {@link FeedbackInterner}
+     */
+    public static FeedbackInterner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start a run. The pool and its counters are cleared, unless another run is still in progress.
+     */
+    public synchronized void startRun() {
+        if (mRunCount++ == 0) {
+            mPoolMap.clear();
+            mRequestCount.reset();
+            mHitCount.reset();
+            mSavedBytes.reset();
+        }
+    }
+
+    /**
+     * Finish a run started by {@link #startRun()}.
+     *
+     * @return {@link String} one line summary of the run, including runs in progress at the same time
+     */
+    public synchronized String finishRun() {
+        mRunCount = Math.max(0, mRunCount - 1);
+        return getSummary();
+    }
+
+    /**
+     * Retrieve the pooled copy of a feedback.
+     *
+     * @param pFeedback extracted feedback
+     * @return {@link String} pooled string equal to the feedback, or the feedback itself
+     */
+    public String intern(String pFeedback) {
+        if (pFeedback == null) {
+            return null;
+        }
+        mRequestCount.increment();
+
+        String pooled = mPoolMap.get(pFeedback);
+        if (pooled == null) {
+            if (mPoolMap.size() >= mLimit) {
+                return pFeedback;
+            }
+            pooled = mPoolMap.putIfAbsent(pFeedback, pFeedback);
+            if (pooled == null) {
+                return pFeedback;
+            }
+        }
+
+        mHitCount.increment();
+        mSavedBytes.add(estimateBytes(pooled));
+        return pooled;
+    }
+
+    /**
+     * Retrieve the number of feedback(s) interned.
+     *
+     * @return {@link Long}
+     */
+    public long getRequestCount() {
+        return mRequestCount.sum();
+    }
+
+    /**
+     * Retrieve the number of feedback(s) replaced by a pooled copy.
+     *
+     * @return {@link Long}
+     */
+    public long getHitCount() {
+        return mHitCount.sum();
+    }
+
+    /**
+     * Retrieve the approximate heap bytes not retained thanks to pooled copies.
+     *
+     * @return {@link Long}
+     */
+    public long getSavedBytes() {
+        return mSavedBytes.sum();
+    }
+
+    /**
+     * Retrieve a one line summary eg. for the end of an evaluation run.
+     *
+     * @return {@link String}
+     */
+    public String getSummary() {
+        long requestCount = getRequestCount();
+        long hitCount = getHitCount();
+        long savedBytes = getSavedBytes();
+        return String.format("Feedback : %d string(s) | %d distinct pooled | dedup ratio %.1f%% | ~%s saved",
+                requestCount, mPoolMap.size(), requestCount == 0 ? 0.0 : 100.0 * hitCount / requestCount,
+                savedBytes < 1024 ? savedBytes + " bytes" : savedBytes / 1024 + " KB");
+    }
+
+    private static long estimateBytes(String pValue) {
+        // Compact strings store Latin-1 text in one byte per char, anything else in two
+        int bytesPerChar = 1;
+        for (int index = 0; index < pValue.length(); index++) {
+            if (pValue.charAt(index) > 0xFF) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        long arrayBytes = ARRAY_OVERHEAD_BYTES + (long) pValue.length() * bytesPerChar;
+        return STRING_OVERHEAD_BYTES + ((arrayBytes + 7) / 8) * 8;
+    }
+}
@@ -15,6 +15,15 @@ public class GradeMapping {
         mLimits = new LinkedHashMap<>();
     }
 
+    /**
+     * Copy a grade mapping, changes to either don't affect the other.
+     *
+     * @param pGradeMapping grade mapping to copy
+     */
+    public GradeMapping(GradeMapping pGradeMapping) {
+        mLimits = new LinkedHashMap<>(pGradeMapping.mLimits);
+    }
+
     /**
      * Set mapped value for specified grade i.e. A=97.
      *
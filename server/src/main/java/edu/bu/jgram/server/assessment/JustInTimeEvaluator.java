@@ -27,12 +27,12 @@ public class JustInTimeEvaluator
      */
     public Result evaluate() {
 
-        Result result = new Result();
+        Result.Builder result = Result.builder(mCheckpointList.size());
 
         // No point evaluating 0 checkpoints aka JGRAMs
         if (mCheckpointList.isEmpty()) {
             LOGGER.warning("There are no checkpoint aka JGRAM defined");
-            return result;
+            return result.build();
         }
 
         float overallResult = 0;
@@ -48,7 +48,7 @@ public class JustInTimeEvaluator
 
         result.setOverallGrade(overall);
 
-        return result;
+        return result.build();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,422 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Represents the preflight check of a *.docx package, made before any part is parsed.
+ *
+ * <p>Only the zip central directory and the [Content_Types].xml part are read: the package must be a Word
+ * document, no part may be encrypted, and the sizes the central directory declares must stay within limits, so
+ * renamed *.doc files, password-protected documents, corrupt uploads and zip bombs are rejected before POI or the
+ * part readers inflate anything. A package lying about its sizes is still caught by POI's own inflate ratio check
+ * while parsing.</p>
+ *
+ * <p>Part names are matched case-insensitively, as OPC does, and a part takes the content type of its extension
+ * unless an Override names it, so a comments part declared either way is found.</p>
+ */
+public final class Preflight {
+
+    static final String CONTENT_TYPES_PART = "[Content_Types].xml";
+
+    private static final long OLE2_SIGNATURE = 0xE11AB1A1E011CFD0L;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int END_LENGTH = 22;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    // Like POI, parts smaller than this can't exhaust memory whatever their ratio
+    private static final long RATIO_GRACE_SIZE = 100 * 1024;
+    private static final long CONTENT_TYPES_LIMIT = 1024 * 1024;
+
+    private static final Set<String> MAIN_CONTENT_TYPE_SET = new HashSet<>(Arrays.asList(
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.template.main+xml",
+            "application/vnd.ms-word.document.macroEnabled.main+xml",
+            "application/vnd.ms-word.template.macroEnabledTemplate.main+xml"));
+    private static final String COMMENTS_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.comments+xml";
+
+    private final String mReason;
+    private final long mEntryCount;
+    private final long mTotalSize;
+    private final boolean mComments;
+
+    private Preflight(String pReason, long pEntryCount, long pTotalSize, boolean pComments) {
+        mReason = pReason;
+        mEntryCount = pEntryCount;
+        mTotalSize = pTotalSize;
+        mComments = pComments;
+    }
+
+    /**
+     * Verify whether the package was rejected.
+     *
+     * @return {@link Boolean}
+     */
+    public boolean isRejected() {
+        return mReason != null;
+    }
+
+    /**
+     * Retrieve why the package was rejected.
+     *
+     * @return {@link String} null when the package passed
+     */
+    public String getReason() {
+        return mReason;
+    }
+
+    /**
+     * Retrieve the number of entries of the central directory.
+     *
+     * @return {@link Long}
+     */
+    public long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Retrieve the uncompressed size of every entry, as declared by the central directory.
+     *
+     * @return {@link Long}
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Verify whether the package has a comments part, declared by an Override or by the Default of its extension. A
+     * document without one has no checkpoint(s).
+     *
+     * @return {@link Boolean}
+     */
+    public boolean hasComments() {
+        return mComments;
+    }
+
+    private static Preflight reject(String pReason, Object... pArgs) {
+        return new Preflight(String.format(pReason, pArgs), 0, 0, false);
+    }
+
+    /**
+     * Check a package from its central directory and content types part.
+     *
+     * @param pChannel content of the *.docx package
+     * @param pMaxTotalSize limit of the uncompressed size of every entry, 0 or less for no limit
+     * @param pMaxRatio limit of the uncompressed to compressed size ratio of an entry, 0 or less for no limit
+     * @param pReadPartList receives the name of the parts read
+     * @return {@link Preflight}
+     * @throws IOException Throws if the package can't be read
+     */
+    static Preflight check(SeekableByteChannel pChannel, long pMaxTotalSize, long pMaxRatio, List<String> pReadPartList)
+            throws IOException {
+        long size = pChannel.size();
+        if (size >= 8 && read(pChannel, 0, 8).getLong(0) == OLE2_SIGNATURE) {
+            return reject("OLE2 compound file, a legacy *.doc or a password-protected document");
+        }
+        if (size < END_LENGTH || read(pChannel, 0, 4).getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            return reject("not a zip package");
+        }
+
+        // The end of central directory record is last, followed by a comment of at most 65535 bytes
+        int tailLength = (int) Math.min(size, END_LENGTH + 0xFFFF);
+        ByteBuffer tail = read(pChannel, size - tailLength, tailLength);
+        int end = tailLength - END_LENGTH;
+        while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            return reject("no zip central directory, truncated or corrupt upload");
+        }
+
+        long entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & ZIP64_MAGIC;
+        long directoryOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+        if (entryCount == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            if (end < 20 || tail.getInt(end - 20) != ZIP64_END_LOCATOR_SIGNATURE) {
+                return reject("zip64 end of central directory locator missing, corrupt upload");
+            }
+            long zip64EndOffset = tail.getLong(end - 12);
+            if (zip64EndOffset < 0 || zip64EndOffset > size - 56) {
+                return reject("zip64 end of central directory beyond the end of the package, truncated upload");
+            }
+            ByteBuffer zip64End = read(pChannel, zip64EndOffset, 56);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                return reject("zip64 end of central directory corrupt");
+            }
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > size || directorySize > Integer.MAX_VALUE) {
+            return reject("central directory beyond the end of the package, truncated upload");
+        }
+
+        ByteBuffer directory = read(pChannel, directoryOffset, (int) directorySize);
+        Map<String, long[]> entryMap = new HashMap<>();
+        // Part names are case-insensitive
+        Set<String> partNameSet = new HashSet<>();
+        long totalSize = 0;
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                return reject("central directory corrupt at entry %d", i);
+            }
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(position + 20) & ZIP64_MAGIC;
+            long entrySize = directory.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MAGIC;
+            int nextPosition = position + CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+            if (nextPosition > directorySize) {
+                return reject("central directory corrupt at entry %d", i);
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_LENGTH);
+            directory.get(nameBytes);
+            // Bit 11: UTF-8 name, otherwise the names OOXML uses are ASCII
+            String name = new String(nameBytes, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+            // Values too large for 32 bits are in the zip64 extra field, in this order
+            int extra = position + CENTRAL_HEADER_LENGTH + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int headerId = directory.getShort(extra) & 0xFFFF;
+                int dataLength = directory.getShort(extra + 2) & 0xFFFF;
+                if (headerId == 0x0001) {
+                    int field = extra + 4;
+                    int fieldEnd = Math.min(extraEnd, field + dataLength);
+                    if (entrySize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        entrySize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + dataLength;
+            }
+
+            if ((flags & 0x1) != 0) {
+                return reject("part %s is encrypted", name);
+            }
+            if (entrySize < 0 || compressedSize < 0) {
+                return reject("part %s declares a size beyond 2^63 bytes", name);
+            }
+            if (pMaxRatio > 0 && entrySize >= RATIO_GRACE_SIZE && entrySize > Math.max(1, compressedSize) * pMaxRatio) {
+                return reject("part %s inflates %d bytes to %d bytes, a ratio over the limit of %d", name, compressedSize,
+                        entrySize, pMaxRatio);
+            }
+            totalSize += entrySize;
+            if (pMaxTotalSize > 0 && (totalSize > pMaxTotalSize || totalSize < 0)) {
+                return reject("parts declare over %d bytes uncompressed, the limit", pMaxTotalSize);
+            }
+            entryMap.put(name, new long[]{method, compressedSize, entrySize, localHeaderOffset});
+            partNameSet.add(name.toLowerCase(Locale.ROOT));
+            position = nextPosition;
+        }
+
+        long[] contentTypesEntry = entryMap.get(CONTENT_TYPES_PART);
+        if (contentTypesEntry == null) {
+            return reject("no %s part, not an OOXML package", CONTENT_TYPES_PART);
+        }
+        if (contentTypesEntry[2] > CONTENT_TYPES_LIMIT) {
+            return reject("%s part declares %d bytes, over the limit of %d", CONTENT_TYPES_PART, contentTypesEntry[2], CONTENT_TYPES_LIMIT);
+        }
+        byte[] contentTypes = readEntry(pChannel, contentTypesEntry);
+        if (contentTypes == null) {
+            return reject("%s part corrupt", CONTENT_TYPES_PART);
+        }
+        pReadPartList.add(CONTENT_TYPES_PART);
+
+        // Part name -> content type, of the parts overriding the default content type of their extension, and
+        // extension -> default content type
+        Map<String, String> overrideMap = new HashMap<>();
+        Map<String, String> defaultMap = new HashMap<>();
+        try {
+            readContentTypes(contentTypes, overrideMap, defaultMap);
+        } catch (XMLStreamException xse) {
+            return reject("%s part is not well formed. %s", CONTENT_TYPES_PART, xse.getMessage());
+        }
+
+        String mainPartName = null;
+        String otherMainContentType = null;
+        boolean comments = false;
+        for (Map.Entry<String, String> override : overrideMap.entrySet()) {
+            String contentType = override.getValue();
+            if (MAIN_CONTENT_TYPE_SET.contains(contentType)) {
+                mainPartName = override.getKey();
+            } else if (contentType.endsWith(".main+xml")) {
+                otherMainContentType = contentType;
+            } else if (COMMENTS_CONTENT_TYPE.equalsIgnoreCase(contentType)
+                    && partNameSet.contains(override.getKey().toLowerCase(Locale.ROOT))) {
+                comments = true;
+            }
+        }
+        if (mainPartName == null) {
+            return otherMainContentType == null ? reject("no Word main document part, not a *.docx document")
+                    : reject("not a Word document, main part content type %s", otherMainContentType);
+        }
+        if (!partNameSet.contains(mainPartName.toLowerCase(Locale.ROOT))) {
+            return reject("main document part %s missing", mainPartName);
+        }
+        if (!comments) {
+            comments = hasDefaultPart(partNameSet, overrideMap, defaultMap, COMMENTS_CONTENT_TYPE);
+        }
+
+        return new Preflight(null, entryCount, totalSize, comments);
+    }
+
+    /**
+     * Read an entry, from its local header. Entries are either stored or deflated in OOXML packages.
+     *
+     * @param pEntry method, compressed size, size and local header offset, as the central directory declares them
+     * @return content of the entry, null when the entry is corrupt
+     */
+    private static byte[] readEntry(SeekableByteChannel pChannel, long[] pEntry) throws IOException {
+        long localHeaderOffset = pEntry[3];
+        if (localHeaderOffset < 0 || localHeaderOffset + LOCAL_HEADER_LENGTH > pChannel.size()) {
+            return null;
+        }
+        ByteBuffer localHeader = read(pChannel, localHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        long dataOffset = localHeaderOffset + LOCAL_HEADER_LENGTH + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+        if (dataOffset + pEntry[1] > pChannel.size() || pEntry[1] > CONTENT_TYPES_LIMIT) {
+            return null;
+        }
+        byte[] data = new byte[(int) pEntry[1]];
+        read(pChannel, dataOffset, data.length).get(data);
+
+        if (pEntry[0] == 0) {
+            return data;
+        }
+        if (pEntry[0] != 8) {
+            return null;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) pEntry[2]];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, length, content.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            return length == content.length ? content : null;
+        } catch (DataFormatException dfe) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Verify whether a part not named by an Override takes a content type from the Default of its extension.
+     *
+     * @param pPartNameSet lower case name of every part
+     */
+    private static boolean hasDefaultPart(Set<String> pPartNameSet, Map<String, String> pOverrideMap,
+                                          Map<String, String> pDefaultMap, String pContentType) {
+        Set<String> extensionSet = new HashSet<>();
+        for (Map.Entry<String, String> defaultEntry : pDefaultMap.entrySet()) {
+            if (pContentType.equalsIgnoreCase(defaultEntry.getValue())) {
+                extensionSet.add(defaultEntry.getKey());
+            }
+        }
+        if (extensionSet.isEmpty()) {
+            return false;
+        }
+
+        Set<String> overriddenSet = new HashSet<>();
+        for (String partName : pOverrideMap.keySet()) {
+            overriddenSet.add(partName.toLowerCase(Locale.ROOT));
+        }
+        for (String partName : pPartNameSet) {
+            int extensionStart = partName.lastIndexOf('.') + 1;
+            if (extensionStart > partName.lastIndexOf('/') + 1 && extensionSet.contains(partName.substring(extensionStart))
+                    && !overriddenSet.contains(partName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stream the content types part for (part name, content type) pairs of its Override elements, and (extension,
+     * content type) pairs of its Default elements. Extensions are lower case.
+     */
+    private static void readContentTypes(byte[] pContentTypes, Map<String, String> pOverrideMap, Map<String, String> pDefaultMap)
+            throws XMLStreamException {
+        XMLStreamReader reader = DocumentPackage.XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(pContentTypes));
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String contentType = reader.getAttributeValue(null, "ContentType");
+                if (contentType == null) {
+                    continue;
+                }
+                if ("Override".equals(reader.getLocalName())) {
+                    String partName = reader.getAttributeValue(null, "PartName");
+                    if (partName != null) {
+                        pOverrideMap.put(partName.startsWith("/") ? partName.substring(1) : partName, contentType.trim());
+                    }
+                } else if ("Default".equals(reader.getLocalName())) {
+                    String extension = reader.getAttributeValue(null, "Extension");
+                    if (extension != null) {
+                        pDefaultMap.put(extension.toLowerCase(Locale.ROOT), contentType.trim());
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ByteBuffer read(SeekableByteChannel pChannel, long pPosition, int pLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pLength).order(ByteOrder.LITTLE_ENDIAN);
+        pChannel.position(pPosition);
+        while (buffer.hasRemaining()) {
+            if (pChannel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of package");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,17 @@
+package edu.bu.jgram.server.assessment;
+
+/**
+ * Represents how a checkpoint posted as a reply relates to the checkpoint of its comment thread.
+ */
+public enum ReplyPolicy {
+
+    /**
+     * A reply checkpoint is evaluated in addition to its parent checkpoint, in document order.
+     */
+    SUPPLEMENT,
+
+    /**
+     * The latest reply checkpoint of a thread replaces the thread's checkpoint, at the thread's position.
+     */
+    OVERRIDE
+}
@@ -1,19 +1,46 @@
 package edu.bu.jgram.server.assessment;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Represents the Overall grade result object.
+ *
+ * <p>Checkpoints are stored column wise (weight, grade and feedback arrays) and addressed by ordinal, starting
+ * at 1 in the order they were added. A result is immutable, it is assembled by a {@link Builder}.</p>
+ *
+ * <p>A result evaluated with a rubric carries the digest of the rubric, see {@link RubricPlan#getDigest()}.</p>
  */
-public class Result {
+public final class Result {
 
-    private float mOverallGrade;
-    private Map<Integer, Checkpoint> mCheckpointMap;
-    private int mCheckpointIDCount = 1;
+    private final float mOverallGrade;
+    private final int mCheckpointCount;
+    private final int[] mWeights;
+    private final int[] mGrades;
+    private final String[] mFeedbacks;
+    private final String mRubricDigest;
 
-    public Result() {
-        mCheckpointMap = new HashMap<>();
+    private Result(float pOverallGrade, int pCheckpointCount, int[] pWeights, int[] pGrades, String[] pFeedbacks,
+                   String pRubricDigest) {
+        mOverallGrade = pOverallGrade;
+        mCheckpointCount = pCheckpointCount;
+        mWeights = pWeights;
+        mGrades = pGrades;
+        mFeedbacks = pFeedbacks;
+        mRubricDigest = pRubricDigest;
+    }
+
+    /**
+     * Create a builder for a result.
+     *
+     * @param pExpectedCheckpointCount number of checkpoints expected, the builder grows beyond it if needed
+     * @return {@link Builder}
+     */
+    public static Builder builder(int pExpectedCheckpointCount) {
+        return new Builder(pExpectedCheckpointCount);
     }
 
     /**
@@ -26,21 +53,102 @@ public class Result {
     }
 
     /**
-     * Set overall grade.
+     * Retrieve number of checkpoints.
+     *
+     * @return {@link Integer}
+     */
+    public int getCheckpointCount() {
+        return mCheckpointCount;
+    }
+
+    /**
+     * Retrieve weight of a checkpoint.
+     *
+     * @param pOrdinal checkpoint ordinal, 1 to {@link #getCheckpointCount()}
+     * @return {@link Integer}
+     */
+    public int getWeight(int pOrdinal) {
+        return mWeights[toIndex(pOrdinal)];
+    }
+
+    /**
+     * Retrieve grade of a checkpoint.
+     *
+     * @param pOrdinal checkpoint ordinal, 1 to {@link #getCheckpointCount()}
+     * @return {@link Integer}
+     */
+    public int getGrade(int pOrdinal) {
+        return mGrades[toIndex(pOrdinal)];
+    }
+
+    /**
+     * Retrieve feedback of a checkpoint.
+     *
+     * @param pOrdinal checkpoint ordinal, 1 to {@link #getCheckpointCount()}
+     * @return {@link String}
+     */
+    public String getFeedback(int pOrdinal) {
+        return mFeedbacks[toIndex(pOrdinal)];
+    }
+
+    /**
+     * Retrieve the digest of the rubric the overall grade was evaluated with.
+     *
+     * @return {@link String} null when evaluated without a rubric
+     */
+    public String getRubricDigest() {
+        return mRubricDigest;
+    }
+
+    /**
+     * Compare the checkpoints of two results only, not how they aggregate into the overall grade.
      *
-     * @param mOverallGrade overall grade
+     * @param pResult result to compare with
+     * @return {@link Boolean}
      */
-    public void setOverallGrade(float mOverallGrade) {
-        this.mOverallGrade = mOverallGrade;
+    public boolean hasSameCheckpoints(Result pResult) {
+        if (pResult == null || mCheckpointCount != pResult.mCheckpointCount) {
+            return false;
+        }
+        for (int index = 0; index < mCheckpointCount; index++) {
+            if (mWeights[index] != pResult.mWeights[index] || mGrades[index] != pResult.mGrades[index]
+                    || !Objects.equals(mFeedbacks[index], pResult.mFeedbacks[index])) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public synchronized void addCheckpoint(Checkpoint checkpoint) {
-        mCheckpointMap.put(mCheckpointIDCount, checkpoint);
-        mCheckpointIDCount++;
+    /**
+     * Retrieve a checkpoint. Prefer the per-column accessors in loops, this creates a new object on each call.
+     *
+     * @param pOrdinal checkpoint ordinal, 1 to {@link #getCheckpointCount()}
+     * @return {@link Checkpoint}
+     */
+    public Checkpoint getCheckpoint(int pOrdinal) {
+        int index = toIndex(pOrdinal);
+        return new Checkpoint(mWeights[index], mGrades[index], mFeedbacks[index]);
     }
 
+    /**
+     * Retrieve the checkpoints keyed by ordinal, in ordinal order. Prefer the per-column accessors, this creates
+     * the map on each call.
+     *
+     * @return {@link Map} unmodifiable
+     */
     public Map<Integer, Checkpoint> getCheckpointMap() {
-        return mCheckpointMap;
+        Map<Integer, Checkpoint> checkpointMap = new LinkedHashMap<>();
+        for (int ordinal = 1; ordinal <= mCheckpointCount; ordinal++) {
+            checkpointMap.put(ordinal, getCheckpoint(ordinal));
+        }
+        return Collections.unmodifiableMap(checkpointMap);
+    }
+
+    private int toIndex(int pOrdinal) {
+        if (pOrdinal < 1 || pOrdinal > mCheckpointCount) {
+            throw new IndexOutOfBoundsException(String.format("Checkpoint %d of %d", pOrdinal, mCheckpointCount));
+        }
+        return pOrdinal - 1;
     }
 
     @Override
@@ -60,18 +168,108 @@ public class Result {
         // typecast obj to Result so that we can compare data members
         Result result = (Result) obj;
 
-        if (Float.compare(this.mOverallGrade, result.getOverallGrade()) != 0) {
+        if (Float.compare(this.mOverallGrade, result.mOverallGrade) != 0) {
             return false;
         }
 
-        if (this.mCheckpointMap.size() != result.getCheckpointMap().size()) {
+        if (!Objects.equals(this.mRubricDigest, result.mRubricDigest)) {
             return false;
         }
 
-        if(!this.mCheckpointMap.equals(result.getCheckpointMap())) {
-            return false;
+        return hasSameCheckpoints(result);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 31 * Float.hashCode(mOverallGrade) + Objects.hashCode(mRubricDigest);
+        for (int index = 0; index < mCheckpointCount; index++) {
+            hashCode = 31 * hashCode + mWeights[index];
+            hashCode = 31 * hashCode + mGrades[index];
+            hashCode = 31 * hashCode + Objects.hashCode(mFeedbacks[index]);
         }
+        return hashCode;
+    }
 
-        return true;
+    /**
+     * Represents a result being assembled. Not thread safe, a builder belongs to the thread evaluating a document.
+     */
+    public static final class Builder {
+        private float mOverallGrade;
+        private int mCheckpointCount;
+        private int[] mWeights;
+        private int[] mGrades;
+        private String[] mFeedbacks;
+        private String mRubricDigest;
+
+        private Builder(int pExpectedCheckpointCount) {
+            int capacity = Math.max(1, pExpectedCheckpointCount);
+            mWeights = new int[capacity];
+            mGrades = new int[capacity];
+            mFeedbacks = new String[capacity];
+        }
+
+        /**
+         * Add the next checkpoint, its ordinal is the number of checkpoints added so far.
+         *
+         * @param pWeight weight of the checkpoint
+         * @param pGrade grade of the checkpoint
+         * @param pFeedback feedback of the checkpoint
+         * @return {@link Builder}
+         */
+        public Builder addCheckpoint(int pWeight, int pGrade, String pFeedback) {
+            if (mCheckpointCount == mWeights.length) {
+                int capacity = mWeights.length * 2;
+                mWeights = Arrays.copyOf(mWeights, capacity);
+                mGrades = Arrays.copyOf(mGrades, capacity);
+                mFeedbacks = Arrays.copyOf(mFeedbacks, capacity);
+            }
+            mWeights[mCheckpointCount] = pWeight;
+            mGrades[mCheckpointCount] = pGrade;
+            mFeedbacks[mCheckpointCount] = pFeedback;
+            mCheckpointCount++;
+            return this;
+        }
+
+        /**
+         * Add the next checkpoint.
+         *
+         * @param pCheckpoint checkpoint
+         * @return {@link Builder}
+         */
+        public Builder addCheckpoint(Checkpoint pCheckpoint) {
+            return addCheckpoint(pCheckpoint.getWeight(), pCheckpoint.getGrade(), pCheckpoint.getFeedback());
+        }
+
+        /**
+         * Set overall grade.
+         *
+         * @param pOverallGrade overall grade
+         * @return {@link Builder}
+         */
+        public Builder setOverallGrade(float pOverallGrade) {
+            mOverallGrade = pOverallGrade;
+            return this;
+        }
+
+        /**
+         * Set the digest of the rubric the overall grade is evaluated with.
+         *
+         * @param pRubricDigest rubric digest, null without a rubric
+         * @return {@link Builder}
+         */
+        public Builder setRubricDigest(String pRubricDigest) {
+            mRubricDigest = pRubricDigest;
+            return this;
+        }
+
+        /**
+         * Freeze the result. The builder may keep being used, later changes don't affect the built result.
+         *
+         * @return {@link Result}
+         */
+        public Result build() {
+            return new Result(mOverallGrade, mCheckpointCount, Arrays.copyOf(mWeights, mCheckpointCount),
+                    Arrays.copyOf(mGrades, mCheckpointCount), Arrays.copyOf(mFeedbacks, mCheckpointCount), mRubricDigest);
+        }
     }
-}
\ No newline at end of file
+}
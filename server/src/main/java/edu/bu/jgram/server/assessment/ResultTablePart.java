@@ -0,0 +1,187 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Represents the JGRAM overall grade table of a document, streamed once from the main document part.
+ *
+ * <p>Like the POI lookup used when appending a result, the table is the last table of the document body, provided
+ * the first cell of its first row reads C#. Only the cell text of the rows of the last table is kept while
+ * streaming, so the printed result is compared with the token from the same read.</p>
+ */
+final class ResultTablePart {
+
+    static final ResultTablePart NONE = new ResultTablePart(null, Collections.emptyList());
+
+    private static final String WORD_NAMESPACE = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final List<String> COLUMN_LIST = Arrays.asList("C#", "Weight", "Grade", "Feedback");
+    private static final String OVERALL_GRADE_LABEL = "Σ";
+    private static final int GRADE_CELL = 2;
+    private static final int TOKEN_CELL = 3;
+
+    private final String mToken;
+    private final List<List<String>> mRowList;
+
+    private ResultTablePart(String pToken, List<List<String>> pRowList) {
+        mToken = pToken;
+        mRowList = pRowList;
+    }
+
+    /**
+     * Retrieve the signed result token, from the last cell of the overall grade row.
+     *
+     * @return {@link String} null when there is no overall grade table
+     */
+    String getToken() {
+        return mToken;
+    }
+
+    boolean exists() {
+        return this != NONE;
+    }
+
+    /**
+     * Compare the printed table, cell by cell, with the rows {@link Document} writes for a result: the header, one
+     * row per checkpoint, then the overall grade row. The token cell is not compared, it is the source of the result.
+     *
+     * @param pResult result decoded from the token
+     * @return {@link List} one line per differing cell or row, empty when the table matches the result
+     */
+    List<String> diff(Result pResult) {
+        List<String> diffList = new ArrayList<>();
+        diffRow(diffList, "Header", COLUMN_LIST, mRowList.get(0), COLUMN_LIST.size());
+
+        // Between the header and the overall grade row
+        int tableCheckpointCount = Math.max(0, mRowList.size() - 2);
+        for (int checkpointID = 1; checkpointID <= Math.max(pResult.getCheckpointCount(), tableCheckpointCount); checkpointID++) {
+            String label = "C# " + checkpointID;
+            if (checkpointID > tableCheckpointCount) {
+                diffList.add(String.format("%s : row missing from the table", label));
+            } else if (checkpointID > pResult.getCheckpointCount()) {
+                diffList.add(String.format("Row %d : row not in the token %s", checkpointID + 1, mRowList.get(checkpointID)));
+            } else {
+                List<String> expectedRow = Arrays.asList("" + checkpointID, "" + pResult.getWeight(checkpointID),
+                        "" + pResult.getGrade(checkpointID), "" + pResult.getFeedback(checkpointID));
+                diffRow(diffList, label, expectedRow, mRowList.get(checkpointID), COLUMN_LIST.size());
+            }
+        }
+
+        if (mRowList.size() < 2) {
+            diffList.add(String.format("%s : row missing from the table", OVERALL_GRADE_LABEL));
+        } else {
+            // The grade is printed with the grader's locale, compare it whatever its decimal separator
+            List<String> overallRow = new ArrayList<>(mRowList.get(mRowList.size() - 1));
+            if (overallRow.size() > GRADE_CELL) {
+                overallRow.set(GRADE_CELL, overallRow.get(GRADE_CELL).replace(',', '.'));
+            }
+            List<String> expectedRow = Arrays.asList("", OVERALL_GRADE_LABEL,
+                    String.format(Locale.ROOT, "%.2f", pResult.getOverallGrade()));
+            diffRow(diffList, OVERALL_GRADE_LABEL, expectedRow, overallRow, TOKEN_CELL);
+        }
+        return diffList;
+    }
+
+    private static void diffRow(List<String> pDiffList, String pLabel, List<String> pExpectedRow, List<String> pRow,
+                                int pColumnCount) {
+        for (int column = 0; column < pColumnCount; column++) {
+            String cell = column < pRow.size() ? pRow.get(column) : null;
+            if (!pExpectedRow.get(column).equals(cell)) {
+                pDiffList.add(String.format("%s | %s : table '%s', token '%s'", pLabel, COLUMN_LIST.get(column),
+                        cell == null ? "(no cell)" : cell, pExpectedRow.get(column)));
+            }
+        }
+    }
+
+    /**
+     * Stream the main document part eg. word/document.xml.
+     *
+     * @param pInputStream content of the main document part
+     * @return {@link ResultTablePart} {@link #NONE} when the document has no overall grade table
+     * @throws XMLStreamException Throws if the part is not well formed
+     */
+    static ResultTablePart read(InputStream pInputStream) throws XMLStreamException {
+        XMLStreamReader reader = DocumentPackage.XML_INPUT_FACTORY.createXMLStreamReader(pInputStream);
+        try {
+            // Element depth inside the body. Only body level tables count, and text of nested tables is skipped.
+            int depth = 0;
+            boolean inBody = false;
+            boolean inTable = false;
+            int nestedTableDepth = 0;
+            List<List<String>> rowList = null;
+            List<String> rowCellList = null;
+            StringBuilder cellText = null;
+            boolean inText = false;
+
+            List<List<String>> lastRowList = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (!inBody) {
+                        inBody = "body".equals(name) && WORD_NAMESPACE.equals(reader.getNamespaceURI());
+                        continue;
+                    }
+                    depth++;
+                    if (depth == 1 && "tbl".equals(name)) {
+                        inTable = true;
+                        rowList = new ArrayList<>();
+                        rowCellList = null;
+                    } else if (!inTable || nestedTableDepth > 0) {
+                        continue;
+                    } else if ("tbl".equals(name)) {
+                        nestedTableDepth = depth;
+                    } else if (depth == 2 && "tr".equals(name)) {
+                        rowCellList = new ArrayList<>();
+                        rowList.add(rowCellList);
+                    } else if (depth == 3 && "tc".equals(name)) {
+                        cellText = new StringBuilder();
+                    } else if (cellText != null && "t".equals(name)) {
+                        inText = true;
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (inText) {
+                        cellText.append(reader.getText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && inBody) {
+                    if (depth == 0) {
+                        break;
+                    }
+                    String name = reader.getLocalName();
+                    if (nestedTableDepth == depth) {
+                        nestedTableDepth = 0;
+                    } else if (inTable && nestedTableDepth == 0) {
+                        if ("t".equals(name)) {
+                            inText = false;
+                        } else if (depth == 3 && "tc".equals(name)) {
+                            rowCellList.add(cellText.toString());
+                            cellText = null;
+                        } else if (depth == 1) {
+                            // Any later table replaces this one, as the overall grade table is always the last
+                            inTable = false;
+                            lastRowList = rowList;
+                        }
+                    }
+                    depth--;
+                }
+            }
+
+            if (lastRowList == null || lastRowList.isEmpty() || lastRowList.get(0).isEmpty()
+                    || !lastRowList.get(0).get(0).contains("C#")) {
+                return NONE;
+            }
+            List<String> lastRowCellList = lastRowList.get(lastRowList.size() - 1);
+            return new ResultTablePart(lastRowCellList.size() > TOKEN_CELL ? lastRowCellList.get(TOKEN_CELL) : "", lastRowList);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.bu.jgram.server.assessment;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Represents a rubric grade evaluator. Given a set of checkpoints and a compiled {@link RubricPlan}, it evaluates the
+ * overall grade with drop lowest, capped sections, bonus checkpoints and late penalty.
+ *
+ * <p>Grades are accumulated exactly, as long numerators and denominators, and divided once for the overall grade.
+ * Without any rubric clause the overall grade is the weighted mean of {@link JustInTimeEvaluator}.</p>
+ */
+public class RubricEvaluator
+        implements Evaluator {
+
+    private static final Logger LOGGER = Logger.getLogger(RubricEvaluator.class.getName());
+    private static final long MAX_GRADE = 100;
+    // Dropping up to this many grades scans the section once per grade, instead of sorting it
+    private static final int SELECTION_LIMIT = 8;
+
+    private final RubricPlan mRubricPlan;
+    private final List<Checkpoint> mCheckpointList;
+
+    public RubricEvaluator(RubricPlan pRubricPlan, List<Checkpoint> pCheckpointList) {
+        mRubricPlan = pRubricPlan;
+        mCheckpointList = pCheckpointList;
+    }
+
+    /**
+     * Evaluate overall grade based on multiple checkpoint containing weight and grade, as the rubric prescribes.
+     *
+     * @return {@link Result}
+     */
+    public Result evaluate() {
+        int checkpointCount = mCheckpointList.size();
+        Result.Builder result = Result.builder(checkpointCount).setRubricDigest(mRubricPlan.getDigest());
+
+        // No point evaluating 0 checkpoints aka JGRAMs
+        if (checkpointCount == 0) {
+            LOGGER.warning("There are no checkpoint aka JGRAM defined");
+            return result.build();
+        }
+
+        // Sort keys of the checkpoints, grouped by section: grade in the high bits, so the lowest grades come first
+        // within a section, then checkpoint index for document order among equal grades
+        int sectionCount = mRubricPlan.getSectionCount();
+        int[] sections = new int[checkpointCount];
+        int[] sectionStarts = new int[sectionCount + 1];
+        long bonusPoints = 0;
+        for (int index = 0; index < checkpointCount; index++) {
+            Checkpoint checkpoint = mCheckpointList.get(index);
+            result.addCheckpoint(checkpoint);
+            sections[index] = mRubricPlan.getSection(index + 1);
+            if (sections[index] == RubricPlan.BONUS_SECTION) {
+                bonusPoints += (long) checkpoint.getGrade() * checkpoint.getWeight();
+            } else {
+                sectionStarts[sections[index] + 1]++;
+            }
+        }
+        for (int section = 0; section < sectionCount; section++) {
+            sectionStarts[section + 1] += sectionStarts[section];
+        }
+        long[] keys = new long[sectionStarts[sectionCount]];
+        int[] positions = Arrays.copyOf(sectionStarts, sectionCount);
+        for (int index = 0; index < checkpointCount; index++) {
+            if (sections[index] != RubricPlan.BONUS_SECTION) {
+                keys[positions[sections[index]]++] = ((long) mCheckpointList.get(index).getGrade() << 32) | index;
+            }
+        }
+
+        // Sum of grade * weight and sum of weight of every section, after drop and cap
+        long points = 0;
+        long weight = 0;
+        for (int section = 0; section < sectionCount; section++) {
+            int start = sectionStarts[section];
+            int end = sectionStarts[section + 1];
+            int drop = Math.min(mRubricPlan.getDrop(section), end - start);
+            selectLowest(keys, start, end, drop);
+
+            long sectionPoints = 0;
+            long sectionWeight = 0;
+            for (int position = start + drop; position < end; position++) {
+                Checkpoint checkpoint = mCheckpointList.get((int) keys[position]);
+                sectionPoints += (long) checkpoint.getGrade() * checkpoint.getWeight();
+                sectionWeight += checkpoint.getWeight();
+            }
+            int cap = mRubricPlan.getCap(section);
+            if (cap != RubricPlan.NO_CAP && sectionPoints > cap * sectionWeight) {
+                sectionPoints = cap * sectionWeight;
+            }
+            points += sectionPoints;
+            weight += sectionWeight;
+        }
+
+        int bonusCap = mRubricPlan.getBonusCap();
+        if (bonusCap != RubricPlan.NO_CAP && bonusPoints > bonusCap * MAX_GRADE) {
+            bonusPoints = bonusCap * MAX_GRADE;
+        }
+
+        // overall = points / weight + bonusPoints / 100, capped at 100, then times late / 100
+        long numerator = weight == 0 ? bonusPoints : MAX_GRADE * points + bonusPoints * weight;
+        long denominator = weight == 0 ? MAX_GRADE : MAX_GRADE * weight;
+        if (numerator > MAX_GRADE * denominator) {
+            numerator = MAX_GRADE * denominator;
+        }
+        numerator *= mRubricPlan.getLatePercent();
+        denominator *= 100;
+
+        result.setOverallGrade((float) ((double) numerator / denominator));
+        return result.build();
+    }
+
+    /**
+     * Move the lowest keys of a range to its front, in order. A few are selected in place, more are sorted.
+     */
+    private static void selectLowest(long[] pKeys, int pStart, int pEnd, int pCount) {
+        if (pCount > SELECTION_LIMIT) {
+            Arrays.sort(pKeys, pStart, pEnd);
+            return;
+        }
+        for (int position = pStart; position < pStart + pCount; position++) {
+            int lowest = position;
+            for (int candidate = position + 1; candidate < pEnd; candidate++) {
+                if (pKeys[candidate] < pKeys[lowest]) {
+                    lowest = candidate;
+                }
+            }
+            long key = pKeys[position];
+            pKeys[position] = pKeys[lowest];
+            pKeys[lowest] = key;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package edu.bu.jgram.server.assessment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents a compiled rubric: how checkpoint grades aggregate into the overall grade. Grammar for rubric in
+ * document (or in the file set by jgram.rubric) is
+ * RUBRIC( SECTION=1-4 DROP=1 CAP=90; SECTION=5-8; BONUS=9-10 CAP=5; LATE=90 )
+ *
+ * <p>Checkpoints are addressed by their order in the document. Each SECTION is a range of checkpoints: its lowest
+ * DROP grades are dropped, and its weighted mean is capped at CAP. Checkpoints outside every range form the default
+ * section, configured by a clause with only DROP and/or CAP. The overall grade is the weighted mean of every section,
+ * plus the BONUS checkpoints (GRADE * WEIGHT / 100 points each, CAP points in total), capped at 100, then multiplied
+ * by LATE percent.</p>
+ *
+ * <p>A rubric is compiled once into primitive arrays, immutable, and shared by every document and thread using it.
+ * Its digest identifies what it compiled to, so it is signed into the result token and a tamper test can tell a
+ * changed rubric from tampered checkpoints.</p>
+ */
+public final class RubricPlan {
+
+    static final int BONUS_SECTION = -1;
+    static final int DEFAULT_SECTION = 0;
+    static final int NO_CAP = -1;
+
+    private static final String RUBRIC_GRAMMAR_START = "RUBRIC(";
+    private static final int MAX_ORDINAL = 100000;
+    private static final int MAX_GRADE = 100;
+    // 72 bits of SHA-256, enough to tell rubrics apart, the token signature protects it
+    private static final int DIGEST_BYTES = 9;
+
+    // Documents of an assignment share the same rubric, so compiled rubrics are kept for reuse
+    private static final int RUBRIC_CACHE_LIMIT = 256;
+    private static final Map<String, RubricPlan> RUBRIC_CACHE = new ConcurrentHashMap<>();
+    private static volatile RubricFile sRubricFile;
+
+    // Checkpoint ordinal -> section index, or BONUS_SECTION. Ordinals beyond the array are in the default section.
+    private final int[] mSectionOfOrdinal;
+    private final int[] mSectionDrop;
+    private final int[] mSectionCap;
+    private final int mBonusCap;
+    private final int mLatePercent;
+    private final String mDigest;
+
+    private RubricPlan(int[] pSectionOfOrdinal, int[] pSectionDrop, int[] pSectionCap, int pBonusCap, int pLatePercent) {
+        mSectionOfOrdinal = pSectionOfOrdinal;
+        mSectionDrop = pSectionDrop;
+        mSectionCap = pSectionCap;
+        mBonusCap = pBonusCap;
+        mLatePercent = pLatePercent;
+        mDigest = digest();
+    }
+
+    /**
+     * Validate whether a given string meets the rubric grammar.
+     *
+     * @param pComment String to be validated
+     * @return {@link Boolean}
+     */
+    public static boolean isRubric(String pComment) {
+        return pComment.startsWith(RUBRIC_GRAMMAR_START);
+    }
+
+    /**
+     * Compile a rubric, only the first time it is seen.
+     *
+     * @param pRubric rubric text eg. RUBRIC( DROP=1 )
+     * @return {@link RubricPlan}
+     * @throws InvalidGrammarException Throws if the rubric grammar is invalid
+     * @throws InvalidValueException Throws if a rubric value is out of range
+     */
+    public static RubricPlan compile(String pRubric) throws InvalidGrammarException, InvalidValueException {
+        RubricPlan rubricPlan = RUBRIC_CACHE.get(pRubric);
+        if (rubricPlan != null) {
+            return rubricPlan;
+        }
+
+        rubricPlan = parse(pRubric);
+        if (RUBRIC_CACHE.size() < RUBRIC_CACHE_LIMIT) {
+            RUBRIC_CACHE.putIfAbsent(pRubric, rubricPlan);
+        }
+        return rubricPlan;
+    }
+
+    /**
+     * Compile the rubric of a file, read again only when the file changes.
+     *
+     * @param pFile file containing a rubric
+     * @return {@link RubricPlan}
+     * @throws IOException Throws if the file can't be read
+     * @throws InvalidGrammarException Throws if the rubric grammar is invalid
+     * @throws InvalidValueException Throws if a rubric value is out of range
+     */
+    public static RubricPlan compile(File pFile) throws IOException, InvalidGrammarException, InvalidValueException {
+        RubricFile rubricFile = sRubricFile;
+        if (rubricFile != null && rubricFile.isCurrent(pFile)) {
+            return rubricFile.mRubricPlan;
+        }
+
+        String rubric = new String(Files.readAllBytes(pFile.toPath()), StandardCharsets.UTF_8).trim();
+        if (!isRubric(rubric)) {
+            throw new InvalidGrammarException(String.format("Rubric file %s must contain RUBRIC( ... )", pFile));
+        }
+        rubricFile = new RubricFile(pFile, parse(rubric));
+        sRubricFile = rubricFile;
+        return rubricFile.mRubricPlan;
+    }
+
+    /**
+     * Retrieve the digest of the compiled rubric. Rubrics compiling to the same rules eg. differing in spacing only
+     * have the same digest.
+     *
+     * @return {@link String} base64url
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    int getSectionCount() {
+        return mSectionDrop.length;
+    }
+
+    int getSection(int pOrdinal) {
+        return pOrdinal < mSectionOfOrdinal.length ? mSectionOfOrdinal[pOrdinal] : DEFAULT_SECTION;
+    }
+
+    int getDrop(int pSection) {
+        return mSectionDrop[pSection];
+    }
+
+    int getCap(int pSection) {
+        return mSectionCap[pSection];
+    }
+
+    int getBonusCap() {
+        return mBonusCap;
+    }
+
+    int getLatePercent() {
+        return mLatePercent;
+    }
+
+    private String digest() {
+        ByteBuffer rules = ByteBuffer.allocate(4 * (4 + mSectionOfOrdinal.length + 2 * mSectionDrop.length));
+        rules.putInt(mSectionOfOrdinal.length);
+        for (int section : mSectionOfOrdinal) {
+            rules.putInt(section);
+        }
+        rules.putInt(mSectionDrop.length);
+        for (int section = 0; section < mSectionDrop.length; section++) {
+            rules.putInt(mSectionDrop[section]).putInt(mSectionCap[section]);
+        }
+        rules.putInt(mBonusCap).putInt(mLatePercent);
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(rules.array());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, DIGEST_BYTES));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 is not available", nsae);
+        }
+    }
+
+    private static RubricPlan parse(String pRubric) throws InvalidGrammarException, InvalidValueException {
+        int startIndex = pRubric.indexOf("(") + 1; //Start index is inclusive
+        int endIndex = pRubric.lastIndexOf(")"); // End index is exclusive
+        if (endIndex < startIndex) {
+            throw new InvalidGrammarException("Invalid rubric grammar");
+        }
+
+        // Section 0 is the default section, configured by a clause without SECTION or BONUS
+        List<int[]> rangeList = new ArrayList<>();
+        List<Integer> dropList = new ArrayList<>(Arrays.asList(0));
+        List<Integer> capList = new ArrayList<>(Arrays.asList(NO_CAP));
+        int bonusCap = NO_CAP;
+        int latePercent = 100;
+
+        for (String clause : pRubric.substring(startIndex, endIndex).split(";")) {
+            clause = clause.trim();
+            if (clause.length() == 0) {
+                continue;
+            }
+
+            int[] range = null;
+            boolean bonus = false;
+            Integer drop = null;
+            Integer cap = null;
+            for (String property : clause.split("\\s+")) {
+                int separatorIndex = property.indexOf('=');
+                if (separatorIndex <= 0) {
+                    throw new InvalidGrammarException(String.format("Invalid rubric grammar at %s", property));
+                }
+                String key = property.substring(0, separatorIndex).trim().toUpperCase();
+                String value = property.substring(separatorIndex + 1).trim();
+
+                switch (key) {
+                    case "SECTION":
+                    case "BONUS":
+                        if (range != null) {
+                            throw new InvalidGrammarException(String.format("Invalid rubric grammar at %s, one range per clause", property));
+                        }
+                        range = parseRange(value);
+                        bonus = key.equals("BONUS");
+                        break;
+                    case "DROP":
+                        drop = parseNumber(key, value, 0, MAX_ORDINAL);
+                        break;
+                    case "CAP":
+                        cap = parseNumber(key, value, 0, MAX_GRADE);
+                        break;
+                    case "LATE":
+                        latePercent = parseNumber(key, value, 0, 100);
+                        break;
+                    default:
+                        throw new InvalidGrammarException(String.format("Invalid rubric grammar, unknown %s", key));
+                }
+            }
+
+            if (bonus) {
+                if (drop != null) {
+                    throw new InvalidGrammarException("Invalid rubric grammar, BONUS can't DROP");
+                }
+                rangeList.add(new int[]{range[0], range[1], BONUS_SECTION});
+                bonusCap = cap == null ? bonusCap : cap;
+            } else if (range != null) {
+                rangeList.add(new int[]{range[0], range[1], dropList.size()});
+                dropList.add(drop == null ? 0 : drop);
+                capList.add(cap == null ? NO_CAP : cap);
+            } else {
+                dropList.set(DEFAULT_SECTION, drop == null ? dropList.get(DEFAULT_SECTION) : drop);
+                capList.set(DEFAULT_SECTION, cap == null ? capList.get(DEFAULT_SECTION) : cap);
+            }
+        }
+
+        int maxOrdinal = 0;
+        for (int[] range : rangeList) {
+            maxOrdinal = Math.max(maxOrdinal, range[1]);
+        }
+        int[] sectionOfOrdinal = new int[maxOrdinal + 1];
+        boolean[] assigned = new boolean[maxOrdinal + 1];
+        for (int[] range : rangeList) {
+            for (int ordinal = range[0]; ordinal <= range[1]; ordinal++) {
+                if (assigned[ordinal]) {
+                    throw new InvalidValueException(String.format("Rubric ranges overlap at checkpoint %d", ordinal));
+                }
+                assigned[ordinal] = true;
+                sectionOfOrdinal[ordinal] = range[2];
+            }
+        }
+
+        return new RubricPlan(sectionOfOrdinal, toArray(dropList), toArray(capList), bonusCap, latePercent);
+    }
+
+    private static int[] parseRange(String pValue) throws InvalidGrammarException, InvalidValueException {
+        String[] bounds = pValue.split("-", -1);
+        if (bounds.length > 2) {
+            throw new InvalidGrammarException(String.format("Invalid rubric range %s", pValue));
+        }
+        int from = parseNumber("range", bounds[0], 1, MAX_ORDINAL);
+        int to = bounds.length == 1 ? from : parseNumber("range", bounds[1], 1, MAX_ORDINAL);
+        if (to < from) {
+            throw new InvalidValueException(String.format("Invalid rubric range %s", pValue));
+        }
+        return new int[]{from, to};
+    }
+
+    private static int parseNumber(String pKey, String pValue, int pMin, int pMax) throws InvalidGrammarException, InvalidValueException {
+        int value;
+        try {
+            value = Integer.parseInt(pValue.trim());
+        } catch (NumberFormatException nfe) {
+            throw new InvalidGrammarException(String.format("Invalid rubric %s %s", pKey, pValue));
+        }
+        if (value < pMin || value > pMax) {
+            throw new InvalidValueException(String.format("Rubric %s must be between %d-%d", pKey, pMin, pMax));
+        }
+        return value;
+    }
+
+    private static int[] toArray(List<Integer> pList) {
+        int[] values = new int[pList.size()];
+        for (int index = 0; index < values.length; index++) {
+            values[index] = pList.get(index);
+        }
+        return values;
+    }
+
+    /**
+     * Represents the last compiled rubric file, with what identifies its content.
+     */
+    private static final class RubricFile {
+        private final String mPath;
+        private final long mLastModified;
+        private final long mLength;
+        private final RubricPlan mRubricPlan;
+
+        private RubricFile(File pFile, RubricPlan pRubricPlan) {
+            mPath = pFile.getAbsolutePath();
+            mLastModified = pFile.lastModified();
+            mLength = pFile.length();
+            mRubricPlan = pRubricPlan;
+        }
+
+        private boolean isCurrent(File pFile) {
+            return mPath.equals(pFile.getAbsolutePath()) && mLastModified == pFile.lastModified() && mLength == pFile.length();
+        }
+    }
+}
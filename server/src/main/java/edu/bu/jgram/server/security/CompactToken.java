@@ -0,0 +1,272 @@
+package edu.bu.jgram.server.security;
+
+import edu.bu.jgram.server.assessment.Result;
+
+import javax.crypto.Mac;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Represents the compact result token: JG2.&lt;payload&gt;.&lt;signature&gt;, both parts base64url without padding,
+ * or JG2.&lt;kid&gt;.&lt;payload&gt;.&lt;signature&gt; when signed with a key of the {@link KeyRing}.
+ *
+ * <p>The payload is a raw DEFLATE stream of: token id, issuer and subject (length prefixed UTF-8), issued at
+ * (seconds), overall grade (float bits), the distinct feedback(s) once each, then per checkpoint the weight, grade
+ * and feedback index, then the rubric digest when evaluated with a rubric. Numbers are varints. The signature is
+ * HMAC-SHA256 of everything before it, kid included.</p>
+ *
+ * <p>Unlike JWT claims, a checkpoint costs a few bytes and repeated feedback is stored once, so the token stays
+ * small with hundreds of checkpoints.</p>
+ */
+final class CompactToken {
+
+    static final String PREFIX = "JG2.";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+
+    private CompactToken() {
+    }
+
+    /**
+     * Encode and sign a result.
+     *
+     * @param pSigningKey HMAC-SHA256 key
+     * @param pKeyId key id of the signing key, null when it has none
+     * @return {@link String}
+     * @throws GeneralSecurityException Throws if HMAC-SHA256 is not available
+     */
+    static String create(Key pSigningKey, String pKeyId, String pId, String pIssuer, String pSubject, Result pResult) throws GeneralSecurityException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + pResult.getCheckpointCount() * 8);
+        writeString(payload, pId);
+        writeString(payload, pIssuer);
+        writeString(payload, pSubject);
+        writeVarLong(payload, System.currentTimeMillis() / 1000);
+        writeInt(payload, Float.floatToIntBits(pResult.getOverallGrade()));
+
+        // Feedback dictionary, 0 is reserved for a missing feedback
+        int checkpointCount = pResult.getCheckpointCount();
+        Map<String, Integer> feedbackIndexMap = new HashMap<>();
+        List<String> feedbackList = new ArrayList<>();
+        int[] feedbackIndexes = new int[checkpointCount];
+        for (int ordinal = 1; ordinal <= checkpointCount; ordinal++) {
+            String feedback = pResult.getFeedback(ordinal);
+            if (feedback != null) {
+                Integer feedbackIndex = feedbackIndexMap.get(feedback);
+                if (feedbackIndex == null) {
+                    feedbackList.add(feedback);
+                    feedbackIndex = feedbackList.size();
+                    feedbackIndexMap.put(feedback, feedbackIndex);
+                }
+                feedbackIndexes[ordinal - 1] = feedbackIndex;
+            }
+        }
+        writeVarLong(payload, feedbackList.size());
+        for (String feedback : feedbackList) {
+            writeString(payload, feedback);
+        }
+
+        writeVarLong(payload, checkpointCount);
+        for (int ordinal = 1; ordinal <= checkpointCount; ordinal++) {
+            writeVarLong(payload, zigZag(pResult.getWeight(ordinal)));
+            writeVarLong(payload, zigZag(pResult.getGrade(ordinal)));
+            writeVarLong(payload, feedbackIndexes[ordinal - 1]);
+        }
+        // Last and optional, so tokens without a rubric are the same as before rubrics were signed
+        if (pResult.getRubricDigest() != null) {
+            writeString(payload, pResult.getRubricDigest());
+        }
+
+        String keyIdPart = pKeyId == null ? "" : pKeyId + ".";
+        String signingInput = PREFIX + keyIdPart + BASE64_ENCODER.encodeToString(deflate(payload.toByteArray()));
+        return signingInput + "." + BASE64_ENCODER.encodeToString(sign(pSigningKey, signingInput));
+    }
+
+    /**
+     * Verify and decode a compact token.
+     *
+     * @param pSigningKey HMAC-SHA256 key
+     * @param pToken token starting with {@link #PREFIX}
+     * @return {@link Result}
+     * @throws SecurityException Throws if the signature doesn't match
+     * @throws GeneralSecurityException Throws if HMAC-SHA256 is not available
+     * @throws IllegalArgumentException Throws if the token is malformed
+     */
+    static Result decode(Key pSigningKey, String pToken) throws SecurityException, GeneralSecurityException, IllegalArgumentException {
+        int signatureIndex = pToken.lastIndexOf('.');
+        if (!pToken.startsWith(PREFIX) || signatureIndex < PREFIX.length()) {
+            throw new IllegalArgumentException("Not a compact token");
+        }
+
+        String signingInput = pToken.substring(0, signatureIndex);
+        byte[] signature = BASE64_DECODER.decode(pToken.substring(signatureIndex + 1));
+        if (!MessageDigest.isEqual(sign(pSigningKey, signingInput), signature)) {
+            throw new SecurityException("Token signature doesn't match");
+        }
+
+        ByteBuffer payload = ByteBuffer.wrap(inflate(BASE64_DECODER.decode(signingInput.substring(signingInput.lastIndexOf('.') + 1))));
+        readString(payload); // id
+        readString(payload); // issuer
+        readString(payload); // subject
+        readVarLong(payload); // issued at
+        float overallGrade = Float.intBitsToFloat(payload.getInt());
+
+        int feedbackCount = readCount(payload);
+        String[] feedbacks = new String[feedbackCount + 1];
+        for (int feedbackIndex = 1; feedbackIndex <= feedbackCount; feedbackIndex++) {
+            feedbacks[feedbackIndex] = readString(payload);
+        }
+
+        int checkpointCount = readCount(payload);
+        Result.Builder result = Result.builder(checkpointCount);
+        for (int ordinal = 1; ordinal <= checkpointCount; ordinal++) {
+            int weight = (int) unZigZag(readVarLong(payload));
+            int grade = (int) unZigZag(readVarLong(payload));
+            long feedbackIndex = readVarLong(payload);
+            if (feedbackIndex > feedbackCount) {
+                throw new IllegalArgumentException("Invalid feedback index");
+            }
+            result.addCheckpoint(weight, grade, feedbacks[(int) feedbackIndex]);
+        }
+        if (payload.hasRemaining()) {
+            result.setRubricDigest(readString(payload));
+        }
+        result.setOverallGrade(overallGrade);
+        return result.build();
+    }
+
+    /**
+     * Retrieve the key id a compact token was signed with, without verifying it.
+     *
+     * @param pToken token starting with {@link #PREFIX}
+     * @return {@link String} null when the token has no key id
+     */
+    static String getKeyId(String pToken) {
+        int payloadIndex = pToken.indexOf('.', PREFIX.length());
+        if (payloadIndex < 0 || pToken.indexOf('.', payloadIndex + 1) < 0) {
+            return null;
+        }
+        return pToken.substring(PREFIX.length(), payloadIndex);
+    }
+
+    private static byte[] sign(Key pSigningKey, String pSigningInput) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(pSigningKey);
+        return mac.doFinal(pSigningInput.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] deflate(byte[] pPayload) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(pPayload);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(pPayload.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] pCompressed) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(pCompressed);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(pCompressed.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated token payload");
+                }
+                payload.write(buffer, 0, length);
+                if (payload.size() > MAX_PAYLOAD_BYTES) {
+                    throw new IllegalArgumentException("Token payload too large");
+                }
+            }
+            return payload.toByteArray();
+        } catch (DataFormatException dfe) {
+            throw new IllegalArgumentException("Invalid token payload", dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream pOutputStream, String pValue) {
+        byte[] bytes = (pValue == null ? "" : pValue).getBytes(StandardCharsets.UTF_8);
+        writeVarLong(pOutputStream, bytes.length);
+        pOutputStream.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer pBuffer) {
+        int length = readCount(pBuffer);
+        String value = new String(pBuffer.array(), pBuffer.position(), length, StandardCharsets.UTF_8);
+        pBuffer.position(pBuffer.position() + length);
+        return value;
+    }
+
+    private static void writeInt(ByteArrayOutputStream pOutputStream, int pValue) {
+        pOutputStream.write(pValue >>> 24);
+        pOutputStream.write(pValue >>> 16);
+        pOutputStream.write(pValue >>> 8);
+        pOutputStream.write(pValue);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream pOutputStream, long pValue) {
+        long value = pValue;
+        while ((value & ~0x7FL) != 0) {
+            pOutputStream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        pOutputStream.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer pBuffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte part = pBuffer.get();
+            value |= (long) (part & 0x7F) << shift;
+            if ((part & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    /**
+     * Read a count or length, which can't exceed the bytes left in the payload.
+     */
+    private static int readCount(ByteBuffer pBuffer) {
+        long count = readVarLong(pBuffer);
+        if (count < 0 || count > pBuffer.remaining()) {
+            throw new IllegalArgumentException("Invalid count");
+        }
+        return (int) count;
+    }
+
+    private static long zigZag(int pValue) {
+        return ((long) pValue << 1) ^ (pValue >> 31);
+    }
+
+    private static long unZigZag(long pValue) {
+        return (pValue >>> 1) ^ -(pValue & 1);
+    }
+}
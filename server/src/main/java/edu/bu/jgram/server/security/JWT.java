@@ -1,13 +1,20 @@
 package edu.bu.jgram.server.security;
 
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
 
-import edu.bu.jgram.server.assessment.Checkpoint;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.bu.jgram.server.Settings;
 import edu.bu.jgram.server.assessment.Result;
 import io.jsonwebtoken.*;
 
+import java.security.GeneralSecurityException;
+import java.util.Base64;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.Claims;
@@ -19,14 +26,72 @@ public class JWT {
     private static final String CLAIM_PROP_WEIGHT_SUFFIX = "-Weight";
     private static final String CLAIM_PROP_FEEDBACK_SUFFIX = "-Feedback";
     private static final String CLAIM_PROP_OVERALL_GRADE = "OverallGrade";
+    private static final String CLAIM_PROP_RUBRIC_DIGEST = "RubricDigest";
+    // JCA name of HS256, so compact tokens are signed and verified without loading jjwt
+    private static final String SIGNING_KEY_ALGORITHM = "HmacSHA256";
+
+    // Keys of the most recently used secrets are kept, so a long-running daemon doesn't re-derive them for every
+    // document, without holding on to every secret it was ever sent. Guarded by itself.
+    private static final int INSTANCE_CACHE_LIMIT = 32;
+    private static final Map<String, JWT> INSTANCE_CACHE = new LinkedHashMap<String, JWT>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JWT> pEldest) {
+            return size() > INSTANCE_CACHE_LIMIT;
+        }
+    };
 
     private final String mSecret;
+    private final byte[] mSecretBytes;
+    private final Key mSigningKey;
 
     public JWT(String pSecret) {
         mSecret = pSecret;
+        mSecretBytes = pSecret.getBytes();
+        mSigningKey = new SecretKeySpec(mSecretBytes, SIGNING_KEY_ALGORITHM);
+    }
+
+    /**
+     * Retrieve a shared instance for the specified secret.
+     *
+     * @param pSecret secret used to sign and verify tokens
+     * @return {@link JWT}
+     */
+    public static JWT getInstance(String pSecret) {
+        synchronized (INSTANCE_CACHE) {
+            return INSTANCE_CACHE.computeIfAbsent(pSecret, JWT::new);
+        }
     }
 
+    /**
+     * Create the signed token of a result, in the format chosen by {@link Settings#isCompactToken()}.
+     *
+     * @return {@link String}
+     */
     public String create(String pId, String pIssuer, String pSubject, Result pResult) {
+        return Settings.isCompactToken() ? createCompact(pId, pIssuer, pSubject, pResult) : createJWT(pId, pIssuer, pSubject, pResult);
+    }
+
+    /**
+     * Create a compact token (JG2.*), which stays small with many checkpoints. See {@link CompactToken}.
+     *
+     * @return {@link String}
+     */
+    public String createCompact(String pId, String pIssuer, String pSubject, Result pResult) {
+        try {
+            return CompactToken.create(mSigningKey, getKeyId(), pId, pIssuer, pSubject, pResult);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException("Unable to sign token. " + gse.getMessage(), gse);
+        }
+    }
+
+    /**
+     * Create a JWT token, with 3 claims per checkpoint.
+     *
+     * @return {@link String}
+     */
+    public String createJWT(String pId, String pIssuer, String pSubject, Result pResult) {
 
         //The JWT signature algorithm we will be using to sign the token
         SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.HS256;
@@ -34,57 +99,151 @@ public class JWT {
         long nowMillis = System.currentTimeMillis();
         Date now = new Date(nowMillis);
 
-        //We will sign our JWT with our ApiKey secret
-        byte[] apiKeySecretBytes = mSecret.getBytes();
-        Key signingKey = new SecretKeySpec(apiKeySecretBytes, signatureAlgorithm.getJcaName());
-
         //Let's set the JWT Claims
         JwtBuilder builder = Jwts.builder().setId(pId)
                 .setIssuedAt(now)
                 .setSubject(pSubject)
                 .setIssuer(pIssuer)
-                .signWith(signatureAlgorithm, signingKey);
-
-        for (int checkpointID : pResult.getCheckpointMap().keySet()) {
-            Checkpoint checkpoint = pResult.getCheckpointMap().get(checkpointID);
+                .signWith(signatureAlgorithm, mSigningKey);
+        String keyId = getKeyId();
+        if (keyId != null) {
+            builder.setHeaderParam(JwsHeader.KEY_ID, keyId);
+        }
 
-            builder.claim(checkpointID + CLAIM_PROP_GRADE_SUFFIX , checkpoint.getGrade());
-            builder.claim(checkpointID + CLAIM_PROP_WEIGHT_SUFFIX , checkpoint.getWeight());
-            builder.claim(checkpointID + CLAIM_PROP_FEEDBACK_SUFFIX , checkpoint.getFeedback());
+        for (int checkpointID = 1; checkpointID <= pResult.getCheckpointCount(); checkpointID++) {
+            builder.claim(checkpointID + CLAIM_PROP_GRADE_SUFFIX , pResult.getGrade(checkpointID));
+            builder.claim(checkpointID + CLAIM_PROP_WEIGHT_SUFFIX , pResult.getWeight(checkpointID));
+            builder.claim(checkpointID + CLAIM_PROP_FEEDBACK_SUFFIX , pResult.getFeedback(checkpointID));
         }
 
-        builder.claim(CLAIM_PROP_TOTAL_CHECKPOINT, pResult.getCheckpointMap().size());
+        builder.claim(CLAIM_PROP_TOTAL_CHECKPOINT, pResult.getCheckpointCount());
         builder.claim(CLAIM_PROP_OVERALL_GRADE, pResult.getOverallGrade());
+        if (pResult.getRubricDigest() != null) {
+            builder.claim(CLAIM_PROP_RUBRIC_DIGEST, pResult.getRubricDigest());
+        }
 
         //Builds the JWT and serializes it to a compact, URL-safe string
         return builder.compact();
     }
 
+    /**
+     * Verify and decode a token, either compact or JWT. A token carrying a key id (kid) is verified with that key of
+     * the {@link KeyRing}, a token without is tried with this secret, then with every secret of the ring.
+     *
+     * @param pJwt token read from the document
+     * @return {@link Result}
+     * @throws MisKeyedTokenException Throws if the token names a key which is neither in the ring nor this secret
+     * @throws TamperedTokenException Throws if the token doesn't match the key of the ring it names
+     * @throws SecurityException Throws if the token has been tampered or was signed with another secret
+     */
     public Result decodeJWT(String pJwt) throws SecurityException {
+        KeyRing keyRing = KeyRing.getInstance();
+        String keyId = getKeyId(pJwt);
+        if (keyId != null) {
+            String secret = keyRing == null ? null : keyRing.getSecret(keyId);
+            if (secret != null) {
+                try {
+                    return getInstance(secret).decode(pJwt);
+                } catch (SecurityException se) {
+                    throw new TamperedTokenException(String.format("Token doesn't match key '%s' of the key ring, it has been tampered", keyId));
+                }
+            }
+            try {
+                return decode(pJwt);
+            } catch (SecurityException se) {
+                throw new MisKeyedTokenException(String.format("Token is signed with key '%s', which is not in the key ring", keyId));
+            }
+        }
 
-        Result result = new Result();
         try {
+            return decode(pJwt);
+        } catch (SecurityException se) {
+            // Signed before the key ring, or with a secret not in it
+            if (keyRing != null) {
+                for (String secret : keyRing.getSecrets()) {
+                    if (!secret.equals(mSecret)) {
+                        try {
+                            return getInstance(secret).decode(pJwt);
+                        } catch (SecurityException ignored) {
+                            // Not this one
+                        }
+                    }
+                }
+            }
+            throw se;
+        }
+    }
+
+    /**
+     * Retrieve the key id a token was signed with, without verifying it.
+     *
+     * @param pJwt token read from the document
+     * @return {@link String} null when the token has no key id, or is malformed
+     */
+    public static String getKeyId(String pJwt) {
+        if (pJwt.startsWith(CompactToken.PREFIX)) {
+            return CompactToken.getKeyId(pJwt);
+        }
+        int headerIndex = pJwt.indexOf('.');
+        if (headerIndex < 0) {
+            return null;
+        }
+        try {
+            byte[] header = Base64.getUrlDecoder().decode(pJwt.substring(0, headerIndex));
+            return JsonMapperHolder.JSON_MAPPER.readTree(header).path(JwsHeader.KEY_ID).textValue();
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve the key id of this secret in the key ring.
+     */
+    private String getKeyId() {
+        KeyRing keyRing = KeyRing.getInstance();
+        return keyRing == null ? null : keyRing.getKeyId(mSecret);
+    }
+
+    /**
+     * Verify and decode a token with this secret only.
+     */
+    private Result decode(String pJwt) throws SecurityException {
+
+        try {
+            if (pJwt.startsWith(CompactToken.PREFIX)) {
+                return CompactToken.decode(mSigningKey, pJwt);
+            }
+
             //This line will throw an exception if it is not a signed JWS (as expected)
             Claims claims = Jwts.parser()
-                    .setSigningKey(mSecret.getBytes())
+                    .setSigningKey(mSecretBytes)
                     .parseClaimsJws(pJwt).getBody();
 
             int totalCheckpoints = (Integer) claims.get(CLAIM_PROP_TOTAL_CHECKPOINT);
+            Result.Builder result = Result.builder(totalCheckpoints);
 
              for (int i=1; i <= totalCheckpoints; i++) {
                  int grade = (Integer) claims.get(i + CLAIM_PROP_GRADE_SUFFIX);
                  int weight = (Integer) claims.get(i + CLAIM_PROP_WEIGHT_SUFFIX);
                  String feedback = (String) claims.get(i + CLAIM_PROP_FEEDBACK_SUFFIX);
 
-                 result.addCheckpoint(new Checkpoint(weight, grade, feedback));
+                 result.addCheckpoint(weight, grade, feedback);
              }
 
             float overallGrade = Float.parseFloat(claims.get(CLAIM_PROP_OVERALL_GRADE).toString());
             result.setOverallGrade(overallGrade);
+            result.setRubricDigest((String) claims.get(CLAIM_PROP_RUBRIC_DIGEST));
 
-            return result;
+            return result.build();
         } catch (Exception e) {
             throw new SecurityException("Invalid token. Potential cause (1) The token has been tampered or (2) Incorrect secret");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Jackson is only loaded to read the header of JWT tokens, not for compact tokens.
+     */
+    private static final class JsonMapperHolder {
+        private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    }
+}
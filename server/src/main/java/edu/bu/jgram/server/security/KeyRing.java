@@ -0,0 +1,174 @@
+package edu.bu.jgram.server.security;
+
+import edu.bu.jgram.server.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Represents the secrets of several courses/sections/terms, each named by a key id (kid), read from a local UTF-8
+ * file of kid=secret lines, eg.
+ *
+ * <pre>
+ * # Blank lines and lines starting with # are skipped
+ * cs622-fall=first secret
+ * cs622-spring=second secret
+ * </pre>
+ *
+ * <p>Unlike a properties file, the secret is everything after the first =, without leading whitespace. Backslashes
+ * are taken literally, and a secret can't continue on the next line.</p>
+ *
+ * <p>A token signed with a secret of the ring carries its kid, so verification picks the key in O(1) instead of
+ * trying every secret. Tokens without a kid are verified by trying the ring.</p>
+ */
+public final class KeyRing {
+
+    // Kept to the base64url alphabet, so the kid can sit in a compact token without escaping
+    private static final Pattern KEY_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    // Every token created or decoded retrieves the ring, the file is checked for changes at most this often
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile KeyRing sKeyRing;
+
+    private final String mPath;
+    private final long mLastModified;
+    private final long mLength;
+    private final Map<String, String> mSecretMap;
+    private final Map<String, String> mKeyIdMap;
+    private volatile long mCheckedAt;
+
+    private KeyRing(File pFile, Map<String, String> pSecretMap) {
+        mPath = pFile.getAbsolutePath();
+        mLastModified = pFile.lastModified();
+        mLength = pFile.length();
+        mCheckedAt = System.nanoTime();
+        mSecretMap = Collections.unmodifiableMap(pSecretMap);
+        mKeyIdMap = new HashMap<>();
+        for (Map.Entry<String, String> entry : pSecretMap.entrySet()) {
+            mKeyIdMap.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * Retrieve the key ring of {@link Settings#getKeyRing()}, read again only when the file changes. The file is
+     * checked at most once a second, so a change is picked up within a second.
+     *
+     * @return {@link KeyRing} null when no key ring is set
+     * @throws SecurityException Throws if the key ring can't be read or is invalid
+     */
+    public static KeyRing getInstance() throws SecurityException {
+        File keyRingFile = Settings.getKeyRing();
+        if (keyRingFile == null) {
+            return null;
+        }
+
+        KeyRing keyRing = sKeyRing;
+        if (keyRing != null && keyRing.isCurrent(keyRingFile)) {
+            return keyRing;
+        }
+        try {
+            keyRing = load(keyRingFile);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new SecurityException(String.format("Unable to read key ring %s. %s", keyRingFile, e.getMessage()), e);
+        }
+        sKeyRing = keyRing;
+        return keyRing;
+    }
+
+    /**
+     * Read a key ring file.
+     *
+     * @param pFile UTF-8 file of kid=secret lines
+     * @return {@link KeyRing}
+     * @throws IOException Throws if the file can't be read
+     * @throws IllegalArgumentException Throws if a line is not kid=secret, a kid is invalid or used twice, or a secret
+     * is empty or used twice
+     */
+    static KeyRing load(File pFile) throws IOException, IllegalArgumentException {
+        List<String> lineList = Files.readAllLines(pFile.toPath(), StandardCharsets.UTF_8);
+
+        Map<String, String> secretMap = new TreeMap<>();
+        Map<String, String> keyIdMap = new HashMap<>();
+        for (int lineIndex = 0; lineIndex < lineList.size(); lineIndex++) {
+            String line = lineList.get(lineIndex);
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            int separatorIndex = line.indexOf('=');
+            if (separatorIndex < 0) {
+                throw new IllegalArgumentException(String.format("Line %d is not kid=secret", lineIndex + 1));
+            }
+
+            String keyId = line.substring(0, separatorIndex).trim();
+            String secret = line.substring(separatorIndex + 1).replaceFirst("^\\s+", "");
+            if (!KEY_ID_PATTERN.matcher(keyId).matches()) {
+                throw new IllegalArgumentException(String.format("Key id '%s' must be 1 to 64 letters, digits, - or _", keyId));
+            }
+            if (secret.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Key '%s' has no secret", keyId));
+            }
+            String otherKeyId = keyIdMap.put(secret, keyId);
+            if (otherKeyId != null) {
+                throw new IllegalArgumentException(String.format("Keys '%s' and '%s' have the same secret", otherKeyId, keyId));
+            }
+            if (secretMap.put(keyId, secret) != null) {
+                throw new IllegalArgumentException(String.format("Key '%s' is defined twice", keyId));
+            }
+        }
+        return new KeyRing(pFile, secretMap);
+    }
+
+    /**
+     * Retrieve the key id of a secret.
+     *
+     * @return {@link String} null when the secret is not in the ring
+     */
+    public String getKeyId(String pSecret) {
+        return mKeyIdMap.get(pSecret);
+    }
+
+    /**
+     * Retrieve the secret of a key id.
+     *
+     * @return {@link String} null when the key id is not in the ring
+     */
+    public String getSecret(String pKeyId) {
+        return mSecretMap.get(pKeyId);
+    }
+
+    /**
+     * Retrieve every secret of the ring, in key id order.
+     *
+     * @return {@link Collection}
+     */
+    public Collection<String> getSecrets() {
+        return mSecretMap.values();
+    }
+
+    private boolean isCurrent(File pFile) {
+        if (!mPath.equals(pFile.getAbsolutePath())) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (now - mCheckedAt < CHECK_INTERVAL_NANOS) {
+            return true;
+        }
+        if (mLastModified != pFile.lastModified() || mLength != pFile.length()) {
+            return false;
+        }
+        mCheckedAt = now;
+        return true;
+    }
+}
@@ -0,0 +1,12 @@
+package edu.bu.jgram.server.security;
+
+/**
+ * Thrown when a token names a key (kid) which is not in the key ring, so it can't be told apart from a tampered one.
+ */
+public class MisKeyedTokenException extends SecurityException {
+    private static final long serialVersionUID = -3702925119618326401L;
+
+    public MisKeyedTokenException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,12 @@
+package edu.bu.jgram.server.security;
+
+/**
+ * Thrown when a token doesn't match the key of the key ring it names (kid), i.e. it has been tampered.
+ */
+public class TamperedTokenException extends SecurityException {
+    private static final long serialVersionUID = 6192438756830157126L;
+
+    public TamperedTokenException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,99 @@
+package edu.bu.jgram.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Compares time to the first graded document and total time of a cold distribution run grading the sample corpus,
+ * without and with the class-data sharing archive. Not a test, run with
+ * ./gradlew installDist benchmark -Pbenchmark=edu.bu.jgram.server.StartupBenchmark
+ */
+public class StartupBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path installPath = Paths.get(args.length > 0 ? args[0] : "build/install/server").toAbsolutePath();
+        Path corpusPath = Paths.get(args.length > 1 ? args[1] : "src/test/resources/sample").toAbsolutePath();
+        File script = installPath.resolve("bin").resolve("server").toFile();
+        if (!script.canExecute()) {
+            throw new IllegalArgumentException(script + " is not executable, run ./gradlew installDist first");
+        }
+
+        // Without the application archive, the JVM still maps the JDK's default archive when there is one
+        File defaultArchive = Paths.get(System.getProperty("java.home"), "lib", "server", "classes.jsa").toFile();
+        String withoutArchive = defaultArchive.isFile() ? "-XX:SharedArchiveFile=" + defaultArchive : "-Xshare:off";
+
+        // The first run with the archive dumps it, and warms up the file system cache for both
+        run(script, corpusPath, "");
+
+        long[][] withoutNanos = new long[RUNS][];
+        long[][] withNanos = new long[RUNS][];
+        for (int i = 0; i < RUNS; i++) {
+            withoutNanos[i] = run(script, corpusPath, withoutArchive);
+            withNanos[i] = run(script, corpusPath, "");
+        }
+
+        System.out.format("|%16s|%18s|%12s|%n", "archive", "first graded ms", "total ms");
+        System.out.format("|%16s|%18.0f|%12.0f|%n", "none", median(withoutNanos, 0), median(withoutNanos, 1));
+        System.out.format("|%16s|%18.0f|%12.0f|%n", "lib/jgram.jsa", median(withNanos, 0), median(withNanos, 1));
+    }
+
+    /**
+     * Grade a fresh copy of the corpus with the distribution's start script.
+     *
+     * @return nanos to the first graded document, and to the end of the run
+     */
+    private static long[] run(File pScript, Path pCorpusPath, String pServerOpts) throws IOException, InterruptedException {
+        Path documentStorePath = Files.createTempDirectory("jgram-startup");
+        try {
+            try (Stream<Path> pathStream = Files.list(pCorpusPath)) {
+                for (Path path : (Iterable<Path>) pathStream::iterator) {
+                    Files.copy(path, documentStorePath.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            ProcessBuilder processBuilder = new ProcessBuilder(pScript.getAbsolutePath()).redirectErrorStream(true);
+            processBuilder.environment().put("JAVA_HOME", System.getProperty("java.home"));
+            processBuilder.environment().put("SERVER_OPTS", pServerOpts);
+
+            long start = System.nanoTime();
+            Process process = processBuilder.start();
+            try (OutputStream outputStream = process.getOutputStream()) {
+                outputStream.write(String.format("2\nbenchmark\n%s\n", documentStorePath).getBytes(StandardCharsets.UTF_8));
+            }
+
+            long firstDocument = -1;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (firstDocument < 0 && line.contains("] : SUCCESS")) {
+                        firstDocument = System.nanoTime() - start;
+                    }
+                }
+            }
+            process.waitFor();
+            return new long[]{firstDocument, System.nanoTime() - start};
+        } finally {
+            try (Stream<Path> pathStream = Files.walk(documentStorePath)) {
+                pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static double median(long[][] pNanos, int pIndex) {
+        long[] values = Arrays.stream(pNanos).mapToLong(nanos -> nanos[pIndex]).sorted().toArray();
+        return values[values.length / 2] / 1e6;
+    }
+}
@@ -0,0 +1,64 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests per-document allocation budget of sample documents
+ */
+public class TestAllocationMonitor {
+
+    // Indexing a sample document allocates a few MB through POI/XmlBeans. Raise with care.
+    private static final long SAMPLE_ALLOCATION_BUDGET = 64L * 1024 * 1024;
+
+    @Test
+    public void testSampleDocumentsWithinBudget() throws Exception {
+        AllocationMonitor allocationMonitor = new AllocationMonitor(SAMPLE_ALLOCATION_BUDGET);
+
+        for (String sample : new String[]{"sample/valid.docx", "sample/feedback-with-comma.docx", "sample/no-grade-mapping.docx"}) {
+            AllocationMonitor.Usage usage = indexSample(allocationMonitor, sample);
+            assertEquals(3, usage.getCheckpointCount());
+        }
+
+        allocationMonitor.assertWithinBudget();
+        assertEquals(3, allocationMonitor.getUsageList().size());
+    }
+
+    @Test
+    public void testBudgetExceeded() throws Exception {
+        AllocationMonitor allocationMonitor = new AllocationMonitor(1);
+
+        AllocationMonitor.Usage usage = indexSample(allocationMonitor, "sample/valid.docx");
+        assertTrue(usage.getAllocatedBytes() > 1);
+
+        assertThrows(IllegalArgumentException.class, allocationMonitor::assertWithinBudget);
+    }
+
+    private AllocationMonitor.Usage indexSample(AllocationMonitor pAllocationMonitor, String pSample) throws Exception {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        File resourceFile = new File(classLoader.getResource(pSample).getFile());
+        Document validDocument = new Document(resourceFile.getAbsolutePath(),
+                1, 10, 1, 100);
+
+        AllocationMonitor.Sample sample = pAllocationMonitor.start(pSample);
+        try {
+            validDocument.index();
+        } catch (IOException ioe) {
+            Assertions.fail("IOException thrown");
+        } catch (InvalidValueException ive) {
+            Assertions.fail("InvalidValueException thrown");
+        } catch (InvalidGrammarException ige) {
+            Assertions.fail("InvalidGrammarException thrown");
+        }
+        return pAllocationMonitor.stop(sample, validDocument.getCheckpoint().size(), "SUCCESS");
+    }
+}
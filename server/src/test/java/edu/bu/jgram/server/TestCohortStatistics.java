@@ -0,0 +1,72 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Result;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests cohort statistics, and combining statistics of several workers
+ */
+public class TestCohortStatistics {
+
+    @Test
+    public void testDistribution() {
+        CohortStatistics cohortStatistics = new CohortStatistics(100);
+        // Overall grades 10, 20 ... 100
+        for (int grade = 10; grade <= 100; grade += 10) {
+            cohortStatistics.add(result(grade, grade, 100));
+        }
+
+        assertEquals(10, cohortStatistics.getCount());
+        assertEquals(55.0, cohortStatistics.getMean(), 0.001);
+        assertEquals(50.0, cohortStatistics.getQuantile(0.5), 0.001);
+        assertEquals(10.0, cohortStatistics.getQuantile(0.1), 0.001);
+        assertEquals(90.0, cohortStatistics.getQuantile(0.9), 0.001);
+
+        assertEquals(55.0, cohortStatistics.getCheckpointMean(1), 0.001);
+        assertEquals(9, cohortStatistics.getLostPointsCount(1));
+        assertEquals(0, cohortStatistics.getLostPointsCount(2));
+    }
+
+    @Test
+    public void testMergeWorkers() throws IOException {
+        CohortStatistics allStatistics = new CohortStatistics(100);
+        CohortStatistics firstWorker = new CohortStatistics(100);
+        CohortStatistics secondWorker = new CohortStatistics(100);
+        for (int grade = 1; grade <= 100; grade++) {
+            Result result = result(grade, 100, grade);
+            allStatistics.add(result);
+            (grade % 2 == 0 ? firstWorker : secondWorker).add(result);
+        }
+
+        // Second worker's statistics travel through a file, like shard workers do
+        File statisticsFile = File.createTempFile("jgram-statistics", ".json");
+        try {
+            secondWorker.write(statisticsFile);
+            firstWorker.merge(CohortStatistics.read(statisticsFile));
+        } finally {
+            statisticsFile.delete();
+        }
+
+        assertEquals(allStatistics.getCount(), firstWorker.getCount());
+        assertEquals(allStatistics.getMean(), firstWorker.getMean(), 0.001);
+        for (double fraction : new double[]{0.1, 0.5, 0.9}) {
+            assertEquals(allStatistics.getQuantile(fraction), firstWorker.getQuantile(fraction), 0.001);
+        }
+        assertEquals(allStatistics.getCheckpointMean(2), firstWorker.getCheckpointMean(2), 0.001);
+        assertEquals(99, firstWorker.getLostPointsCount(2));
+    }
+
+    private static Result result(float pOverallGrade, int pFirstGrade, int pSecondGrade) {
+        Result.Builder result = Result.builder(2);
+        result.addCheckpoint(5, pFirstGrade, "First");
+        result.addCheckpoint(5, pSecondGrade, "Second");
+        result.setOverallGrade(pOverallGrade);
+        return result.build();
+    }
+}
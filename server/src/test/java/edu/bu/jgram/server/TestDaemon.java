@@ -0,0 +1,203 @@
+package edu.bu.jgram.server;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the grading daemon only serves local, non-browser clients holding its token, only grades on POST, and regrades
+ * graded documents
+ */
+public class TestDaemon {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+
+    private Path mDirectory;
+    private Path mDocument;
+    private File mTokenFile;
+    private Daemon mDaemon;
+    private String mToken;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-daemon");
+        mDocument = Files.copy(SAMPLE_PATH.resolve("valid.docx"), mDirectory.resolve("valid.docx"));
+        mTokenFile = mDirectory.resolve("token").resolve("daemon.token").toFile();
+        System.setProperty(Settings.GRADEBOOK, "none");
+        System.setProperty(Settings.VERIFY_INDEX, "none");
+
+        mDaemon = new Daemon(0, 2, 5, mTokenFile);
+        mDaemon.start();
+        mToken = new String(Files.readAllBytes(mTokenFile.toPath()), StandardCharsets.US_ASCII);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        mDaemon.stop();
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testTokenFile() throws IOException {
+        assertTrue(mToken.length() >= 40);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(mTokenFile.toPath())));
+        }
+    }
+
+    @Test
+    public void testEvaluate() throws IOException {
+        String response = request("POST", "/evaluate", headers(mToken), form(mDocument.toString(), "secret"));
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        assertEquals("VALID", Task.runTamperTest("secret", mDocument.toString()).get(0).getStatus());
+    }
+
+    @Test
+    public void testEvaluateRegradesGradedDocument() throws IOException {
+        String response = request("POST", "/evaluate", headers(mToken), form(mDocument.toString(), "secret"));
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        int tableCount = countTables();
+
+        // Unlike watch-folder mode, the daemon grades a graded document again, replacing its table
+        response = request("POST", "/evaluate", headers(mToken), form(mDocument.toString(), "secret"));
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        assertTrue(response.contains("SUCCESS"), response);
+        assertFalse(response.contains("SKIPPED"), response);
+        assertEquals(tableCount, countTables());
+        assertEquals("VALID", Task.runTamperTest("secret", mDocument.toString()).get(0).getStatus());
+    }
+
+    @Test
+    public void testRejectGetEvaluate() throws IOException {
+        byte[] content = Files.readAllBytes(mDocument);
+
+        String response = request("GET", "/evaluate?path=" + URLEncoder.encode(mDocument.toString(), StandardCharsets.UTF_8),
+                headers(mToken), null);
+        assertTrue(response.startsWith("HTTP/1.1 405"), response);
+        assertArrayEquals(content, Files.readAllBytes(mDocument));
+    }
+
+    @Test
+    public void testRejectSecretInUrl() throws IOException {
+        byte[] content = Files.readAllBytes(mDocument);
+
+        String response = request("POST", "/evaluate?secret=attacker", headers(mToken), form(mDocument.toString(), null));
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+        response = request("POST", "/tamper-test?secret=attacker", headers(mToken), form(mDocument.toString(), null));
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+        assertArrayEquals(content, Files.readAllBytes(mDocument));
+    }
+
+    @Test
+    public void testRejectMissingOrInvalidToken() throws IOException {
+        byte[] content = Files.readAllBytes(mDocument);
+
+        String response = request("POST", "/evaluate", headers(null), form(mDocument.toString(), "attacker"));
+        assertTrue(response.startsWith("HTTP/1.1 401"), response);
+        response = request("POST", "/evaluate", headers(mToken + "x"), form(mDocument.toString(), "attacker"));
+        assertTrue(response.startsWith("HTTP/1.1 401"), response);
+        assertArrayEquals(content, Files.readAllBytes(mDocument));
+    }
+
+    @Test
+    public void testRejectBrowserAndRebindedHost() throws IOException {
+        byte[] content = Files.readAllBytes(mDocument);
+
+        // A web page can't read the token, but must not get any further even with it
+        Map<String, String> headerMap = headers(mToken);
+        headerMap.put("Origin", "http://attacker.example");
+        String response = request("POST", "/evaluate", headerMap, form(mDocument.toString(), "attacker"));
+        assertTrue(response.startsWith("HTTP/1.1 403"), response);
+
+        headerMap = headers(mToken);
+        headerMap.put("Host", "attacker.example:" + mDaemon.getPort());
+        response = request("POST", "/evaluate", headerMap, form(mDocument.toString(), "attacker"));
+        assertTrue(response.startsWith("HTTP/1.1 403"), response);
+        assertArrayEquals(content, Files.readAllBytes(mDocument));
+
+        assertTrue(Daemon.isLoopbackHost("localhost:8642"));
+        assertTrue(Daemon.isLoopbackHost("[::1]:8642"));
+        assertTrue(Daemon.isLoopbackHost("127.0.0.1"));
+        assertFalse(Daemon.isLoopbackHost("127.0.0.1.attacker.example:8642"));
+        assertFalse(Daemon.isLoopbackHost(null));
+    }
+
+    private int countTables() throws IOException {
+        try (InputStream inputStream = Files.newInputStream(mDocument);
+             XWPFDocument documentContent = new XWPFDocument(inputStream)) {
+            return documentContent.getTables().size();
+        }
+    }
+
+    private Map<String, String> headers(String pToken) {
+        Map<String, String> headerMap = new LinkedHashMap<>();
+        headerMap.put("Host", "127.0.0.1:" + mDaemon.getPort());
+        if (pToken != null) {
+            headerMap.put(Daemon.TOKEN_HEADER, pToken);
+        }
+        return headerMap;
+    }
+
+    private static String form(String pPath, String pSecret) {
+        String form = "path=" + URLEncoder.encode(pPath, StandardCharsets.UTF_8);
+        return pSecret == null ? form : form + "&secret=" + URLEncoder.encode(pSecret, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send a raw HTTP request, as HTTP clients of the JDK don't let the Host header be set.
+     *
+     * @return {@link String} status line, headers and body of the response
+     */
+    private String request(String pMethod, String pTarget, Map<String, String> pHeaderMap, String pBody) throws IOException {
+        byte[] body = pBody == null ? new byte[0] : pBody.getBytes(StandardCharsets.UTF_8);
+        StringBuilder request = new StringBuilder(String.format("%s %s HTTP/1.1\r\n", pMethod, pTarget));
+        for (Map.Entry<String, String> header : pHeaderMap.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (pBody != null) {
+            request.append("Content-Type: application/x-www-form-urlencoded\r\n");
+        }
+        request.append("Content-Length: ").append(body.length).append("\r\nConnection: close\r\n\r\n");
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mDaemon.getPort())) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(body);
+            outputStream.flush();
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            inputStream.transferTo(response);
+            return response.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+}
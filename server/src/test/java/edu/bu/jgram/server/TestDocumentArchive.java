@@ -0,0 +1,166 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests grading a *.zip archive into a graded archive, without extracting it
+ */
+public class TestDocumentArchive {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+
+    private Path mDirectory;
+    private Path mArchive;
+    private Map<String, byte[]> mEntryMap;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-archive");
+        System.setProperty(Settings.GRADEBOOK, "none");
+        System.setProperty(Settings.VERIFY_INDEX, "none");
+
+        // Blackboard bulk download : submitted documents, each with a metadata file
+        byte[] valid = Files.readAllBytes(SAMPLE_PATH.resolve("valid.docx"));
+        mEntryMap = new LinkedHashMap<>();
+        mEntryMap.put("student-a_attempt.txt", "Name: Student A\nDate Submitted: Monday".getBytes(StandardCharsets.UTF_8));
+        mEntryMap.put("student-a_attempt_valid.docx", valid);
+        mEntryMap.put("student-b_attempt_missing-grade.docx", Files.readAllBytes(SAMPLE_PATH.resolve("missing-checkpoint-grade-value.docx")));
+        mEntryMap.put("student-c_attempt_truncated.docx", Arrays.copyOf(valid, valid.length / 2));
+        mEntryMap.put("__MACOSX/._student-a_attempt_valid.docx", new byte[]{0, 5, 22, 7});
+
+        mArchive = mDirectory.resolve("assignments.zip");
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(mArchive))) {
+            for (Map.Entry<String, byte[]> entry : mEntryMap.entrySet()) {
+                zipOutputStream.putNextEntry(new ZipEntry(entry.getKey()));
+                zipOutputStream.write(entry.getValue());
+                zipOutputStream.closeEntry();
+            }
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        System.clearProperty(Settings.PREFLIGHT_MAX_BYTES);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testGradedArchive() throws IOException {
+        byte[] archiveContent = Files.readAllBytes(mArchive);
+        Map<String, String> statusMap = new HashMap<>();
+        for (DocumentOutcome outcome : DocumentArchive.runEvaluation("secret", mArchive.toString(), Collections.emptyList())) {
+            statusMap.put(outcome.getDocumentName(), outcome.getStatus());
+        }
+        assertEquals(3, statusMap.size());
+        assertEquals("SUCCESS", statusMap.get("student-a_attempt_valid.docx"));
+        assertEquals("FAILURE", statusMap.get("student-b_attempt_missing-grade.docx"));
+        assertFalse("SUCCESS".equals(statusMap.get("student-c_attempt_truncated.docx")));
+
+        Path gradedArchive = mDirectory.resolve("assignments-graded.zip");
+        assertArrayEquals(archiveContent, Files.readAllBytes(mArchive));
+        assertFalse(Files.exists(mDirectory.resolve("assignments-graded.zip.part")));
+
+        // Same entries in the same order, only the graded document changed
+        Map<String, byte[]> gradedEntryMap = readEntries(gradedArchive);
+        assertEquals(new ArrayList<>(mEntryMap.keySet()), new ArrayList<>(gradedEntryMap.keySet()));
+        for (Map.Entry<String, byte[]> entry : mEntryMap.entrySet()) {
+            if (entry.getKey().equals("student-a_attempt_valid.docx")) {
+                assertTrue(gradedEntryMap.get(entry.getKey()).length > entry.getValue().length);
+            } else {
+                // Metadata copied through, failed documents kept whole
+                assertArrayEquals(entry.getValue(), gradedEntryMap.get(entry.getKey()), entry.getKey());
+            }
+        }
+
+        statusMap.clear();
+        for (DocumentOutcome outcome : DocumentArchive.runTamperTest("secret", gradedArchive.toString())) {
+            statusMap.put(outcome.getDocumentName(), outcome.getStatus());
+        }
+        assertEquals("VALID", statusMap.get("student-a_attempt_valid.docx"));
+    }
+
+    @Test
+    public void testArchiveWithoutDocuments() throws IOException {
+        Path archive = mDirectory.resolve("metadata.zip");
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(archive))) {
+            zipOutputStream.putNextEntry(new ZipEntry("student-a_attempt.txt"));
+            zipOutputStream.closeEntry();
+        }
+
+        IllegalArgumentException iae = assertThrows(IllegalArgumentException.class,
+                () -> DocumentArchive.runEvaluation("secret", archive.toString(), Collections.emptyList()));
+        assertTrue(iae.getMessage().contains("0 documents"));
+        assertFalse(Files.exists(mDirectory.resolve("metadata-graded.zip")));
+        assertFalse(Files.exists(mDirectory.resolve("metadata-graded.zip.part")));
+    }
+
+    @Test
+    public void testArchivedZipBomb() throws IOException {
+        // Inflates 4 MB of zeros from a few KB, over the limit though the archive itself is small
+        Path archive = mDirectory.resolve("bomb.zip");
+        byte[] bomb = new byte[4 * 1024 * 1024];
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(archive))) {
+            zipOutputStream.putNextEntry(new ZipEntry("student-a_attempt_bomb.docx"));
+            zipOutputStream.write(bomb);
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("student-b_attempt_valid.docx"));
+            zipOutputStream.write(mEntryMap.get("student-a_attempt_valid.docx"));
+            zipOutputStream.closeEntry();
+        }
+        System.setProperty(Settings.PREFLIGHT_MAX_BYTES, String.valueOf(1024 * 1024));
+
+        List<DocumentOutcome> outcomeList = DocumentArchive.runPreflight(archive.toString());
+        assertEquals("REJECTED", outcomeList.get(0).getStatus());
+        assertTrue(outcomeList.get(0).getMessage().contains("over 1048576 bytes"), outcomeList.get(0).getMessage());
+        assertEquals("VALID", outcomeList.get(1).getStatus());
+
+        outcomeList = DocumentArchive.runEvaluation("secret", archive.toString(), Collections.emptyList());
+        assertEquals("REJECTED", outcomeList.get(0).getStatus());
+        assertEquals("SUCCESS", outcomeList.get(1).getStatus());
+
+        // Rejected document kept whole in the graded archive
+        assertArrayEquals(bomb, readEntries(mDirectory.resolve("bomb-graded.zip")).get("student-a_attempt_bomb.docx"));
+    }
+
+    private static Map<String, byte[]> readEntries(Path pArchive) throws IOException {
+        Map<String, byte[]> entryMap = new LinkedHashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(pArchive))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                entryMap.put(entry.getName(), zipInputStream.readAllBytes());
+            }
+        }
+        return entryMap;
+    }
+}
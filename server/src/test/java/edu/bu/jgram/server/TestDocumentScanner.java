@@ -0,0 +1,137 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests the recursive document scan : depth, include and exclude globs, symbolic links and Word lock files
+ */
+public class TestDocumentScanner {
+
+    private static final List<String> DOCX = Collections.singletonList("*.docx");
+
+    private Path mRoot;
+    private Path mOutside;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mRoot = Files.createTempDirectory("jgram-scan");
+        mOutside = Files.createTempDirectory("jgram-scan-outside");
+
+        // root/a.docx, root/~$a.docx, root/notes.txt, root/week1/b.docx, root/week1/drafts/c.docx, root/old/d.docx
+        createFile(mRoot.resolve("a.docx"));
+        createFile(mRoot.resolve("~$a.docx"));
+        createFile(mRoot.resolve("notes.txt"));
+        createFile(mRoot.resolve("week1").resolve("b.docx"));
+        createFile(mRoot.resolve("week1").resolve("~$b.docx"));
+        createFile(mRoot.resolve("week1").resolve("drafts").resolve("c.docx"));
+        createFile(mRoot.resolve("old").resolve("d.docx"));
+        createFile(mOutside.resolve("linked").resolve("e.docx"));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (Path directory : Arrays.asList(mRoot, mOutside)) {
+            try (Stream<Path> pathStream = Files.walk(directory)) {
+                pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDepth() throws IOException {
+        assertEquals(set("a.docx"), scan(new DocumentScanner(1, DOCX, Collections.emptyList(), true)));
+        assertEquals(set("a.docx", "old/d.docx", "week1/b.docx"),
+                scan(new DocumentScanner(2, DOCX, Collections.emptyList(), true)));
+        assertEquals(set("a.docx", "old/d.docx", "week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(Integer.MAX_VALUE, DOCX, Collections.emptyList(), true)));
+    }
+
+    @Test
+    public void testIncludeAndExclude() throws IOException {
+        // A pattern with '/' matches the relative path, otherwise the file name
+        assertEquals(set("notes.txt"), scan(new DocumentScanner(5, Collections.singletonList("*.txt"), Collections.emptyList(), true)));
+        assertEquals(set("a.docx", "notes.txt", "old/d.docx", "week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(5, Arrays.asList("*.docx", "*.txt"), Collections.emptyList(), true)));
+        assertEquals(set("week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(5, Collections.singletonList("week1/**"), Collections.emptyList(), true)));
+
+        // Excluded directories are skipped whole, wherever they are
+        assertEquals(set("a.docx", "week1/b.docx"),
+                scan(new DocumentScanner(5, DOCX, Arrays.asList("drafts", "old/**"), true)));
+        assertEquals(set("old/d.docx", "week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(5, DOCX, Collections.singletonList("a.docx"), true)));
+    }
+
+    @Test
+    public void testSkipLockFiles() throws IOException {
+        Set<String> documentSet = scan(new DocumentScanner(5, Collections.singletonList("*"), Collections.emptyList(), true));
+        assertFalse(documentSet.contains("~$a.docx"));
+        assertFalse(documentSet.contains("week1/~$b.docx"));
+
+        DocumentScanner documentScanner = new DocumentScanner(1, DOCX, Collections.emptyList(), true);
+        assertTrue(documentScanner.isDocument(mRoot.resolve("a.docx")));
+        assertFalse(documentScanner.isDocument(mRoot.resolve("~$a.docx")));
+        assertFalse(documentScanner.isDocument(mRoot.resolve("notes.txt")));
+        assertFalse(documentScanner.isDocument(mRoot.resolve("week1")));
+    }
+
+    @Test
+    public void testFollowLinks() throws IOException {
+        Path linkedDirectory = mRoot.resolve("linked");
+        Path linkedDocument = mRoot.resolve("f.docx");
+        Path loop = mRoot.resolve("week1").resolve("loop");
+        try {
+            Files.createSymbolicLink(linkedDirectory, mOutside.resolve("linked"));
+            Files.createSymbolicLink(linkedDocument, mOutside.resolve("linked").resolve("e.docx"));
+            Files.createSymbolicLink(loop, mRoot);
+        } catch (UnsupportedOperationException | IOException e) {
+            // eg. Windows without the privilege to create symbolic links
+            assumeTrue(false, "Symbolic links are not supported : " + e.getMessage());
+        }
+
+        // A link back to an ancestor is reported, not walked forever
+        assertEquals(set("a.docx", "f.docx", "linked/e.docx", "old/d.docx", "week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(10, DOCX, Collections.emptyList(), true)));
+        assertEquals(set("a.docx", "old/d.docx", "week1/b.docx", "week1/drafts/c.docx"),
+                scan(new DocumentScanner(10, DOCX, Collections.emptyList(), false)));
+
+        assertTrue(new DocumentScanner(1, DOCX, Collections.emptyList(), true).isDocument(linkedDocument));
+        assertFalse(new DocumentScanner(1, DOCX, Collections.emptyList(), false).isDocument(linkedDocument));
+    }
+
+    private Set<String> scan(DocumentScanner pDocumentScanner) throws IOException {
+        Set<String> documentSet = new TreeSet<>();
+        long documentCount = pDocumentScanner.scan(mRoot,
+                document -> documentSet.add(mRoot.relativize(document).toString().replace(File.separatorChar, '/')));
+        assertEquals(documentSet.size(), documentCount);
+        return documentSet;
+    }
+
+    private static Set<String> set(String... pDocuments) {
+        return new TreeSet<>(Arrays.asList(pDocuments));
+    }
+
+    private static void createFile(Path pFile) throws IOException {
+        Files.createDirectories(pFile.getParent());
+        Files.write(pFile, new byte[]{'P', 'K'});
+    }
+}
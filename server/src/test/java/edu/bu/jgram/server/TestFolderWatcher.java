@@ -0,0 +1,151 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests watch-folder mode grades a document once it is stable, and only documents which are not graded yet
+ */
+public class TestFolderWatcher {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+    private static final long STABLE_MILLIS = 300;
+
+    private Path mDirectory;
+    private FolderWatcher mFolderWatcher;
+    private Thread mWatchThread;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-watch");
+        System.setProperty(Settings.GRADEBOOK, "none");
+        System.setProperty(Settings.VERIFY_INDEX, "none");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (mFolderWatcher != null) {
+            mFolderWatcher.close();
+            mWatchThread.join(10000);
+        }
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testDebounceRepeatedChanges() throws Exception {
+        List<Long> gradedSizeList = new CopyOnWriteArrayList<>();
+        Path document = mDirectory.resolve("upload.docx");
+        watch(file -> {
+            gradedSizeList.add(file.length());
+            return new DocumentOutcome(file.getName(), "SUCCESS", 0);
+        });
+
+        // A document still being written (or synced) changes faster than the stable period
+        byte[] content = new byte[0];
+        for (int i = 1; i <= 6; i++) {
+            content = new byte[i * 1024];
+            Files.write(document, content);
+            Thread.sleep(STABLE_MILLIS / 3);
+        }
+
+        awaitCondition(() -> !gradedSizeList.isEmpty());
+        Thread.sleep(STABLE_MILLIS * 4);
+        assertEquals(Collections.singletonList((long) content.length), gradedSizeList);
+    }
+
+    @Test
+    public void testSkipLockAndTemporaryFiles() throws Exception {
+        List<String> gradedList = new CopyOnWriteArrayList<>();
+        watch(file -> {
+            gradedList.add(file.getName());
+            return new DocumentOutcome(file.getName(), "SUCCESS", 0);
+        });
+
+        // Word lock and temporary files, and a document written aside before being moved over the original
+        Files.write(mDirectory.resolve("~$valid.docx"), new byte[162]);
+        Files.write(mDirectory.resolve("~WRL0001.tmp"), new byte[1024]);
+        Files.write(mDirectory.resolve("valid.docx.part"), new byte[1024]);
+        Files.copy(SAMPLE_PATH.resolve("valid.docx"), mDirectory.resolve("valid.docx"));
+
+        awaitCondition(() -> !gradedList.isEmpty());
+        Thread.sleep(STABLE_MILLIS * 4);
+        assertEquals(Collections.singletonList("valid.docx"), gradedList);
+    }
+
+    @Test
+    public void testSkipGradedDocuments() throws Exception {
+        Path gradedDirectory = Files.createDirectory(mDirectory.resolve("graded"));
+        Files.copy(SAMPLE_PATH.resolve("valid.docx"), gradedDirectory.resolve("graded.docx"));
+        Task.runEvaluation("secret", gradedDirectory.toString());
+        byte[] gradedContent = Files.readAllBytes(gradedDirectory.resolve("graded.docx"));
+
+        Path watchedDirectory = Files.createDirectory(mDirectory.resolve("watched"));
+        List<DocumentOutcome> outcomeList = new CopyOnWriteArrayList<>();
+        watch(watchedDirectory, file -> {
+            DocumentOutcome outcome = Task.gradeDocument(file, "secret", true);
+            outcomeList.add(outcome);
+            return outcome;
+        });
+
+        Files.copy(gradedDirectory.resolve("graded.docx"), watchedDirectory.resolve("graded.docx"));
+        Files.copy(SAMPLE_PATH.resolve("valid.docx"), watchedDirectory.resolve("new.docx"));
+
+        awaitCondition(() -> outcomeList.size() == 2);
+        // The document JGRAM just wrote is already current, it is not graded again
+        Thread.sleep(STABLE_MILLIS * 4);
+        assertEquals(2, outcomeList.size());
+        for (DocumentOutcome outcome : outcomeList) {
+            assertEquals(outcome.getDocumentName().equals("graded.docx") ? "SKIPPED" : "SUCCESS", outcome.getStatus(),
+                    outcome.getDocumentName());
+        }
+        assertArrayEquals(gradedContent, Files.readAllBytes(watchedDirectory.resolve("graded.docx")));
+        assertEquals("VALID", Task.runTamperTest("secret", watchedDirectory.resolve("new.docx").toString()).get(0).getStatus());
+    }
+
+    private void watch(Function<File, DocumentOutcome> pAction) throws IOException {
+        watch(mDirectory, pAction);
+    }
+
+    private void watch(Path pDirectory, Function<File, DocumentOutcome> pAction) throws IOException {
+        mFolderWatcher = new FolderWatcher(pDirectory, pAction, false, 2, STABLE_MILLIS, 100);
+        mWatchThread = new Thread(() -> {
+            try {
+                mFolderWatcher.watch();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, "jgram-watch-test");
+        mWatchThread.start();
+    }
+
+    private static void awaitCondition(BooleanSupplier pCondition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (!pCondition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(pCondition.getAsBoolean(), "Timed out waiting for the watcher");
+    }
+}
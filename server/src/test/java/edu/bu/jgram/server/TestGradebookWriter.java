@@ -0,0 +1,136 @@
+package edu.bu.jgram.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.bu.jgram.server.assessment.Result;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests gradebook rows are written in discovery order, whatever the completion order, and merged by document
+ */
+public class TestGradebookWriter {
+
+    @Test
+    public void testCsvRowOrder() throws IOException {
+        File gradebook = File.createTempFile("jgram-gradebook", ".csv");
+        try {
+            try (GradebookWriter gradebookWriter = GradebookWriter.open(gradebook)) {
+                gradebookWriter.onOutcome(2, outcome("c.docx"));
+                gradebookWriter.onSkipped(1);
+                gradebookWriter.onOutcome(0, outcome("a.docx"));
+                gradebookWriter.onOutcome(3, new DocumentOutcome("d, e.docx", "FAILURE", 0, null, "Invalid grammar"));
+            }
+
+            List<String> lineList = Files.readAllLines(gradebook.toPath());
+            assertEquals(4, lineList.size());
+            assertEquals("document,status,overallGrade,checkpointCount,checkpoints,message", lineList.get(0));
+            assertEquals("a.docx,SUCCESS,92.5,2,10:90;5:100,", lineList.get(1));
+            assertEquals("c.docx,SUCCESS,92.5,2,10:90;5:100,", lineList.get(2));
+            assertEquals("\"d, e.docx\",FAILURE,,0,,Invalid grammar", lineList.get(3));
+        } finally {
+            gradebook.delete();
+        }
+    }
+
+    @Test
+    public void testJsonRowOrder() throws IOException {
+        File gradebook = File.createTempFile("jgram-gradebook", ".json");
+        try {
+            try (GradebookWriter gradebookWriter = GradebookWriter.open(gradebook)) {
+                gradebookWriter.onOutcome(1, outcome("b.docx"));
+                gradebookWriter.onOutcome(0, outcome("a.docx"));
+            }
+
+            JsonNode documents = new ObjectMapper().readTree(gradebook).get("documents");
+            assertEquals(2, documents.size());
+            assertEquals("a.docx", documents.get(0).get("document").asText());
+            assertEquals("b.docx", documents.get(1).get("document").asText());
+            assertEquals(92.5, documents.get(0).get("overallGrade").asDouble());
+            assertEquals(5, documents.get(0).get("checkpoints").get(1).get("weight").asInt());
+            assertEquals(100, documents.get(0).get("checkpoints").get(1).get("grade").asInt());
+        } finally {
+            gradebook.delete();
+        }
+    }
+
+    @Test
+    public void testMergeCsv() throws IOException {
+        File firstGradebook = File.createTempFile("jgram-gradebook", ".csv");
+        File secondGradebook = File.createTempFile("jgram-gradebook", ".csv");
+        File gradebook = File.createTempFile("jgram-gradebook", ".csv");
+        try {
+            try (GradebookWriter gradebookWriter = GradebookWriter.open(firstGradebook)) {
+                gradebookWriter.onOutcome(0, outcome("c.docx"));
+                gradebookWriter.onOutcome(1, new DocumentOutcome("\"a\", b.docx", "FAILURE", 0, null, "Invalid\ngrammar"));
+            }
+            try (GradebookWriter gradebookWriter = GradebookWriter.open(secondGradebook)) {
+                gradebookWriter.onOutcome(0, outcome("b.docx"));
+            }
+            // A worker killed mid-row
+            Files.write(secondGradebook.toPath(), "d.docx,FAILURE,,0,,\"Unexpected".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+
+            GradebookWriter.merge(Arrays.asList(firstGradebook, secondGradebook), gradebook);
+
+            List<String> lineList = Files.readAllLines(gradebook.toPath());
+            assertEquals(5, lineList.size());
+            assertEquals("document,status,overallGrade,checkpointCount,checkpoints,message", lineList.get(0));
+            assertEquals("\"\"\"a\"\", b.docx\",FAILURE,,0,,\"Invalid", lineList.get(1));
+            assertEquals("grammar\"", lineList.get(2));
+            assertEquals("b.docx,SUCCESS,92.5,2,10:90;5:100,", lineList.get(3));
+            assertEquals("c.docx,SUCCESS,92.5,2,10:90;5:100,", lineList.get(4));
+        } finally {
+            firstGradebook.delete();
+            secondGradebook.delete();
+            gradebook.delete();
+        }
+    }
+
+    @Test
+    public void testMergeJson() throws IOException {
+        File firstGradebook = File.createTempFile("jgram-gradebook", ".json");
+        File secondGradebook = File.createTempFile("jgram-gradebook", ".json");
+        File gradebook = File.createTempFile("jgram-gradebook", ".json");
+        try {
+            try (GradebookWriter gradebookWriter = GradebookWriter.open(firstGradebook)) {
+                gradebookWriter.onOutcome(0, outcome("c.docx"));
+                gradebookWriter.onOutcome(1, outcome("a.docx"));
+            }
+            // A worker killed mid-run, its gradebook is never closed
+            Files.write(secondGradebook.toPath(), ("{\"documents\":[{\"document\":\"b.docx\",\"status\":\"SUCCESS\"},"
+                    + "{\"document\":\"d.docx\",\"sta").getBytes(StandardCharsets.UTF_8));
+
+            GradebookWriter.merge(Arrays.asList(firstGradebook, secondGradebook), gradebook);
+
+            JsonNode documents = new ObjectMapper().readTree(gradebook).get("documents");
+            assertEquals(3, documents.size());
+            assertEquals("a.docx", documents.get(0).get("document").asText());
+            assertEquals("b.docx", documents.get(1).get("document").asText());
+            assertEquals("c.docx", documents.get(2).get("document").asText());
+            assertEquals(100, documents.get(2).get("checkpoints").get(1).get("grade").asInt());
+        } finally {
+            firstGradebook.delete();
+            secondGradebook.delete();
+            gradebook.delete();
+        }
+    }
+
+    private static DocumentOutcome outcome(String pDocumentName) {
+        Result.Builder result = Result.builder(2);
+        result.addCheckpoint(10, 90, "Good");
+        result.addCheckpoint(5, 100, "Great");
+        result.setOverallGrade(92.5f);
+        return new DocumentOutcome(pDocumentName, "SUCCESS", 2, 92.5f, null, result.build());
+    }
+}
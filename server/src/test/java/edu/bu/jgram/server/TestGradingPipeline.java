@@ -0,0 +1,160 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Document;
+import edu.bu.jgram.server.security.JWT;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests grading a directory through the staged pipeline, with queues small enough for stages to block on each other
+ */
+public class TestGradingPipeline {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+
+    private Path mDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-pipeline");
+        System.setProperty(Settings.PIPELINE_QUEUE_CAPACITY, "1");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.PIPELINE_QUEUE_CAPACITY);
+        System.clearProperty(Settings.ALLOCATION_CSV);
+        System.clearProperty(Settings.ALLOCATION_BUDGET);
+        System.clearProperty(Settings.SHARD_COUNT);
+        System.clearProperty(Settings.SHARD_CLAIM);
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testPipelineGradesDirectory() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            Files.copy(SAMPLE_PATH.resolve("valid.docx"), mDirectory.resolve("valid-" + i + ".docx"));
+        }
+        Files.copy(SAMPLE_PATH.resolve("missing-checkpoint-weight-key.docx"), mDirectory.resolve("missing-weight.docx"));
+        Files.copy(SAMPLE_PATH.resolve("pre-validated.docx"), mDirectory.resolve("pre-validated.docx"));
+
+        GradingPipeline pipeline = new GradingPipeline("secret", null, Collections.emptyList());
+        List<DocumentOutcome> outcomeList = pipeline.run(mDirectory.toString());
+        assertEquals(14, outcomeList.size());
+
+        int successCount = 0;
+        for (DocumentOutcome outcome : outcomeList) {
+            if (outcome.getDocumentName().equals("missing-weight.docx")) {
+                assertEquals("FAILURE", outcome.getStatus(), outcome.getDocumentName());
+                continue;
+            }
+            assertEquals("SUCCESS", outcome.getStatus(), outcome.getDocumentName());
+            successCount++;
+
+            // The signed table decodes to the graded result
+            Document document = new Document(mDirectory.resolve(outcome.getDocumentName()).toString(), 1, 10, 1, 100);
+            assertTrue(document.hasResult());
+            assertEquals(outcome.getResult(), JWT.getInstance("secret").decodeJWT(document.getHashString()));
+        }
+        assertEquals(13, successCount);
+        // Graded documents are written aside, then moved over the originals
+        try (Stream<Path> pathStream = Files.list(mDirectory)) {
+            assertFalse(pathStream.anyMatch(path -> path.toString().endsWith(".part")));
+        }
+
+        // Every document is read, the unreadable rubric stops at grading, the pre-validated one is regraded
+        List<GradingPipeline.Stage> stageList = pipeline.getStageList();
+        assertEquals(14, stageList.get(0).getProcessedCount());
+        assertEquals(14, stageList.get(1).getProcessedCount());
+        assertEquals(13, stageList.get(2).getProcessedCount());
+        assertEquals(13, stageList.get(3).getProcessedCount());
+    }
+
+    @Test
+    public void testAllocationReport() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Files.copy(SAMPLE_PATH.resolve("valid.docx"), mDirectory.resolve("valid-" + i + ".docx"));
+        }
+        Path allocationCsv = Files.createTempFile("jgram-allocation", ".csv");
+        System.setProperty(Settings.ALLOCATION_CSV, allocationCsv.toString());
+
+        try {
+            new GradingPipeline("secret", null, Collections.emptyList()).run(mDirectory.toString());
+            // Header, then one row per document summing its stages
+            List<String> lineList = Files.readAllLines(allocationCsv);
+            assertEquals(4, lineList.size());
+            for (String line : lineList.subList(1, lineList.size())) {
+                String[] values = line.split(",");
+                assertEquals("SUCCESS", values[1], line);
+                assertEquals("3", values[2], line);
+                assertTrue(Long.parseLong(values[3]) > 0, line);
+            }
+
+            // The budget is enforced as with the worker pool
+            System.setProperty(Settings.ALLOCATION_BUDGET, "1");
+            assertThrows(IllegalArgumentException.class,
+                    () -> new GradingPipeline("secret", null, Collections.emptyList()).run(mDirectory.toString()));
+
+            // An evaluation over budget still records every document before failing
+            Path gradebook = mDirectory.resolve("gradebook.csv");
+            System.setProperty(Settings.GRADEBOOK, gradebook.toString());
+            System.setProperty(Settings.VERIFY_INDEX, "none");
+            IllegalArgumentException iae = assertThrows(IllegalArgumentException.class,
+                    () -> Task.runEvaluation("secret", mDirectory.toString()));
+            assertTrue(iae.getMessage().contains("exceeded allocation budget"), iae.getMessage());
+            assertEquals(4, Files.readAllLines(gradebook).size());
+        } finally {
+            Files.deleteIfExists(allocationCsv);
+        }
+    }
+
+    @Test
+    public void testErrorAbortsPipeline() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            Files.copy(SAMPLE_PATH.resolve("valid.docx"), mDirectory.resolve("valid-" + i + ".docx"));
+        }
+        // An error no document outcome can report stops its stage thread
+        OutcomeListener failingListener = (sequence, outcome) -> {
+            throw new StackOverflowError("listener");
+        };
+
+        GradingPipeline pipeline = new GradingPipeline("secret", null, Collections.singletonList(failingListener));
+        StackOverflowError error = assertTimeoutPreemptively(Duration.ofSeconds(60),
+                () -> assertThrows(StackOverflowError.class, () -> pipeline.run(mDirectory.toString())));
+        assertEquals("listener", error.getMessage());
+    }
+
+    @Test
+    public void testNotApplicableToShardWorkers() {
+        assertTrue(GradingPipeline.isApplicable(mDirectory.toString()));
+        assertFalse(GradingPipeline.isApplicable(SAMPLE_PATH.resolve("valid.docx").toString()));
+
+        System.setProperty(Settings.SHARD_CLAIM, "true");
+        assertFalse(GradingPipeline.isApplicable(mDirectory.toString()));
+        System.clearProperty(Settings.SHARD_CLAIM);
+        System.setProperty(Settings.SHARD_COUNT, "2");
+        assertFalse(GradingPipeline.isApplicable(mDirectory.toString()));
+    }
+}
@@ -0,0 +1,54 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests counters and rendering of the batch progress reporter
+ */
+public class TestProgressReporter {
+
+    @Test
+    public void testRenderCountsAndEta() throws Exception {
+        ProgressReporter progressReporter = new ProgressReporter(0, null);
+        long startNanos = System.nanoTime();
+
+        // Concurrent workers, as in a batch run
+        ExecutorService workerPool = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 100; i++) {
+            progressReporter.discovered();
+            boolean failed = i % 10 == 0;
+            workerPool.execute(() -> {
+                progressReporter.started(1024 * 1024);
+                progressReporter.finished(failed, 2 * 1024 * 1024);
+            });
+        }
+        workerPool.shutdown();
+        assertTrue(workerPool.awaitTermination(1, TimeUnit.MINUTES));
+
+        for (int i = 0; i < 100; i++) {
+            progressReporter.discovered();
+        }
+        progressReporter.started(1024 * 1024);
+
+        String line = progressReporter.render(startNanos + TimeUnit.SECONDS.toNanos(10));
+        assertTrue(line.contains("100/200+ done"), line);
+        assertTrue(line.contains("10 failed"), line);
+        assertTrue(line.contains("1 in-flight"), line);
+        assertTrue(line.contains("ETA scanning"), line);
+
+        // 100 documents remain at about 10 docs/s
+        progressReporter.scanComplete();
+        line = progressReporter.render(startNanos + TimeUnit.SECONDS.toNanos(20));
+        assertTrue(line.contains("100/200 done"), line);
+        assertTrue(line.contains("0.0 docs/s"), line);
+        assertTrue(line.matches(".*ETA 0m(1\\d|2\\d)s$"), line);
+        progressReporter.close();
+    }
+}
@@ -0,0 +1,101 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests re-signing graded documents with a new secret: verified tokens replaced, other parts copied raw
+ */
+public class TestResign {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+
+    private Path mDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-resign");
+        System.setProperty(Settings.GRADEBOOK, "none");
+        System.setProperty(Settings.VERIFY_INDEX, "none");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testResignVerifiedDocuments() throws IOException {
+        Path oldDirectory = Files.createDirectory(mDirectory.resolve("old"));
+        Path otherDirectory = Files.createDirectory(mDirectory.resolve("other"));
+        for (int i = 0; i < 3; i++) {
+            Files.copy(SAMPLE_PATH.resolve("valid.docx"), oldDirectory.resolve("valid-" + i + ".docx"));
+        }
+        Files.copy(SAMPLE_PATH.resolve("valid.docx"), otherDirectory.resolve("other.docx"));
+        Task.runEvaluation("old secret", oldDirectory.toString());
+        Task.runEvaluation("other secret", otherDirectory.toString());
+
+        Path documentStore = Files.createDirectory(mDirectory.resolve("documents"));
+        for (int i = 0; i < 3; i++) {
+            Files.move(oldDirectory.resolve("valid-" + i + ".docx"), documentStore.resolve("valid-" + i + ".docx"));
+        }
+        Files.move(otherDirectory.resolve("other.docx"), documentStore.resolve("other.docx"));
+        Files.copy(SAMPLE_PATH.resolve("child-comment.docx"), documentStore.resolve("ungraded.docx"));
+        Map<String, ZipEntry> gradedEntryMap = readEntries(documentStore.resolve("valid-0.docx"));
+        byte[] otherContent = Files.readAllBytes(documentStore.resolve("other.docx"));
+
+        Map<String, String> statusMap = new HashMap<>();
+        for (DocumentOutcome outcome : Task.runResign("old secret", "new secret", documentStore.toString())) {
+            statusMap.put(outcome.getDocumentName(), outcome.getStatus());
+        }
+        assertEquals("SUCCESS", statusMap.get("valid-0.docx"));
+        assertEquals("SUCCESS", statusMap.get("valid-2.docx"));
+        assertEquals("UNDETERMINED", statusMap.get("other.docx"));
+        assertEquals("SKIPPED", statusMap.get("ungraded.docx"));
+        assertArrayEquals(otherContent, Files.readAllBytes(documentStore.resolve("other.docx")));
+
+        // Only the main document part changed, every other part is the same compressed entry
+        Map<String, ZipEntry> resignedEntryMap = readEntries(documentStore.resolve("valid-0.docx"));
+        assertEquals(gradedEntryMap.keySet(), resignedEntryMap.keySet());
+        for (ZipEntry entry : gradedEntryMap.values()) {
+            if (!entry.getName().equals("word/document.xml")) {
+                assertEquals(entry.getCrc(), resignedEntryMap.get(entry.getName()).getCrc(), entry.getName());
+                assertEquals(entry.getCompressedSize(), resignedEntryMap.get(entry.getName()).getCompressedSize(), entry.getName());
+            }
+        }
+
+        List<DocumentOutcome> outcomeList = Task.runTamperTest("new secret", documentStore.resolve("valid-1.docx").toString());
+        assertEquals("VALID", outcomeList.get(0).getStatus());
+        outcomeList = Task.runTamperTest("old secret", documentStore.resolve("valid-1.docx").toString());
+        assertEquals("UNDETERMINED", outcomeList.get(0).getStatus());
+    }
+
+    private static Map<String, ZipEntry> readEntries(Path pDocument) throws IOException {
+        Map<String, ZipEntry> entryMap = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(pDocument.toFile())) {
+            zipFile.stream().forEach(entry -> entryMap.put(entry.getName(), entry));
+        }
+        return entryMap;
+    }
+}
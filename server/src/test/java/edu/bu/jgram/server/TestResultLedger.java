@@ -0,0 +1,129 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Document;
+import edu.bu.jgram.server.assessment.Result;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests the results ledger: recovery from a torn record, and ledger mode grading followed by embedding
+ */
+public class TestResultLedger {
+
+    private Path mDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-ledger");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.LEDGER);
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+        File ledgerFile = mDirectory.resolve("ledger.jsonl").toFile();
+        Result result = Result.builder(1).addCheckpoint(5, 90, "Good").setOverallGrade(90f).build();
+        try (ResultLedger ledger = ResultLedger.open(ledgerFile)) {
+            ledger.append("/a.docx", "aa", result, "test");
+            ledger.append("/b.docx", "bb", result, "test");
+        }
+        long validLength = ledgerFile.length();
+
+        // Crash in the middle of the next record
+        try (FileOutputStream fileOutputStream = new FileOutputStream(ledgerFile, true)) {
+            fileOutputStream.write("0badc0de {\"document\":\"/c.do".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ResultLedger ledger = ResultLedger.open(ledgerFile)) {
+            assertEquals(validLength, ledgerFile.length());
+            assertTrue(ledger.isRecorded("/a.docx", "aa"));
+            assertTrue(ledger.isRecorded("/b.docx", "bb"));
+            assertFalse(ledger.isRecorded("/b.docx", "changed"));
+            ledger.append("/c.docx", "cc", result, "test");
+        }
+
+        try (ResultLedger ledger = ResultLedger.open(ledgerFile)) {
+            assertTrue(ledger.isRecorded("/c.docx", "cc"));
+        }
+
+        // A damaged record followed by valid ones is not a torn record, the ledger must not be truncated
+        List<String> lineList = Files.readAllLines(ledgerFile.toPath());
+        lineList.set(0, lineList.get(0).replace("/a.docx", "/x.docx"));
+        Files.write(ledgerFile.toPath(), lineList);
+        assertThrows(IOException.class, () -> ResultLedger.open(ledgerFile));
+    }
+
+    @Test
+    public void testLedgerModeThenEmbed() throws IOException {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        Path document = mDirectory.resolve("document.docx");
+        Files.copy(new File(classLoader.getResource("sample/valid.docx").getFile()).toPath(), document,
+                StandardCopyOption.REPLACE_EXISTING);
+        byte[] content = Files.readAllBytes(document);
+        File ledgerFile = mDirectory.resolve("ledger.jsonl").toFile();
+        System.setProperty(Settings.LEDGER, ledgerFile.getAbsolutePath());
+        System.setProperty(Settings.GRADEBOOK, "none");
+
+        List<DocumentOutcome> outcomeList = Task.runEvaluation("test", mDirectory.toString());
+        assertEquals("SUCCESS", outcomeList.get(0).getStatus());
+        assertArrayEquals(content, Files.readAllBytes(document));
+
+        // Unchanged since recorded
+        outcomeList = Task.runEvaluation("test", mDirectory.toString());
+        assertEquals("SKIPPED", outcomeList.get(0).getStatus());
+
+        // A recorded document that can't be read back as a document fails alone
+        Path brokenDocument = mDirectory.resolve("broken.docx");
+        Files.write(brokenDocument, "not a document".getBytes(StandardCharsets.UTF_8));
+        try (ResultLedger ledger = ResultLedger.open(ledgerFile)) {
+            ledger.append(brokenDocument.toString(), ResultLedger.digest(Files.readAllBytes(brokenDocument)),
+                    Result.builder(1).addCheckpoint(5, 90, "Good").setOverallGrade(90f).build(), "test");
+        }
+
+        System.setProperty(Settings.VERIFY_INDEX, mDirectory.resolve("jgram-verify.idx").toString());
+        outcomeList = ResultLedger.embed(ledgerFile, "test");
+        assertEquals(2, outcomeList.size());
+        assertEquals("SUCCESS", outcomeList.get(0).getStatus());
+        assertEquals("FAILURE", outcomeList.get(1).getStatus());
+        assertFalse(mDirectory.resolve("document.docx.part").toFile().exists());
+        assertFalse(mDirectory.resolve("broken.docx.part").toFile().exists());
+        try (VerificationIndex index = VerificationIndex.openReadOnly(Settings.getVerificationIndex())) {
+            assertNotNull(index.verify(document.toFile(), "test"));
+        }
+        Document gradedDocument = new Document(document.toString(), 1, 10, 1, 100);
+        try {
+            gradedDocument.index();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        assertTrue(gradedDocument.hasResult());
+    }
+}
@@ -0,0 +1,115 @@
+package edu.bu.jgram.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests sharded grading with several local worker JVMs on a temporary directory
+ */
+public class TestShardCoordinator {
+
+    private static final int DOCUMENT_COUNT = 6;
+    private static final int WORKER_COUNT = 3;
+
+    private Path mDocumentStore;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDocumentStore = Files.createTempDirectory("jgram-shard");
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        Path sample = new File(classLoader.getResource("sample/valid.docx").getFile()).toPath();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Files.copy(sample, mDocumentStore.resolve("document-" + i + ".docx"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.GRADEBOOK);
+        try (Stream<Path> pathStream = Files.walk(mDocumentStore)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testPartitionedWorkers() throws IOException {
+        ShardCoordinator shardCoordinator = new ShardCoordinator(WORKER_COUNT, false, 300, Collections.emptyList());
+        List<DocumentOutcome> outcomeList = shardCoordinator.execute("new-document-test", null, mDocumentStore.toString());
+
+        assertEquals(DOCUMENT_COUNT, outcomeList.size());
+        Set<String> documentNameSet = new HashSet<>();
+        for (DocumentOutcome outcome : outcomeList) {
+            // Sample contains checkpoint(s), so it is not a new document
+            assertEquals("IN-VALID", outcome.getStatus());
+            documentNameSet.add(outcome.getDocumentName());
+        }
+        assertEquals(DOCUMENT_COUNT, documentNameSet.size());
+        assertEquals(DOCUMENT_COUNT, countRecords());
+    }
+
+    @Test
+    public void testClaimingWorkersReclaimAbandonedDocument() throws IOException {
+        ShardCoordinator shardCoordinator = new ShardCoordinator(WORKER_COUNT, true, 1, Collections.emptyList());
+        ShardCoordinator.reset(mDocumentStore);
+        System.setProperty(Settings.GRADEBOOK, mDocumentStore.resolve("gradebook.csv").toString());
+
+        // A worker claims a document, then crashes before completing it i.e. its claim is never refreshed
+        try (Shard crashedShard = new Shard(mDocumentStore, WORKER_COUNT, WORKER_COUNT, true, 1000)) {
+            assertTrue(crashedShard.claim(mDocumentStore.resolve("document-0.docx")));
+        }
+
+        shardCoordinator.await(shardCoordinator.start("evaluate", "secret", mDocumentStore));
+        List<DocumentOutcome> outcomeList = ShardCoordinator.merge(mDocumentStore);
+
+        assertEquals(DOCUMENT_COUNT, outcomeList.size());
+        for (DocumentOutcome outcome : outcomeList) {
+            // A document graded twice would fail, as it must not contain old results
+            assertEquals("SUCCESS", outcome.getStatus(), outcome.getDocumentName());
+        }
+        assertEquals(DOCUMENT_COUNT, countRecords());
+
+        // Worker gradebooks are merged into the configured one, ordered by document
+        List<String> lineList = Files.readAllLines(mDocumentStore.resolve("gradebook.csv"));
+        assertEquals(DOCUMENT_COUNT + 1, lineList.size());
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            assertTrue(lineList.get(i + 1).startsWith("document-" + i + ".docx,SUCCESS,"), lineList.get(i + 1));
+        }
+    }
+
+    @Test
+    public void testEveryWorkerFailedToStart() throws IOException {
+        ShardCoordinator shardCoordinator = new ShardCoordinator(WORKER_COUNT, false, 300,
+                Collections.singletonList("-XX:+JGramUnknownOption"));
+        List<DocumentOutcome> outcomeList = shardCoordinator.execute("new-document-test", null, mDocumentStore.toString());
+
+        assertEquals(0, outcomeList.size());
+        assertEquals(1, Files.readAllLines(mDocumentStore.resolve(".jgram-shard").resolve("summary.csv")).size());
+    }
+
+    private long countRecords() throws IOException {
+        long recordCount = 0;
+        try (Stream<Path> pathStream = Files.list(mDocumentStore.resolve(".jgram-shard").resolve("results"))) {
+            for (Path resultFile : (Iterable<Path>) pathStream::iterator) {
+                recordCount += Files.readAllLines(resultFile).size();
+            }
+        }
+        return recordCount;
+    }
+}
@@ -0,0 +1,151 @@
+package edu.bu.jgram.server;
+
+import edu.bu.jgram.server.assessment.Result;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests the verification index: incremental extension across runs, and tamper test of documents graded with it
+ */
+public class TestVerificationIndex {
+
+    private Path mDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-index");
+        System.setProperty(Settings.VERIFY_INDEX, mDirectory.resolve("jgram-verify.idx").toString());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.GRADEBOOK);
+        System.clearProperty(Settings.VERIFY_INDEX);
+        System.clearProperty(Settings.RUBRIC);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testIncrementalIndex() throws IOException {
+        File indexFile = mDirectory.resolve("verify.idx").toFile();
+        Result result = Result.builder(1).addCheckpoint(5, 90, "Good").setOverallGrade(90f).build();
+
+        // Two runs, so the second run's records are merged into the sorted records of the first
+        for (int run = 0; run < 2; run++) {
+            try (VerificationIndex index = VerificationIndex.open(indexFile)) {
+                for (int document = run * 50; document < run * 50 + 50; document++) {
+                    index.add(createDocument("document-" + document, "comments-" + document), result, "test");
+                }
+            }
+        }
+        assertEquals(16 + 100 * VerificationIndex.RECORD_BYTES, indexFile.length());
+        assertFalse(mDirectory.resolve("verify.idx.tmp").toFile().exists());
+
+        // Crash in the middle of appending a record
+        try (FileOutputStream fileOutputStream = new FileOutputStream(indexFile, true)) {
+            fileOutputStream.write(new byte[VerificationIndex.RECORD_BYTES / 2]);
+        }
+        try (VerificationIndex index = VerificationIndex.open(indexFile)) {
+            index.add(createDocument("document-100", "comments-100"), result, "test");
+        }
+
+        try (VerificationIndex index = VerificationIndex.openReadOnly(indexFile)) {
+            for (int document = 0; document <= 100; document++) {
+                DocumentOutcome outcome = index.verify(createDocument("document-" + document, "comments-" + document), "test");
+                assertNotNull(outcome);
+                assertEquals("VALID", outcome.getStatus());
+                assertEquals(1, outcome.getCheckpointCount());
+                assertEquals(Float.valueOf(90f), outcome.getOverallGrade());
+            }
+            assertNull(index.verify(createDocument("document-1", "comments-changed"), "test"));
+            assertNull(index.verify(createDocument("document-changed", "comments-1"), "test"));
+            assertNull(index.verify(createDocument("document-1", "comments-1"), "other secret"));
+            assertEquals(101, index.getVerifiedCount());
+        }
+    }
+
+    @Test
+    public void testTamperTestWithIndex() throws IOException {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        Path document = mDirectory.resolve("document.docx");
+        Files.copy(new File(classLoader.getResource("sample/valid.docx").getFile()).toPath(), document,
+                StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty(Settings.GRADEBOOK, "none");
+
+        DocumentOutcome gradedOutcome = Task.runEvaluation("test", mDirectory.toString()).get(0);
+        assertEquals("SUCCESS", gradedOutcome.getStatus());
+        File indexFile = Settings.getVerificationIndex();
+
+        try (VerificationIndex index = VerificationIndex.openReadOnly(indexFile)) {
+            assertNotNull(index.verify(document.toFile(), "test"));
+        }
+        List<DocumentOutcome> outcomeList = Task.runTamperTest("test", mDirectory.toString());
+        assertEquals("VALID", outcomeList.get(0).getStatus());
+        assertEquals(gradedOutcome.getCheckpointCount(), outcomeList.get(0).getCheckpointCount());
+        assertEquals(gradedOutcome.getOverallGrade(), outcomeList.get(0).getOverallGrade());
+
+        // Without the index the document is parsed, with the same outcome
+        Files.delete(indexFile.toPath());
+        outcomeList = Task.runTamperTest("test", mDirectory.toString());
+        assertEquals("VALID", outcomeList.get(0).getStatus());
+        assertEquals(gradedOutcome.getOverallGrade(), outcomeList.get(0).getOverallGrade());
+    }
+
+    @Test
+    public void testRubricChanged() throws IOException {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        Path document = mDirectory.resolve("document.docx");
+        Files.copy(new File(classLoader.getResource("sample/valid.docx").getFile()).toPath(), document,
+                StandardCopyOption.REPLACE_EXISTING);
+        Path rubric = mDirectory.resolve("rubric.txt");
+        Files.write(rubric, "RUBRIC( DROP=1 )".getBytes(StandardCharsets.UTF_8));
+        System.setProperty(Settings.GRADEBOOK, "none");
+        System.setProperty(Settings.RUBRIC, rubric.toString());
+
+        assertEquals("SUCCESS", Task.runEvaluation("test", mDirectory.toString()).get(0).getStatus());
+        assertEquals("VALID", Task.runTamperTest("test", mDirectory.toString()).get(0).getStatus());
+
+        // The index no longer vouches for the document, parsing it tells the rubric changed, not the checkpoints
+        Files.write(rubric, "RUBRIC( LATE=90 )".getBytes(StandardCharsets.UTF_8));
+        rubric.toFile().setLastModified(rubric.toFile().lastModified() + 2000);
+        DocumentOutcome outcome = Task.runTamperTest("test", mDirectory.toString()).get(0);
+        assertEquals("RUBRIC-CHANGED", outcome.getStatus());
+        assertNotNull(outcome.getMessage());
+
+        // Without a rubric file, the weighted mean is not the rubric it was graded with either
+        System.clearProperty(Settings.RUBRIC);
+        assertEquals("RUBRIC-CHANGED", Task.runTamperTest("test", mDirectory.toString()).get(0).getStatus());
+    }
+
+    private File createDocument(String pDocumentPart, String pCommentsPart) throws IOException {
+        File document = mDirectory.resolve("document.zip").toFile();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(document))) {
+            zipOutputStream.putNextEntry(new ZipEntry("word/document.xml"));
+            zipOutputStream.write(pDocumentPart.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.putNextEntry(new ZipEntry("word/comments.xml"));
+            zipOutputStream.write(pCommentsPart.getBytes(StandardCharsets.UTF_8));
+        }
+        return document;
+    }
+}
@@ -0,0 +1,60 @@
+package edu.bu.jgram.server.assessment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares evaluation time of the just-in-time evaluator, the rubric evaluator with a compiled rubric shared by
+ * every document, and the rubric evaluator re-compiling the rubric for each document. Not a test, run with
+ * ./gradlew benchmark -Pbenchmark=edu.bu.jgram.server.assessment.RubricBenchmark
+ */
+public class RubricBenchmark {
+
+    private static final String RUBRIC = "RUBRIC( SECTION=1-%d DROP=2 CAP=95; SECTION=%d-%d DROP=1; BONUS=%d CAP=5; LATE=90 )";
+
+    public static void main(String[] args) throws Exception {
+        System.out.format("|%12s|%12s|%14s|%16s|%n", "checkpoints", "jit us", "compiled us", "recompiled us");
+
+        for (int checkpointCount : new int[]{10, 50, 200, 1000}) {
+            List<Checkpoint> checkpointList = createCheckpoints(checkpointCount);
+            int half = checkpointCount / 2;
+            String rubric = String.format(RUBRIC, half, half + 1, checkpointCount - 1, checkpointCount);
+            RubricPlan rubricPlan = RubricPlan.compile(rubric);
+
+            int iterations = Math.max(200, 200000 / checkpointCount);
+            System.out.format("|%12d|%12.2f|%14.2f|%16.2f|%n", checkpointCount,
+                    measure(iterations, () -> new JustInTimeEvaluator(checkpointList).evaluate()),
+                    measure(iterations, () -> new RubricEvaluator(rubricPlan, checkpointList).evaluate()),
+                    measure(iterations, () -> {
+                        // A distinct rubric string each time defeats the cache, like re-interpreting the rule per document
+                        try {
+                            new RubricEvaluator(RubricPlan.compile(rubric + System.nanoTime()), checkpointList).evaluate();
+                        } catch (InvalidGrammarException | InvalidValueException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }));
+        }
+    }
+
+    private static List<Checkpoint> createCheckpoints(int pCheckpointCount) {
+        List<Checkpoint> checkpointList = new ArrayList<>(pCheckpointCount);
+        for (int ordinal = 1; ordinal <= pCheckpointCount; ordinal++) {
+            checkpointList.add(new Checkpoint(ordinal % 10 + 1, 55 + (ordinal * 7) % 46, "Feedback"));
+        }
+        return checkpointList;
+    }
+
+    /**
+     * Average microseconds per call, after the same number of warm up calls.
+     */
+    private static double measure(int pIterations, Runnable pAction) {
+        for (int iteration = 0; iteration < pIterations; iteration++) {
+            pAction.run();
+        }
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < pIterations; iteration++) {
+            pAction.run();
+        }
+        return (System.nanoTime() - start) / 1000.0 / pIterations;
+    }
+}
@@ -1,16 +1,37 @@
 package edu.bu.jgram.server.assessment;
 
+import edu.bu.jgram.server.Settings;
+import edu.bu.jgram.server.security.JWT;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.poi.xwpf.usermodel.BodyElementType;
+import org.apache.poi.xwpf.usermodel.XWPFComment;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFTable;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 /**
@@ -18,6 +39,20 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
  */
 public class TestDocument {
 
+    private Path mDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-document");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
     @Test
     public void testValidDocument() {
         ClassLoader classLoader = this.getClass().getClassLoader();
@@ -91,6 +126,20 @@ public class TestDocument {
         }
     }
 
+    @Test
+    public void testGradeMappingIsNotShared() throws IOException, InvalidGrammarException, InvalidValueException {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        String documentPath = new File(classLoader.getResource("sample/no-grade-mapping.docx").getFile()).getAbsolutePath();
+        Document document = new Document(documentPath, 1, 10, 1, 100);
+
+        // Editing the grade mapping of one document must not change the cached default used by others
+        GradeMapping gradeMapping = document.getGradeMapping();
+        gradeMapping.setGrade("A", 10);
+        assertEquals(95, document.getGradeMapping().getGrade("A"));
+        assertEquals(95, new Document(documentPath, 1, 10, 1, 100).getGradeMapping().getGrade("A"));
+        assertEquals(10, gradeMapping.getGrade("A"));
+    }
+
     @Test
     public void testInvalidCheckpointGradeValueBeyondRangeDocument() {
         ClassLoader classLoader = this.getClass().getClassLoader();
@@ -114,41 +163,36 @@ public class TestDocument {
     }
 
     @Test
-    public void testUpdatingPreValidatedDocument() {
-        ClassLoader classLoader = this.getClass().getClassLoader();
-        File resourceFile = new File(classLoader.getResource("sample/pre-validated.docx").getFile());
-        Document preValidatedDocument = new Document(resourceFile.getAbsolutePath(),
-                1, 10, 1, 100);
-
-        try {
-            // Index contents of assignment document
-            preValidatedDocument.index();
-
-            // Search and get all checkpoints
-            List<Checkpoint> checkpointList = preValidatedDocument.getCheckpoint();
-
-            // Evaluate the final grades
-            Evaluator assignmentEvaluator = new JustInTimeEvaluator(checkpointList);
-            Result result = assignmentEvaluator.evaluate();
-            assertEquals(93.68421173095703, result.getOverallGrade());
-
-            assertThrows(IOException.class, () -> {
-                preValidatedDocument.appendResult(result, "");
-            });
-
-        } catch (IOException ioe) {
-            Assertions.fail("IOException thrown");
-        } catch (InvalidValueException ive) {
-            Assertions.fail("InvalidValueException thrown");
-        } catch (InvalidGrammarException ige) {
-            Assertions.fail("InvalidGrammarException thrown");
+    public void testUpdatingPreValidatedDocument() throws Exception {
+        File regradedFile = mDirectory.resolve("pre-validated.docx").toFile();
+        Files.copy(getResourceFile("sample/pre-validated.docx").toPath(), regradedFile.toPath());
+        Document preValidatedDocument = new Document(regradedFile.getAbsolutePath(), 1, 10, 1, 100);
+
+        // Evaluate the final grades
+        Evaluator assignmentEvaluator = new JustInTimeEvaluator(preValidatedDocument.getCheckpoint());
+        Result result = assignmentEvaluator.evaluate();
+        assertEquals(93.68421173095703, result.getOverallGrade());
+
+        // Regrading replaces the old table in place, again and again
+        for (int i = 0; i < 2; i++) {
+            new Document(regradedFile.getAbsolutePath(), 1, 10, 1, 100).appendResult(result, "secret");
+
+            Document regradedDocument = new Document(regradedFile.getAbsolutePath(), 1, 10, 1, 100);
+            assertEquals(result, JWT.getInstance("secret").decodeJWT(regradedDocument.getHashString()));
+            try (InputStream inputStream = new FileInputStream(regradedFile);
+                 XWPFDocument documentContent = new XWPFDocument(inputStream)) {
+                assertEquals(1, documentContent.getTables().size());
+                assertEquals(BodyElementType.TABLE, documentContent.getBodyElements().get(documentContent.getBodyElements().size() - 1).getElementType());
+                assertEquals(1, documentContent.getParagraphs().stream()
+                        .filter(paragraph -> paragraph.getText().contains("JGRAM Overall Grade")).count());
+            }
         }
     }
 
     @Test
     public void testChildCommentDocument() {
         ClassLoader classLoader = this.getClass().getClassLoader();
-        File resourceFile = new File(classLoader.getResource("sample/child-comments.docx").getFile());
+        File resourceFile = new File(classLoader.getResource("sample/child-comment.docx").getFile());
         Document validDocument = new Document(resourceFile.getAbsolutePath(),
                 1, 10, 1, 100);
 
@@ -160,6 +204,10 @@ public class TestDocument {
             List<Checkpoint> checkpointList = validDocument.getCheckpoint();
             assertEquals(3, checkpointList.size());
 
+            // The child checkpoint replies to a plain comment, so it opens its own thread
+            assertEquals(3, validDocument.getCheckpointThread().size());
+            assertEquals(0, validDocument.getCheckpointThread().get(2).getReplyList().size());
+
         } catch (IOException ioe) {
             Assertions.fail("IOException thrown");
         } catch (InvalidValueException ive) {
@@ -169,6 +217,31 @@ public class TestDocument {
         }
     }
 
+    @Test
+    public void testChildCheckpointReplyPolicy() throws IOException, InvalidGrammarException, InvalidValueException {
+        Document supplementDocument = createDocument("sample/child-checkpoint-reply.docx");
+        supplementDocument.index();
+
+        // The child checkpoint replies to the second checkpoint
+        assertEquals(3, supplementDocument.getCheckpoint().size());
+        List<CheckpointThread> checkpointThreadList = supplementDocument.getCheckpointThread();
+        assertEquals(2, checkpointThreadList.size());
+        assertEquals(new Checkpoint(5, 97, "great clarity"), checkpointThreadList.get(1).getCheckpoint());
+        assertEquals(1, checkpointThreadList.get(1).getReplyList().size());
+
+        Document overrideDocument = createDocument("sample/child-checkpoint-reply.docx");
+        System.setProperty(Settings.REPLY_POLICY, "override");
+        try {
+            overrideDocument.index();
+        } finally {
+            System.clearProperty(Settings.REPLY_POLICY);
+        }
+
+        List<Checkpoint> checkpointList = overrideDocument.getCheckpoint();
+        assertEquals(2, checkpointList.size());
+        assertEquals(new Checkpoint(7, 95, "Use generics"), checkpointList.get(1));
+    }
+
     @Test
     public void testFeedbackWithCommaDocument() {
         ClassLoader classLoader = this.getClass().getClassLoader();
@@ -194,4 +267,137 @@ public class TestDocument {
             Assertions.fail("InvalidGrammarException thrown");
         }
     }
+
+    @Test
+    public void testParallelIndexMatchesSequential() throws IOException, InvalidGrammarException, InvalidValueException {
+        Document sequentialDocument = createDocument("sample/valid.docx");
+        sequentialDocument.index();
+
+        Document parallelDocument = createDocument("sample/valid.docx");
+        System.setProperty(Settings.INDEX_PARALLEL_THRESHOLD, "1");
+        try {
+            parallelDocument.index();
+        } finally {
+            System.clearProperty(Settings.INDEX_PARALLEL_THRESHOLD);
+        }
+
+        assertEquals(sequentialDocument.getCheckpoint(), parallelDocument.getCheckpoint());
+    }
+
+    @Test
+    public void testParallelIndexFirstErrorWins() {
+        for (String resource : new String[]{"sample/missing-checkpoint-weight-key.docx", "sample/invalid-checkpoint-grade-beyond-range.docx"}) {
+            Exception sequentialException = assertThrows(Exception.class, () -> createDocument(resource).index());
+
+            System.setProperty(Settings.INDEX_PARALLEL_THRESHOLD, "1");
+            try {
+                Exception parallelException = assertThrows(Exception.class, () -> createDocument(resource).index());
+                assertEquals(sequentialException.getClass(), parallelException.getClass());
+                assertEquals(sequentialException.getMessage(), parallelException.getMessage());
+            } finally {
+                System.clearProperty(Settings.INDEX_PARALLEL_THRESHOLD);
+            }
+        }
+    }
+
+    @Test
+    public void testCommentPartMatchesPoi() throws Exception {
+        String[] samples = {"valid.docx", "child-comment.docx", "child-checkpoint-reply.docx", "feedback-with-comma.docx",
+                "no-grade-mapping.docx", "pre-validated.docx", "missing-checkpoint-grade-value.docx"};
+        for (String sample : samples) {
+            Document document = createDocument("sample/" + sample);
+            CommentPart commentPart = document.getCommentPart();
+
+            List<XWPFComment> commentList;
+            try (InputStream inputStream = new FileInputStream(getResourceFile("sample/" + sample));
+                 XWPFDocument documentContent = new XWPFDocument(inputStream)) {
+                commentList = Arrays.asList(documentContent.getComments());
+            }
+            assertEquals(commentList.size(), commentPart.size(), sample);
+            for (int index = 0; index < commentList.size(); index++) {
+                assertEquals(commentList.get(index).getId(), commentPart.getId(index), sample);
+                assertEquals(commentList.get(index).getText(), commentPart.getText(index), sample);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryReadsOnlyNeededParts() throws Exception {
+        // Counting checkpoints reads the comments, not the document body
+        Document countDocument = createDocument("sample/child-comment.docx");
+        assertEquals(3, countDocument.getCheckpointCount());
+        assertTrue(countDocument.getReadPartList().contains("word/comments.xml"));
+        assertFalse(countDocument.getReadPartList().contains("word/document.xml"));
+        assertFalse(countDocument.getReadPartList().contains("word/commentsExtended.xml"));
+
+        // Checkpoints read the comment replies too, once
+        assertEquals(3, countDocument.getCheckpoint().size());
+        assertTrue(countDocument.getReadPartList().contains("word/commentsExtended.xml"));
+        List<String> readPartList = countDocument.getReadPartList();
+        countDocument.getCheckpoint();
+        countDocument.getCheckpointThread();
+        countDocument.getCheckpointCount();
+        assertEquals(readPartList, countDocument.getReadPartList());
+
+        // The result table reads the document body, not the comments
+        Document resultDocument = createDocument("sample/valid.docx");
+        assertFalse(resultDocument.hasResult());
+        assertNull(resultDocument.getHashString());
+        assertEquals(Arrays.asList("[Content_Types].xml", "_rels/.rels", "word/document.xml"), resultDocument.getReadPartList());
+    }
+
+    @Test
+    public void testResultTableToken() throws Exception {
+        File gradedFile = mDirectory.resolve("graded.docx").toFile();
+        Files.copy(getResourceFile("sample/valid.docx").toPath(), gradedFile.toPath());
+        Document document = new Document(gradedFile.getAbsolutePath(), 1, 10, 1, 100);
+        Result result = document.createEvaluator().evaluate();
+        document.appendResult(result, "secret");
+
+        Document gradedDocument = new Document(gradedFile.getAbsolutePath(), 1, 10, 1, 100);
+        assertTrue(gradedDocument.hasResult());
+        assertEquals(result, JWT.getInstance("secret").decodeJWT(gradedDocument.getHashString()));
+        assertFalse(gradedDocument.getReadPartList().contains("word/comments.xml"));
+    }
+
+    @Test
+    public void testResultTableDiff() throws Exception {
+        File gradedFile = mDirectory.resolve("graded.docx").toFile();
+        Files.copy(getResourceFile("sample/valid.docx").toPath(), gradedFile.toPath());
+        Document document = new Document(gradedFile.getAbsolutePath(), 1, 10, 1, 100);
+        Result result = document.createEvaluator().evaluate();
+        document.appendResult(result, "secret");
+        assertTrue(new Document(gradedFile.getAbsolutePath(), 1, 10, 1, 100).getResultTableDiff(result).isEmpty());
+
+        // Raise the grade of the first checkpoint, and remove the row of the last one
+        try (InputStream inputStream = new FileInputStream(gradedFile);
+             XWPFDocument documentContent = new XWPFDocument(inputStream)) {
+            XWPFTable table = documentContent.getTables().get(documentContent.getTables().size() - 1);
+            table.getRow(1).getCell(2).getParagraphs().get(0).getRuns().get(0).setText("100", 0);
+            table.removeRow(result.getCheckpointCount());
+            try (OutputStream outputStream = new FileOutputStream(gradedFile)) {
+                documentContent.write(outputStream);
+            }
+        }
+
+        Document editedDocument = new Document(gradedFile.getAbsolutePath(), 1, 10, 1, 100);
+        Result signedResult = JWT.getInstance("secret").decodeJWT(editedDocument.getHashString());
+        assertEquals(result, signedResult);
+        assertEquals(Arrays.asList(
+                String.format("C# 1 | Grade : table '100', token '%d'", result.getGrade(1)),
+                String.format("C# %d : row missing from the table", result.getCheckpointCount())),
+                editedDocument.getResultTableDiff(signedResult));
+        assertEquals(Arrays.asList("[Content_Types].xml", "_rels/.rels", "word/document.xml"), editedDocument.getReadPartList());
+    }
+
+    private File getResourceFile(String pResource) {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        return new File(classLoader.getResource(pResource).getFile());
+    }
+
+    private Document createDocument(String pResource) {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        File resourceFile = new File(classLoader.getResource(pResource).getFile());
+        return new Document(resourceFile.getAbsolutePath(), 1, 10, 1, 100);
+    }
 }
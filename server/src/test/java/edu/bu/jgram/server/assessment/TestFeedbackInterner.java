@@ -0,0 +1,79 @@
+package edu.bu.jgram.server.assessment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests feedback interning, its limit, sharing the pool across worker threads, and clearing it between runs
+ */
+public class TestFeedbackInterner {
+
+    @Test
+    public void testLimit() {
+        FeedbackInterner feedbackInterner = new FeedbackInterner(1);
+        String pooled = feedbackInterner.intern(new String("Use generics"));
+
+        assertSame(pooled, feedbackInterner.intern(new String("Use generics")));
+        String overLimit = new String("Missing unit tests");
+        assertSame(overLimit, feedbackInterner.intern(overLimit));
+        assertNotSame(overLimit, feedbackInterner.intern(new String("Missing unit tests")));
+
+        assertEquals(4, feedbackInterner.getRequestCount());
+        assertEquals(1, feedbackInterner.getHitCount());
+        assertTrue(feedbackInterner.getSavedBytes() > 0);
+    }
+
+    @Test
+    public void testParallelWorkers() throws Exception {
+        FeedbackInterner feedbackInterner = new FeedbackInterner(16);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futureList = new ArrayList<>();
+            for (int document = 0; document < 200; document++) {
+                futureList.add(executorService.submit(() -> feedbackInterner.intern(new String("Use generics"))));
+            }
+
+            String pooled = futureList.get(0).get();
+            for (Future<String> future : futureList) {
+                assertSame(pooled, future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertEquals(200, feedbackInterner.getRequestCount());
+        assertEquals(199, feedbackInterner.getHitCount());
+    }
+
+    @Test
+    public void testRuns() {
+        FeedbackInterner feedbackInterner = new FeedbackInterner(16);
+        feedbackInterner.startRun();
+        String pooled = feedbackInterner.intern(new String("Use generics"));
+        feedbackInterner.intern(new String("Use generics"));
+
+        // A run overlapping the first one shares its pool
+        feedbackInterner.startRun();
+        assertSame(pooled, feedbackInterner.intern(new String("Use generics")));
+        assertTrue(feedbackInterner.finishRun().startsWith("Feedback : 3 string(s) | 1 distinct pooled"));
+        assertTrue(feedbackInterner.finishRun().startsWith("Feedback : 3 string(s) | 1 distinct pooled"));
+
+        // The next run starts empty
+        feedbackInterner.startRun();
+        assertNotSame(pooled, feedbackInterner.intern(new String("Use generics")));
+        assertEquals(1, feedbackInterner.getRequestCount());
+        assertEquals(0, feedbackInterner.getHitCount());
+        assertTrue(feedbackInterner.finishRun().startsWith("Feedback : 1 string(s) | 1 distinct pooled"));
+    }
+}
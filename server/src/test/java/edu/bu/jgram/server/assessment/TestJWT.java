@@ -8,7 +8,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 /**
@@ -128,4 +132,46 @@ public class TestJWT {
             Assertions.fail("InvalidGrammarException thrown");
         }
     }
+
+    @Test
+    public void testCompactToken() {
+        Result.Builder builder = Result.builder(200);
+        for (int ordinal = 1; ordinal <= 200; ordinal++) {
+            builder.addCheckpoint(ordinal % 10 + 1, 60 + ordinal % 40, ordinal % 2 == 0 ? "Use generics" : "Missing unit tests");
+        }
+        Result result = builder.setOverallGrade(81.25f).build();
+
+        JWT jwt = new JWT("test");
+        String compactToken = jwt.createCompact("1", "BU-MET", "JGram", result);
+        String legacyToken = jwt.createJWT("1", "BU-MET", "JGram", result);
+
+        assertTrue(compactToken.startsWith("JG2."));
+        assertTrue(compactToken.length() * 10 < legacyToken.length());
+        assertEquals(result, jwt.decodeJWT(compactToken));
+        assertEquals(result, jwt.decodeJWT(legacyToken));
+
+        // Any change to the payload, or another secret, must be rejected
+        char[] tampered = compactToken.toCharArray();
+        tampered[10] = tampered[10] == 'A' ? 'B' : 'A';
+        assertThrows(SecurityException.class, () -> jwt.decodeJWT(new String(tampered)));
+        assertThrows(SecurityException.class, () -> new JWT("other").decodeJWT(compactToken));
+    }
+
+    @Test
+    public void testRubricDigest() {
+        Result result = Result.builder(1).addCheckpoint(5, 90, "Good").setOverallGrade(90f).build();
+        Result rubricResult = Result.builder(1).addCheckpoint(5, 90, "Good").setOverallGrade(90f)
+                .setRubricDigest("rubric-digest").build();
+        assertTrue(result.hasSameCheckpoints(rubricResult));
+        assertNotEquals(result, rubricResult);
+
+        JWT jwt = new JWT("test");
+        for (Result expected : new Result[]{result, rubricResult}) {
+            assertEquals(expected, jwt.decodeJWT(jwt.createCompact("1", "BU-MET", "JGram", expected)));
+            assertEquals(expected, jwt.decodeJWT(jwt.createJWT("1", "BU-MET", "JGram", expected)));
+        }
+        // Tokens without a rubric are unchanged by it
+        assertNull(jwt.decodeJWT(jwt.createCompact("1", "BU-MET", "JGram", result)).getRubricDigest());
+    }
 }
+
@@ -0,0 +1,182 @@
+package edu.bu.jgram.server.assessment;
+
+import edu.bu.jgram.server.Settings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests rejecting bad packages from their central directory and content types, before any part is parsed
+ */
+public class TestPreflight {
+
+    private static final Path SAMPLE_PATH = Paths.get("src", "test", "resources", "sample");
+    private static final String CONTENT_TYPES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+            + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+            + "<Override PartName=\"/%s\" ContentType=\"%s\"/></Types>";
+    private static final String WORD_MAIN = "application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml";
+    private static final String COMMENTS = "application/vnd.openxmlformats-officedocument.wordprocessingml.comments+xml";
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(Settings.PREFLIGHT_MAX_BYTES);
+    }
+
+    @Test
+    public void testWordDocumentPasses() throws IOException {
+        Preflight preflight = createDocument(Files.readAllBytes(SAMPLE_PATH.resolve("valid.docx"))).preflight();
+        assertFalse(preflight.isRejected());
+        assertTrue(preflight.hasComments());
+        assertTrue(preflight.getEntryCount() > 0);
+
+        // Without a comments part, no checkpoint(s) and no part read beyond content types
+        Document document = createDocument(createPackage("word/document.xml", WORD_MAIN, new byte[16]));
+        assertFalse(document.preflight().hasComments());
+        assertEquals(0, document.getCheckpointCount());
+        assertEquals(Collections.singletonList("[Content_Types].xml"), document.getReadPartList());
+    }
+
+    @Test
+    public void testCommentsPartDeclaredAnyWay() throws IOException {
+        byte[] valid = Files.readAllBytes(SAMPLE_PATH.resolve("valid.docx"));
+        int checkpointCount = createDocument(valid).getCheckpointCount();
+        assertTrue(checkpointCount > 0);
+
+        // Typed by the Default of its extension, without an Override
+        byte[] defaultDeclared = rewritePackage(valid, "word/comments.cmt",
+                "<Override PartName=\"/word/comments.xml\" ContentType=\"" + COMMENTS + "\"/>", "",
+                "<Default Extension=\"xml\"", "<Default Extension=\"CMT\" ContentType=\"" + COMMENTS + "\"/><Default Extension=\"xml\"",
+                "Target=\"comments.xml\"", "Target=\"comments.cmt\"");
+        // Named in another case by the Override and the relationship than in the zip
+        byte[] otherCase = rewritePackage(valid, "word/comments.xml",
+                "PartName=\"/word/comments.xml\"", "PartName=\"/word/COMMENTS.xml\"",
+                "Target=\"comments.xml\"", "Target=\"Comments.xml\"");
+
+        Path file = Files.createTempFile("jgram-preflight", ".docx");
+        try {
+            for (byte[] content : Arrays.asList(defaultDeclared, otherCase)) {
+                Document document = createDocument(content);
+                assertFalse(document.preflight().isRejected());
+                assertTrue(document.preflight().hasComments());
+                assertEquals(checkpointCount, document.getCheckpointCount());
+
+                // Read from a file rather than from memory
+                Files.write(file, content);
+                assertEquals(checkpointCount, new Document(file.toString(), 1, 10, 1, 100).getCheckpointCount());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testBadPackagesRejected() throws IOException {
+        byte[] valid = Files.readAllBytes(SAMPLE_PATH.resolve("valid.docx"));
+
+        byte[] ole2 = new byte[512];
+        System.arraycopy(new byte[]{(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1}, 0, ole2, 0, 8);
+        assertReason("OLE2 compound file, a legacy *.doc or a password-protected document", ole2);
+        assertReason("not a zip package", "plain text, not a zip".getBytes(StandardCharsets.US_ASCII));
+        assertReason("no zip central directory, truncated or corrupt upload", Arrays.copyOf(valid, valid.length / 2));
+        assertReason("not a Word document, main part content type application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml",
+                createPackage("xl/workbook.xml", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml", new byte[16]));
+
+        // Flag the first central directory entry as encrypted
+        byte[] encrypted = valid.clone();
+        int entry = indexOfCentralDirectory(encrypted);
+        int nameLength = (encrypted[entry + 28] & 0xFF) | (encrypted[entry + 29] & 0xFF) << 8;
+        encrypted[entry + 8] |= 1;
+        assertReason(String.format("part %s is encrypted", new String(encrypted, entry + 46, nameLength, StandardCharsets.UTF_8)), encrypted);
+    }
+
+    @Test
+    public void testZipBombRejected() throws IOException {
+        byte[] bomb = createPackage("word/document.xml", WORD_MAIN, new byte[16 * 1024 * 1024]);
+        Preflight preflight = createDocument(bomb).preflight();
+        assertTrue(preflight.isRejected());
+        assertTrue(preflight.getReason().startsWith("part word/document.xml inflates"), preflight.getReason());
+
+        // Parsing fails fast with the reason, before POI inflates anything
+        IOException ioe = assertThrows(IOException.class, () -> createDocument(bomb).getCheckpoint());
+        assertTrue(ioe.getMessage().contains("rejected by preflight : part word/document.xml inflates"), ioe.getMessage());
+
+        System.setProperty(Settings.PREFLIGHT_MAX_BYTES, "1024");
+        assertReason("parts declare over 1024 bytes uncompressed, the limit",
+                createPackage("word/document.xml", WORD_MAIN, "x".repeat(2048).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private void assertReason(String pReason, byte[] pContent) throws IOException {
+        Preflight preflight = createDocument(pContent).preflight();
+        assertTrue(preflight.isRejected());
+        assertEquals(pReason, preflight.getReason());
+    }
+
+    private static int indexOfCentralDirectory(byte[] pContent) {
+        for (int i = pContent.length - 22; i >= 0; i--) {
+            if (pContent[i] == 'P' && pContent[i + 1] == 'K' && pContent[i + 2] == 5 && pContent[i + 3] == 6) {
+                return (pContent[i + 16] & 0xFF) | (pContent[i + 17] & 0xFF) << 8 | (pContent[i + 18] & 0xFF) << 16
+                        | (pContent[i + 19] & 0xFF) << 24;
+            }
+        }
+        return -1;
+    }
+
+    private static Document createDocument(byte[] pContent) {
+        return new Document("preflight.docx", pContent, 1, 10, 1, 100);
+    }
+
+    /**
+     * Copy a package, with its comments part renamed and each (target, replacement) pair replaced in its content types
+     * and main document relationships.
+     */
+    private static byte[] rewritePackage(byte[] pContent, String pCommentsPartName, String... pReplacements) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(pContent));
+             ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                byte[] entryContent = zipInputStream.readAllBytes();
+                String name = entry.getName();
+                if (name.equals("[Content_Types].xml") || name.equals("word/_rels/document.xml.rels")) {
+                    String text = new String(entryContent, StandardCharsets.UTF_8);
+                    for (int i = 0; i < pReplacements.length; i += 2) {
+                        text = text.replace(pReplacements[i], pReplacements[i + 1]);
+                    }
+                    entryContent = text.getBytes(StandardCharsets.UTF_8);
+                }
+                zipOutputStream.putNextEntry(new ZipEntry(name.equals("word/comments.xml") ? pCommentsPartName : name));
+                zipOutputStream.write(entryContent);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] createPackage(String pMainPartName, String pMainContentType, byte[] pMainContent) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry("[Content_Types].xml"));
+            zipOutputStream.write(String.format(CONTENT_TYPES, pMainPartName, pMainContentType).getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.putNextEntry(new ZipEntry(pMainPartName));
+            zipOutputStream.write(pMainContent);
+        }
+        return outputStream.toByteArray();
+    }
+}
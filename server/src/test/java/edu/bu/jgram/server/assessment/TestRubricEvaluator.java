@@ -0,0 +1,80 @@
+package edu.bu.jgram.server.assessment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests rubric compilation and each rubric rule of the rubric evaluator
+ */
+public class TestRubricEvaluator {
+
+    @Test
+    public void testEmptyRubricMatchesWeightedMean() throws Exception {
+        List<Checkpoint> checkpointList = Arrays.asList(new Checkpoint(4, 95, "A"), new Checkpoint(5, 85, "B"),
+                new Checkpoint(6, 95, "C"), new Checkpoint(1, 85, ""));
+
+        Result result = new RubricEvaluator(RubricPlan.compile("RUBRIC( )"), checkpointList).evaluate();
+        Result weightedMean = new JustInTimeEvaluator(checkpointList).evaluate();
+        assertEquals(weightedMean.getOverallGrade(), result.getOverallGrade());
+        assertTrue(weightedMean.hasSameCheckpoints(result));
+        // Only the rubric tells them apart
+        assertEquals(RubricPlan.compile("RUBRIC( )").getDigest(), result.getRubricDigest());
+        assertNull(weightedMean.getRubricDigest());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        String digest = RubricPlan.compile("RUBRIC( SECTION=1-4 DROP=1 CAP=90; BONUS=5 )").getDigest();
+        assertEquals(digest, RubricPlan.compile("RUBRIC(SECTION=1-4   DROP=1 CAP=90 ;BONUS=5)").getDigest());
+        assertNotEquals(digest, RubricPlan.compile("RUBRIC( SECTION=1-4 DROP=2 CAP=90; BONUS=5 )").getDigest());
+        assertNotEquals(digest, RubricPlan.compile("RUBRIC( SECTION=1-4 DROP=1 CAP=90; BONUS=5; LATE=90 )").getDigest());
+        assertNotEquals(RubricPlan.compile("RUBRIC( )").getDigest(), RubricPlan.compile("RUBRIC( DROP=1 )").getDigest());
+    }
+
+    @Test
+    public void testDropCapBonusLate() throws Exception {
+        List<Checkpoint> checkpointList = Arrays.asList(new Checkpoint(2, 90, ""), new Checkpoint(1, 50, ""),
+                new Checkpoint(2, 80, ""));
+        Result result = new RubricEvaluator(RubricPlan.compile("RUBRIC( DROP=1 )"), checkpointList).evaluate();
+        assertEquals(85f, result.getOverallGrade());
+        // Dropped checkpoints are still reported
+        assertEquals(3, result.getCheckpointCount());
+
+        checkpointList = Arrays.asList(new Checkpoint(1, 100, ""), new Checkpoint(1, 100, ""), new Checkpoint(2, 60, ""));
+        assertEquals(70f, evaluate("RUBRIC( SECTION=1-2 CAP=80; SECTION=3 )", checkpointList));
+
+        checkpointList = Arrays.asList(new Checkpoint(1, 80, ""), new Checkpoint(1, 90, ""), new Checkpoint(5, 100, ""));
+        assertEquals(88f, evaluate("RUBRIC( BONUS=3 CAP=3 )", checkpointList));
+        assertEquals(90f, evaluate("RUBRIC( BONUS=3 )", checkpointList));
+        assertEquals(76.5f, evaluate("RUBRIC( BONUS=3 CAP=0; LATE=90 )", checkpointList), 0.0001f);
+
+        // Capped at 100 before the late penalty
+        checkpointList = Arrays.asList(new Checkpoint(1, 98, ""), new Checkpoint(10, 100, ""));
+        assertEquals(80f, evaluate("RUBRIC( BONUS=2; LATE=80 )", checkpointList));
+    }
+
+    @Test
+    public void testCompileOnce() throws Exception {
+        assertSame(RubricPlan.compile("RUBRIC( SECTION=1-4 DROP=1; BONUS=5 )"),
+                RubricPlan.compile("RUBRIC( SECTION=1-4 DROP=1; BONUS=5 )"));
+
+        assertThrows(InvalidValueException.class, () -> RubricPlan.compile("RUBRIC( SECTION=1-3; SECTION=3-4 )"));
+        assertThrows(InvalidValueException.class, () -> RubricPlan.compile("RUBRIC( LATE=150 )"));
+        assertThrows(InvalidGrammarException.class, () -> RubricPlan.compile("RUBRIC( CURVE=5 )"));
+        assertThrows(InvalidGrammarException.class, () -> RubricPlan.compile("RUBRIC( BONUS=1 DROP=1 )"));
+    }
+
+    private static float evaluate(String pRubric, List<Checkpoint> pCheckpointList) throws Exception {
+        return new RubricEvaluator(RubricPlan.compile(pRubric), pCheckpointList).evaluate().getOverallGrade();
+    }
+}
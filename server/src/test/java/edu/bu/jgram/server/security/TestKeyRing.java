@@ -0,0 +1,118 @@
+package edu.bu.jgram.server.security;
+
+import edu.bu.jgram.server.Settings;
+import edu.bu.jgram.server.assessment.Result;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests verification of tokens signed with the secrets of a key ring, with and without key id
+ */
+public class TestKeyRing {
+
+    private Path mDirectory;
+    private final Result mResult = Result.builder(2).addCheckpoint(5, 90, "Good").addCheckpoint(5, 70, "Use generics")
+            .setOverallGrade(80f).build();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("jgram-keyring");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        System.clearProperty(Settings.KEY_RING);
+        System.clearProperty(Settings.TOKEN_FORMAT);
+        try (Stream<Path> pathStream = Files.walk(mDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testKeyIdSelectsKey() throws IOException {
+        setKeyRing("ring", "cs622-fall=secret fall\ncs622-spring=secret spring\n");
+
+        for (String tokenFormat : new String[]{"compact", "jwt"}) {
+            System.setProperty(Settings.TOKEN_FORMAT, tokenFormat);
+            String token = JWT.getInstance("secret fall").create("1", "BU-MET", "JGram", mResult);
+            assertEquals("cs622-fall", JWT.getKeyId(token), tokenFormat);
+
+            // Whichever secret the tamper test was given, the key the token names verifies it
+            assertEquals(mResult, JWT.getInstance("secret spring").decodeJWT(token), tokenFormat);
+            assertEquals(mResult, JWT.getInstance("secret of another course").decodeJWT(token), tokenFormat);
+        }
+    }
+
+    @Test
+    public void testLegacyTokenTriesRing() throws IOException {
+        String legacyToken = JWT.getInstance("secret spring").create("1", "BU-MET", "JGram", mResult);
+        assertNull(JWT.getKeyId(legacyToken));
+
+        setKeyRing("ring", "cs622-fall=secret fall\ncs622-spring=secret spring\n");
+        assertEquals(mResult, JWT.getInstance("secret fall").decodeJWT(legacyToken));
+        assertThrows(SecurityException.class, () -> JWT.getInstance("secret fall").decodeJWT(legacyToken.substring(0, legacyToken.length() - 2)));
+    }
+
+    @Test
+    public void testMisKeyedAndTamperedToken() throws IOException {
+        setKeyRing("previous-ring", "cs622-2019=secret 2019\n");
+        String previousToken = JWT.getInstance("secret 2019").create("1", "BU-MET", "JGram", mResult);
+
+        setKeyRing("ring", "cs622-fall=secret fall\n");
+        System.setProperty(Settings.TOKEN_FORMAT, "compact");
+        String token = JWT.getInstance("secret fall").create("1", "BU-MET", "JGram", mResult);
+
+        // The named key isn't in the ring: not necessarily tampered
+        assertThrows(MisKeyedTokenException.class, () -> JWT.getInstance("secret fall").decodeJWT(previousToken));
+        // Unless the secret given is that key
+        assertEquals(mResult, JWT.getInstance("secret 2019").decodeJWT(previousToken));
+
+        // The named key is in the ring, so a mismatch is tampering
+        int payloadIndex = token.indexOf('.', "JG2.cs622-fall.".length());
+        String tamperedToken = token.substring(0, payloadIndex - 1) + (token.charAt(payloadIndex - 1) == 'A' ? 'B' : 'A')
+                + token.substring(payloadIndex);
+        assertThrows(TamperedTokenException.class, () -> JWT.getInstance("secret fall").decodeJWT(tamperedToken));
+    }
+
+    @Test
+    public void testInvalidKeyRing() throws IOException {
+        setKeyRing("ring", "cs622/fall=secret fall\n");
+        assertThrows(SecurityException.class, KeyRing::getInstance);
+
+        setKeyRing("ring", "a=same secret\nb=same secret\n");
+        assertThrows(SecurityException.class, KeyRing::getInstance);
+
+        setKeyRing("ring", "cs622-fall\n");
+        assertThrows(SecurityException.class, KeyRing::getInstance);
+    }
+
+    @Test
+    public void testSecretTakenLiterally() throws IOException {
+        setKeyRing("ring", "# Keys of CS622\n\ncs622-fall = C:\\secret\\fall=2019\ncs622-spring=secret spring\\\n");
+
+        KeyRing keyRing = KeyRing.getInstance();
+        assertEquals("C:\\secret\\fall=2019", keyRing.getSecret("cs622-fall"));
+        assertEquals("secret spring\\", keyRing.getSecret("cs622-spring"));
+        assertEquals("cs622-fall", keyRing.getKeyId("C:\\secret\\fall=2019"));
+        assertEquals(2, keyRing.getSecrets().size());
+    }
+
+    private void setKeyRing(String pName, String pContent) throws IOException {
+        Path keyRing = mDirectory.resolve(pName + ".properties");
+        Files.write(keyRing, pContent.getBytes(StandardCharsets.UTF_8));
+        System.setProperty(Settings.KEY_RING, keyRing.toString());
+    }
+}
@@ -0,0 +1,65 @@
+package edu.bu.jgram.server.security;
+
+import edu.bu.jgram.server.assessment.Result;
+
+/**
+ * Compares size, encode and decode time of the compact and JWT result tokens. Not a test, run with
+ * ./gradlew benchmark -Pbenchmark=edu.bu.jgram.server.security.TokenBenchmark
+ */
+public class TokenBenchmark {
+
+    private static final String[] FEEDBACKS = {
+            "Use generics",
+            "Missing unit tests",
+            "Good separation of concerns, but the error handling swallows exceptions in several places",
+            ""
+    };
+
+    public static void main(String[] args) {
+        JWT jwt = new JWT("benchmark-secret");
+        System.out.format("|%12s|%10s|%12s|%10s|%12s|%12s|%12s|%12s|%n", "checkpoints", "unique fb",
+                "jwt bytes", "jg2 bytes", "jwt enc us", "jg2 enc us", "jwt dec us", "jg2 dec us");
+
+        for (int checkpointCount : new int[]{3, 20, 200, 1000}) {
+            for (boolean uniqueFeedback : new boolean[]{false, true}) {
+                Result result = createResult(checkpointCount, uniqueFeedback);
+                String legacyToken = jwt.createJWT("1", "BU-MET", "JGram", result);
+                String compactToken = jwt.createCompact("1", "BU-MET", "JGram", result);
+                if (!result.equals(jwt.decodeJWT(compactToken)) || !result.equals(jwt.decodeJWT(legacyToken))) {
+                    throw new IllegalStateException("Token round trip failed");
+                }
+
+                int iterations = Math.max(50, 20000 / checkpointCount);
+                System.out.format("|%12d|%10s|%12d|%10d|%12.1f|%12.1f|%12.1f|%12.1f|%n", checkpointCount, uniqueFeedback,
+                        legacyToken.length(), compactToken.length(),
+                        measure(iterations, () -> jwt.createJWT("1", "BU-MET", "JGram", result)),
+                        measure(iterations, () -> jwt.createCompact("1", "BU-MET", "JGram", result)),
+                        measure(iterations, () -> jwt.decodeJWT(legacyToken)),
+                        measure(iterations, () -> jwt.decodeJWT(compactToken)));
+            }
+        }
+    }
+
+    private static Result createResult(int pCheckpointCount, boolean pUniqueFeedback) {
+        Result.Builder builder = Result.builder(pCheckpointCount);
+        for (int ordinal = 1; ordinal <= pCheckpointCount; ordinal++) {
+            String feedback = FEEDBACKS[ordinal % FEEDBACKS.length];
+            builder.addCheckpoint(ordinal % 10 + 1, 55 + (ordinal * 7) % 46, pUniqueFeedback ? feedback + " #" + ordinal : feedback);
+        }
+        return builder.setOverallGrade(87.5f).build();
+    }
+
+    /**
+     * Average microseconds per call, after the same number of warm up calls.
+     */
+    private static double measure(int pIterations, Runnable pAction) {
+        for (int iteration = 0; iteration < pIterations; iteration++) {
+            pAction.run();
+        }
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < pIterations; iteration++) {
+            pAction.run();
+        }
+        return (System.nanoTime() - start) / 1000.0 / pIterations;
+    }
+}